@@ -464,6 +464,10 @@ public abstract class EmailContent {
         public static final String INTRO_TEXT = "introText";
         // The start of quoted text within our text content
         public static final String QUOTED_TEXT_START_POS = "quotedTextStartPos";
+        // Boolean, whether the html content has <img> tags, i.e. whether the UI should offer to
+        // show pictures. Set by the provider when the html content is written; null for bodies
+        // stored before this column was added, until it has been computed for them.
+        public static final String EMBEDS_EXTERNAL_RESOURCES = "embedsExternalResources";
     }
 
     public static final class Body extends EmailContent {
@@ -836,13 +840,20 @@ public abstract class EmailContent {
             +     "SELECT " + MailboxColumns._ID + " FROM " + Mailbox.TABLE_NAME + ""
             +     " WHERE " + MailboxColumns.TYPE + " = " + Mailbox.TYPE_TRASH
             +     ")"
+            + " AND " + MessageColumns.ACCOUNT_KEY + " IN ("
+            +     "SELECT " + AccountColumns._ID + " FROM " + Account.TABLE_NAME
+            +     ")"
             + " AND " + FLAG_LOADED_SELECTION;
 
-        /** Selection to retrieve all messages in "inbox" for any account */
+        /**
+         * Selection to retrieve all messages in "inbox" for any account. This and the selections
+         * below leave out deleted accounts whose mailboxes haven't been purged yet.
+         */
         public static final String ALL_INBOX_SELECTION =
             MessageColumns.MAILBOX_KEY + " IN ("
             +     "SELECT " + MailboxColumns._ID + " FROM " + Mailbox.TABLE_NAME
             +     " WHERE " + MailboxColumns.TYPE + " = " + Mailbox.TYPE_INBOX
+            +     " AND " + Mailbox.EXISTING_ACCOUNT_SELECTION
             +     ")"
             + " AND " + FLAG_LOADED_SELECTION;
 
@@ -851,6 +862,7 @@ public abstract class EmailContent {
             MessageColumns.MAILBOX_KEY + " IN ("
             +     "SELECT " + MailboxColumns._ID + " FROM " + Mailbox.TABLE_NAME
             +     " WHERE " + MailboxColumns.TYPE + " = " + Mailbox.TYPE_DRAFTS
+            +     " AND " + Mailbox.EXISTING_ACCOUNT_SELECTION
             +     ")"
             + " AND " + FLAG_LOADED_SELECTION;
 
@@ -859,6 +871,7 @@ public abstract class EmailContent {
             MessageColumns.MAILBOX_KEY + " IN ("
             +     "SELECT " + MailboxColumns._ID + " FROM " + Mailbox.TABLE_NAME
             +     " WHERE " + MailboxColumns.TYPE + " = " + Mailbox.TYPE_OUTBOX
+            +     " AND " + Mailbox.EXISTING_ACCOUNT_SELECTION
             +     ")"; // NOTE No flag_loaded test for outboxes.
 
         /** Selection to retrieve unread messages in "inbox" for any account */
@@ -1325,6 +1338,8 @@ public abstract class EmailContent {
         public static final String UI_DESTINATION = "uiDestination";
         // The UIProvider downloaded size of the attachment
         public static final String UI_DOWNLOADED_SIZE = "uiDownloadedSize";
+        // The hash of the content, if it's kept in a file shared with identical attachments
+        public static final String BLOB_HASH = "blobHash";
     }
 
     public static final class Attachment extends EmailContent implements Parcelable {
@@ -277,8 +277,16 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
     // Sentinel for PARENT_KEY.  Use NO_MAILBOX for toplevel mailboxes (i.e. no parents).
     public static final long PARENT_KEY_UNINITIALIZED = 0L;
 
+    /**
+     * Selection for mailboxes whose account exists. A deleted account's mailboxes are left behind
+     * until the provider has purged them in the background, and must not be found meanwhile.
+     */
+    public static final String EXISTING_ACCOUNT_SELECTION = MailboxColumns.ACCOUNT_KEY
+            + " in (select " + AccountColumns._ID + " from " + Account.TABLE_NAME + ")";
+
     private static final String WHERE_TYPE_AND_ACCOUNT_KEY =
-        MailboxColumns.TYPE + "=? and " + MailboxColumns.ACCOUNT_KEY + "=?";
+        MailboxColumns.TYPE + "=? and " + MailboxColumns.ACCOUNT_KEY + "=? and "
+        + EXISTING_ACCOUNT_SELECTION;
 
     /**
      * Selection for mailboxes that should receive push for an account. A mailbox should receive
@@ -16,11 +16,13 @@
 
 package com.android.emailcommon.provider;
 
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.os.RemoteException;
 import android.text.TextUtils;
 
 import com.android.emailcommon.Logging;
@@ -28,6 +30,7 @@ import com.android.emailcommon.provider.EmailContent.AccountColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.mail.utils.LogUtils;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 public class MailboxUtilities {
@@ -48,56 +51,12 @@ public class MailboxUtilities {
     @Deprecated
     public static void setFlagsAndChildrensParentKey(Context context, Cursor parentCursor,
             String accountSelector) {
-        ContentResolver resolver = context.getContentResolver();
-        String[] selectionArgs = new String[1];
-        ContentValues parentValues = new ContentValues();
-        // Get the data we need first
-        long parentId = parentCursor.getLong(Mailbox.CONTENT_ID_COLUMN);
-        int parentFlags = 0;
-        int parentType = parentCursor.getInt(Mailbox.CONTENT_TYPE_COLUMN);
-        String parentServerId = parentCursor.getString(Mailbox.CONTENT_SERVER_ID_COLUMN);
-        // All email-type boxes hold mail
-        if (parentType <= Mailbox.TYPE_NOT_EMAIL) {
-            parentFlags |= Mailbox.FLAG_HOLDS_MAIL + Mailbox.FLAG_SUPPORTS_SETTINGS;
-        }
-        // Outbox, Drafts, and Sent don't allow mail to be moved to them
-        if (parentType == Mailbox.TYPE_MAIL || parentType == Mailbox.TYPE_TRASH ||
-                parentType == Mailbox.TYPE_JUNK || parentType == Mailbox.TYPE_INBOX) {
-            parentFlags |= Mailbox.FLAG_ACCEPTS_MOVED_MAIL;
-        }
-        // There's no concept of "append" in EAS so FLAG_ACCEPTS_APPENDED_MAIL is never used
-        // Mark parent mailboxes as parents & add parent key to children
-        // An example of a mailbox with a null serverId would be an Outbox that we create locally
-        // for hotmail accounts (which don't have a server-based Outbox)
-        if (parentServerId != null) {
-            selectionArgs[0] = parentServerId;
-            Cursor childCursor = resolver.query(Mailbox.CONTENT_URI,
-                    Mailbox.ID_PROJECTION, MailboxColumns.PARENT_SERVER_ID + "=? AND " +
-                    accountSelector, selectionArgs, null);
-            if (childCursor == null) return;
-            try {
-                while (childCursor.moveToNext()) {
-                    parentFlags |= Mailbox.FLAG_HAS_CHILDREN | Mailbox.FLAG_CHILDREN_VISIBLE;
-                    ContentValues childValues = new ContentValues();
-                    childValues.put(Mailbox.PARENT_KEY, parentId);
-                    long childId = childCursor.getLong(Mailbox.ID_PROJECTION_COLUMN);
-                    resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, childId),
-                            childValues, null, null);
-                }
-            } finally {
-                childCursor.close();
-            }
-        } else {
-            // Mark this is having no parent, so that we don't examine this mailbox again
-            parentValues.put(Mailbox.PARENT_KEY, Mailbox.NO_MAILBOX);
-            LogUtils.w(Logging.LOG_TAG, "Mailbox with null serverId: " +
-                    parentCursor.getString(Mailbox.CONTENT_DISPLAY_NAME_COLUMN) + ", type: " +
-                    parentType);
-        }
-        // Save away updated flags and parent key (if any)
-        parentValues.put(Mailbox.FLAGS, parentFlags);
-        resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, parentId),
-                parentValues, null, null);
+        Hierarchy hierarchy = Hierarchy.load(context, accountSelector);
+        if (hierarchy == null) return;
+        HierarchyEntry entry = hierarchy.getEntry(parentCursor.getLong(Mailbox.CONTENT_ID_COLUMN));
+        if (entry == null) return;
+        hierarchy.setFlagsAndChildrensParentKey(entry);
+        hierarchy.save(context);
     }
 
     /**
@@ -109,16 +68,14 @@ public class MailboxUtilities {
     @Deprecated
     public static void setFlagsAndChildrensParentKey(Context context, String accountSelector,
             String serverId) {
-        Cursor cursor = context.getContentResolver().query(Mailbox.CONTENT_URI,
-                Mailbox.CONTENT_PROJECTION, MailboxColumns.SERVER_ID + "=? AND " + accountSelector,
-                new String[] {serverId}, null);
-        if (cursor == null) return;
-        try {
-            if (cursor.moveToFirst()) {
-                setFlagsAndChildrensParentKey(context, cursor, accountSelector);
+        Hierarchy hierarchy = Hierarchy.load(context, accountSelector);
+        if (hierarchy == null) return;
+        for (HierarchyEntry entry : hierarchy.mEntries) {
+            if (serverId.equals(entry.mServerId)) {
+                hierarchy.setFlagsAndChildrensParentKey(entry);
+                hierarchy.save(context);
+                return;
             }
-        } finally {
-            cursor.close();
         }
     }
 
@@ -133,34 +90,11 @@ public class MailboxUtilities {
     public static void fixupUninitializedParentKeys(Context context, String accountSelector) {
         // Sanity check first on our arguments
         if (accountSelector == null) throw new IllegalArgumentException();
-        // The selection we'll use to find uninitialized parent key mailboxes
-        String noParentKeySelection = WHERE_PARENT_KEY_UNINITIALIZED + " AND " + accountSelector;
-
-        // We'll loop through mailboxes with an uninitialized parent key
-        ContentResolver resolver = context.getContentResolver();
-        Cursor noParentKeyMailboxCursor =
-                resolver.query(Mailbox.CONTENT_URI, Mailbox.CONTENT_PROJECTION,
-                        noParentKeySelection, null, null);
-        if (noParentKeyMailboxCursor == null) return;
-        try {
-            while (noParentKeyMailboxCursor.moveToNext()) {
-                setFlagsAndChildrensParentKey(context, noParentKeyMailboxCursor, accountSelector);
-                String parentServerId =
-                        noParentKeyMailboxCursor.getString(Mailbox.CONTENT_PARENT_SERVER_ID_COLUMN);
-                // Fixup the parent so that the children's parentKey is updated
-                if (parentServerId != null) {
-                    setFlagsAndChildrensParentKey(context, accountSelector, parentServerId);
-                }
-            }
-        } finally {
-            noParentKeyMailboxCursor.close();
-        }
-
-        // Any mailboxes without a parent key should have parentKey set to -1 (no parent)
-        ContentValues values = new ContentValues();
-        values.put(Mailbox.PARENT_KEY, Mailbox.NO_MAILBOX);
-        resolver.update(Mailbox.CONTENT_URI, values, noParentKeySelection, null);
-     }
+        Hierarchy hierarchy = Hierarchy.load(context, accountSelector);
+        if (hierarchy == null) return;
+        hierarchy.fixupUninitializedParentKeys();
+        hierarchy.save(context);
+    }
 
     private static void setAccountSyncAdapterFlag(Context context, long accountId, boolean start) {
         Account account = Account.restoreAccountWithId(context, accountId);
@@ -206,74 +140,292 @@ public class MailboxUtilities {
         if ((account.mFlags & ACCOUNT_MAILBOX_CHANGE_FLAG) != 0) {
             LogUtils.w(Logging.LOG_TAG, "Account " + account.mDisplayName +
                     " has inconsistent mailbox data; fixing up...");
-            // Set all account mailboxes to uninitialized parent key
-            ContentValues values = new ContentValues();
-            values.put(Mailbox.PARENT_KEY, Mailbox.PARENT_KEY_UNINITIALIZED);
-            String accountSelector = Mailbox.ACCOUNT_KEY + "=" + account.mId;
-            ContentResolver resolver = context.getContentResolver();
-            resolver.update(Mailbox.CONTENT_URI, values, accountSelector, null);
-            // Fix up keys and flags
-            MailboxUtilities.fixupUninitializedParentKeys(context, accountSelector);
+            // Treat every parent key as uninitialized, and fix up keys, flags and names
+            Hierarchy hierarchy =
+                    Hierarchy.load(context, Mailbox.ACCOUNT_KEY + "=" + account.mId);
+            if (hierarchy != null) {
+                hierarchy.resetParentKeys();
+                hierarchy.fixupUninitializedParentKeys();
+                hierarchy.setHierarchicalNames();
+                hierarchy.save(context);
+            }
             // Clear the temporary flag
             endMailboxChanges(context, accountId);
         }
     }
 
+    /**
+     * Fix up the parent keys and flags of any of the account's mailboxes that need it, and then
+     * the hierarchical names of all of them
+     * @param context the caller's context
+     * @param accountId the account whose mailboxes are to be named
+     */
+    public static void setupHierarchicalNames(Context context, long accountId) {
+        Hierarchy hierarchy = Hierarchy.load(context, Mailbox.ACCOUNT_KEY + "=" + accountId);
+        if (hierarchy == null) return;
+        hierarchy.fixupUninitializedParentKeys();
+        hierarchy.setHierarchicalNames();
+        hierarchy.save(context);
+    }
+
     private static final String[] HIERARCHY_PROJECTION = new String[] {
-        MailboxColumns._ID, MailboxColumns.DISPLAY_NAME, MailboxColumns.PARENT_KEY,
-        MailboxColumns.HIERARCHICAL_NAME
+        MailboxColumns._ID, MailboxColumns.ACCOUNT_KEY, MailboxColumns.SERVER_ID,
+        MailboxColumns.PARENT_SERVER_ID, MailboxColumns.PARENT_KEY, MailboxColumns.TYPE,
+        MailboxColumns.FLAGS, MailboxColumns.DISPLAY_NAME, MailboxColumns.HIERARCHICAL_NAME
     };
     private static final int HIERARCHY_ID = 0;
-    private static final int HIERARCHY_NAME = 1;
-    private static final int HIERARCHY_PARENT_KEY = 2;
-    private static final int HIERARCHY_HIERARCHICAL_NAME = 3;
+    private static final int HIERARCHY_ACCOUNT_KEY = 1;
+    private static final int HIERARCHY_SERVER_ID = 2;
+    private static final int HIERARCHY_PARENT_SERVER_ID = 3;
+    private static final int HIERARCHY_PARENT_KEY = 4;
+    private static final int HIERARCHY_TYPE = 5;
+    private static final int HIERARCHY_FLAGS = 6;
+    private static final int HIERARCHY_NAME = 7;
+    private static final int HIERARCHY_HIERARCHICAL_NAME = 8;
+
+    /**
+     * A mailbox as read by {@link Hierarchy}, with the parent key, flags and hierarchical name
+     * it had then and the ones it should have now
+     */
+    /* package for testing */ static final class HierarchyEntry {
+        final long mId;
+        final long mAccountKey;
+        final String mServerId;
+        final String mParentServerId;
+        final int mType;
+        final String mDisplayName;
+        final long mOldParentKey;
+        final int mOldFlags;
+        final String mOldHierarchicalName;
+        long mParentKey;
+        int mFlags;
+        /** The hierarchical name, once it has been worked out */
+        String mHierarchicalName;
+        /** Set while the name of an ancestor is being worked out, to catch loops */
+        boolean mResolving;
+
+        HierarchyEntry(Cursor c) {
+            mId = c.getLong(HIERARCHY_ID);
+            mAccountKey = c.getLong(HIERARCHY_ACCOUNT_KEY);
+            mServerId = c.getString(HIERARCHY_SERVER_ID);
+            mParentServerId = c.getString(HIERARCHY_PARENT_SERVER_ID);
+            // A null parent key reads as 0, i.e. PARENT_KEY_UNINITIALIZED
+            mOldParentKey = mParentKey = c.getLong(HIERARCHY_PARENT_KEY);
+            mType = c.getInt(HIERARCHY_TYPE);
+            mOldFlags = mFlags = c.getInt(HIERARCHY_FLAGS);
+            mDisplayName = c.getString(HIERARCHY_NAME);
+            mOldHierarchicalName = c.getString(HIERARCHY_HIERARCHICAL_NAME);
+        }
 
-    private static String getHierarchicalName(Context context, long id, HashMap<Long, String> map,
-            String name, long parentId) {
-        String hierarchicalName;
-        if (map.containsKey(id)) {
-            return map.get(id);
-        } else if (parentId == Mailbox.NO_MAILBOX) {
-            hierarchicalName = name;
-        } else {
-            Mailbox parent = Mailbox.restoreMailboxWithId(context, parentId);
-            if (parent == null) return name + "/" + "??";
-            hierarchicalName = getHierarchicalName(context, parentId, map, parent.mDisplayName,
-                    parent.mParentKey) + "/" + name;
+        /** @return the changes to be written, or null if there are none */
+        ContentValues getChanges() {
+            ContentValues values = new ContentValues();
+            if (mParentKey != mOldParentKey) {
+                values.put(MailboxColumns.PARENT_KEY, mParentKey);
+            }
+            if (mFlags != mOldFlags) {
+                values.put(MailboxColumns.FLAGS, mFlags);
+            }
+            // Don't write the name unless it has changed or we don't need one (it's top-level)
+            if (mHierarchicalName != null
+                    && !mHierarchicalName.equals(mOldHierarchicalName)
+                    && !(mHierarchicalName.equals(mDisplayName)
+                            && TextUtils.isEmpty(mOldHierarchicalName))) {
+                values.put(MailboxColumns.HIERARCHICAL_NAME, mHierarchicalName);
+            }
+            return values.size() > 0 ? values : null;
         }
-        map.put(id, hierarchicalName);
-        return hierarchicalName;
     }
 
-    public static void setupHierarchicalNames(Context context, long accountId) {
-        Account account = Account.restoreAccountWithId(context, accountId);
-        if (account == null) return;
-        // Start by clearing all names
-        ContentValues values = new ContentValues();
-        String accountSelector = Mailbox.ACCOUNT_KEY + "=" + account.mId;
-        ContentResolver resolver = context.getContentResolver();
-        HashMap<Long, String> nameMap = new HashMap<Long, String>();
-        Cursor c = resolver.query(Mailbox.CONTENT_URI, HIERARCHY_PROJECTION, accountSelector,
-                null, null);
-        try {
-            while(c.moveToNext()) {
-                long id = c.getLong(HIERARCHY_ID);
-                String displayName = c.getString(HIERARCHY_NAME);
-                String name = getHierarchicalName(context, id, nameMap, displayName,
-                        c.getLong(HIERARCHY_PARENT_KEY));
-                String oldHierarchicalName = c.getString(HIERARCHY_HIERARCHICAL_NAME);
-                // Don't write the name unless it has changed or we don't need one (it's top-level)
-                if (name.equals(oldHierarchicalName) ||
-                        ((name.equals(displayName)) && TextUtils.isEmpty(oldHierarchicalName))) {
-                    continue;
+    /**
+     * The mailboxes of one or more accounts, read with a single query. Parent keys, flags and
+     * hierarchical names are all worked out in memory from the serverId/parentServerId links,
+     * and whatever changed is then written back in a single batch.
+     */
+    /* package for testing */ static final class Hierarchy {
+        final ArrayList<HierarchyEntry> mEntries = new ArrayList<HierarchyEntry>();
+        private final HashMap<Long, HierarchyEntry> mById = new HashMap<Long, HierarchyEntry>();
+        /** The first mailbox with each account key and server id */
+        private final HashMap<String, HierarchyEntry> mByServerId =
+                new HashMap<String, HierarchyEntry>();
+        /** The mailboxes with each account key and parent server id */
+        private final HashMap<String, ArrayList<HierarchyEntry>> mChildren =
+                new HashMap<String, ArrayList<HierarchyEntry>>();
+
+        /**
+         * @param c a cursor over {@link MailboxUtilities#HIERARCHY_PROJECTION}
+         */
+        /* package for testing */ Hierarchy(Cursor c) {
+            while (c.moveToNext()) {
+                HierarchyEntry entry = new HierarchyEntry(c);
+                mEntries.add(entry);
+                mById.put(entry.mId, entry);
+                if (entry.mServerId != null) {
+                    String key = getKey(entry.mAccountKey, entry.mServerId);
+                    if (!mByServerId.containsKey(key)) {
+                        mByServerId.put(key, entry);
+                    }
+                }
+                if (entry.mParentServerId != null) {
+                    String key = getKey(entry.mAccountKey, entry.mParentServerId);
+                    ArrayList<HierarchyEntry> children = mChildren.get(key);
+                    if (children == null) {
+                        children = new ArrayList<HierarchyEntry>();
+                        mChildren.put(key, children);
+                    }
+                    children.add(entry);
                 }
-                // If the name has changed, update it
-                values.put(MailboxColumns.HIERARCHICAL_NAME, name);
-                resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, id), values, null,
-                        null);
             }
-        } finally {
-            c.close();
+        }
+
+        /**
+         * @return the mailboxes matching the selection, or null if they can't be read
+         */
+        static Hierarchy load(Context context, String accountSelector) {
+            Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
+                    HIERARCHY_PROJECTION, accountSelector, null, null);
+            if (c == null) return null;
+            try {
+                return new Hierarchy(c);
+            } finally {
+                c.close();
+            }
+        }
+
+        private static String getKey(long accountKey, String serverId) {
+            return accountKey + ":" + serverId;
+        }
+
+        HierarchyEntry getEntry(long id) {
+            return mById.get(id);
+        }
+
+        /**
+         * Recalculate a mailbox's flags and the parent key of any children
+         */
+        void setFlagsAndChildrensParentKey(HierarchyEntry parent) {
+            int flags = 0;
+            // All email-type boxes hold mail
+            if (parent.mType <= Mailbox.TYPE_NOT_EMAIL) {
+                flags |= Mailbox.FLAG_HOLDS_MAIL + Mailbox.FLAG_SUPPORTS_SETTINGS;
+            }
+            // Outbox, Drafts, and Sent don't allow mail to be moved to them
+            if (parent.mType == Mailbox.TYPE_MAIL || parent.mType == Mailbox.TYPE_TRASH ||
+                    parent.mType == Mailbox.TYPE_JUNK || parent.mType == Mailbox.TYPE_INBOX) {
+                flags |= Mailbox.FLAG_ACCEPTS_MOVED_MAIL;
+            }
+            // There's no concept of "append" in EAS so FLAG_ACCEPTS_APPENDED_MAIL is never used
+            // Mark parent mailboxes as parents & add parent key to children
+            // An example of a mailbox with a null serverId would be an Outbox that we create
+            // locally for hotmail accounts (which don't have a server-based Outbox)
+            if (parent.mServerId != null) {
+                ArrayList<HierarchyEntry> children =
+                        mChildren.get(getKey(parent.mAccountKey, parent.mServerId));
+                if (children != null) {
+                    flags |= Mailbox.FLAG_HAS_CHILDREN | Mailbox.FLAG_CHILDREN_VISIBLE;
+                    for (HierarchyEntry child : children) {
+                        child.mParentKey = parent.mId;
+                    }
+                }
+            } else {
+                // Mark this is having no parent, so that we don't examine this mailbox again
+                parent.mParentKey = Mailbox.NO_MAILBOX;
+                LogUtils.w(Logging.LOG_TAG, "Mailbox with null serverId: " +
+                        parent.mDisplayName + ", type: " + parent.mType);
+            }
+            parent.mFlags = flags;
+        }
+
+        /** Mark every parent key as uninitialized, so that they are all worked out again */
+        void resetParentKeys() {
+            for (HierarchyEntry entry : mEntries) {
+                entry.mParentKey = Mailbox.PARENT_KEY_UNINITIALIZED;
+            }
+        }
+
+        /**
+         * Work out the parent key and flags of each mailbox whose parent key is uninitialized,
+         * and the flags of its parent
+         */
+        void fixupUninitializedParentKeys() {
+            // Find them all first, since fixing one up sets the parent keys of others
+            ArrayList<HierarchyEntry> uninitialized = new ArrayList<HierarchyEntry>();
+            for (HierarchyEntry entry : mEntries) {
+                if (entry.mParentKey == Mailbox.PARENT_KEY_UNINITIALIZED) {
+                    uninitialized.add(entry);
+                }
+            }
+            for (HierarchyEntry entry : uninitialized) {
+                setFlagsAndChildrensParentKey(entry);
+                // Fixup the parent so that the children's parentKey is updated
+                if (entry.mParentServerId != null) {
+                    HierarchyEntry parent =
+                            mByServerId.get(getKey(entry.mAccountKey, entry.mParentServerId));
+                    if (parent != null) {
+                        setFlagsAndChildrensParentKey(parent);
+                    }
+                }
+            }
+            // Any mailboxes without a parent key should have parentKey set to -1 (no parent)
+            for (HierarchyEntry entry : uninitialized) {
+                if (entry.mParentKey == Mailbox.PARENT_KEY_UNINITIALIZED) {
+                    entry.mParentKey = Mailbox.NO_MAILBOX;
+                }
+            }
+        }
+
+        private String getHierarchicalName(HierarchyEntry entry) {
+            if (entry.mHierarchicalName != null) {
+                return entry.mHierarchicalName;
+            }
+            String name = entry.mDisplayName;
+            if (entry.mParentKey != Mailbox.NO_MAILBOX) {
+                entry.mResolving = true;
+                HierarchyEntry parent = mById.get(entry.mParentKey);
+                // Missing parents (and loops, which would otherwise never end) are marked as such
+                if (parent == null || parent.mResolving) {
+                    name = name + "/" + "??";
+                } else {
+                    name = getHierarchicalName(parent) + "/" + name;
+                }
+                entry.mResolving = false;
+            }
+            entry.mHierarchicalName = name;
+            return name;
+        }
+
+        /** Work out the hierarchical name of every mailbox from the parent keys */
+        void setHierarchicalNames() {
+            for (HierarchyEntry entry : mEntries) {
+                getHierarchicalName(entry);
+            }
+        }
+
+        /** @return updates for the mailboxes that have changed */
+        ArrayList<ContentProviderOperation> getUpdates() {
+            ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+            for (HierarchyEntry entry : mEntries) {
+                ContentValues values = entry.getChanges();
+                if (values != null) {
+                    ops.add(ContentProviderOperation.newUpdate(
+                            ContentUris.withAppendedId(Mailbox.CONTENT_URI, entry.mId))
+                            .withValues(values).build());
+                }
+            }
+            return ops;
+        }
+
+        /** Write the changes, if any, in a single transaction */
+        void save(Context context) {
+            ArrayList<ContentProviderOperation> ops = getUpdates();
+            if (ops.isEmpty()) return;
+            try {
+                context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+            } catch (RemoteException e) {
+                LogUtils.w(Logging.LOG_TAG, "Unable to update mailbox hierarchy");
+            } catch (OperationApplicationException e) {
+                // Can't happen; our provider doesn't throw this exception
+            }
         }
     }
 }
@@ -24,6 +24,7 @@ import android.content.ServiceConnection;
 import android.content.pm.ProviderInfo;
 import android.os.AsyncTask;
 import android.os.Debug;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -31,29 +32,48 @@ import android.os.RemoteException;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.mail.utils.LogUtils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
 /**
  * ServiceProxy is a superclass for proxy objects which make a single call to a service. It handles
  * connecting to the service, running a task supplied by the subclass when the connection is ready,
- * and disconnecting from the service afterwards. ServiceProxy objects cannot be reused (trying to
+ * and releasing the connection afterwards. ServiceProxy objects cannot be reused (trying to
  * do so generates an {@link IllegalStateException}).
  *
  * Subclasses must override {@link #onConnected} to store the binder. Then, when the subclass wants
  * to make a service call, it should call {@link #setTask}, supplying the {@link ProxyTask} that
  * should run when the connection is ready. {@link ProxyTask#run} should implement the necessary
  * logic to make the call on the service.
+ *
+ * The connection itself is shared by all proxies for the same service, and is kept for
+ * {@link #IDLE_UNBIND_MILLIS} after the last of their tasks completes, so that a run of calls
+ * only binds to the service once. It's dropped right away if the service dies while idle.
  */
 
 public abstract class ServiceProxy {
     public static final String EXTRA_FORCE_SHUTDOWN = "ServiceProxy.FORCE_SHUTDOWN";
 
     private static final boolean DEBUG_PROXY = false; // DO NOT CHECK THIS IN SET TO TRUE
+
+    /** How long a connection is kept after the last task using it completes. */
+    private static final long IDLE_UNBIND_MILLIS = 30 * 1000L;
+
+    /** The open connections, by the intent they're bound with; also guards their state. */
+    private static final Map<Intent.FilterComparison, SharedConnection> sConnections =
+            new HashMap<Intent.FilterComparison, SharedConnection>();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
     private final String mTag;
 
     private final Context mContext;
     protected final Intent mIntent;
     private ProxyTask mTask;
     private String mName = " unnamed";
-    private final ServiceConnection mConnection = new ProxyConnection();
+    private SharedConnection mSharedConnection;
+    private final Object mCompletionLock = new Object();
     // Service call timeout (in seconds)
     private int mTimeout = 45;
     private long mStartTime;
@@ -96,61 +116,174 @@ public abstract class ServiceProxy {
         }
     }
 
-    private class ProxyConnection implements ServiceConnection {
+    /**
+     * A binding to a service, shared by the proxies that use it. It's bound with the application
+     * context, since it can outlive the caller.
+     */
+    private static class SharedConnection implements ServiceConnection, IBinder.DeathRecipient {
+        private final Context mContext;
+        private final Intent.FilterComparison mKey;
+        /** The service's binder, or null if we aren't (or are no longer) connected. */
+        private IBinder mBinder;
+        /** The number of proxies whose tasks haven't completed yet. */
+        private int mRefCount;
+        /** Incremented on each use, so that a pending idle unbind can tell it's out of date. */
+        private int mGeneration;
+        /** Proxies waiting for the service to connect. */
+        private final ArrayList<ServiceProxy> mWaiting = new ArrayList<ServiceProxy>();
+
+        private SharedConnection(Context context, Intent.FilterComparison key) {
+            mContext = context;
+            mKey = key;
+        }
+
         @Override
         public void onServiceConnected(ComponentName name, IBinder binder) {
-            if (DEBUG_PROXY) {
-                LogUtils.v(mTag, "Connected: " + name.getShortClassName() + " at " +
-                        (System.currentTimeMillis() - mStartTime) + "ms");
+            boolean alive = true;
+            try {
+                binder.linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                // It's already gone. Later proxies will wait for it to be reconnected if it
+                // restarts, but those already waiting would otherwise wait out their timeouts.
+                alive = false;
+            }
+            final ArrayList<ServiceProxy> waiting;
+            synchronized (sConnections) {
+                if (alive) {
+                    mBinder = binder;
+                }
+                waiting = new ArrayList<ServiceProxy>(mWaiting);
+                mWaiting.clear();
+            }
+            for (final ServiceProxy proxy : waiting) {
+                if (alive) {
+                    proxy.runTask(binder);
+                } else {
+                    proxy.abandonTask();
+                }
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            onDisconnected();
+        }
+
+        @Override
+        public void binderDied() {
+            // This usually arrives before onServiceDisconnected, and it's on a binder thread
+            onDisconnected();
+        }
+
+        private void onDisconnected() {
+            final int generation;
+            synchronized (sConnections) {
+                mBinder = null;
+                generation = mGeneration;
             }
+            // If anyone's still waiting, stay bound so that we're reconnected when the service
+            // restarts; otherwise there's no reason to restart it.
+            unbindIfIdle(generation);
+        }
 
-            // Let subclasses handle the binder.
-            onConnected(binder);
+        private void release() {
+            synchronized (sConnections) {
+                if (--mRefCount > 0) {
+                    return;
+                }
+                final int generation = mGeneration;
+                sHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        unbindIfIdle(generation);
+                    }
+                }, IDLE_UNBIND_MILLIS);
+            }
+        }
 
-            // Do our work in another thread.
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... params) {
+        private void unbindIfIdle(int generation) {
+            synchronized (sConnections) {
+                if (mRefCount > 0 || mGeneration != generation || sConnections.get(mKey) != this) {
+                    return;
+                }
+                sConnections.remove(mKey);
+                if (mBinder != null) {
                     try {
-                        mTask.run();
-                    } catch (RemoteException e) {
-                        LogUtils.e(mTag, e, "RemoteException thrown running mTask!");
-                    } finally {
-                        // Make sure that we unbind the mConnection even on exceptions in the
-                        // task provided by the subclass.
-                        try {
-                            // Each ServiceProxy handles just one task, so we unbind after we're
-                            // done with our work.
-                            mContext.unbindService(mConnection);
-                        } catch (RuntimeException e) {
-                            // The exceptions that are thrown here look like IllegalStateException,
-                            // IllegalArgumentException and RuntimeException. Catching
-                            // RuntimeException which get them all. Reasons for these exceptions
-                            // include services that have already been stopped or unbound. This can
-                            // happen if the user ended the activity that was using the service.
-                            // This is harmless, but we've got to catch it.
-                            LogUtils.e(mTag, e,
-                                    "RuntimeException when trying to unbind from service");
-                        }
-                    }
-                    mTaskCompleted = true;
-                    synchronized(mConnection) {
-                        if (DEBUG_PROXY) {
-                            LogUtils.v(mTag, "Task " + mName + " completed; disconnecting");
-                        }
-                        mConnection.notify();
+                        mBinder.unlinkToDeath(this, 0);
+                    } catch (NoSuchElementException e) {
+                        // It's already dead
                     }
-                    return null;
+                    mBinder = null;
                 }
-            }.execute();
+            }
+            try {
+                mContext.unbindService(this);
+            } catch (RuntimeException e) {
+                // The exceptions that are thrown here look like IllegalStateException,
+                // IllegalArgumentException and RuntimeException. Catching RuntimeException
+                // which get them all. Reasons for these exceptions include services that have
+                // already been stopped or unbound. This is harmless, but we've got to catch it.
+                LogUtils.e(LogUtils.TAG, e, "RuntimeException when trying to unbind from service");
+            }
         }
+    }
 
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            if (DEBUG_PROXY) {
-                LogUtils.v(mTag, "Disconnected: " + name.getShortClassName() + " at " +
-                        (System.currentTimeMillis() - mStartTime) + "ms");
+    /** @return whether there's an open connection to the service for this intent */
+    /* package for testing */ static boolean isConnected(Intent intent) {
+        synchronized (sConnections) {
+            final SharedConnection connection =
+                    sConnections.get(new Intent.FilterComparison(intent));
+            return connection != null && connection.mBinder != null;
+        }
+    }
+
+    /**
+     * Hands the binder to the subclass and runs the task in another thread.
+     */
+    private void runTask(final IBinder binder) {
+        if (DEBUG_PROXY) {
+            LogUtils.v(mTag, "Connected for task " + mName + " at " +
+                    (System.currentTimeMillis() - mStartTime) + "ms");
+        }
+
+        // Let subclasses handle the binder.
+        onConnected(binder);
+
+        // Do our work in another thread.
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                try {
+                    mTask.run();
+                } catch (RemoteException e) {
+                    LogUtils.e(mTag, e, "RemoteException thrown running mTask!");
+                } finally {
+                    // Make sure that we release the connection even on exceptions in the task
+                    // provided by the subclass.
+                    mSharedConnection.release();
+                }
+                synchronized (mCompletionLock) {
+                    if (DEBUG_PROXY) {
+                        LogUtils.v(mTag, "Task " + mName + " completed");
+                    }
+                    mTaskCompleted = true;
+                    mCompletionLock.notify();
+                }
+                return null;
             }
+        }.execute();
+    }
+
+    /**
+     * Gives up on the task without running it, since the service died before it could be run.
+     */
+    private void abandonTask() {
+        LogUtils.w(mTag, "Service died before task " + mName + " could run");
+        mSharedConnection.release();
+        synchronized (mCompletionLock) {
+            // Not run, but there's no point in waiting for it any longer
+            mTaskCompleted = true;
+            mCompletionLock.notify();
         }
     }
 
@@ -175,10 +308,34 @@ public abstract class ServiceProxy {
         mName = name;
         mTask = task;
         mStartTime = System.currentTimeMillis();
-        if (DEBUG_PROXY) {
-            LogUtils.v(mTag, "Bind requested for task " + mName);
+        final Intent.FilterComparison key = new Intent.FilterComparison(mIntent);
+        final IBinder binder;
+        synchronized (sConnections) {
+            SharedConnection connection = sConnections.get(key);
+            if (connection == null) {
+                final Context appContext = mContext.getApplicationContext();
+                connection = new SharedConnection(appContext != null ? appContext : mContext, key);
+                if (DEBUG_PROXY) {
+                    LogUtils.v(mTag, "Bind requested for task " + mName);
+                }
+                if (!connection.mContext.bindService(mIntent, connection,
+                        Context.BIND_AUTO_CREATE)) {
+                    return false;
+                }
+                sConnections.put(key, connection);
+            }
+            connection.mRefCount++;
+            connection.mGeneration++;
+            mSharedConnection = connection;
+            binder = connection.mBinder;
+            if (binder == null) {
+                connection.mWaiting.add(this);
+            }
+        }
+        if (binder != null) {
+            runTask(binder);
         }
-        return mContext.bindService(mIntent, mConnection, Context.BIND_AUTO_CREATE);
+        return true;
     }
 
     /**
@@ -197,15 +354,21 @@ public abstract class ServiceProxy {
             throw new IllegalStateException("This cannot be called on the main thread.");
         }
 
-        synchronized (mConnection) {
+        synchronized (mCompletionLock) {
             long time = System.currentTimeMillis();
-            try {
-                if (DEBUG_PROXY) {
-                    LogUtils.v(mTag, "Waiting for task " + mName + " to complete...");
+            if (DEBUG_PROXY) {
+                LogUtils.v(mTag, "Waiting for task " + mName + " to complete...");
+            }
+            // With a connection already open, the task may well be done before we get here
+            final long deadline = time + mTimeout * 1000L;
+            long remaining = deadline - time;
+            while (!mTaskCompleted && remaining > 0) {
+                try {
+                    mCompletionLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    // Can be ignored safely
                 }
-                mConnection.wait(mTimeout * 1000L);
-            } catch (InterruptedException e) {
-                // Can be ignored safely
+                remaining = deadline - System.currentTimeMillis();
             }
             if (DEBUG_PROXY) {
                 LogUtils.v(mTag, "Wait for " + mName +
@@ -43,6 +43,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class AttachmentUtilities {
 
@@ -60,6 +63,11 @@ public class AttachmentUtilities {
             AttachmentColumns.CACHED_FILE
     };
 
+    /** Selects all the attachments of the messages in a mailbox. */
+    private static final String MAILBOX_ATTACHMENTS_SELECTION = AttachmentColumns.MESSAGE_KEY
+            + " in (select " + MessageColumns._ID + " from " + Message.TABLE_NAME
+            + " where " + MessageColumns.MAILBOX_KEY + "=?)";
+
     /**
      * The MIME type(s) of attachments we're willing to send via attachments.
      *
@@ -352,14 +360,40 @@ public class AttachmentUtilities {
      */
     public static void deleteAllMailboxAttachmentFiles(Context context, long accountId,
             long mailboxId) {
-        Cursor c = context.getContentResolver().query(Message.CONTENT_URI,
-                Message.ID_COLUMN_PROJECTION, MessageColumns.MAILBOX_KEY + "=?",
+        deleteFiles(getMailboxAttachmentFiles(context, accountId, mailboxId));
+    }
+
+    /**
+     * Like {@link #deleteAllMailboxAttachmentFiles}, but only the lookup of the files is done on
+     * the calling thread; it must be called before the mailbox's attachment records are deleted.
+     * The files are deleted in the background.
+     *
+     * @return the task deleting the files
+     */
+    public static EmailAsyncTask<Void, Void, Void> deleteAllMailboxAttachmentFilesInBackground(
+            Context context, long accountId, long mailboxId) {
+        return deleteFilesInBackground(getMailboxAttachmentFiles(context, accountId, mailboxId));
+    }
+
+    /**
+     * Finds the attachment files of all the messages in a mailbox, with a single query.
+     */
+    private static List<File> getMailboxAttachmentFiles(Context context, long accountId,
+            long mailboxId) {
+        final Cursor c = context.getContentResolver().query(Attachment.CONTENT_URI,
+                Attachment.ID_PROJECTION, MAILBOX_ATTACHMENTS_SELECTION,
                 new String[] { Long.toString(mailboxId) }, null);
+        if (c == null) {
+            return new ArrayList<File>();
+        }
         try {
+            final File directory = getAttachmentDirectory(context, accountId);
+            final List<File> files = new ArrayList<File>(c.getCount());
             while (c.moveToNext()) {
-                long messageId = c.getLong(Message.ID_PROJECTION_COLUMN);
-                deleteAllAttachmentFiles(context, accountId, messageId);
+                files.add(new File(directory,
+                        Long.toString(c.getLong(Attachment.ID_PROJECTION_COLUMN))));
             }
+            return files;
         } finally {
             c.close();
         }
@@ -382,6 +416,54 @@ public class AttachmentUtilities {
         }
     }
 
+    /**
+     * Like {@link #deleteAllAccountAttachmentFiles}, but the files are deleted in the background.
+     *
+     * @return the task deleting the files
+     */
+    public static EmailAsyncTask<Void, Void, Void> deleteAllAccountAttachmentFilesInBackground(
+            Context context, long accountId) {
+        final File[] files = getAttachmentDirectory(context, accountId).listFiles();
+        return deleteFilesInBackground(
+                files == null ? new ArrayList<File>() : Arrays.asList(files));
+    }
+
+    /**
+     * Deletes a batch of files. Like the other deletions here, this is best-effort only; files
+     * that are already gone are skipped.
+     *
+     * @return the number of files deleted
+     */
+    public static int deleteFiles(List<File> files) {
+        int deleted = 0;
+        for (final File file : files) {
+            // Note, delete() throws no exceptions for basic FS errors (e.g. file not found)
+            // it just returns false, which we ignore, and proceed to the next file.
+            if (file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Runs {@link #deleteFiles} on a background thread.
+     *
+     * @return the task deleting the files, which can be waited for with
+     *     {@link EmailAsyncTask#get}
+     */
+    public static EmailAsyncTask<Void, Void, Void> deleteFilesInBackground(
+            final List<File> files) {
+        return EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                final int deleted = deleteFiles(files);
+                LogUtils.d(Logging.LOG_TAG, "Deleted %d of %d attachment files", deleted,
+                        files.size());
+            }
+        });
+    }
+
     private static long copyFile(InputStream in, OutputStream out) throws IOException {
         long size = IOUtils.copy(in, out);
         in.close();
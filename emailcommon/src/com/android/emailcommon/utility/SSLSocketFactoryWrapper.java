@@ -92,22 +92,43 @@ public class SSLSocketFactoryWrapper extends javax.net.ssl.SSLSocketFactory {
         fullCipherSuiteList.toArray(mDefaultCipherSuites);
     }
 
-    public static SSLSocketFactory getDefault(final KeyManager[] keyManagers, int handshakeTimeout)
+    /**
+     * @param sessionCacheSize the number of TLS sessions the factory keeps for resumption
+     * @param sessionTimeout the number of seconds a TLS session may be resumed for
+     */
+    public static SSLSocketFactory getDefault(final KeyManager[] keyManagers, int handshakeTimeout,
+            int sessionCacheSize, int sessionTimeout)
             throws NoSuchAlgorithmException, KeyManagementException{
         final SSLContext context = SSLContext.getInstance("TLS");
         context.init(keyManagers, null, null);
+        configureSessionCache(context, sessionCacheSize, sessionTimeout);
         return new SSLSocketFactoryWrapper(context.getSocketFactory(), true, handshakeTimeout);
     }
 
+    /**
+     * @param sessionCacheSize the number of TLS sessions the factory keeps for resumption
+     * @param sessionTimeout the number of seconds a TLS session may be resumed for
+     */
     public static SSLSocketFactory getInsecure(final KeyManager[] keyManagers,
                                                final TrustManager[] trustManagers,
-                                               int handshakeTimeout)
+                                               int handshakeTimeout, int sessionCacheSize,
+                                               int sessionTimeout)
             throws NoSuchAlgorithmException, KeyManagementException {
         final SSLContext context = SSLContext.getInstance("TLS");
         context.init(keyManagers, trustManagers, null);
+        configureSessionCache(context, sessionCacheSize, sessionTimeout);
         return new SSLSocketFactoryWrapper(context.getSocketFactory(), false, handshakeTimeout);
     }
 
+    private static void configureSessionCache(final SSLContext context,
+            final int sessionCacheSize, final int sessionTimeout) {
+        final SSLSessionContext sessionContext = context.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeout);
+        }
+    }
+
     public Socket createSocket()throws IOException {
         return mFactory.createSocket();
     }
@@ -42,6 +42,8 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.TrustManager;
@@ -58,6 +60,29 @@ public class SSLUtils {
     // A 30 second SSL handshake should be more than enough.
     private static final int SSL_HANDSHAKE_TIMEOUT = 30000;
 
+    // Each factory's SSLContext keeps the sessions it negotiates, so that a later connection to
+    // the same server can do an abbreviated handshake. The secure factory is shared by every
+    // server; each insecure factory belongs to a single HostAuth.
+    @VisibleForTesting
+    static final int SECURE_SESSION_CACHE_SIZE = 32;
+    @VisibleForTesting
+    static final int INSECURE_SESSION_CACHE_SIZE = 4;
+    @VisibleForTesting
+    static final int SESSION_TIMEOUT_SECONDS = 60 * 60;
+
+    // The insecure factories (and with them, their sessions) are kept for the most recently used
+    // HostAuths; see getInsecureFactoryKey()
+    private static final int MAX_INSECURE_FACTORIES = 16;
+    private static final LinkedHashMap<String, javax.net.ssl.SSLSocketFactory>
+            sInsecureFactories =
+            new LinkedHashMap<String, javax.net.ssl.SSLSocketFactory>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, javax.net.ssl.SSLSocketFactory> eldest) {
+                    return size() > MAX_INSECURE_FACTORIES;
+                }
+            };
+
     /**
      * A trust manager specific to a particular HostAuth.  The first time a server certificate is
      * encountered for the HostAuth, its certificate is saved; subsequent checks determine whether
@@ -167,17 +192,31 @@ public class SSLUtils {
             final KeyManager[] keyManagers = (keyManager == null ? null :
                     new KeyManager[]{keyManager});
             if (insecure) {
+                // Factories built with a client certificate aren't shared
+                final String key = keyManager == null ? getInsecureFactoryKey(hostAuth) : null;
+                if (key != null) {
+                    final javax.net.ssl.SSLSocketFactory cachedFactory =
+                            sInsecureFactories.get(key);
+                    if (cachedFactory != null) {
+                        return cachedFactory;
+                    }
+                }
                 final TrustManager[] trustManagers = new TrustManager[]{
                         new SameCertificateCheckingTrustManager(context, hostAuth)};
                 SSLSocketFactoryWrapper insecureFactory =
                         (SSLSocketFactoryWrapper) SSLSocketFactoryWrapper.getInsecure(
-                                keyManagers, trustManagers, SSL_HANDSHAKE_TIMEOUT);
+                                keyManagers, trustManagers, SSL_HANDSHAKE_TIMEOUT,
+                                INSECURE_SESSION_CACHE_SIZE, SESSION_TIMEOUT_SECONDS);
+                if (key != null) {
+                    sInsecureFactories.put(key, insecureFactory);
+                }
                 return insecureFactory;
             } else {
                 if (sSecureFactory == null) {
                     SSLSocketFactoryWrapper secureFactory =
                             (SSLSocketFactoryWrapper) SSLSocketFactoryWrapper.getDefault(
-                                    keyManagers, SSL_HANDSHAKE_TIMEOUT);
+                                    keyManagers, SSL_HANDSHAKE_TIMEOUT,
+                                    SECURE_SESSION_CACHE_SIZE, SESSION_TIMEOUT_SECONDS);
                     sSecureFactory = secureFactory;
                 }
                 return sSecureFactory;
@@ -192,6 +231,18 @@ public class SSLUtils {
         return null;
     }
 
+    /**
+     * Returns the key an insecure factory for a HostAuth is cached under, or null if it shouldn't
+     * be cached. The key covers everything the factory's trust manager depends on, so that a
+     * HostAuth pointed at a different server gets a new factory (and a fresh certificate check).
+     */
+    private static String getInsecureFactoryKey(final HostAuth hostAuth) {
+        if (hostAuth == null || hostAuth.mId == HostAuth.NOT_SAVED) {
+            return null;
+        }
+        return hostAuth.mId + ":" + hostAuth.mAddress + ":" + hostAuth.mPort;
+    }
+
     /**
      * Returns a com.android.emailcommon.utility.SSLSocketFactory
      */
@@ -23,6 +23,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.text.TextUtils;
 
+import com.android.email.provider.AttachmentBlobs;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.MimeBodyPart;
 import com.android.emailcommon.internet.MimeHeader;
@@ -47,12 +48,8 @@ import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
-import org.apache.commons.io.IOUtils;
-
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -314,7 +311,8 @@ public class LegacyConversions {
     }
 
     /**
-     * Save the body part of a single attachment, to a file in the attachments directory.
+     * Save the body part of a single attachment. The file is shared with any identical
+     * attachments, in this message or any other (see {@link AttachmentBlobs}).
      */
     public static void saveAttachmentBody(final Context context, final Part part,
             final Attachment localAttachment, long accountId)
@@ -322,29 +320,18 @@ public class LegacyConversions {
         if (part.getBody() != null) {
             final long attachmentId = localAttachment.mId;
 
-            final File saveIn = AttachmentUtilities.getAttachmentDirectory(context, accountId);
-
-            if (!saveIn.isDirectory() && !saveIn.mkdirs()) {
-                throw new IOException("Could not create attachment directory");
-            }
-            final File saveAs = AttachmentUtilities.getAttachmentFilename(context, accountId,
-                    attachmentId);
-
             InputStream in = null;
-            FileOutputStream out = null;
             final long copySize;
             try {
                 in = part.getBody().getInputStream();
-                out = new FileOutputStream(saveAs);
-                copySize = IOUtils.copyLarge(in, out);
+                copySize = AttachmentBlobs.save(context, in, attachmentId);
             } finally {
                 if (in != null) {
                     in.close();
                 }
-                if (out != null) {
-                    out.close();
-                }
             }
+            // Any content the attachment had of its own is superseded by the shared file
+            AttachmentUtilities.getAttachmentFilename(context, accountId, attachmentId).delete();
 
             // update the attachment with the extra information we now know
             final String contentUriString = AttachmentUtilities.getAttachmentUri(
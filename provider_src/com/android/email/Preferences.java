@@ -47,6 +47,7 @@ public class Preferences {
     private static final String DEVICE_UID = "deviceUID";
     private static final String ONE_TIME_INITIALIZATION_PROGRESS = "oneTimeInitializationProgress";
     private static final String LAST_ACCOUNT_USED = "lastAccountUsed";
+    private static final String DATABASE_MAINTENANCE_NEEDED = "databaseMaintenanceNeeded";
     // The following are only used for migration
     @Deprecated
     private static final String AUTO_ADVANCE_DIRECTION = "autoAdvance";
@@ -171,6 +172,23 @@ public class Preferences {
         mSharedPreferences.edit().putInt(ONE_TIME_INITIALIZATION_PROGRESS, progress).apply();
     }
 
+    /**
+     * @param defaultValue the passes to report if nothing has been recorded yet
+     * @return the database maintenance passes the provider has marked as needed
+     */
+    public int getDatabaseMaintenanceNeeded(int defaultValue) {
+        return mSharedPreferences.getInt(DATABASE_MAINTENANCE_NEEDED, defaultValue);
+    }
+
+    /**
+     * Records the database maintenance passes that are needed. This writes to disk before it
+     * returns, so that a marker survives a crash straight after; the provider only calls it when
+     * the passes change, and clears them from a background thread.
+     */
+    public void setDatabaseMaintenanceNeeded(int passes) {
+        mSharedPreferences.edit().putInt(DATABASE_MAINTENANCE_NEEDED, passes).commit();
+    }
+
     /** @deprecated Only used for migration */
     @Deprecated
     public int getAutoAdvanceDirection() {
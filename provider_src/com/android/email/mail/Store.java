@@ -34,8 +34,14 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Store is the legacy equivalent of the Account class
@@ -47,16 +53,64 @@ public abstract class Store {
      */
     public static final int FETCH_BODY_SANE_SUGGESTED_SIZE = (125 * 1024);
 
+    /**
+     * A cached store, and the version of its HostAuth that it was created for. HostAuth equality
+     * covers the credentials, so a store is never handed out for credentials other than its own.
+     */
     @VisibleForTesting
-    static final HashMap<HostAuth, Store> sStores = new HashMap<HostAuth, Store>();
+    static class CachedStore {
+        final HostAuth mHostAuth;
+        final Store mStore;
+        /**
+         * Versions of the HostAuth that this store's replaced. Callers still holding one of these
+         * get a store of their own rather than evicting this one.
+         */
+        final Set<HostAuth> mOlderHostAuths;
+
+        CachedStore(final HostAuth hostAuth, final Store store,
+                final Set<HostAuth> olderHostAuths) {
+            mHostAuth = hostAuth;
+            mStore = store;
+            mOlderHostAuths = olderHostAuths;
+        }
+    }
+
+    /** Cached stores, keyed by the id of their HostAuth. */
+    @VisibleForTesting
+    static final ConcurrentHashMap<Long, CachedStore> sStores =
+            new ConcurrentHashMap<Long, CachedStore>();
     protected Context mContext;
     protected Account mAccount;
     protected MailTransport mTransport;
     protected String mUsername;
     protected String mPassword;
+    /** Set once this store has been dropped from the cache; see {@link #close}. */
+    private volatile boolean mClosed;
 
-    static final HashMap<String, Class<? extends Store>> sStoreClasses =
-        new HashMap<String, Class<? extends Store>>();
+    /**
+     * Store classes by protocol. The protocol names are resources, so this is built on first use;
+     * it's published only once it's complete, and never changes after that, so that it can be
+     * read without a lock.
+     */
+    private static volatile Map<String, Class<? extends Store>> sStoreClasses;
+
+    private static Map<String, Class<? extends Store>> getStoreClasses(final Context context) {
+        Map<String, Class<? extends Store>> storeClasses = sStoreClasses;
+        if (storeClasses == null) {
+            synchronized (Store.class) {
+                storeClasses = sStoreClasses;
+                if (storeClasses == null) {
+                    final HashMap<String, Class<? extends Store>> map =
+                            new HashMap<String, Class<? extends Store>>();
+                    map.put(context.getString(R.string.protocol_pop3), Pop3Store.class);
+                    map.put(context.getString(R.string.protocol_legacy_imap), ImapStore.class);
+                    storeClasses = Collections.unmodifiableMap(map);
+                    sStoreClasses = storeClasses;
+                }
+            }
+        }
+        return storeClasses;
+    }
 
     /**
      * Static named constructor.  It should be overrode by extending class.
@@ -71,45 +125,43 @@ public abstract class Store {
      * Get an instance of a mail store for the given account. The account must be valid (i.e. has
      * at least an incoming server name).
      *
-     * NOTE: The internal algorithm used to find a cached store depends upon the account's
-     * HostAuth row. If this ever changes (e.g. such as the user updating the
-     * host name or port), we will leak entries. This should not be typical, so, it is not
-     * a critical problem. However, it is something we should consider fixing.
+     * This doesn't lock; finding a cached store is a single map lookup, and a new store is built
+     * without holding up callers for other accounts. If two threads build a store for the same
+     * HostAuth at once, the first one cached wins and the other is dropped (building a store
+     * doesn't connect to anything, so that's cheap). A store built for a new version of a HostAuth
+     * (e.g. after the user changed the password) replaces the one cached for the old version,
+     * which is closed. Callers still holding the old version don't bring its store back; they get
+     * an uncached store, unless the old version is what's saved again.
      *
      * @param account The account of the store.
      * @param context For all the usual context-y stuff
      * @return an initialized store of the appropriate class
      * @throws MessagingException If the store cannot be obtained or if the account is invalid.
      */
-    public synchronized static Store getInstance(Account account, Context context)
+    public static Store getInstance(Account account, Context context)
             throws MessagingException {
-        if (sStores.isEmpty()) {
-            sStoreClasses.put(context.getString(R.string.protocol_pop3), Pop3Store.class);
-            sStoreClasses.put(context.getString(R.string.protocol_legacy_imap), ImapStore.class);
-        }
         HostAuth hostAuth = account.getOrCreateHostAuthRecv(context);
         // An existing account might have been deleted
         if (hostAuth == null) return null;
         if (!account.isTemporary()) {
-            Store store = sStores.get(hostAuth);
-            if (store == null) {
-                store = createInstanceInternal(account, context, true);
-            } else {
+            final CachedStore cached = sStores.get(hostAuth.mId);
+            if (cached != null && cached.mHostAuth.equals(hostAuth)) {
                 // Make sure the account object is up to date (according to the caller, at least)
-                store.mAccount = account;
+                cached.mStore.mAccount = account;
+                return cached.mStore;
             }
-            return store;
+            return createInstanceInternal(account, context, true);
         } else {
             return createInstanceInternal(account, context, false);
         }
     }
 
-    private synchronized static Store createInstanceInternal(final Account account,
+    private static Store createInstanceInternal(final Account account,
             final Context context, final boolean cacheInstance)
             throws MessagingException {
         Context appContext = context.getApplicationContext();
         final HostAuth hostAuth = account.getOrCreateHostAuthRecv(context);
-        Class<? extends Store> klass = sStoreClasses.get(hostAuth.mProtocol);
+        Class<? extends Store> klass = getStoreClasses(context).get(hostAuth.mProtocol);
         if (klass == null) {
             klass = ServiceStore.class;
         }
@@ -126,11 +178,49 @@ public abstract class Store {
         }
         // Don't cache this unless it's we've got a saved HostAuth
         if (hostAuth.mId != EmailContent.NOT_SAVED && cacheInstance) {
-            sStores.put(hostAuth, store);
+            return cacheInstance(context, account, hostAuth, store);
         }
         return store;
     }
 
+    /**
+     * Caches a new store for a (saved) HostAuth, replacing the one cached for another version of
+     * it, unless that version is newer.
+     * @return the store to use
+     */
+    private static Store cacheInstance(final Context context, final Account account,
+            final HostAuth hostAuth, final Store store) {
+        while (true) {
+            final CachedStore cached = sStores.get(hostAuth.mId);
+            if (cached == null) {
+                if (sStores.putIfAbsent(hostAuth.mId,
+                        new CachedStore(hostAuth, store, new HashSet<HostAuth>())) == null) {
+                    return store;
+                }
+                continue;
+            }
+            if (cached.mHostAuth.equals(hostAuth)) {
+                // Another thread got there first
+                cached.mStore.mAccount = account;
+                return cached.mStore;
+            }
+            if (cached.mOlderHostAuths.contains(hostAuth)
+                    && !hostAuth.equals(HostAuth.restoreHostAuthWithId(context, hostAuth.mId))) {
+                // The caller has an out of date account; its store is closed after this use
+                store.close();
+                return store;
+            }
+            final Set<HostAuth> olderHostAuths = new HashSet<HostAuth>(cached.mOlderHostAuths);
+            olderHostAuths.add(cached.mHostAuth);
+            olderHostAuths.remove(hostAuth);
+            if (sStores.replace(hostAuth.mId, cached,
+                    new CachedStore(hostAuth, store, olderHostAuths))) {
+                cached.mStore.close();
+                return store;
+            }
+        }
+    }
+
     /**
      * Delete the mail store associated with the given account. The account must be valid (i.e. has
      * at least an incoming server name).
@@ -140,9 +230,10 @@ public abstract class Store {
      *
      * @throws MessagingException If the store cannot be removed or if the account is invalid.
      */
-    public synchronized static Store removeInstance(Account account, Context context)
+    public static Store removeInstance(Account account, Context context)
             throws MessagingException {
-        return sStores.remove(HostAuth.restoreHostAuthWithId(context, account.mHostAuthKeyRecv));
+        final CachedStore cached = sStores.remove(account.mHostAuthKeyRecv);
+        return cached == null ? null : cached.mStore;
     }
 
     /**
@@ -230,6 +321,39 @@ public abstract class Store {
         // Base implementation does nothing.
     }
 
+    /**
+     * Closes a store that has been dropped from the cache: its idle connections are closed now,
+     * and those in use are closed when they're released, rather than being pooled.
+     */
+    public void close() {
+        mClosed = true;
+        closeConnections();
+    }
+
+    /**
+     * @return whether the store has been closed, so that released connections shouldn't be pooled
+     */
+    protected boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Writes debugging state (e.g. connection pool statistics) for dumpsys.
+     */
+    public void dump(PrintWriter pw) {
+        // Base implementation does nothing.
+    }
+
+    /**
+     * Dumps the state of all cached stores.
+     */
+    public static void dumpStores(PrintWriter pw) {
+        pw.println("Stores: " + sStores.size());
+        for (CachedStore cached : sStores.values()) {
+            cached.mStore.dump(pw);
+        }
+    }
+
     public Account getAccount() {
         return mAccount;
     }
@@ -10,21 +10,52 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Credential;
 import com.android.emailcommon.provider.HostAuth;
+import com.android.mail.utils.Clock;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Caches OAuth access tokens for accounts, and keeps them fresh.
+ *
+ * Whenever a token is handed out, a background refresh is scheduled for a little while before it
+ * expires (with some jitter, so that accounts don't all renew at once). Only handing a token out
+ * schedules one, so accounts that stop being used stop being refreshed. Callers only
+ * have to wait for the server when there is no usable token at all. Refreshes of an account's
+ * token are single-flight: a thread that needs a new token while another thread is already
+ * getting one waits for, and uses, that result rather than making a request of its own.
+ */
 public class AuthenticationCache {
     private static AuthenticationCache sCache;
 
     // Threshold for refreshing a token. If the token is expected to expire within this amount of
     // time, we won't even bother attempting to use it and will simply force a refresh.
     private static final long EXPIRATION_THRESHOLD = 5 * DateUtils.MINUTE_IN_MILLIS;
+    // How long before expiration the background refresh is attempted. This must be comfortably
+    // more than EXPIRATION_THRESHOLD, so the background refresh normally wins.
+    @VisibleForTesting
+    static final long REFRESH_AHEAD = 15 * DateUtils.MINUTE_IN_MILLIS;
+    // Up to this much is taken off the time of each background refresh, at random
+    @VisibleForTesting
+    static final long REFRESH_JITTER = 5 * DateUtils.MINUTE_IN_MILLIS;
+    // How long to wait before trying again after a background refresh fails
+    @VisibleForTesting
+    static final long REFRESH_RETRY_DELAY = DateUtils.MINUTE_IN_MILLIS;
 
     private final Map<Long, CacheEntry> mCache;
     private final OAuthAuthenticator mAuthenticator;
+    private final Clock mClock;
+    private final ScheduledExecutorService mScheduler;
+    private final Random mRandom = new Random();
 
     private class CacheEntry {
         CacheEntry(long accountId, String providerId, String accessToken, String refreshToken,
@@ -41,24 +72,44 @@ public class AuthenticationCache {
         String mAccessToken;
         String mRefreshToken;
         long mExpirationTime;
+        // The remaining fields are guarded by the entry's lock
+        // Incremented whenever the access token changes
+        int mGeneration;
+        // Whether some thread is currently requesting a new token
+        boolean mRefreshing;
+        ScheduledFuture<?> mScheduledRefresh;
+        long mScheduledRefreshTime;
     }
 
     public static AuthenticationCache getInstance() {
         synchronized (AuthenticationCache.class) {
             if (sCache == null) {
-                sCache = new AuthenticationCache();
+                sCache = new AuthenticationCache(new OAuthAuthenticator(), Clock.INSTANCE,
+                        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                            @Override
+                            public Thread newThread(final Runnable r) {
+                                final Thread thread = new Thread(r, "AuthenticationCache");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        }));
             }
             return sCache;
         }
     }
 
-    private AuthenticationCache() {
+    @VisibleForTesting
+    AuthenticationCache(final OAuthAuthenticator authenticator, final Clock clock,
+            final ScheduledExecutorService scheduler) {
         mCache = new HashMap<Long, CacheEntry>();
-        mAuthenticator = new OAuthAuthenticator();
+        mAuthenticator = authenticator;
+        mClock = clock;
+        mScheduler = scheduler;
     }
 
-    // Gets an access token for the given account. This may be whatever is currently cached, or
-    // it may query the server to get a new one if the old one is expired or nearly expired.
+    // Gets an access token for the given account. This is whatever is currently cached, unless
+    // there is no cached token or it is expired or nearly expired, in which case we wait for a
+    // new one from the server.
     public String retrieveAccessToken(Context context, Account account) throws
             MessagingException, IOException {
         // Currently, we always use the same OAuth info for both sending and receiving.
@@ -68,25 +119,35 @@ public class AuthenticationCache {
         synchronized (mCache) {
             entry = getEntry(context, account);
         }
+        final int generation;
         synchronized (entry) {
             final long actualExpiration = entry.mExpirationTime - EXPIRATION_THRESHOLD;
-            if (System.currentTimeMillis() > actualExpiration) {
-                // This access token is pretty close to end of life. Don't bother trying to use it,
-                // it might just time out while we're trying to sync. Go ahead and refresh it
-                // immediately.
-                refreshEntry(context, entry);
+            if (mClock.getTime() <= actualExpiration) {
+                scheduleRefresh(context, entry, entry.mExpirationTime - REFRESH_AHEAD);
+                return entry.mAccessToken;
             }
-            return entry.mAccessToken;
+            generation = entry.mGeneration;
         }
+        // This access token is pretty close to end of life. Don't bother trying to use it,
+        // it might just time out while we're trying to sync. Get a new one now.
+        final String accessToken = refreshEntry(context, entry, generation);
+        synchronized (entry) {
+            scheduleRefresh(context, entry, entry.mExpirationTime - REFRESH_AHEAD);
+        }
+        return accessToken;
     }
 
     public String refreshAccessToken(Context context, Account account) throws
             MessagingException, IOException {
-        CacheEntry entry = getEntry(context, account);
+        CacheEntry entry;
+        synchronized (mCache) {
+            entry = getEntry(context, account);
+        }
+        final int generation;
         synchronized (entry) {
-            refreshEntry(context, entry);
-            return entry.mAccessToken;
+            generation = entry.mGeneration;
         }
+        return refreshEntry(context, entry, generation);
     }
 
     private CacheEntry getEntry(Context context, Account account) {
@@ -112,22 +173,62 @@ public class AuthenticationCache {
         return entry;
     }
 
-    private void refreshEntry(Context context, CacheEntry entry) throws
+    /**
+     * Gets a new access token for an entry, unless the token has already changed since the
+     * caller looked at it; in either case, returns the entry's current token. If another thread
+     * is already refreshing the entry, this waits for it rather than making a second request.
+     * The request itself is made without holding the entry's lock, so that callers who still
+     * have a usable token aren't held up by it.
+     * @param generation the entry's generation when the caller decided it needed a new token
+     */
+    private String refreshEntry(Context context, CacheEntry entry, int generation) throws
             IOException, MessagingException {
+        final String providerId;
+        final String refreshToken;
+        synchronized (entry) {
+            while (entry.mRefreshing) {
+                try {
+                    entry.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for token refresh");
+                }
+            }
+            if (entry.mGeneration != generation) {
+                // Somebody else got a new token while we were waiting
+                return entry.mAccessToken;
+            }
+            entry.mRefreshing = true;
+            providerId = entry.mProviderId;
+            refreshToken = entry.mRefreshToken;
+        }
+
         LogUtils.d(Logging.LOG_TAG, "AuthenticationCache refreshEntry %d", entry.mAccountId);
         try {
             final AuthenticationResult result = mAuthenticator.requestRefresh(context,
-                    entry.mProviderId, entry.mRefreshToken);
-            // Don't set the refresh token here, it's not returned by the refresh response,
-            // so setting it here would make it blank.
-            entry.mAccessToken = result.mAccessToken;
-            entry.mExpirationTime = result.mExpiresInSeconds * DateUtils.SECOND_IN_MILLIS +
-                    System.currentTimeMillis();
-            saveEntry(context, entry);
+                    providerId, refreshToken);
+            synchronized (entry) {
+                // Don't set the refresh token here, it's not returned by the refresh response,
+                // so setting it here would make it blank.
+                entry.mAccessToken = result.mAccessToken;
+                entry.mExpirationTime = result.mExpiresInSeconds * DateUtils.SECOND_IN_MILLIS +
+                        mClock.getTime();
+                entry.mGeneration++;
+                // Whatever was scheduled was for the old token (and may be what's running now);
+                // the next use of the new one schedules its refresh
+                if (entry.mScheduledRefresh != null) {
+                    entry.mScheduledRefresh.cancel(false);
+                    entry.mScheduledRefresh = null;
+                }
+                saveEntry(context, entry);
+                return entry.mAccessToken;
+            }
         } catch (AuthenticationFailedException e) {
             // This is fatal. Clear the tokens and rethrow the exception.
             LogUtils.d(Logging.LOG_TAG, "authentication failed, clearning");
-            clearEntry(context, entry);
+            synchronized (entry) {
+                clearEntry(context, entry);
+            }
             throw e;
         } catch (MessagingException e) {
             LogUtils.d(Logging.LOG_TAG, "messaging exception");
@@ -135,13 +236,111 @@ public class AuthenticationCache {
         } catch (IOException e) {
             LogUtils.d(Logging.LOG_TAG, "IO exception");
             throw e;
+        } finally {
+            synchronized (entry) {
+                entry.mRefreshing = false;
+                entry.notifyAll();
+            }
         }
     }
 
+    /**
+     * Schedules a background refresh of a cached entry, replacing any that is already scheduled
+     * for a different time. Must be called with the entry's lock held.
+     * @param refreshTime when to refresh, before jitter is applied
+     */
+    private void scheduleRefresh(final Context context, final CacheEntry entry,
+            final long refreshTime) {
+        synchronized (mCache) {
+            if (mCache.get(entry.mAccountId) != entry || entry.mExpirationTime == 0) {
+                // Temporary entries, and entries without a token, aren't kept fresh
+                return;
+            }
+        }
+        if (entry.mScheduledRefresh != null) {
+            if (!entry.mScheduledRefresh.isDone()
+                    && entry.mScheduledRefreshTime <= refreshTime) {
+                return;
+            }
+            entry.mScheduledRefresh.cancel(false);
+        }
+        final long jitteredTime = refreshTime - (long) (mRandom.nextDouble() * REFRESH_JITTER);
+        final long delay = Math.max(0, jitteredTime - mClock.getTime());
+        final int generation = entry.mGeneration;
+        final Context appContext = context.getApplicationContext();
+        entry.mScheduledRefreshTime = refreshTime;
+        entry.mScheduledRefresh = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshEntry(appContext, entry, generation);
+                } catch (AuthenticationFailedException e) {
+                    // The entry has been cleared; sync will report the failure
+                } catch (MessagingException e) {
+                    retryRefresh(appContext, entry);
+                } catch (IOException e) {
+                    retryRefresh(appContext, entry);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void retryRefresh(final Context context, final CacheEntry entry) {
+        LogUtils.d(Logging.LOG_TAG, "Background token refresh failed for %d", entry.mAccountId);
+        synchronized (entry) {
+            // Past the threshold, the next sync will refresh the token itself
+            if (mClock.getTime() + REFRESH_RETRY_DELAY
+                    < entry.mExpirationTime - EXPIRATION_THRESHOLD) {
+                entry.mScheduledRefresh = null;
+                scheduleRefresh(context, entry,
+                        mClock.getTime() + REFRESH_RETRY_DELAY + REFRESH_JITTER);
+            }
+        }
+    }
+
+    /**
+     * @return how long from now the background refresh for an account will run, or -1 if none
+     *     is pending
+     */
+    @VisibleForTesting
+    long getScheduledRefreshDelay(long accountId) {
+        final CacheEntry entry;
+        synchronized (mCache) {
+            entry = mCache.get(accountId);
+        }
+        if (entry == null) {
+            return -1;
+        }
+        synchronized (entry) {
+            if (entry.mScheduledRefresh == null || entry.mScheduledRefresh.isDone()) {
+                return -1;
+            }
+            return entry.mScheduledRefresh.getDelay(TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes an entry's tokens back to its account's credential. If the account has been deleted,
+     * the entry is dropped from the cache instead. Must be called with the entry's lock held.
+     */
     private void saveEntry(Context context, CacheEntry entry) {
         LogUtils.d(Logging.LOG_TAG, "saveEntry");
 
         final Account account = Account.restoreAccountWithId(context,  entry.mAccountId);
+        if (account == null) {
+            LogUtils.d(Logging.LOG_TAG, "account %d no longer exists, dropping its entry",
+                    entry.mAccountId);
+            if (entry.mScheduledRefresh != null) {
+                entry.mScheduledRefresh.cancel(false);
+                entry.mScheduledRefresh = null;
+            }
+            synchronized (mCache) {
+                if (mCache.get(entry.mAccountId) == entry) {
+                    mCache.remove(entry.mAccountId);
+                }
+            }
+            return;
+        }
         final HostAuth hostAuth = account.getOrCreateHostAuthRecv(context);
         final Credential cred = hostAuth.getOrCreateCredential(context);
         cred.mProviderId = entry.mProviderId;
@@ -156,7 +355,13 @@ public class AuthenticationCache {
         entry.mAccessToken = "";
         entry.mRefreshToken = "";
         entry.mExpirationTime = 0;
+        if (entry.mScheduledRefresh != null) {
+            entry.mScheduledRefresh.cancel(false);
+            entry.mScheduledRefresh = null;
+        }
         saveEntry(context, entry);
-        mCache.remove(entry.mAccountId);
+        synchronized (mCache) {
+            mCache.remove(entry.mAccountId);
+        }
     }
 }
@@ -32,6 +32,7 @@ import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.CertificateValidationException;
+import com.android.emailcommon.mail.Folder.OpenMode;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.mail.utils.LogUtils;
 
@@ -68,6 +69,12 @@ class ImapConnection {
     private String mLoginPhrase;
     private String mAccessToken;
     private String mIdPhrase = null;
+    /** The time this connection was last returned to the pool. */
+    private long mLastUsedTime;
+    /** The encoded name of the currently SELECTed mailbox, or null if nothing is selected. */
+    private String mSelectedMailbox;
+    private OpenMode mSelectedMode;
+    private int mSelectedMessageCount;
 
     /** # of command/response lines to log upon crash. */
     private static final int DISCOURSE_LOGGER_SIZE = 64;
@@ -134,6 +141,8 @@ class ImapConnection {
             return;
         }
 
+        // A new session starts out in the authenticated (non-selected) state
+        clearSelectedMailbox();
         try {
             // copy configuration into a clean transport, if necessary
             if (mTransport == null) {
@@ -208,6 +217,69 @@ class ImapConnection {
         destroyResponses();
         mParser = null;
         mImapStore = null;
+        clearSelectedMailbox();
+    }
+
+    long getLastUsedTime() {
+        return mLastUsedTime;
+    }
+
+    void setLastUsedTime(long lastUsedTime) {
+        mLastUsedTime = lastUsedTime;
+    }
+
+    /**
+     * Records that {@code encodedName} was successfully SELECTed on this connection, so that a
+     * later open of the same mailbox can skip the SELECT.
+     */
+    void setSelectedMailbox(String encodedName, OpenMode mode, int messageCount) {
+        mSelectedMailbox = encodedName;
+        mSelectedMode = mode;
+        mSelectedMessageCount = messageCount;
+    }
+
+    void clearSelectedMailbox() {
+        mSelectedMailbox = null;
+        mSelectedMode = null;
+        mSelectedMessageCount = -1;
+    }
+
+    /**
+     * Returns whether {@code encodedName} is the mailbox currently SELECTed on this connection.
+     */
+    boolean isSelected(String encodedName) {
+        return mSelectedMailbox != null && mSelectedMailbox.equals(encodedName)
+                && mTransport != null && mTransport.isOpen();
+    }
+
+    OpenMode getSelectedMode() {
+        return mSelectedMode;
+    }
+
+    int getSelectedMessageCount() {
+        return mSelectedMessageCount;
+    }
+
+    /**
+     * Keeps the message count of the selected mailbox current by applying any untagged
+     * EXISTS and EXPUNGE responses the server sent along with a command.
+     */
+    private void updateSelectedMailbox(List<ImapResponse> responses) {
+        for (ImapResponse response : responses) {
+            updateSelectedMailbox(response);
+        }
+    }
+
+    private void updateSelectedMailbox(ImapResponse response) {
+        if (mSelectedMailbox == null) {
+            return;
+        }
+        if (response.isDataResponse(1, ImapConstants.EXISTS)) {
+            mSelectedMessageCount = response.getStringOrEmpty(0).getNumberOrZero();
+        } else if (response.isDataResponse(1, ImapConstants.EXPUNGE)
+                && mSelectedMessageCount > 0) {
+            mSelectedMessageCount--;
+        }
     }
 
     /**
@@ -259,8 +331,15 @@ class ImapConnection {
         return mTransport != null && mTransport.isOpen();
     }
 
+    /**
+     * Reads the next response, for commands whose responses are handled as they arrive (such as
+     * FETCH). Untagged EXISTS and EXPUNGE responses are applied to the selected mailbox, as they
+     * are for {@link #getCommandResponses}.
+     */
     ImapResponse readResponse() throws IOException, MessagingException {
-        return mParser.readResponse();
+        final ImapResponse response = mParser.readResponse();
+        updateSelectedMailbox(response);
+        return response;
     }
 
     /**
@@ -356,6 +435,7 @@ class ImapConnection {
 
             throw new ImapException(toString, status, alert, responseCode);
         }
+        updateSelectedMailbox(responses);
         return responses;
     }
 
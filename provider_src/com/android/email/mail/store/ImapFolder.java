@@ -687,7 +687,10 @@ class ImapFolder extends Folder {
                     response = mConnection.readResponse();
 
                     if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
+                        if (!response.isTagged()) {
+                            handleUntaggedResponse(response);
+                        }
+                        continue;
                     }
                     final ImapList fetchList = response.getListOrEmpty(2);
                     final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
@@ -848,6 +851,8 @@ class ImapFolder extends Folder {
     private void handleUntaggedResponse(ImapResponse response) {
         if (response.isDataResponse(1, ImapConstants.EXISTS)) {
             mMessageCount = response.getStringOrEmpty(0).getNumberOrZero();
+        } else if (response.isDataResponse(1, ImapConstants.EXPUNGE) && mMessageCount > 0) {
+            mMessageCount--;
         }
     }
 
@@ -1229,9 +1234,22 @@ class ImapFolder extends Folder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
+        final String encodedName = ImapStore.encodeFolderName(mName, mStore.mPathPrefix);
+        if (mConnection.isSelected(encodedName)) {
+            // The pooled connection still has this mailbox selected, and its state has been kept
+            // current from the untagged responses of the commands issued since. The server only
+            // reports new and expunged messages in response to a command, so a NOOP (which is
+            // much cheaper than a SELECT) collects anything that happened while it was idle.
+            mConnection.executeSimpleCommand(ImapConstants.NOOP);
+            mMode = mConnection.getSelectedMode();
+            mMessageCount = mConnection.getSelectedMessageCount();
+            mExists = true;
+            return;
+        }
+        // A failed SELECT leaves the connection without a selected mailbox
+        mConnection.clearSelectedMailbox();
         final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
-                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", encodedName));
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
@@ -1256,6 +1274,7 @@ class ImapFolder extends Folder {
         }
         mMessageCount = messageCount;
         mExists = true;
+        mConnection.setSelectedMailbox(encodedName, mMode, messageCount);
     }
 
     private void checkOpen() throws MessagingException {
@@ -22,6 +22,7 @@ import android.os.Bundle;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
+import android.util.LruCache;
 
 import com.android.email.LegacyConversions;
 import com.android.email.Preferences;
@@ -45,21 +46,25 @@ import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.EmailServiceProxy;
 import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.Clock;
 import com.android.mail.utils.LogUtils;
 import com.beetstra.jutf7.CharsetProvider;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 
 
@@ -90,8 +95,36 @@ public class ImapStore extends Store {
 
     private boolean mUseOAuth;
 
-    private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
-            new ConcurrentLinkedQueue<ImapConnection>();
+    /**
+     * A pooled connection that was returned less than this long ago is handed out again without
+     * first sending a NOOP to the server.
+     */
+    @VisibleForTesting
+    static final long CONNECTION_VALIDATION_INTERVAL_MILLIS = 30 * 1000;
+    /** A pooled connection that has been idle for this long is closed instead of reused. */
+    @VisibleForTesting
+    static final long CONNECTION_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    /** The maximum number of idle connections we keep in the pool. */
+    @VisibleForTesting
+    static final int MAX_POOLED_CONNECTIONS = 3;
+
+    /**
+     * Idle connections, most recently used first. All access (including the pool statistics
+     * below) must be synchronized on the pool itself.
+     */
+    private final LinkedList<ImapConnection> mConnectionPool = new LinkedList<ImapConnection>();
+    private int mPoolHits;
+    private int mPoolCreates;
+    private int mPoolValidations;
+    private int mPoolValidationFailures;
+    private int mPoolEvictions;
+
+    private Clock mClock = Clock.INSTANCE;
+
+    /** The most folder names we remember the decoded form of; see {@link #decodeFolderName}. */
+    private static final int MAX_DECODED_FOLDER_NAMES = 1000;
+    private final LruCache<String, String> mDecodedFolderNames =
+            new LruCache<String, String>(MAX_DECODED_FOLDER_NAMES);
 
     /**
      * Static named constructor.
@@ -156,7 +189,14 @@ public class ImapStore extends Store {
 
     @VisibleForTesting
     Collection<ImapConnection> getConnectionPoolForTest() {
-        return mConnectionPool;
+        synchronized (mConnectionPool) {
+            return new ArrayList<ImapConnection>(mConnectionPool);
+        }
+    }
+
+    @VisibleForTesting
+    void setClockForTest(Clock clock) {
+        mClock = clock;
     }
 
     /**
@@ -437,7 +477,7 @@ public class ImapStore extends Store {
                     ImapString encodedFolder = response.getStringOrEmpty(3);
                     if (encodedFolder.isEmpty()) continue;
 
-                    String folderName = decodeFolderName(encodedFolder.getString(), mPathPrefix);
+                    String folderName = decodeFolderName(encodedFolder.getString());
 
                     if (ImapConstants.INBOX.equalsIgnoreCase(folderName)) continue;
 
@@ -547,24 +587,50 @@ public class ImapStore extends Store {
 
     /**
      * Gets a connection if one is available from the pool, or creates a new one if not.
+     * Connections that were returned to the pool recently are assumed to still be alive and
+     * are handed out without a round trip to the server; older ones are checked with a NOOP
+     * first. Connections that have been idle for too long are closed.
      */
     ImapConnection getConnection() {
-        // TODO Why would we ever have (or need to have) more than one active connection?
         // TODO We set new username/password each time, but we don't actually close the transport
         // when we do this. So if that information has changed, this connection will fail.
+        final ArrayList<ImapConnection> evicted = new ArrayList<ImapConnection>();
         ImapConnection connection;
-        while ((connection = mConnectionPool.poll()) != null) {
-            try {
+        while (true) {
+            final long now = mClock.getTime();
+            synchronized (mConnectionPool) {
+                evictStaleConnectionsLocked(now, evicted);
+                connection = mConnectionPool.poll();
+                if (connection == null) {
+                    mPoolCreates++;
+                    break;
+                }
                 connection.setStore(this);
+                if (now - connection.getLastUsedTime() < CONNECTION_VALIDATION_INTERVAL_MILLIS) {
+                    mPoolHits++;
+                    break;
+                }
+                mPoolValidations++;
+            }
+            try {
                 connection.executeSimpleCommand(ImapConstants.NOOP);
+                synchronized (mConnectionPool) {
+                    mPoolHits++;
+                }
                 break;
             } catch (MessagingException e) {
                 // Fall through
             } catch (IOException e) {
                 // Fall through
             }
+            synchronized (mConnectionPool) {
+                mPoolValidationFailures++;
+            }
             connection.close();
         }
+        for (ImapConnection stale : evicted) {
+            stale.close();
+        }
 
         if (connection == null) {
             connection = new ImapConnection(this);
@@ -574,12 +640,51 @@ public class ImapStore extends Store {
 
     /**
      * Save a {@link ImapConnection} in the pool for reuse. Any responses associated with the
-     * connection are destroyed before adding the connection to the pool.
+     * connection are destroyed before adding the connection to the pool. If the pool is full,
+     * the least recently used connection is closed. If the store has been closed, so is the
+     * connection.
      */
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
             connection.destroyResponses();
-            mConnectionPool.add(connection);
+            final ArrayList<ImapConnection> evicted = new ArrayList<ImapConnection>();
+            final long now = mClock.getTime();
+            connection.setLastUsedTime(now);
+            synchronized (mConnectionPool) {
+                // Checked under the pool lock, so closeConnections() can't miss the connection
+                if (isClosed()) {
+                    evicted.add(connection);
+                } else {
+                    mConnectionPool.addFirst(connection);
+                }
+                evictStaleConnectionsLocked(now, evicted);
+                while (mConnectionPool.size() > MAX_POOLED_CONNECTIONS) {
+                    evicted.add(mConnectionPool.removeLast());
+                    mPoolEvictions++;
+                }
+            }
+            for (ImapConnection stale : evicted) {
+                stale.close();
+            }
+        }
+    }
+
+    /**
+     * Removes connections that have been idle longer than {@link #CONNECTION_IDLE_TIMEOUT_MILLIS}
+     * from the pool and adds them to {@code evicted}. The caller is responsible for closing them
+     * once the pool lock has been released. Must be called with the pool lock held.
+     */
+    private void evictStaleConnectionsLocked(long now, List<ImapConnection> evicted) {
+        final Iterator<ImapConnection> iterator = mConnectionPool.descendingIterator();
+        while (iterator.hasNext()) {
+            final ImapConnection connection = iterator.next();
+            if (now - connection.getLastUsedTime() < CONNECTION_IDLE_TIMEOUT_MILLIS) {
+                // The pool is ordered by last use, so everything newer is still fresh
+                break;
+            }
+            iterator.remove();
+            evicted.add(connection);
+            mPoolEvictions++;
         }
     }
 
@@ -595,21 +700,40 @@ public class ImapStore extends Store {
             name = prefix + name;
         }
 
-        // TODO bypass the conversion if name doesn't have special char.
-        ByteBuffer bb = MODIFIED_UTF_7_CHARSET.encode(name);
-        byte[] b = new byte[bb.limit()];
-        bb.get(b);
-
-        return Utility.fromAscii(b);
+        return ModifiedUtf7.encode(name);
     }
 
     /**
      * UTF-7 decodes the folder name and removes the given path prefix.
      */
     static String decodeFolderName(String name, String prefix) {
-        // TODO bypass the conversion if name doesn't have special char.
-        String folder;
-        folder = MODIFIED_UTF_7_CHARSET.decode(ByteBuffer.wrap(Utility.toAscii(name))).toString();
+        return removePathPrefix(decodeModifiedUtf7(name), prefix);
+    }
+
+    /**
+     * Like {@link #decodeFolderName(String, String)}, with this store's path prefix, but
+     * remembers the names it has decoded; folder lists are fetched over and over, and rarely
+     * change.
+     */
+    private String decodeFolderName(String name) {
+        String folder = mDecodedFolderNames.get(name);
+        if (folder == null) {
+            folder = decodeModifiedUtf7(name);
+            mDecodedFolderNames.put(name, folder);
+        }
+        return removePathPrefix(folder, mPathPrefix);
+    }
+
+    private static String decodeModifiedUtf7(String name) {
+        final String folder = ModifiedUtf7.decode(name);
+        if (folder != null) {
+            return folder;
+        }
+        // Malformed; let the charset deal with it as it always has
+        return MODIFIED_UTF_7_CHARSET.decode(ByteBuffer.wrap(Utility.toAscii(name))).toString();
+    }
+
+    private static String removePathPrefix(String folder, String prefix) {
         if ((prefix != null) && folder.startsWith(prefix)) {
             folder = folder.substring(prefix.length());
         }
@@ -686,10 +810,26 @@ public class ImapStore extends Store {
         }
     }
 
+    @Override
     public void closeConnections() {
-        ImapConnection connection;
-        while ((connection = mConnectionPool.poll()) != null) {
+        final ArrayList<ImapConnection> connections;
+        synchronized (mConnectionPool) {
+            connections = new ArrayList<ImapConnection>(mConnectionPool);
+            mConnectionPool.clear();
+        }
+        for (ImapConnection connection : connections) {
             connection.close();
         }
     }
+
+    @Override
+    public void dump(PrintWriter pw) {
+        synchronized (mConnectionPool) {
+            pw.println("  ImapStore " + mAccount.mId + ": " + mConnectionPool.size() + " idle");
+            pw.println("    Hits: " + mPoolHits + ", Creates: " + mPoolCreates
+                    + ", Evictions: " + mPoolEvictions);
+            pw.println("    Validations: " + mPoolValidations + ", Failures: "
+                    + mPoolValidationFailures);
+        }
+    }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+/**
+ * Converts folder names to and from the modified UTF-7 of RFC 3501 section 5.1.3, working
+ * directly on chars rather than through a {@link java.nio.charset.CharsetEncoder}. Names that are
+ * plain printable ASCII, which is almost all of them, are returned as they are.
+ *
+ * The output matches that of the jutf7 "X-RFC-3501" charset exactly, including its quirks (a '&'
+ * that follows a non-ASCII character is base64 encoded along with it, for instance). Input that
+ * jutf7 would consider malformed isn't decoded here at all; {@link #decode} returns null, and the
+ * caller falls back to the charset, so that its replacement behavior is preserved too.
+ */
+final class ModifiedUtf7 {
+    private static final char SHIFT = '&';
+    private static final char UNSHIFT = '-';
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+,".toCharArray();
+    private static final int[] INVERSE_ALPHABET = new int[128];
+    static {
+        for (int i = 0; i < INVERSE_ALPHABET.length; i++) {
+            INVERSE_ALPHABET[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; i++) {
+            INVERSE_ALPHABET[ALPHABET[i]] = i;
+        }
+    }
+
+    private ModifiedUtf7() {}
+
+    private static boolean isDirect(final char ch) {
+        return ch >= 0x20 && ch <= 0x7E && ch != SHIFT;
+    }
+
+    static String encode(final String name) {
+        final int length = name.length();
+        int i = 0;
+        while (i < length && isDirect(name.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return name;
+        }
+
+        final StringBuilder sb = new StringBuilder(length + 16);
+        sb.append(name, 0, i);
+        boolean base64Mode = false;
+        // Bits of the current sextet that have been filled, and their value
+        int bits = 0;
+        int sextet = 0;
+        for (; i < length; i++) {
+            final char ch = name.charAt(i);
+            if (isDirect(ch)) {
+                if (base64Mode) {
+                    if (bits != 0) {
+                        sb.append(ALPHABET[sextet]);
+                    }
+                    sb.append(UNSHIFT);
+                    base64Mode = false;
+                    bits = 0;
+                    sextet = 0;
+                }
+                sb.append(ch);
+            } else if (!base64Mode && ch == SHIFT) {
+                sb.append(SHIFT).append(UNSHIFT);
+            } else {
+                if (!base64Mode) {
+                    sb.append(SHIFT);
+                    base64Mode = true;
+                }
+                // Append the sextets that this char completes; the low bits left over start
+                // the next one.
+                int pending = bits + 16;
+                while (pending >= 6) {
+                    pending -= 6;
+                    sb.append(ALPHABET[(sextet + (ch >> pending)) & 0x3F]);
+                    sextet = 0;
+                }
+                bits = pending;
+                sextet = (ch << (6 - pending)) & 0x3F;
+            }
+        }
+        if (base64Mode) {
+            if (bits != 0) {
+                sb.append(ALPHABET[sextet]);
+            }
+            sb.append(UNSHIFT);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the decoded name, or null if it isn't well formed modified UTF-7
+     */
+    static String decode(final String name) {
+        final int length = name.length();
+        int i = 0;
+        while (i < length) {
+            final char ch = name.charAt(i);
+            if (ch == SHIFT || ch >= 0x80) {
+                break;
+            }
+            i++;
+        }
+        if (i == length) {
+            return name;
+        }
+
+        final StringBuilder sb = new StringBuilder(length);
+        sb.append(name, 0, i);
+        // Whether the last thing we saw was the end of a base64 run; RFC 3501 doesn't allow two
+        // runs to be adjacent.
+        boolean justUnshifted = false;
+        while (i < length) {
+            final char ch = name.charAt(i++);
+            if (ch >= 0x80) {
+                return null;
+            }
+            if (ch != SHIFT) {
+                sb.append(ch);
+                justUnshifted = false;
+                continue;
+            }
+            if (justUnshifted) {
+                return null;
+            }
+            if (i < length && name.charAt(i) == UNSHIFT) {
+                // "&-" is an escaped '&'
+                i++;
+                sb.append(SHIFT);
+                continue;
+            }
+            int bitsRead = 0;
+            int value = 0;
+            while (true) {
+                if (i == length) {
+                    // Unterminated
+                    return null;
+                }
+                final char b = name.charAt(i++);
+                if (b == UNSHIFT) {
+                    break;
+                }
+                final int sextet = b < 0x80 ? INVERSE_ALPHABET[b] : -1;
+                if (sextet < 0) {
+                    return null;
+                }
+                bitsRead += 6;
+                if (bitsRead < 16) {
+                    value += sextet << (16 - bitsRead);
+                } else {
+                    bitsRead -= 16;
+                    value += sextet >> bitsRead;
+                    sb.append((char) value);
+                    value = (sextet << (16 - bitsRead)) & 0xFFFF;
+                }
+            }
+            if (value != 0 || bitsRead >= 6) {
+                // Leftover bits must be zero padding
+                return null;
+            }
+            justUnshifted = true;
+        }
+        return sb.toString();
+    }
+}
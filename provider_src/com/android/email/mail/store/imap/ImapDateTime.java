@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+/**
+ * Parses the date-time format of RFC 3501 (as in INTERNALDATE), e.g. "01-Jan-2009 11:20:39 -0800",
+ * into milliseconds since the epoch.
+ *
+ * Well formed values are parsed by hand, without allocating anything; this is safe to call from
+ * any thread. Anything else goes to the {@link SimpleDateFormat} that used to parse all of them,
+ * so that its lenient handling of odd values (out of range fields, trailing text, time zone
+ * names and so on) is unchanged.
+ */
+final class ImapDateTime {
+    /** Returned for values that can't be parsed. */
+    static final long INVALID = Long.MIN_VALUE;
+
+    // en_US-like month names are used, so this should be handled by Locale.US
+    private static final SimpleDateFormat DATE_TIME_FORMAT =
+            new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+
+    /** Month abbreviations, lower case, concatenated. */
+    private static final String MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec";
+
+    /** The first year parsed by hand; earlier dates are subject to the Julian calendar. */
+    private static final int MIN_YEAR = 1600;
+
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * 60 * MINUTE_MILLIS;
+
+    private ImapDateTime() {}
+
+    /**
+     * @return the time, or {@link #INVALID} if the value can't be parsed
+     */
+    static long parse(final String s) {
+        final long time = parseWellFormed(s);
+        if (time != INVALID) {
+            return time;
+        }
+        try {
+            synchronized (DATE_TIME_FORMAT) {
+                return DATE_TIME_FORMAT.parse(s).getTime();
+            }
+        } catch (ParseException e) {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Parses a value in the strict RFC 3501 format, allowing the day to be one digit with or
+     * without a leading space.
+     * @return the time, or {@link #INVALID} if it's not in that format or any field is out of
+     *     range
+     */
+    /* package for testing */ static long parseWellFormed(final CharSequence s) {
+        int pos;
+        final int day;
+        if (s.length() == 26) {
+            // "01-Jan-2009 ..." or " 1-Jan-2009 ..."
+            day = s.charAt(0) == ' ' ? digits(s, 1, 1) : digits(s, 0, 2);
+            pos = 2;
+        } else if (s.length() == 25) {
+            // "1-Jan-2009 ..."
+            day = digits(s, 0, 1);
+            pos = 1;
+        } else {
+            return INVALID;
+        }
+        if (s.charAt(pos) != '-' || s.charAt(pos + 4) != '-') {
+            return INVALID;
+        }
+        final int month = month(s, pos + 1);
+        pos += 5;
+        final int year = digits(s, pos, 4);
+        pos += 4;
+        if (s.charAt(pos) != ' ' || s.charAt(pos + 3) != ':' || s.charAt(pos + 6) != ':'
+                || s.charAt(pos + 9) != ' ') {
+            return INVALID;
+        }
+        final int hour = digits(s, pos + 1, 2);
+        final int minute = digits(s, pos + 4, 2);
+        final int second = digits(s, pos + 7, 2);
+        pos += 10;
+        final char sign = s.charAt(pos);
+        if (sign != '+' && sign != '-') {
+            return INVALID;
+        }
+        final int zoneHours = digits(s, pos + 1, 2);
+        final int zoneMinutes = digits(s, pos + 3, 2);
+
+        if (month < 0 || year < MIN_YEAR || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+                || zoneHours < 0 || zoneHours > 23 || zoneMinutes < 0 || zoneMinutes > 59) {
+            return INVALID;
+        }
+        final long offset = (zoneHours * 60 + zoneMinutes) * MINUTE_MILLIS;
+        return daysSinceEpoch(year, month, day) * DAY_MILLIS
+                + ((hour * 60 + minute) * 60 + second) * 1000L
+                - (sign == '+' ? offset : -offset);
+    }
+
+    /** @return the value of {@code count} decimal digits, or -1 if they aren't all digits */
+    private static int digits(final CharSequence s, final int start, final int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            final char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    /** @return the month (0 for January) abbreviated at {@code start}, or -1 */
+    private static int month(final CharSequence s, final int start) {
+        final char c0 = Character.toLowerCase(s.charAt(start));
+        final char c1 = Character.toLowerCase(s.charAt(start + 1));
+        final char c2 = Character.toLowerCase(s.charAt(start + 2));
+        for (int i = 0; i < MONTHS.length(); i += 3) {
+            if (MONTHS.charAt(i) == c0 && MONTHS.charAt(i + 1) == c1
+                    && MONTHS.charAt(i + 2) == c2) {
+                return i / 3;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isLeapYear(final int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(final int year, final int month) {
+        if (month == 1) {
+            return isLeapYear(year) ? 29 : 28;
+        }
+        // 31 days in Jan, Mar, May, Jul, Aug, Oct, Dec
+        return month == 3 || month == 5 || month == 8 || month == 10 ? 30 : 31;
+    }
+
+    /**
+     * @return the number of days from 1970-01-01 to the given date in the Gregorian calendar
+     */
+    private static long daysSinceEpoch(final int year, final int month, final int day) {
+        // Count years from March, so that the leap day comes at the end of the year
+        final int y = month < 2 ? year - 1 : year;
+        final int m = month < 2 ? month + 10 : month - 2;
+        final int era = y / 400;
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear = (153 * m + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
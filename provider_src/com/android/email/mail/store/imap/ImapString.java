@@ -21,10 +21,7 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
 
 /**
  * Class represents an IMAP "element" that is not a list.
@@ -55,15 +52,10 @@ public abstract class ImapString extends ImapElement {
         }
     };
 
-    // This is used only for parsing IMAP's FETCH ENVELOPE command, in which
-    // en_US-like date format is used like "01-Jan-2009 11:20:39 -0800", so this should be
-    // handled by Locale.US
-    private final static SimpleDateFormat DATE_TIME_FORMAT =
-            new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
-
     private boolean mIsInteger;
     private int mParsedInteger;
-    private Date mParsedDate;
+    private boolean mIsDate;
+    private long mParsedDate;
 
     @Override
     public final boolean isList() {
@@ -118,22 +110,26 @@ public abstract class ImapString extends ImapElement {
     }
 
     /**
-     * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
+     * @return whether it can be parsed as a date using {@link ImapDateTime}.
+     *
+     * This is only used for parsing IMAP's FETCH ENVELOPE command, in which en_US-like date
+     * format is used like "01-Jan-2009 11:20:39 -0800".
      */
     public final boolean isDate() {
-        if (mParsedDate != null) {
+        if (mIsDate) {
             return true;
         }
         if (isEmpty()) {
             return false;
         }
-        try {
-            mParsedDate = DATE_TIME_FORMAT.parse(getString());
-            return true;
-        } catch (ParseException e) {
+        final long date = ImapDateTime.parse(getString());
+        if (date == ImapDateTime.INVALID) {
             LogUtils.w(Logging.LOG_TAG, getString() + " can't be parsed as a date.");
             return false;
         }
+        mParsedDate = date;
+        mIsDate = true;
+        return true;
     }
 
     /**
@@ -143,7 +139,7 @@ public abstract class ImapString extends ImapElement {
         if (!isDate()) {
             return null;
         }
-        return mParsedDate;
+        return new Date(mParsedDate);
     }
 
     /**
@@ -26,82 +26,115 @@ import java.util.ArrayList;
  * They are sent to logcat when {@link #logLastDiscourse} is called.
  *
  * <p>This class is used to log the recent network activities when a response parser crashes.
+ *
+ * <p>Recording has to be cheap, since it happens for every byte received. Received bytes are
+ * simply copied into a ring buffer; they are only split into lines and formatted when the
+ * discourse is actually logged, which is rare. Sent commands are kept in a second ring, along
+ * with how many bytes had been received when they were sent, so that the two can be put back in
+ * order.
  */
 public class DiscourseLogger {
+    /** Received bytes kept per line of the discourse, on average. */
+    private static final int BYTES_PER_LINE = 256;
+
     private final int mBufferSize;
-    private String[] mBuffer;
-    private int mPos;
-    private final StringBuilder mReceivingLine = new StringBuilder(100);
 
-    public DiscourseLogger(int bufferSize) {
-        mBufferSize = bufferSize;
-        initBuffer();
-    }
+    /** Received bytes; the capacity is a power of two, so positions can be masked. */
+    private final byte[] mReceived;
+    private final int mReceivedMask;
+    /** The number of bytes received (and so the position of the next byte). */
+    private long mReceivedCount;
+    /** The position of the first byte received since the buffer was last cleared. */
+    private long mReceivedStart;
 
-    private void initBuffer() {
-        mBuffer = new String[mBufferSize];
-    }
+    private final String[] mSentCommands;
+    /** The value of {@link #mReceivedCount} at the time each command was sent. */
+    private final long[] mSentPositions;
+    /** The number of commands sent since the buffer was last cleared. */
+    private int mSentCount;
 
-    /** Add a single line to {@link #mBuffer}. */
-    private void addLine(String s) {
-        mBuffer[mPos] = s;
-        mPos++;
-        if (mPos >= mBufferSize) {
-            mPos = 0;
-        }
+    public DiscourseLogger(int bufferSize) {
+        mBufferSize = bufferSize;
+        int capacity = Integer.highestOneBit(Math.max(1, bufferSize * BYTES_PER_LINE - 1)) << 1;
+        mReceived = new byte[capacity];
+        mReceivedMask = capacity - 1;
+        mSentCommands = new String[bufferSize];
+        mSentPositions = new long[bufferSize];
     }
 
-    private void addReceivingLineToBuffer() {
-        if (mReceivingLine.length() > 0) {
-            addLine(mReceivingLine.toString());
-            mReceivingLine.delete(0, Integer.MAX_VALUE);
+    private void clear() {
+        mReceivedStart = mReceivedCount;
+        for (int i = 0; i < mBufferSize; i++) {
+            mSentCommands[i] = null;
         }
+        mSentCount = 0;
     }
 
     /**
-     * Store a single byte received from the server in {@link #mReceivingLine}.  When LF is
-     * received, the content of {@link #mReceivingLine} is added to {@link #mBuffer}.
+     * Store a single byte received from the server.
      */
     public void addReceivedByte(int b) {
-        if (0x20 <= b && b <= 0x7e) { // Append only printable ASCII chars.
-            mReceivingLine.append((char) b);
-        } else if (b == '\n') { // LF
-            addReceivingLineToBuffer();
-        } else if (b == '\r') { // CR
-        } else {
-            final String hex = "00" + Integer.toHexString(b);
-            mReceivingLine.append("\\x" + hex.substring(hex.length() - 2, hex.length()));
-        }
+        mReceived[(int) (mReceivedCount++ & mReceivedMask)] = (byte) b;
     }
 
-    /** Add a line sent to the server to {@link #mBuffer}. */
+    /** Add a line sent to the server to the buffer. */
     public void addSentCommand(String command) {
-        addLine(command);
+        final int index = mSentCount++ % mBufferSize;
+        mSentCommands[index] = command;
+        mSentPositions[index] = mReceivedCount;
     }
 
-    /** @return the contents of {@link #mBuffer} as a String array. */
+    /** @return the last {@code N} lines of the discourse, oldest first. */
     /* package for testing */ String[] getLines() {
-        addReceivingLineToBuffer();
-
-        ArrayList<String> list = new ArrayList<String>();
-
-        final int start = mPos;
-        int pos = mPos;
-        do {
-            String s = mBuffer[pos];
-            if (s != null) {
-                list.add(s);
+        final ArrayList<String> list = new ArrayList<String>();
+        final int sentAvailable = Math.min(mSentCount, mBufferSize);
+        int sent = mSentCount - sentAvailable;
+
+        // Older bytes than this have been overwritten
+        final long start = Math.max(mReceivedStart, mReceivedCount - mReceived.length);
+        final StringBuilder line = new StringBuilder(100);
+        if (start > mReceivedStart) {
+            // We only have the end of this line
+            line.append("...");
+        }
+        for (long pos = start; pos < mReceivedCount; pos++) {
+            final int b = mReceived[(int) (pos & mReceivedMask)] & 0xff;
+            if (b == '\n') { // LF
+                // Commands sent before this line was complete are logged before it
+                while (sent < mSentCount && mSentPositions[sent % mBufferSize] <= pos) {
+                    list.add(mSentCommands[sent++ % mBufferSize]);
+                }
+                if (line.length() > 0) {
+                    list.add(line.toString());
+                    line.setLength(0);
+                }
+            } else {
+                appendReceivedByte(line, b);
             }
-            pos = (pos + 1) % mBufferSize;
-        } while (pos != start);
+        }
+        while (sent < mSentCount) {
+            list.add(mSentCommands[sent++ % mBufferSize]);
+        }
+        if (line.length() > 0) {
+            list.add(line.toString());
+        }
 
-        String[] ret = new String[list.size()];
-        list.toArray(ret);
-        return ret;
+        final int first = Math.max(0, list.size() - mBufferSize);
+        return list.subList(first, list.size()).toArray(new String[list.size() - first]);
+    }
+
+    private static void appendReceivedByte(StringBuilder sb, int b) {
+        if (0x20 <= b && b <= 0x7e) { // Append only printable ASCII chars.
+            sb.append((char) b);
+        } else if (b == '\r') { // CR
+        } else {
+            sb.append("\\x").append(Character.forDigit(b >> 4, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
     }
 
     /**
-     * Log the contents of the {@link mBuffer}, and clears it out.  (So it's okay to call this
+     * Log the contents of the buffer, and clears it out.  (So it's okay to call this
      * method successively more than once.  There will be no duplicate log.)
      */
     public void logLastDiscourse() {
@@ -111,9 +144,9 @@ public class DiscourseLogger {
         }
 
         LogUtils.w(Logging.LOG_TAG, "Last network activities:");
-        for (String r : getLines()) {
+        for (String r : lines) {
             LogUtils.w(Logging.LOG_TAG, "%s", r);
         }
-        initBuffer();
+        clear();
     }
 }
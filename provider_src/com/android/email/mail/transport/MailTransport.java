@@ -111,13 +111,24 @@ public class MailTransport {
 
         try {
             SocketAddress socketAddress = new InetSocketAddress(getHost(), getPort());
+            final Socket socket = new Socket();
+            socket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
             if (canTrySslSecurity()) {
-                mSocket = SSLUtils.getSSLSocketFactory(
-                        mContext, mHostAuth, null, canTrustAllCertificates()).createSocket();
+                // Layer TLS over the connected socket, rather than connecting an unconnected
+                // SSLSocket, so that the factory knows the host and port. Its session cache is
+                // keyed on those, which is what lets later connections resume the session with
+                // an abbreviated handshake.
+                try {
+                    mSocket = SSLUtils.getSSLSocketFactory(mContext, mHostAuth, null,
+                            canTrustAllCertificates())
+                            .createSocket(socket, getHost(), getPort(), true);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
             } else {
-                mSocket = new Socket();
+                mSocket = socket;
             }
-            mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
             // After the socket connects to an SSL server, confirm that the hostname is as expected
             if (canTrySslSecurity() && !canTrustAllCertificates()) {
                 verifyHostname(mSocket, getHost());
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.mail.utils.LogUtils;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * The removal of the data of deleted accounts.
+ *
+ * Deleting an Account row is quick: the trigger on it deletes the account's HostAuths and
+ * policy, and records a tombstone for the account in {@link #TABLE_NAME}, but leaves its
+ * mailboxes, messages, bodies and files where they are. Nothing shows them once the account has
+ * gone, since the UI only reaches them through the account, and the combined views and counts
+ * only include the messages of existing accounts. {@link DatabaseMaintenance} then purges the
+ * data in the background with {@link #purgeChunk}, a chunk at a time. The tombstone keeps the
+ * progress, and is only removed once everything has gone, so a purge that is interrupted (by the
+ * process being killed, say) carries on where it left off.
+ */
+public final class AccountPurge {
+    public static final String TABLE_NAME = "AccountPurge";
+
+    public static final String ACCOUNT_KEY = "accountKey";
+    /** The number of messages in the account when it was deleted. */
+    public static final String MESSAGE_COUNT = "messageCount";
+    /** The number of those messages purged so far. */
+    public static final String PURGED_COUNT = "purgedCount";
+
+    private static final String[] PROGRESS_PROJECTION =
+            { ACCOUNT_KEY, MESSAGE_COUNT, PURGED_COUNT };
+
+    /** The number of steps in which the progress of a purge is logged. */
+    private static final int PROGRESS_LOG_STEPS = 10;
+
+    private AccountPurge() {}
+
+    /**
+     * Creates the table of tombstones. This is done with the Account table, whose trigger
+     * writes to it, so it may already exist when upgrading.
+     */
+    static void createTable(final SQLiteDatabase db) {
+        db.execSQL("create table if not exists " + TABLE_NAME + " (" + ACCOUNT_KEY
+                + " integer primary key, " + MESSAGE_COUNT + " integer not null default 0, "
+                + PURGED_COUNT + " integer not null default 0)");
+    }
+
+    /**
+     * @param row "old" in the trigger on deletions from the Account table
+     * @return a statement recording the tombstone of the account
+     */
+    static String recordTombstone(final String row) {
+        final String accountId = row + "." + AccountColumns._ID;
+        return "insert or replace into " + TABLE_NAME + " (" + ACCOUNT_KEY + ", " + MESSAGE_COUNT
+                + ") select " + accountId + ", coalesce(sum(" + MailboxColumns.MESSAGE_COUNT
+                + "), 0) from " + Mailbox.TABLE_NAME + " where " + MailboxColumns.ACCOUNT_KEY
+                + "=" + accountId;
+    }
+
+    /**
+     * Purges the next chunk of the data of a deleted account: up to {@code limit} of its
+     * messages, with their attachments, bodies and body files; once they have gone, up to
+     * {@code limit} of its attachment files; and finally its mailboxes and its tombstone. Each
+     * chunk of messages is deleted in a transaction of its own; files are deleted before the rows
+     * that refer to them, so that none are left behind if a chunk is interrupted. The progress is
+     * logged every tenth of the messages.
+     * @return whether there may be more to purge
+     */
+    static boolean purgeChunk(final Context context, final SQLiteDatabase db, final int limit) {
+        final long accountId;
+        final long messageCount;
+        final long purgedCount;
+        final Cursor c = db.query(TABLE_NAME, PROGRESS_PROJECTION, null, null, null, null, null,
+                "1");
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            accountId = c.getLong(0);
+            messageCount = c.getLong(1);
+            purgedCount = c.getLong(2);
+        } finally {
+            c.close();
+        }
+        final String[] args = new String[] { Long.toString(accountId) };
+
+        final String messageIds = getMessageIds(context, db, args, limit);
+        if (messageIds != null) {
+            final int count;
+            db.beginTransaction();
+            try {
+                count = db.delete(Message.TABLE_NAME,
+                        MessageColumns._ID + " in (" + messageIds + ")", null);
+                db.delete(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY + " in (" + messageIds + ")",
+                        null);
+                db.execSQL("update " + TABLE_NAME + " set " + PURGED_COUNT + "=" + PURGED_COUNT
+                        + "+" + count + " where " + ACCOUNT_KEY + "=?", args);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (getProgressStep(purgedCount + count, messageCount)
+                    > getProgressStep(purgedCount, messageCount)) {
+                LogUtils.i(Logging.LOG_TAG, "Purging deleted account %d: %d of %d messages purged",
+                        accountId, purgedCount + count, messageCount);
+            }
+            // Shared attachment files may no longer be referred to
+            AttachmentBlobs.deleteUnreferenced(context, db);
+            return true;
+        }
+
+        final File directory = AttachmentUtilities.getAttachmentDirectory(context, accountId);
+        final File[] files = directory.listFiles();
+        if (files != null && files.length > 0) {
+            // Files that can't be deleted are left behind, rather than tried forever
+            if (AttachmentUtilities.deleteFiles(
+                    Arrays.asList(files).subList(0, Math.min(limit, files.length))) > 0) {
+                return true;
+            }
+            LogUtils.w(Logging.LOG_TAG, "Could not delete attachment files of account %d",
+                    accountId);
+        }
+        directory.delete();
+
+        // The mailboxes are empty by now, and their trigger takes the pending changes with them
+        db.beginTransaction();
+        try {
+            db.delete(Mailbox.TABLE_NAME, MailboxColumns.ACCOUNT_KEY + "=?", args);
+            db.delete(TABLE_NAME, ACCOUNT_KEY + "=?", args);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        LogUtils.i(Logging.LOG_TAG, "Purged the data of deleted account %d", accountId);
+        return true;
+    }
+
+    /**
+     * @return how many of the {@link #PROGRESS_LOG_STEPS} steps of the purge have been completed
+     *     once {@code purgedCount} of the messages have been purged. The message count is only an
+     *     estimate, so more messages than that may be purged.
+     */
+    private static long getProgressStep(final long purgedCount, final long messageCount) {
+        if (messageCount <= 0) {
+            return 0;
+        }
+        return Math.min(purgedCount, messageCount) * PROGRESS_LOG_STEPS / messageCount;
+    }
+
+    /**
+     * Finds a chunk of the account's messages, and deletes their body files.
+     * @return the ids, comma separated, or null if there are none left
+     */
+    private static String getMessageIds(final Context context, final SQLiteDatabase db,
+            final String[] args, final int limit) {
+        // Messages are found through their mailboxes, since Message.accountKey isn't indexed
+        final Cursor c = db.query(Message.TABLE_NAME, new String[] { MessageColumns._ID },
+                MessageColumns.MAILBOX_KEY + " in (select " + MailboxColumns._ID + " from "
+                        + Mailbox.TABLE_NAME + " where " + MailboxColumns.ACCOUNT_KEY + "=?)",
+                args, null, null, null, Integer.toString(limit));
+        try {
+            if (c.getCount() == 0) {
+                return null;
+            }
+            final StringBuilder sb = new StringBuilder();
+            while (c.moveToNext()) {
+                final long messageId = c.getLong(0);
+                try {
+                    EmailProvider.deleteBodyFiles(context, messageId);
+                } catch (final IllegalStateException e) {
+                    LogUtils.v(Logging.LOG_TAG, e, "Exception while deleting bodies");
+                }
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(messageId);
+            }
+            return sb.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return whether any deleted accounts are still to be purged
+     */
+    static boolean isPending(final SQLiteDatabase db) {
+        final Cursor c = db.query(TABLE_NAME, new String[] { ACCOUNT_KEY }, null, null, null,
+                null, null, "1");
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Writes the progress of the purges that are still going on, for dumpsys.
+     */
+    static void dumpProgress(final SQLiteDatabase db, final PrintWriter writer) {
+        final Cursor c = db.query(TABLE_NAME, PROGRESS_PROJECTION, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                writer.println("  Account " + c.getLong(0) + ": " + c.getLong(2) + " of "
+                        + c.getLong(1) + " messages purged");
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
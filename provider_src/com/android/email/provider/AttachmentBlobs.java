@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.mail.utils.LogUtils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Attachment content stored by hash, so that identical attachments (the same file sent to a
+ * mailing list, or forwarded along a thread, in any number of messages and accounts) share one
+ * file.
+ *
+ * An attachment whose content is shared has the hash of the content in
+ * {@link AttachmentColumns#BLOB_HASH}; the content is in the file named by the hash in the
+ * shared directory, rather than in the attachment's own file in its account's directory. Triggers
+ * on the Attachment table keep a count of the attachments referring to each hash in
+ * {@link #TABLE_NAME}, so nothing that deletes attachments (or their messages, mailboxes or
+ * accounts) needs to know about the sharing. The provider calls {@link #deleteUnreferenced} after
+ * such deletions to delete the files that are no longer referred to.
+ */
+public final class AttachmentBlobs {
+    public static final String TABLE_NAME = "AttachmentBlob";
+
+    public static final String HASH = "hash";
+    public static final String REF_COUNT = "refCount";
+
+    /** The {@link EmailProvider#call} method that backs {@link #save}. */
+    public static final String STORE_METHOD = "store_attachment_blob";
+    private static final String EXTRA_ATTACHMENT_ID = "attachment_id";
+    private static final String EXTRA_FILE = "file";
+    private static final String EXTRA_SUCCESS = "success";
+
+    private static final String DIRECTORY_NAME = "attachment_blobs";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** Kept under SQLite's limit on the number of arguments to a statement. */
+    private static final int MAX_SELECTION_ARGS = 500;
+
+    /**
+     * Held while files are added to or deleted from the shared directory, together with the
+     * changes to the references, so that a file that is about to be referred to is never deleted.
+     */
+    private static final Object sLock = new Object();
+
+    private AttachmentBlobs() {}
+
+    /**
+     * Creates the table of reference counts, and the triggers that keep it current. The
+     * Attachment table must already have its {@link AttachmentColumns#BLOB_HASH} column.
+     */
+    static void createTable(final SQLiteDatabase db) {
+        db.execSQL("create table " + TABLE_NAME + " (" + HASH + " text primary key, "
+                + REF_COUNT + " integer not null default 0)");
+        db.execSQL(DBHelper.createIndex(TABLE_NAME, REF_COUNT));
+
+        final String hash = AttachmentColumns.BLOB_HASH;
+        db.execSQL("create trigger attachment_blob_insert after insert on " + Attachment.TABLE_NAME
+                + " when NEW." + hash + " is not null begin " + addReference("NEW") + " end");
+        db.execSQL("create trigger attachment_blob_update after update of " + hash + " on "
+                + Attachment.TABLE_NAME + " when OLD." + hash + " is not NEW." + hash + " begin "
+                + removeReference("OLD") + " " + addReference("NEW") + " end");
+        db.execSQL("create trigger attachment_blob_delete after delete on " + Attachment.TABLE_NAME
+                + " when OLD." + hash + " is not null begin " + removeReference("OLD") + " end");
+    }
+
+    /** @return statements adding a reference to the hash of the row, if it has one */
+    private static String addReference(final String row) {
+        final String hash = row + "." + AttachmentColumns.BLOB_HASH;
+        return "insert or ignore into " + TABLE_NAME + " (" + HASH + ") select " + hash
+                + " where " + hash + " is not null; update " + TABLE_NAME + " set " + REF_COUNT
+                + "=" + REF_COUNT + "+1 where " + HASH + "=" + hash + ";";
+    }
+
+    /** @return a statement removing a reference to the hash of the row, if it has one */
+    private static String removeReference(final String row) {
+        return "update " + TABLE_NAME + " set " + REF_COUNT + "=" + REF_COUNT + "-1 where "
+                + HASH + "=" + row + "." + AttachmentColumns.BLOB_HASH + ";";
+    }
+
+    /**
+     * @return the directory of the shared files
+     */
+    public static File getDirectory(final Context context) {
+        return context.getDatabasePath(DIRECTORY_NAME);
+    }
+
+    /**
+     * @return the shared file for content with the given hash
+     */
+    public static File getFile(final Context context, final String hash) {
+        return new File(getDirectory(context), hash);
+    }
+
+    /**
+     * Saves the content of an attachment, sharing the file with any identical attachments.
+     * The content is copied to a temporary file, and hashed on the way; the provider then moves
+     * the file into the shared directory, unless there is already one with that hash, and records
+     * the reference.
+     *
+     * @return the size of the content
+     */
+    public static long save(final Context context, final InputStream in, final long attachmentId)
+            throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        // AttachmentProvider deletes any .tmp files left in the cache directory by a crash
+        final File file = File.createTempFile("blob", ".tmp", context.getCacheDir());
+        try {
+            final long size;
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                size = IOUtils.copyLarge(new DigestInputStream(in, digest), out);
+            } finally {
+                out.close();
+            }
+
+            final Bundle extras = new Bundle(2);
+            extras.putLong(EXTRA_ATTACHMENT_ID, attachmentId);
+            extras.putString(EXTRA_FILE, file.getAbsolutePath());
+            final Bundle result = context.getContentResolver().call(EmailContent.CONTENT_URI,
+                    STORE_METHOD, toHex(digest.digest()), extras);
+            if (result == null || !result.getBoolean(EXTRA_SUCCESS)) {
+                throw new IOException("Could not store attachment " + attachmentId);
+            }
+            return size;
+        } finally {
+            // Unless the provider moved it into place
+            file.delete();
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The provider's side of {@link #save}.
+     * @param hash the hash of the content, as named by the client
+     * @param extras the attachment id and the temporary file holding the content
+     * @return the result for the client
+     */
+    static Bundle store(final Context context, final SQLiteDatabase db, final String hash,
+            final Bundle extras) {
+        final File file = new File(extras.getString(EXTRA_FILE));
+        // Only files that save() put in our cache directory are taken in
+        if (!context.getCacheDir().equals(file.getParentFile()) || hash == null
+                || !hash.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Bad attachment blob " + file + ", " + hash);
+        }
+        final Bundle result = new Bundle(1);
+        result.putBoolean(EXTRA_SUCCESS,
+                store(context, db, extras.getLong(EXTRA_ATTACHMENT_ID), hash, file));
+        return result;
+    }
+
+    /**
+     * Records that an attachment's content is the one with the given hash, moving the file into
+     * the shared directory if it's the first with that content.
+     * @return whether the content was stored; it also counts as stored if the attachment no
+     *     longer exists
+     */
+    static boolean store(final Context context, final SQLiteDatabase db, final long attachmentId,
+            final String hash, final File file) {
+        synchronized (sLock) {
+            db.beginTransaction();
+            try {
+                final ContentValues cv = new ContentValues(1);
+                cv.put(AttachmentColumns.BLOB_HASH, hash);
+                if (db.update(Attachment.TABLE_NAME, cv, AttachmentColumns._ID + "=?",
+                        new String[] { Long.toString(attachmentId) }) == 0) {
+                    return true;
+                }
+                final File blob = getFile(context, hash);
+                if (!blob.exists()) {
+                    final File directory = blob.getParentFile();
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        LogUtils.w(Logging.LOG_TAG, "Could not create %s", directory);
+                        return false;
+                    }
+                    if (!file.renameTo(blob)) {
+                        LogUtils.w(Logging.LOG_TAG, "Could not move %s to %s", file, blob);
+                        return false;
+                    }
+                }
+                db.setTransactionSuccessful();
+                return true;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Deletes the shared files that no attachment refers to any more, and their counts. This
+     * must not be called in a transaction, since the files can't be restored if it's rolled back;
+     * if it is, it does nothing, and the files are left for the next call. The unreferenced
+     * hashes are read, and their counts and files deleted, in one transaction of our own, so that
+     * no hash can gain a reference in between.
+     * @return the number of files deleted
+     */
+    static int deleteUnreferenced(final Context context, final SQLiteDatabase db) {
+        if (db.inTransaction()) {
+            return 0;
+        }
+        synchronized (sLock) {
+            db.beginTransaction();
+            try {
+                final ArrayList<String> hashes = new ArrayList<String>();
+                final Cursor c = db.query(TABLE_NAME, new String[] { HASH }, REF_COUNT + "<=0",
+                        null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        hashes.add(c.getString(0));
+                    }
+                } finally {
+                    c.close();
+                }
+                if (hashes.isEmpty()) {
+                    return 0;
+                }
+                for (int start = 0; start < hashes.size(); start += MAX_SELECTION_ARGS) {
+                    final List<String> chunk = hashes.subList(start,
+                            Math.min(start + MAX_SELECTION_ARGS, hashes.size()));
+                    final StringBuilder selection = new StringBuilder(HASH).append(" in (");
+                    for (int i = 0; i < chunk.size(); i++) {
+                        selection.append(i == 0 ? "?" : ",?");
+                    }
+                    selection.append(") and ").append(REF_COUNT).append("<=0");
+                    db.delete(TABLE_NAME, selection.toString(),
+                            chunk.toArray(new String[chunk.size()]));
+                }
+                int deleted = 0;
+                for (final String hash : hashes) {
+                    if (getFile(context, hash).delete()) {
+                        deleted++;
+                    }
+                }
+                db.setTransactionSuccessful();
+                LogUtils.d(Logging.LOG_TAG, "Deleted %d unreferenced attachment files", deleted);
+                return deleted;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+}
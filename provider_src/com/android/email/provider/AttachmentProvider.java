@@ -58,6 +58,8 @@ import java.util.List;
  * The on-disk (storage) schema is as follows.
  *
  * Attachments are stored at:  <database-path>/account#.db_att/item#
+ * or, if shared with identical attachments (see {@link AttachmentBlobs}):
+ *                             <database-path>/attachment_blobs/hash
  * Thumbnails are stored at:   <cache-path>/thmb_account#_item#
  *
  * Using the standard application context, account #10 and attachment # 20, this would be:
@@ -74,6 +76,9 @@ public class AttachmentProvider extends ContentProvider {
     private static final String[] PROJECTION_QUERY = new String[] { AttachmentColumns.FILENAME,
             AttachmentColumns.SIZE, AttachmentColumns.CONTENT_URI };
 
+    private static final String[] BLOB_HASH_PROJECTION =
+            new String[] { AttachmentColumns.BLOB_HASH };
+
     @Override
     public boolean onCreate() {
         /*
@@ -159,9 +164,16 @@ public class AttachmentProvider extends ContentProvider {
                 saveIn.mkdirs();
             }
             File newFile = new File(saveIn, id);
-            return ParcelFileDescriptor.open(
+            ParcelFileDescriptor fd = ParcelFileDescriptor.open(
                     newFile, ParcelFileDescriptor.MODE_READ_WRITE |
                         ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+            // What's written here replaces any content shared with identical attachments
+            ContentValues cv = new ContentValues(1);
+            cv.putNull(AttachmentColumns.BLOB_HASH);
+            context.getContentResolver().update(
+                    ContentUris.withAppendedId(Attachment.CONTENT_URI, Long.parseLong(id)), cv,
+                    AttachmentColumns.BLOB_HASH + " is not null", null);
+            return fd;
         }
         long callingId = Binder.clearCallingIdentity();
         try {
@@ -216,9 +228,7 @@ public class AttachmentProvider extends ContentProvider {
                 return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
             }
             else {
-                return ParcelFileDescriptor.open(
-                        new File(getContext().getDatabasePath(accountId + ".db_att"),
-                                String.valueOf(id)),
+                return ParcelFileDescriptor.open(getAttachmentFile(accountId, id),
                         ParcelFileDescriptor.MODE_READ_ONLY);
             }
         } catch (NumberFormatException e) {
@@ -230,6 +240,29 @@ public class AttachmentProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the file holding an attachment's content; this is the file shared by identical
+     * attachments, if there is one, or else the attachment's own file.
+     */
+    private File getAttachmentFile(long accountId, long id) {
+        Cursor c = getContext().getContentResolver().query(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, id), BLOB_HASH_PROJECTION,
+                null, null, null);
+        if (c != null) {
+            try {
+                if (c.moveToFirst() && c.getString(0) != null) {
+                    File file = AttachmentBlobs.getFile(getContext(), c.getString(0));
+                    if (file.exists()) {
+                        return file;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return new File(getContext().getDatabasePath(accountId + ".db_att"), String.valueOf(id));
+    }
+
     @Override
     public int delete(Uri uri, String arg1, String[] arg2) {
         return 0;
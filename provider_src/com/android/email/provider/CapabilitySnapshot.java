@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.android.email.R;
+import com.android.email.service.EmailServiceUtils;
+import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.providers.UIProvider.AccountCapabilities;
+import com.android.mail.providers.UIProvider.FolderCapabilities;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * What the UI may do with an account and its folders, which depends only on the account's
+ * protocol (and, for EAS, its protocol version). A snapshot is computed once, from the account
+ * and its HostAuth, and is immutable; {@link EmailProvider} keeps one per account, and drops them
+ * whenever an account or HostAuth changes, so that the account and folder list queries don't
+ * have to resolve the protocol again for every row.
+ */
+final class CapabilitySnapshot {
+    /** The snapshot of an account that doesn't exist (or has no known protocol). */
+    static final CapabilitySnapshot NONE = new CapabilitySnapshot(0, null);
+
+    private final int mAccountCapabilities;
+    private final EmailServiceInfo mServiceInfo;
+    /** Folder capabilities by mailbox type, for all of the types up to TYPE_UNKNOWN. */
+    private final int[] mFolderCapabilities = new int[Mailbox.TYPE_UNKNOWN + 1];
+
+    /* package for testing */ CapabilitySnapshot(final int accountCapabilities,
+            final EmailServiceInfo serviceInfo) {
+        mAccountCapabilities = accountCapabilities;
+        mServiceInfo = serviceInfo;
+        for (int type = 0; type < mFolderCapabilities.length; type++) {
+            mFolderCapabilities[type] = computeFolderCapabilities(serviceInfo, type);
+        }
+    }
+
+    /**
+     * Computes the snapshot of an account.
+     * @param account the account, or null if it no longer exists
+     */
+    static CapabilitySnapshot create(final Context context, final Account account) {
+        if (account == null) {
+            return NONE;
+        }
+        final String protocol = account.getProtocol(context);
+        final EmailServiceInfo info = EmailServiceUtils.getServiceInfo(context, protocol);
+        final int capabilities = computeAccountCapabilities(context, protocol,
+                account.mProtocolVersion);
+        if (capabilities == 0) {
+            LogUtils.w(Logging.LOG_TAG, "Unknown protocol for account %d", account.getId());
+        } else {
+            LogUtils.d(Logging.LOG_TAG, "Capabilities for %d (protocol %s): 0x%x %s",
+                    account.getId(), protocol, capabilities, getBits(capabilities));
+        }
+        return new CapabilitySnapshot(capabilities, info);
+    }
+
+    /**
+     * @return the {@link AccountCapabilities} of the account
+     */
+    int getAccountCapabilities() {
+        return mAccountCapabilities;
+    }
+
+    /**
+     * @return the account's service, or null if its protocol isn't known
+     */
+    EmailServiceInfo getServiceInfo() {
+        return mServiceInfo;
+    }
+
+    /**
+     * @return the {@link FolderCapabilities} of the account's folders of the given type, apart
+     *     from {@link FolderCapabilities#IS_VIRTUAL}, which depends on the folder
+     */
+    int getFolderCapabilities(final int mailboxType) {
+        if (mailboxType >= 0 && mailboxType < mFolderCapabilities.length) {
+            return mFolderCapabilities[mailboxType];
+        }
+        return computeFolderCapabilities(mServiceInfo, mailboxType);
+    }
+
+    /* package for testing */ static int computeAccountCapabilities(final Context context,
+            final String protocol, final String protocolVersion) {
+        // Account capabilities are based on protocol -- different protocols (and, for EAS,
+        // different protocol versions) support different feature sets.
+        int capabilities;
+        if (TextUtils.equals(context.getString(R.string.protocol_imap), protocol) ||
+                TextUtils.equals(context.getString(R.string.protocol_legacy_imap), protocol)) {
+            capabilities = AccountCapabilities.SYNCABLE_FOLDERS |
+                    AccountCapabilities.SERVER_SEARCH |
+                    AccountCapabilities.FOLDER_SERVER_SEARCH |
+                    AccountCapabilities.UNDO |
+                    AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
+        } else if (TextUtils.equals(context.getString(R.string.protocol_pop3), protocol)) {
+            capabilities = AccountCapabilities.UNDO |
+                    AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
+        } else if (TextUtils.equals(context.getString(R.string.protocol_eas), protocol)) {
+            double easVersionDouble = 2.5D;
+            if (protocolVersion != null) {
+                try {
+                    easVersionDouble = Double.parseDouble(protocolVersion);
+                } catch (final NumberFormatException e) {
+                    // Use the default (lowest) set of capabilities.
+                }
+            }
+            if (easVersionDouble >= 12.0D) {
+                capabilities = AccountCapabilities.SYNCABLE_FOLDERS |
+                        AccountCapabilities.SERVER_SEARCH |
+                        AccountCapabilities.FOLDER_SERVER_SEARCH |
+                        AccountCapabilities.SMART_REPLY |
+                        AccountCapabilities.UNDO |
+                        AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
+            } else {
+                capabilities = AccountCapabilities.SYNCABLE_FOLDERS |
+                        AccountCapabilities.SMART_REPLY |
+                        AccountCapabilities.UNDO |
+                        AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
+            }
+        } else {
+            return 0;
+        }
+
+        // If the configuration states that feedback is supported, add that capability
+        if (context.getResources().getBoolean(R.bool.feedback_supported)) {
+            capabilities |= AccountCapabilities.SEND_FEEDBACK;
+        }
+
+        // If we can find a help URL then add the Help capability
+        if (!TextUtils.isEmpty(context.getResources().getString(R.string.help_uri))) {
+            capabilities |= AccountCapabilities.HELP_CONTENT;
+        }
+
+        capabilities |= AccountCapabilities.EMPTY_TRASH;
+
+        // TODO: Should this be stored per-account, or some other mechanism?
+        capabilities |= AccountCapabilities.NESTED_FOLDERS;
+
+        // the client is permitted to sanitize HTML emails for all Email accounts
+        capabilities |= AccountCapabilities.CLIENT_SANITIZED_HTML;
+
+        return capabilities;
+    }
+
+    /* package for testing */ static int computeFolderCapabilities(final EmailServiceInfo info,
+            final int mailboxType) {
+        // Special case for Search folders: only permit delete, do not try to give any other caps.
+        if (mailboxType == Mailbox.TYPE_SEARCH) {
+            return FolderCapabilities.DELETE;
+        }
+
+        // All folders support delete, except drafts.
+        int caps = 0;
+        if (mailboxType != Mailbox.TYPE_DRAFTS) {
+            caps = FolderCapabilities.DELETE;
+        }
+        if (info != null && info.offerLookback) {
+            // Protocols supporting lookback support settings
+            caps |= FolderCapabilities.SUPPORTS_SETTINGS;
+        }
+
+        if (mailboxType == Mailbox.TYPE_MAIL || mailboxType == Mailbox.TYPE_TRASH ||
+                mailboxType == Mailbox.TYPE_JUNK || mailboxType == Mailbox.TYPE_INBOX) {
+            // If the mailbox can accept moved mail, report that as well
+            caps |= FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES;
+            caps |= FolderCapabilities.ALLOWS_REMOVE_CONVERSATION;
+        }
+
+        // For trash, we don't allow undo
+        if (mailboxType == Mailbox.TYPE_TRASH) {
+            caps =  FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES |
+                    FolderCapabilities.ALLOWS_REMOVE_CONVERSATION |
+                    FolderCapabilities.DELETE |
+                    FolderCapabilities.DELETE_ACTION_FINAL;
+        }
+
+        // If we don't know the protocol or the protocol doesn't support it, don't allow moving
+        // messages
+        if (info == null || !info.offerMoveTo) {
+            caps &= ~FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES &
+                    ~FolderCapabilities.ALLOWS_REMOVE_CONVERSATION &
+                    ~FolderCapabilities.ALLOWS_MOVE_TO_INBOX;
+        }
+
+        // If the mailbox stores outgoing mail, show recipients instead of senders
+        // (however the Drafts folder shows neither senders nor recipients... just the word "Draft")
+        if (mailboxType == Mailbox.TYPE_OUTBOX || mailboxType == Mailbox.TYPE_SENT) {
+            caps |= FolderCapabilities.SHOW_RECIPIENTS;
+        }
+
+        return caps;
+    }
+
+    private static String getBits(int bitField) {
+        StringBuilder sb = new StringBuilder(" ");
+        for (int i = 0; i < 32; i++, bitField >>= 1) {
+            if ((bitField & 1) != 0) {
+                sb.append(i)
+                        .append(" ");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -89,10 +89,11 @@ public final class DBHelper {
         "  where " + MessageColumns.MAILBOX_KEY + "=old." + BaseColumns._ID +
         "; end";
 
+    // The account's mailboxes (and so its messages) are purged in the background; see
+    // AccountPurge
     private static final String TRIGGER_ACCOUNT_DELETE =
         "create trigger account_delete before delete on " + Account.TABLE_NAME +
-        " begin delete from " + Mailbox.TABLE_NAME +
-        " where " + MailboxColumns.ACCOUNT_KEY + "=old." + BaseColumns._ID +
+        " begin " + AccountPurge.recordTombstone("old") +
         "; delete from " + HostAuth.TABLE_NAME +
         " where " + BaseColumns._ID + "=old." + AccountColumns.HOST_AUTH_KEY_RECV +
         "; delete from " + HostAuth.TABLE_NAME +
@@ -184,7 +185,13 @@ public final class DBHelper {
     // Version 126: Decode address lists for To, From, Cc, Bcc and Reply-To columns in Message.
     // Version 127: Force mFlags to contain the correct flags for EAS accounts given a protocol
     //              version above 12.0
-    public static final int DATABASE_VERSION = 127;
+    // Version 128: Add the MessageSearch full-text index and the triggers that maintain it.
+    // Version 129: Add the MessageCounters table and the triggers that maintain it.
+    // Version 130: Add blobHash to Attachment, and the AttachmentBlob table of reference counts
+    //              for attachment files shared by hash.
+    // Version 131: Leave the data of deleted accounts to be purged, with a tombstone in the
+    //              AccountPurge table
+    public static final int DATABASE_VERSION = 131;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -196,7 +203,9 @@ public final class DBHelper {
     // Version 8 is last Email1 version
     // Version 100 is the first Email2 version
     // Version 101: Move body contents to external files
-    public static final int BODY_DATABASE_VERSION = 101;
+    // Version 102: Add the embedsExternalResources column; it's filled in for existing bodies in
+    //              the background
+    public static final int BODY_DATABASE_VERSION = 102;
 
     /*
      * Internal helper method for index creation.
@@ -519,7 +528,8 @@ public final class DBHelper {
             + AccountColumns.PING_DURATION + " integer"
             + ");";
         db.execSQL("create table " + Account.TABLE_NAME + s);
-        // Deleting an account deletes associated Mailboxes and HostAuth's
+        // Deleting an account deletes associated HostAuth's, and leaves a tombstone for the rest
+        AccountPurge.createTable(db);
         db.execSQL(TRIGGER_ACCOUNT_DELETE);
     }
 
@@ -647,7 +657,8 @@ public final class DBHelper {
             + AttachmentColumns.UI_STATE + " integer, "
             + AttachmentColumns.UI_DESTINATION + " integer, "
             + AttachmentColumns.UI_DOWNLOADED_SIZE + " integer, "
-            + AttachmentColumns.CACHED_FILE + " text"
+            + AttachmentColumns.CACHED_FILE + " text, "
+            + AttachmentColumns.BLOB_HASH + " text"
             + ");";
         db.execSQL("create table " + Attachment.TABLE_NAME + s);
         db.execSQL(createIndex(Attachment.TABLE_NAME, AttachmentColumns.MESSAGE_KEY));
@@ -679,7 +690,8 @@ public final class DBHelper {
             + BodyColumns.TEXT_REPLY + " text, "
             + BodyColumns.SOURCE_MESSAGE_KEY + " text, "
             + BodyColumns.INTRO_TEXT + " text, "
-            + BodyColumns.QUOTED_TEXT_START_POS + " integer"
+            + BodyColumns.QUOTED_TEXT_START_POS + " integer, "
+            + BodyColumns.EMBEDS_EXTERNAL_RESOURCES + " integer"
             + ");";
         db.execSQL("create table " + Body.TABLE_NAME + s);
         db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY));
@@ -788,8 +800,25 @@ public final class DBHelper {
     }
 
 
+    /**
+     * Adds the column flagging bodies that embed images. It's left null for existing bodies, since
+     * working it out means reading every html body file; {@link DatabaseMaintenance} does that in
+     * the background.
+     */
+    private static void upgradeBodyFromVersion101ToVersion102(final SQLiteDatabase db) {
+        try {
+            db.execSQL("alter table " + Body.TABLE_NAME
+                    + " add column " + BodyColumns.EMBEDS_EXTERNAL_RESOURCES + " integer");
+        } catch (final SQLException e) {
+            // Shouldn't be needed unless we're debugging and interrupt the process
+            LogUtils.w(TAG, e, "Exception upgrading EmailProviderBody.db from v101 to v102");
+        }
+    }
+
     protected static class BodyDatabaseHelper extends SQLiteOpenHelper {
         final Context mContext;
+        /** Whether an upgrade left existing bodies without an embedsExternalResources flag. */
+        boolean mEmbedsExternalResourcesNeeded;
 
         BodyDatabaseHelper(Context context, String name) {
             super(context, name, null, BODY_DATABASE_VERSION);
@@ -816,6 +845,10 @@ public final class DBHelper {
             if (oldVersion < 101) {
                 upgradeBodyFromVersion100ToVersion101(mContext, db);
             }
+            if (oldVersion < 102) {
+                upgradeBodyFromVersion101ToVersion102(db);
+                mEmbedsExternalResourcesNeeded = true;
+            }
         }
 
         @Override
@@ -854,6 +887,9 @@ public final class DBHelper {
             createPolicyTable(db);
             createQuickResponseTable(db);
             createCredentialsTable(db);
+            MessageSearchIndex.createTable(db);
+            MessageCounters.createTable(db);
+            AttachmentBlobs.createTable(db);
         }
 
         @Override
@@ -1025,6 +1061,8 @@ public final class DBHelper {
                     db.execSQL("alter table " + Account.TABLE_NAME
                             + " add column " + AccountColumns.POLICY_KEY + " integer;");
                     db.execSQL("drop trigger account_delete;");
+                    // The trigger records tombstones, so their table has to exist first
+                    AccountPurge.createTable(db);
                     db.execSQL(TRIGGER_ACCOUNT_DELETE);
                     createPolicyTable(db);
                     convertPolicyFlagsToPolicyTable(db);
@@ -1469,6 +1507,31 @@ public final class DBHelper {
             if (oldVersion <= 126) {
                 upgradeFromVersion126ToVersion127(mContext, db);
             }
+
+            if (oldVersion <= 127) {
+                MessageSearchIndex.createTable(db);
+                MessageSearchIndex.populate(db);
+            }
+
+            if (oldVersion <= 128) {
+                MessageCounters.createTable(db);
+                MessageCounters.recalculate(db);
+            }
+
+            if (oldVersion <= 129) {
+                db.execSQL("alter table " + Attachment.TABLE_NAME
+                        + " add column " + AttachmentColumns.BLOB_HASH + " text;");
+                AttachmentBlobs.createTable(db);
+            }
+
+            if (oldVersion <= 130) {
+                AccountPurge.createTable(db);
+                db.execSQL("drop trigger if exists account_delete");
+                db.execSQL(TRIGGER_ACCOUNT_DELETE);
+                // The counts for all accounts now leave out the messages of deleted accounts
+                MessageCounters.recreateTriggers(db);
+                MessageCounters.recalculate(db);
+            }
         }
 
         @Override
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+
+import com.android.email.Preferences;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.PolicyColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.provider.Policy;
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * The integrity passes that {@link EmailProvider} used to run every time it opened its database,
+ * and backfills of columns that are too costly to fill in during a database upgrade.
+ *
+ * They also purge the data of deleted accounts, which {@link AccountPurge} leaves behind so that
+ * the deletion itself is quick.
+ *
+ * The conditions these passes repair (orphaned rows, uninitialized parent keys) only arise from
+ * particular writes, or from a crash part way through one. The provider marks the affected passes
+ * as needed when it makes such a write; the markers are persisted, so they survive a crash, and a
+ * pass is only run at startup if it has been marked. Passes run in the background after a delay,
+ * deleting in small chunks and backing off regularly so that they never hold the database for
+ * long.
+ */
+class DatabaseMaintenance {
+    private static final String TAG = LogTag.getLogTag();
+
+    /** Rows in the updated/deleted message tables whose mailbox no longer exists. */
+    static final int ORPHANED_MESSAGE_CHANGES = 1 << 0;
+    /** Mailboxes and messages whose account no longer exists, and policies with no account. */
+    static final int UNLINKED_ROWS = 1 << 1;
+    /** Mailboxes whose parentKey doesn't match their parentServerId. */
+    static final int PARENT_KEYS = 1 << 2;
+    /** Bodies that were stored before we flagged those that embed images. */
+    static final int EMBEDS_EXTERNAL_RESOURCES = 1 << 3;
+    /** The messages, mailboxes and files of accounts that have been deleted. */
+    static final int DELETED_ACCOUNTS = 1 << 4;
+    static final int ALL_PASSES = ORPHANED_MESSAGE_CHANGES | UNLINKED_ROWS | PARENT_KEYS
+            | EMBEDS_EXTERNAL_RESOURCES | DELETED_ACCOUNTS;
+
+    /** How long after the database is opened to start; this keeps us out of process startup. */
+    private static final long START_DELAY_MILLIS = 10 * DateUtils.SECOND_IN_MILLIS;
+    /** How long we may keep deleting before backing off. */
+    @VisibleForTesting
+    static final long SLICE_MILLIS = 20;
+    /** How long to back off for, so that other writers can get at the database. */
+    private static final long PAUSE_MILLIS = 100;
+    /** The number of rows removed by each delete statement. */
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 200;
+
+    /**
+     * The accounts whose mailboxes and messages are not unlinked: those that exist, and those
+     * being purged, whose files have to go with them.
+     */
+    private static final String LINKED_ACCOUNTS = "(select " + AccountColumns._ID + " from "
+            + Account.TABLE_NAME + " union all select " + AccountPurge.ACCOUNT_KEY + " from "
+            + AccountPurge.TABLE_NAME + ")";
+
+    private final Context mContext;
+    private final Preferences mPreferences;
+    /** Passes that are needed and haven't been started; guarded by this. */
+    private int mNeeded;
+    /**
+     * Passes marked as needed in the preferences: those in {@link #mNeeded}, and those that are
+     * running, which stay marked until they complete. Guarded by this.
+     */
+    private int mSaved;
+    /**
+     * The number of times each pass has been marked, indexed by bit; a pass that is marked again
+     * while it's running stays marked when it completes. Guarded by this.
+     */
+    private final int[] mGenerations = new int[Integer.SIZE];
+
+    DatabaseMaintenance(final Context context) {
+        mContext = context;
+        mPreferences = Preferences.getPreferences(context);
+        mNeeded = mPreferences.getDatabaseMaintenanceNeeded(ALL_PASSES);
+        mSaved = mNeeded;
+    }
+
+    /**
+     * Records that the given passes need to be run. This must be called before the write that
+     * makes them necessary, so that a crash part way through the write is also covered.
+     */
+    synchronized void markNeeded(final int passes) {
+        mNeeded |= passes;
+        for (int i = 0; i < Integer.SIZE; i++) {
+            if ((passes & (1 << i)) != 0) {
+                // Kept non-negative, as startPass returns -1 for a pass that isn't needed
+                mGenerations[i] = (mGenerations[i] + 1) & Integer.MAX_VALUE;
+            }
+        }
+        if ((mSaved & passes) != passes) {
+            mSaved |= passes;
+            mPreferences.setDatabaseMaintenanceNeeded(mSaved);
+        }
+    }
+
+    synchronized boolean isNeeded(final int passes) {
+        return (mNeeded & passes) != 0;
+    }
+
+    /**
+     * Takes a pass that is about to run off the needed passes. It stays marked in the
+     * preferences until {@link #finishPass}, so that it's run again if we're killed part way.
+     * @return the generation to hand to {@link #finishPass}, or -1 if the pass wasn't needed
+     */
+    private synchronized int startPass(final int pass) {
+        if ((mNeeded & pass) == 0) {
+            return -1;
+        }
+        mNeeded &= ~pass;
+        return mGenerations[Integer.numberOfTrailingZeros(pass)];
+    }
+
+    /**
+     * Clears the saved marker for a pass that has completed, unless it was marked again while
+     * it was running.
+     */
+    private synchronized void finishPass(final int pass, final int generation) {
+        if (mGenerations[Integer.numberOfTrailingZeros(pass)] == generation
+                && (mSaved & pass) != 0) {
+            mSaved &= ~pass;
+            mPreferences.setDatabaseMaintenanceNeeded(mSaved);
+        }
+    }
+
+    /**
+     * Arranges for whichever passes are needed to run in the background, a little while from now.
+     * @param db the database to run them on; if it has been closed by then, they are left for the
+     *     next time the database is opened
+     */
+    void schedule(final SQLiteDatabase db) {
+        if (!isNeeded(ALL_PASSES)) {
+            return;
+        }
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                EmailAsyncTask.runAsyncParallel(new Runnable() {
+                    @Override
+                    public void run() {
+                        runPasses(db);
+                    }
+                });
+            }
+        }, START_DELAY_MILLIS);
+    }
+
+    /**
+     * Runs the needed passes on the calling thread.
+     */
+    @VisibleForTesting
+    void runPasses(final SQLiteDatabase db) {
+        final long start = SystemClock.elapsedRealtime();
+        int pass = 0;
+        int generation;
+        try {
+            pass = ORPHANED_MESSAGE_CHANGES;
+            generation = startPass(pass);
+            if (generation >= 0) {
+                deleteUnlinkedInSlices(db, Message.UPDATED_TABLE_NAME, MessageColumns.MAILBOX_KEY,
+                        MailboxColumns._ID, Mailbox.TABLE_NAME);
+                deleteUnlinkedInSlices(db, Message.DELETED_TABLE_NAME, MessageColumns.MAILBOX_KEY,
+                        MailboxColumns._ID, Mailbox.TABLE_NAME);
+                finishPass(pass, generation);
+            }
+            pass = DELETED_ACCOUNTS;
+            generation = startPass(pass);
+            if (generation >= 0) {
+                purgeDeletedAccountsInSlices(db);
+                finishPass(pass, generation);
+            }
+            pass = UNLINKED_ROWS;
+            generation = startPass(pass);
+            if (generation >= 0) {
+                deleteUnlinkedInSlices(db, Mailbox.TABLE_NAME, MailboxColumns.ACCOUNT_KEY,
+                        AccountColumns._ID, LINKED_ACCOUNTS);
+                deleteUnlinkedInSlices(db, Message.TABLE_NAME, MessageColumns.ACCOUNT_KEY,
+                        AccountColumns._ID, LINKED_ACCOUNTS);
+                deleteUnlinkedInSlices(db, Policy.TABLE_NAME, PolicyColumns._ID,
+                        AccountColumns.POLICY_KEY, Account.TABLE_NAME);
+                // The attachments of the deleted messages may have been the last to share a file
+                AttachmentBlobs.deleteUnreferenced(mContext, db);
+                finishPass(pass, generation);
+            }
+            pass = PARENT_KEYS;
+            generation = startPass(pass);
+            if (generation >= 0) {
+                // The mailbox table is small, so this is done in one statement
+                EmailProvider.fixParentKeys(db);
+                finishPass(pass, generation);
+            }
+            pass = EMBEDS_EXTERNAL_RESOURCES;
+            generation = startPass(pass);
+            if (generation >= 0) {
+                flagEmbedsExternalResourcesInSlices(db);
+                finishPass(pass, generation);
+            }
+            pass = 0;
+        } catch (final SQLiteException e) {
+            LogUtils.w(TAG, e, "Database maintenance failed");
+        } catch (final IllegalStateException e) {
+            // The database was closed under us
+            LogUtils.w(TAG, "Database closed during maintenance");
+        } catch (final InterruptedException e) {
+            LogUtils.w(TAG, "Database maintenance interrupted");
+        } finally {
+            if (pass != 0) {
+                markNeeded(pass);
+            }
+        }
+        LogUtils.d(TAG, "Database maintenance took %d ms",
+                SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * Purges the data of deleted accounts with {@link AccountPurge#purgeChunk}, {@link #CHUNK_SIZE}
+     * messages at a time, pausing whenever we have been at it for more than {@link #SLICE_MILLIS}.
+     */
+    private void purgeDeletedAccountsInSlices(final SQLiteDatabase db)
+            throws InterruptedException {
+        long sliceStart = SystemClock.uptimeMillis();
+        while (AccountPurge.purgeChunk(mContext, db, CHUNK_SIZE)) {
+            if (SystemClock.uptimeMillis() - sliceStart >= SLICE_MILLIS) {
+                Thread.sleep(PAUSE_MILLIS);
+                sliceStart = SystemClock.uptimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Fills in {@link BodyColumns#EMBEDS_EXTERNAL_RESOURCES} for bodies that don't have it, which
+     * means reading their html files; {@link #CHUNK_SIZE} bodies are looked up at a time, and we
+     * pause whenever we have been at it for more than {@link #SLICE_MILLIS}.
+     */
+    private void flagEmbedsExternalResourcesInSlices(final SQLiteDatabase db)
+            throws InterruptedException {
+        final String[] projection = new String[] {BodyColumns._ID, BodyColumns.MESSAGE_KEY};
+        final String selection = BodyColumns.EMBEDS_EXTERNAL_RESOURCES + " is null";
+        // A body that is rewritten meanwhile gets its flag then, which mustn't be overwritten
+        final String updateSelection = BodyColumns._ID + "=? and " + selection;
+        final String limit = Integer.toString(CHUNK_SIZE);
+        final ContentValues cv = new ContentValues(1);
+        final String[] args = new String[1];
+        int total = 0;
+        int count;
+        long sliceStart = SystemClock.uptimeMillis();
+        do {
+            final Cursor c = db.query(Body.TABLE_NAME, projection, selection, null, null, null,
+                    null, limit);
+            try {
+                count = c.getCount();
+                while (c.moveToNext()) {
+                    cv.put(BodyColumns.EMBEDS_EXTERNAL_RESOURCES,
+                            EmailProvider.readEmbedsExternalResources(mContext, c.getLong(1)));
+                    args[0] = Long.toString(c.getLong(0));
+                    db.update(Body.TABLE_NAME, cv, updateSelection, args);
+                    if (SystemClock.uptimeMillis() - sliceStart >= SLICE_MILLIS) {
+                        Thread.sleep(PAUSE_MILLIS);
+                        sliceStart = SystemClock.uptimeMillis();
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            total += count;
+        } while (count >= CHUNK_SIZE);
+        if (total > 0) {
+            LogUtils.d(TAG, "Set the embedded image flag of %d bodies", total);
+        }
+    }
+
+    /**
+     * Like {@link EmailProvider#deleteUnlinked}, but deletes {@link #CHUNK_SIZE} rows per
+     * statement, and pauses whenever it has been deleting for more than {@link #SLICE_MILLIS}.
+     */
+    private static void deleteUnlinkedInSlices(final SQLiteDatabase db, final String table,
+            final String column, final String foreignColumn, final String foreignTable)
+            throws InterruptedException {
+        final String selection = "_id in (select _id from " + table + " where " + column
+                + " not in (select " + foreignColumn + " from " + foreignTable + ") limit "
+                + CHUNK_SIZE + ")";
+        int total = 0;
+        int count;
+        long sliceStart = SystemClock.uptimeMillis();
+        do {
+            count = db.delete(table, selection, null);
+            total += count;
+            if (SystemClock.uptimeMillis() - sliceStart >= SLICE_MILLIS) {
+                Thread.sleep(PAUSE_MILLIS);
+                sliceStart = SystemClock.uptimeMillis();
+            }
+        } while (count >= CHUNK_SIZE);
+        if (total > 0) {
+            LogUtils.w(TAG, "Found " + total + " orphaned row(s) in " + table);
+        }
+    }
+}
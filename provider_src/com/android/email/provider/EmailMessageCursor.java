@@ -22,10 +22,9 @@ import android.database.Cursor;
 import android.database.CursorWrapper;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.util.SparseArray;
+import android.util.LruCache;
 
 import com.android.emailcommon.provider.EmailContent.Body;
-import com.android.mail.utils.HtmlSanitizer;
 import com.android.mail.utils.LogUtils;
 
 import org.apache.commons.io.IOUtils;
@@ -39,7 +38,10 @@ import java.io.InputStream;
  * large email message can exceed that limit and cause the cursor to fail to load.
  *
  * To get around this, we load null values in those columns, and then in this wrapper we directly
- * load the content from the provider, skipping the cursor window.
+ * load the content from the provider, skipping the cursor window. Bodies are only loaded when
+ * they're asked for, and are kept in a cache of bounded size, so a long conversation doesn't
+ * have to be read into memory all at once. The html is the sanitized copy the provider stores
+ * alongside the body.
  *
  * This will still potentially blow up if this cursor gets wrapped in a CrossProcessCursorWrapper
  * which uses a CursorWindow to shuffle results between processes. Since we're only using this for
@@ -47,68 +49,82 @@ import java.io.InputStream;
  */
 public class EmailMessageCursor extends CursorWrapper {
 
-    private final SparseArray<String> mTextParts;
-    private final SparseArray<String> mHtmlParts;
+    /** The number of characters of body content to keep in memory. */
+    private static final int CACHE_SIZE_CHARS = 1024 * 1024;
+
+    private final Context mContext;
+    private final int mIdColumnIndex;
     private final int mTextColumnIndex;
     private final int mHtmlColumnIndex;
+    /**
+     * Loaded bodies, keyed by cursor position; the text body is at twice the position and the
+     * html body is at twice the position plus one.
+     */
+    private final LruCache<Integer, String> mParts =
+            new LruCache<Integer, String>(CACHE_SIZE_CHARS) {
+                @Override
+                protected int sizeOf(final Integer key, final String value) {
+                    return value.length();
+                }
+            };
 
     public EmailMessageCursor(final Context c, final Cursor cursor, final String htmlColumn,
             final String textColumn) {
         super(cursor);
+        mContext = c;
+        mIdColumnIndex = cursor.getColumnIndex(BaseColumns._ID);
         mHtmlColumnIndex = cursor.getColumnIndex(htmlColumn);
         mTextColumnIndex = cursor.getColumnIndex(textColumn);
-        final int cursorSize = cursor.getCount();
-        mHtmlParts = new SparseArray<String>(cursorSize);
-        mTextParts = new SparseArray<String>(cursorSize);
-
-        final ContentResolver cr = c.getContentResolver();
+    }
 
-        while (cursor.moveToNext()) {
-            final int position = cursor.getPosition();
-            final long messageId = cursor.getLong(cursor.getColumnIndex(BaseColumns._ID));
-            try {
-                if (mHtmlColumnIndex != -1) {
-                    final Uri htmlUri = Body.getBodyHtmlUriForMessageWithId(messageId);
-                    final InputStream in = cr.openInputStream(htmlUri);
-                    final String underlyingHtmlString;
-                    try {
-                        underlyingHtmlString = IOUtils.toString(in);
-                    } finally {
-                        in.close();
-                    }
-                    final String sanitizedHtml = HtmlSanitizer.sanitizeHtml(underlyingHtmlString);
-                    mHtmlParts.put(position, sanitizedHtml);
-                }
-            } catch (final IOException e) {
-                LogUtils.v(LogUtils.TAG, e, "Did not find html body for message %d", messageId);
+    @Override
+    public String getString(final int columnIndex) {
+        if (columnIndex != -1) {
+            if (columnIndex == mHtmlColumnIndex) {
+                return getPart(true);
+            } else if (columnIndex == mTextColumnIndex) {
+                return getPart(false);
             }
-            try {
-                if (mTextColumnIndex != -1) {
-                    final Uri textUri = Body.getBodyTextUriForMessageWithId(messageId);
-                    final InputStream in = cr.openInputStream(textUri);
-                    final String underlyingTextString;
-                    try {
-                        underlyingTextString = IOUtils.toString(in);
-                    } finally {
-                        in.close();
-                    }
-                    mTextParts.put(position, underlyingTextString);
-                }
-            } catch (final IOException e) {
-                LogUtils.v(LogUtils.TAG, e, "Did not find text body for message %d", messageId);
+        }
+        return super.getString(columnIndex);
+    }
+
+    private String getPart(final boolean html) {
+        final Integer key = getPosition() * 2 + (html ? 1 : 0);
+        String part = mParts.get(key);
+        if (part == null) {
+            final long messageId = getLong(mIdColumnIndex);
+            part = html ? loadHtml(messageId) : loadText(messageId);
+            if (part != null) {
+                mParts.put(key, part);
             }
         }
-        cursor.moveToPosition(-1);
+        return part;
     }
 
-    @Override
-    public String getString(final int columnIndex) {
-        if (columnIndex == mHtmlColumnIndex) {
-            return mHtmlParts.get(getPosition());
-        } else if (columnIndex == mTextColumnIndex) {
-            return mTextParts.get(getPosition());
+    private String loadHtml(final long messageId) {
+        try {
+            return EmailProvider.readSanitizedHtml(mContext, messageId);
+        } catch (final IOException e) {
+            LogUtils.v(LogUtils.TAG, e, "Did not find html body for message %d", messageId);
+            return null;
+        }
+    }
+
+    private String loadText(final long messageId) {
+        final ContentResolver cr = mContext.getContentResolver();
+        final Uri textUri = Body.getBodyTextUriForMessageWithId(messageId);
+        try {
+            final InputStream in = cr.openInputStream(textUri);
+            try {
+                return IOUtils.toString(in);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            LogUtils.v(LogUtils.TAG, e, "Did not find text body for message %d", messageId);
+            return null;
         }
-        return super.getString(columnIndex);
     }
 
     @Override
@@ -35,7 +35,6 @@ import android.content.UriMatcher;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
-import android.content.res.Resources;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.CursorWrapper;
@@ -61,7 +60,9 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Base64;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
+import androidx.collection.LongSparseArray;
 
 import com.android.common.content.ProjectionMap;
 import com.android.email.DebugUtils;
@@ -89,7 +90,6 @@ import com.android.emailcommon.provider.EmailContent.HostAuthColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
-import com.android.emailcommon.provider.EmailContent.PolicyColumns;
 import com.android.emailcommon.provider.EmailContent.QuickResponseColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.HostAuth;
@@ -122,6 +122,7 @@ import com.android.mail.providers.UIProvider.ConversationPriority;
 import com.android.mail.providers.UIProvider.ConversationSendingState;
 import com.android.mail.providers.UIProvider.DraftType;
 import com.android.mail.utils.AttachmentUtils;
+import com.android.mail.utils.HtmlSanitizer;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MatrixCursorWithCachedColumns;
@@ -134,20 +135,27 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 public class EmailProvider extends ContentProvider
@@ -196,14 +204,35 @@ public class EmailProvider extends ContentProvider
     /** The query string to trigger a folder refresh. */
     protected static String QUERY_UIREFRESH = "uirefresh";
 
-    // Definitions for our queries looking for orphaned messages
-    private static final String[] ORPHANS_PROJECTION
-        = new String[] {MessageColumns._ID, MessageColumns.MAILBOX_KEY};
-    private static final int ORPHANS_ID = 0;
-    private static final int ORPHANS_MAILBOX_KEY = 1;
-
     private static final String WHERE_ID = BaseColumns._ID + "=?";
 
+    /**
+     * The version of the sanitized html stored next to each html body. Bump this when a change to
+     * {@link HtmlSanitizer} should apply to messages that have already been stored; their
+     * sanitized copies are then redone as they are next opened.
+     */
+    // exposed for testing
+    static final int SANITIZED_HTML_VERSION = 1;
+    private static final Pattern SANITIZED_HTML_EXT_PATTERN = Pattern.compile("v\\d+\\.html");
+    /**
+     * Guard the publishing of each message's body files, so that a sanitized copy made from a
+     * stale body can't replace a newer one. Messages share these by id; nothing slow (in
+     * particular, no sanitizing) is done while holding one. Body files are written to a temporary
+     * file and renamed into place, so they can be read without a lock.
+     */
+    private static final Object[] sBodyFileLocks = new Object[16];
+    static {
+        for (int i = 0; i < sBodyFileLocks.length; i++) {
+            sBodyFileLocks[i] = new Object();
+        }
+    }
+    /**
+     * Html bodies in the batch being applied on this thread, sanitized before its transaction
+     * was started; keyed by the raw html.
+     */
+    private static final ThreadLocal<Map<String, String>> sTLBatchSanitizedHtml =
+            new ThreadLocal<Map<String, String>>();
+
     private static final int ACCOUNT_BASE = 0;
     private static final int ACCOUNT = ACCOUNT_BASE;
     private static final int ACCOUNT_ID = ACCOUNT_BASE + 1;
@@ -254,9 +283,11 @@ public class EmailProvider extends ContentProvider
     private static final int QUICK_RESPONSE_ACCOUNT_ID = QUICK_RESPONSE_BASE + 2;
 
     private static final int UI_BASE = 0x9000;
-    private static final int UI_FOLDERS = UI_BASE;
+    // exposed for testing
+    static final int UI_FOLDERS = UI_BASE;
     private static final int UI_SUBFOLDERS = UI_BASE + 1;
-    private static final int UI_MESSAGES = UI_BASE + 2;
+    // exposed for testing
+    static final int UI_MESSAGES = UI_BASE + 2;
     private static final int UI_MESSAGE = UI_BASE + 3;
     private static final int UI_UNDO = UI_BASE + 4;
     private static final int UI_FOLDER_REFRESH = UI_BASE + 5;
@@ -317,20 +348,34 @@ public class EmailProvider extends ContentProvider
      */
     private static final Object sDatabaseLock = new Object();
 
+    /**
+     * The columns that identify a message to the server; these are always copied into the
+     * updated and deleted message tables. Of the rest of the row, the updated message table only
+     * gets the original values of the columns that have been changed (see
+     * {@link #recordMessageUpdate}); the others are left null.
+     */
+    private static final String MESSAGE_JOURNAL_KEY_COLUMNS = BaseColumns._ID + ","
+            + SyncColumns.SERVER_ID + "," + MessageColumns.MAILBOX_KEY + ","
+            + MessageColumns.ACCOUNT_KEY + "," + MessageColumns.PROTOCOL_SEARCH_INFO;
+
+    private static final String[] MESSAGE_JOURNAL_KEY_COLUMN_ARRAY =
+            MESSAGE_JOURNAL_KEY_COLUMNS.split(",");
+
     /**
      * Let's only generate these SQL strings once, as they are used frequently
      * Note that this isn't relevant for table creation strings, since they are used only once
      */
     private static final String UPDATED_MESSAGE_INSERT = "insert or ignore into " +
-        Message.UPDATED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
-        BaseColumns._ID + '=';
+        Message.UPDATED_TABLE_NAME + " (" + MESSAGE_JOURNAL_KEY_COLUMNS + ") select " +
+        MESSAGE_JOURNAL_KEY_COLUMNS + " from " + Message.TABLE_NAME + " where ";
 
     private static final String UPDATED_MESSAGE_DELETE = "delete from " +
         Message.UPDATED_TABLE_NAME + " where " + BaseColumns._ID + '=';
 
     private static final String DELETED_MESSAGE_INSERT = "insert or replace into " +
-        Message.DELETED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
-        BaseColumns._ID + '=';
+        Message.DELETED_TABLE_NAME + " (" + MESSAGE_JOURNAL_KEY_COLUMNS + ") select " +
+        MESSAGE_JOURNAL_KEY_COLUMNS + " from " + Message.TABLE_NAME + " where " +
+        BaseColumns._ID + "=?";
 
     private static final String ORPHAN_BODY_MESSAGE_ID_SELECT =
             "select " + BodyColumns.MESSAGE_KEY + " from " + Body.TABLE_NAME +
@@ -386,6 +431,37 @@ public class EmailProvider extends ContentProvider
     private SQLiteDatabase mDatabase;
     private SQLiteDatabase mBodyDatabase;
 
+    /**
+     * Number of read-only connections used for queries. The platform's own WAL connection pool
+     * can't be used, since it is switched off for a database that has anything ATTACHed to it.
+     */
+    private static final int READER_POOL_SIZE = 3;
+    /**
+     * Prepared statements each connection keeps; the platform default of 25 is easily exceeded
+     * by the ui queries alone (see {@link #getGeneratedSql}).
+     */
+    private static final int SQL_STATEMENT_CACHE_SIZE = 64;
+    /** Pages written to the WAL before SQLite checkpoints it back into the database. */
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 2000;
+    /** The size a WAL file is truncated back to after a checkpoint. */
+    private static final long WAL_JOURNAL_SIZE_LIMIT = 4 * 1024 * 1024;
+
+    /**
+     * Read-only handles onto the databases, or null if the databases aren't in WAL mode. Read
+     * without {@link #sDatabaseLock}, so a query may still be using a pool that has just been
+     * replaced.
+     */
+    private volatile SQLiteDatabase[] mReaderDatabases;
+    private final AtomicInteger mNextReader = new AtomicInteger();
+
+    private DatabaseMaintenance mMaintenance;
+
+    /** Capabilities of the accounts, by account id; see {@link #getCapabilitySnapshot}. */
+    private final ConcurrentHashMap<Long, CapabilitySnapshot> mCapabilitySnapshots =
+            new ConcurrentHashMap<Long, CapabilitySnapshot>();
+    /** Incremented whenever the snapshots are invalidated. */
+    private final AtomicInteger mCapabilitySnapshotGeneration = new AtomicInteger();
+
     private Handler mDelayedSyncHandler;
     private final Set<SyncRequestMessage> mDelayedSyncRequests = new HashSet<SyncRequestMessage>();
 
@@ -442,7 +518,7 @@ public class EmailProvider extends ContentProvider
      * If we crash while this operation is in progress, the parent keys can be left uninitialized.
      * @param db SQLiteDatabase to modify
      */
-    private void fixParentKeys(SQLiteDatabase db) {
+    static void fixParentKeys(SQLiteDatabase db) {
         LogUtils.d(TAG, "Fixing parent keys");
 
         // Update the parentKey for each mailbox row to match the _id of the row whose
@@ -488,6 +564,7 @@ public class EmailProvider extends ContentProvider
 
             DBHelper.DatabaseHelper helper = new DBHelper.DatabaseHelper(context, DATABASE_NAME);
             mDatabase = helper.getWritableDatabase();
+            mDatabase.setMaxSqlCacheSize(SQL_STATEMENT_CACHE_SIZE);
             DBHelper.BodyDatabaseHelper bodyHelper =
                     new DBHelper.BodyDatabaseHelper(context, BODY_DATABASE_NAME);
             mBodyDatabase = bodyHelper.getWritableDatabase();
@@ -495,32 +572,126 @@ public class EmailProvider extends ContentProvider
                 String bodyFileName = mBodyDatabase.getPath();
                 mDatabase.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
             }
+            enableWriteAheadLogging();
 
             // Restore accounts if the database is corrupted...
             restoreIfNeeded(context, mDatabase);
-            // Check for any orphaned Messages in the updated/deleted tables
-            deleteMessageOrphans(mDatabase, Message.UPDATED_TABLE_NAME);
-            deleteMessageOrphans(mDatabase, Message.DELETED_TABLE_NAME);
-            // Delete orphaned mailboxes/messages/policies (account no longer exists)
-            deleteUnlinked(mDatabase, Mailbox.TABLE_NAME, MailboxColumns.ACCOUNT_KEY,
-                    AccountColumns._ID, Account.TABLE_NAME);
-            deleteUnlinked(mDatabase, Message.TABLE_NAME, MessageColumns.ACCOUNT_KEY,
-                    AccountColumns._ID, Account.TABLE_NAME);
-            deleteUnlinked(mDatabase, Policy.TABLE_NAME, PolicyColumns._ID,
-                    AccountColumns.POLICY_KEY, Account.TABLE_NAME);
-            fixParentKeys(mDatabase);
             initUiProvider();
+            // Orphaned rows and parent keys are repaired in the background, and only if a write
+            // that could have left them behind was made since the last time.
+            if (mMaintenance == null) {
+                mMaintenance = new DatabaseMaintenance(context);
+            }
+            if (bodyHelper.mEmbedsExternalResourcesNeeded) {
+                mMaintenance.markNeeded(DatabaseMaintenance.EMBEDS_EXTERNAL_RESOURCES);
+            }
+            // A purge that was cut short carries on from its tombstone
+            if (AccountPurge.isPending(mDatabase)) {
+                mMaintenance.markNeeded(DatabaseMaintenance.DELETED_ACCOUNTS);
+            }
+            mMaintenance.schedule(mDatabase);
             return mDatabase;
         }
     }
 
+    /**
+     * Switches the main and body databases to write-ahead logging and, if that works, opens the
+     * pool of read-only connections used by {@link #getReaderDatabase}. With WAL, readers see the
+     * last committed state and are never blocked by a sync holding a long write transaction on
+     * {@link #mDatabase}, which remains the single writer.
+     *
+     * Note that each database commits atomically on its own; a transaction that writes to both
+     * the main and the body database is not atomic across the two, which is no weaker than the
+     * body files we already write outside of any transaction.
+     */
+    private void enableWriteAheadLogging() {
+        // Read-write connections reset the journal mode when they're opened, so this has to be
+        // done every time, after the body database has been attached.
+        final String mainMode =
+                DatabaseUtils.stringForQuery(mDatabase, "PRAGMA journal_mode=WAL", null);
+        final String bodyMode = mBodyDatabase == null ? null : DatabaseUtils.stringForQuery(
+                mDatabase, "PRAGMA BodyDatabase.journal_mode=WAL", null);
+        if (!"wal".equalsIgnoreCase(mainMode) || !"wal".equalsIgnoreCase(bodyMode)) {
+            LogUtils.w(TAG, "Unable to enable WAL (main: %s, body: %s)", mainMode, bodyMode);
+            return;
+        }
+        // Syncs commit often; in WAL mode NORMAL only gives up durability of the last few
+        // commits on power loss, never consistency.
+        mDatabase.execSQL("PRAGMA synchronous=NORMAL");
+        mDatabase.execSQL("PRAGMA BodyDatabase.synchronous=NORMAL");
+        DatabaseUtils.longForQuery(mDatabase,
+                "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+        DatabaseUtils.longForQuery(mDatabase,
+                "PRAGMA journal_size_limit=" + WAL_JOURNAL_SIZE_LIMIT, null);
+        DatabaseUtils.longForQuery(mDatabase,
+                "PRAGMA BodyDatabase.journal_size_limit=" + WAL_JOURNAL_SIZE_LIMIT, null);
+
+        final SQLiteDatabase[] readers = new SQLiteDatabase[READER_POOL_SIZE];
+        try {
+            for (int i = 0; i < READER_POOL_SIZE; i++) {
+                readers[i] = SQLiteDatabase.openDatabase(mDatabase.getPath(), null,
+                        SQLiteDatabase.OPEN_READONLY);
+                readers[i].setMaxSqlCacheSize(SQL_STATEMENT_CACHE_SIZE);
+                readers[i].execSQL("attach \"" + mBodyDatabase.getPath() + "\" as BodyDatabase");
+            }
+        } catch (SQLiteException e) {
+            LogUtils.w(TAG, e, "Unable to open reader connections; queries will use the writer");
+            closeDatabases(readers);
+            return;
+        }
+        mReaderDatabases = readers;
+    }
+
+    private static void closeDatabases(final SQLiteDatabase[] databases) {
+        if (databases == null) {
+            return;
+        }
+        for (final SQLiteDatabase db : databases) {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a database to run a read-only query on. This is one of the pooled reader
+     * connections, unless the calling thread is inside a transaction on the writer (e.g. in
+     * {@link #applyBatch}), in which case it must see its own uncommitted changes.
+     */
+    // exposed for testing
+    SQLiteDatabase getReaderDatabase(final Context context) {
+        final SQLiteDatabase writer = getDatabase(context);
+        final SQLiteDatabase[] readers = mReaderDatabases;
+        if (readers == null || writer.inTransaction()) {
+            return writer;
+        }
+        final int next = mNextReader.getAndIncrement() & Integer.MAX_VALUE;
+        return readers[next % readers.length];
+    }
+
     /**
      * Perform startup actions related to UI
      */
     private void initUiProvider() {
         // Clear mailbox sync status
         mDatabase.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UI_SYNC_STATUS +
-                "=" + UIProvider.SyncStatus.NO_SYNC);
+                "=" + UIProvider.SyncStatus.NO_SYNC + " where " + MailboxColumns.UI_SYNC_STATUS +
+                "!=" + UIProvider.SyncStatus.NO_SYNC);
+    }
+
+    /**
+     * Records that a write is about to be made that can leave work for {@link DatabaseMaintenance}.
+     * @param passes the {@link DatabaseMaintenance} passes that will be needed
+     */
+    private void markMaintenanceNeeded(final int passes) {
+        if (mMaintenance != null) {
+            mMaintenance.markNeeded(passes);
+        }
+    }
+
+    // exposed for testing
+    DatabaseMaintenance getMaintenance() {
+        return mMaintenance;
     }
 
     /**
@@ -568,6 +739,8 @@ public class EmailProvider extends ContentProvider
     /** {@inheritDoc} */
     @Override
     public void shutdown() {
+        closeDatabases(mReaderDatabases);
+        mReaderDatabases = null;
         if (mDatabase != null) {
             mDatabase.close();
             mDatabase = null;
@@ -581,49 +754,8 @@ public class EmailProvider extends ContentProvider
     // exposed for testing
     public static void deleteMessageOrphans(SQLiteDatabase database, String tableName) {
         if (database != null) {
-            // We'll look at all of the items in the table; there won't be many typically
-            Cursor c = database.query(tableName, ORPHANS_PROJECTION, null, null, null, null, null);
-            // Usually, there will be nothing in these tables, so make a quick check
-            try {
-                if (c.getCount() == 0) return;
-                ArrayList<Long> foundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> notFoundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> deleteList = new ArrayList<Long>();
-                String[] bindArray = new String[1];
-                while (c.moveToNext()) {
-                    // Get the mailbox key and see if we've already found this mailbox
-                    // If so, we're fine
-                    long mailboxId = c.getLong(ORPHANS_MAILBOX_KEY);
-                    // If we already know this mailbox doesn't exist, mark the message for deletion
-                    if (notFoundMailboxes.contains(mailboxId)) {
-                        deleteList.add(c.getLong(ORPHANS_ID));
-                    // If we don't know about this mailbox, we'll try to find it
-                    } else if (!foundMailboxes.contains(mailboxId)) {
-                        bindArray[0] = Long.toString(mailboxId);
-                        Cursor boxCursor = database.query(Mailbox.TABLE_NAME,
-                                Mailbox.ID_PROJECTION, WHERE_ID, bindArray, null, null, null);
-                        try {
-                            // If it exists, we'll add it to the "found" mailboxes
-                            if (boxCursor.moveToFirst()) {
-                                foundMailboxes.add(mailboxId);
-                            // Otherwise, we'll add to "not found" and mark the message for deletion
-                            } else {
-                                notFoundMailboxes.add(mailboxId);
-                                deleteList.add(c.getLong(ORPHANS_ID));
-                            }
-                        } finally {
-                            boxCursor.close();
-                        }
-                    }
-                }
-                // Now, delete the orphan messages
-                for (long messageId: deleteList) {
-                    bindArray[0] = Long.toString(messageId);
-                    database.delete(tableName, WHERE_ID, bindArray);
-                }
-            } finally {
-                c.close();
-            }
+            deleteUnlinked(database, tableName, MessageColumns.MAILBOX_KEY, MailboxColumns._ID,
+                    Mailbox.TABLE_NAME);
         }
     }
 
@@ -644,6 +776,23 @@ public class EmailProvider extends ContentProvider
         final String tableName = TABLE_NAMES.valueAt(table);
         int result = -1;
 
+        switch (match) {
+            case ACCOUNT:
+            case ACCOUNT_ID:
+                // The account's data is left to be purged in the background; see AccountPurge
+                markMaintenanceNeeded(DatabaseMaintenance.DELETED_ACCOUNTS
+                        | DatabaseMaintenance.ORPHANED_MESSAGE_CHANGES
+                        | DatabaseMaintenance.UNLINKED_ROWS);
+                break;
+            case MAILBOX:
+            case MAILBOX_ID:
+            case POLICY:
+            case POLICY_ID:
+                markMaintenanceNeeded(DatabaseMaintenance.ORPHANED_MESSAGE_CHANGES
+                        | DatabaseMaintenance.UNLINKED_ROWS);
+                break;
+        }
+
         try {
             if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
                 if (!uri.getBooleanQueryParameter(IS_UIPROVIDER, false)) {
@@ -678,8 +827,6 @@ public class EmailProvider extends ContentProvider
                 // cascade or explicitly
                 case MAILBOX_ID:
                 case MAILBOX:
-                case ACCOUNT_ID:
-                case ACCOUNT:
                 case MESSAGE:
                 case SYNCED_MESSAGE_ID:
                 case MESSAGE_ID:
@@ -712,7 +859,7 @@ public class EmailProvider extends ContentProvider
                         // For synced messages, first copy the old message to the deleted table and
                         // delete it from the updated table (in case it was updated first)
                         // Note that this is all within a transaction, for atomicity
-                        db.execSQL(DELETED_MESSAGE_INSERT + id);
+                        db.execSQL(DELETED_MESSAGE_INSERT, new Object[] { id });
                         db.execSQL(UPDATED_MESSAGE_DELETE + id);
                     }
 
@@ -800,6 +947,19 @@ public class EmailProvider extends ContentProvider
             }
         }
 
+        // Attachment files that were shared with the deleted attachments (including those of
+        // the messages of deleted mailboxes) may now be unused
+        if (messageDeletion || match == ATTACHMENT || match == ATTACHMENT_ID
+                || match == ATTACHMENTS_MESSAGE_ID) {
+            deleteUnreferencedBlobs(context, db);
+        }
+        if ((match == ACCOUNT || match == ACCOUNT_ID) && result > 0 && mMaintenance != null) {
+            mMaintenance.schedule(db);
+        }
+        if (affectsCapabilities(match)) {
+            invalidateCapabilitySnapshots();
+        }
+
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
 
@@ -905,6 +1065,13 @@ public class EmailProvider extends ContentProvider
             values.put(MailboxColumns.UNREAD_COUNT, 0);
             values.put(MailboxColumns.MESSAGE_COUNT, 0);
         }
+        if (match == MAILBOX) {
+            // Folder sync sets parent keys in a second pass
+            markMaintenanceNeeded(DatabaseMaintenance.PARENT_KEYS);
+        } else if (match == POLICY) {
+            // A policy is unlinked until an account refers to it
+            markMaintenanceNeeded(DatabaseMaintenance.UNLINKED_ROWS);
+        }
 
         final Uri resultUri;
 
@@ -915,6 +1082,7 @@ public class EmailProvider extends ContentProvider
                     // Prune out the content we don't want in the DB
                     dbValues.remove(BodyColumns.HTML_CONTENT);
                     dbValues.remove(BodyColumns.TEXT_CONTENT);
+                    putEmbedsExternalResources(dbValues, values);
                     // TODO: move this to the message table
                     longId = db.insert(Body.TABLE_NAME, "foo", dbValues);
                     resultUri = ContentUris.withAppendedId(uri, longId);
@@ -929,6 +1097,7 @@ public class EmailProvider extends ContentProvider
                     // Ensure that no pre-existing body files contaminate the message
                     deleteBodyFiles(context, messageId);
                     writeBodyFiles(getContext(), messageId, values);
+                    MessageSearchIndex.updateBody(db, messageId, values);
                     break;
                 // NOTE: It is NOT legal for production code to insert directly into UPDATED_MESSAGE
                 // or DELETED_MESSAGE; see the comment below for details
@@ -1024,6 +1193,10 @@ public class EmailProvider extends ContentProvider
             throw e;
         }
 
+        if (affectsCapabilities(match)) {
+            invalidateCapabilitySnapshots();
+        }
+
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_INSERT, id);
 
@@ -1245,13 +1418,17 @@ public class EmailProvider extends ContentProvider
      */
     public void checkDatabases() {
         synchronized (sDatabaseLock) {
-            // Uncache the databases
+            // Uncache the databases. Like the writer, the readers are left open: other threads and
+            // open cursors may still be using them, and they're closed when they're collected.
+            mReaderDatabases = null;
             if (mDatabase != null) {
                 mDatabase = null;
             }
             if (mBodyDatabase != null) {
                 mBodyDatabase = null;
             }
+            // The accounts may be restored from the backup with different ids
+            invalidateCapabilitySnapshots();
             // Look for orphans, and delete as necessary; these must always be in sync
             final File databaseFile = getContext().getDatabasePath(DATABASE_NAME);
             final File bodyFile = getContext().getDatabasePath(BODY_DATABASE_NAME);
@@ -1299,7 +1476,7 @@ public class EmailProvider extends ContentProvider
         }
         Context context = getContext();
         // See the comment at delete(), above
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getReaderDatabase(context);
         int table = match >> BASE_SHIFT;
         String limit = uri.getQueryParameter(EmailContent.PARAMETER_LIMIT);
         String id;
@@ -1809,6 +1986,82 @@ public class EmailProvider extends ContentProvider
                 newFlagRead, messageId, newFlagFavorite));
     }
 
+    /**
+     * Request a sync of a mailbox, so that changes to its messages will upsync, unless one is
+     * already pending.
+     * This is normally done with ContentResolver.notifyUpdate() but doesn't work for Exchange
+     * because the Sync Adapter is declared as android:supportsUploading="false". Changing it to
+     * true is not trivial because that would require us to protect all calls to notifyUpdate()
+     * with syncToServer=false except in cases where we actually want to upsync.
+     * TODO: Look into making Exchange Sync Adapter supportsUploading=true
+     * Since we can't use the Sync Manager "delayed-sync" feature which applies only to UPLOAD
+     * syncs, we need to do this ourselves. The purpose of this is not to spam syncs when making
+     * frequent modifications.
+     */
+    private void requestDelayedSync(final String authority, final long accountId,
+            final long mailboxId) {
+        final Handler handler = getDelayedSyncHandler();
+        final android.accounts.Account amAccount = getAccountManagerAccount(accountId);
+        if (amAccount != null) {
+            final SyncRequestMessage request =
+                    new SyncRequestMessage(authority, amAccount, mailboxId);
+            synchronized (mDelayedSyncRequests) {
+                if (!mDelayedSyncRequests.contains(request)) {
+                    mDelayedSyncRequests.add(request);
+                    final android.os.Message message = handler.obtainMessage(0, request);
+                    handler.sendMessageDelayed(message, SYNC_DELAY_MILLIS);
+                }
+            }
+        } else {
+            LogUtils.d(TAG, "Attempted to start delayed sync for invalid account %d", accountId);
+        }
+    }
+
+    /**
+     * Records a change to a synced message in the updated message table, before it is made. The
+     * first change to a message creates its row there, with the columns that identify it to the
+     * server; each change then fills in the original values of the columns it changes, unless an
+     * earlier one already did. So the row only ever holds the "original" data, and only that of
+     * the columns that have changed since the last upsync.
+     *
+     * Note that a column whose original value was null can't be told apart from one that hasn't
+     * changed; that's fine for the columns upsync cares about, which are never null.
+     */
+    private static void recordMessageUpdate(final SQLiteDatabase db, final String id,
+            final ContentValues values) {
+        recordMessageUpdates(db, BaseColumns._ID + "=?", new Object[] { id }, values);
+    }
+
+    /**
+     * Like {@link #recordMessageUpdate}, for all of the messages matched by a selection on the
+     * message id.
+     */
+    private static void recordMessageUpdates(final SQLiteDatabase db, final String idSelection,
+            final Object[] selectionArgs, final ContentValues values) {
+        db.execSQL(UPDATED_MESSAGE_INSERT + idSelection, selectionArgs);
+        final StringBuilder sb = new StringBuilder("update ")
+                .append(Message.UPDATED_TABLE_NAME).append(" set ");
+        boolean first = true;
+        for (final String column : values.keySet()) {
+            if (Utility.arrayContains(MESSAGE_JOURNAL_KEY_COLUMN_ARRAY, column)) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(column).append("=coalesce(").append(column).append(",(select ")
+                    .append(column).append(" from ").append(Message.TABLE_NAME).append(" where ")
+                    .append(Message.TABLE_NAME).append('.').append(BaseColumns._ID).append('=')
+                    .append(Message.UPDATED_TABLE_NAME).append('.').append(BaseColumns._ID)
+                    .append("))");
+        }
+        if (!first) {
+            sb.append(" where ").append(idSelection);
+            db.execSQL(sb.toString(), selectionArgs);
+        }
+    }
+
     // select count(*) from (select count(*) as dupes from Mailbox where accountKey=?
     // group by serverId) where dupes > 1;
     private static final String ACCOUNT_INTEGRITY_SQL =
@@ -1941,6 +2194,13 @@ public class EmailProvider extends ContentProvider
             values.remove(MailboxColumns.UNREAD_COUNT);
             values.remove(MailboxColumns.MESSAGE_COUNT);
         }
+        if ((match == MAILBOX_ID || match == MAILBOX)
+                && values.containsKey(MailboxColumns.PARENT_SERVER_ID)) {
+            markMaintenanceNeeded(DatabaseMaintenance.PARENT_KEYS);
+        } else if ((match == ACCOUNT_ID || match == ACCOUNT)
+                && values.containsKey(AccountColumns.POLICY_KEY)) {
+            markMaintenanceNeeded(DatabaseMaintenance.UNLINKED_ROWS);
+        }
 
         final String tableName = TABLE_NAMES.valueAt(table);
         String id = "0";
@@ -2043,43 +2303,12 @@ public class EmailProvider extends ContentProvider
                             }
 
                             // Request a sync for the messages mailbox so the update will upsync.
-                            // This is normally done with ContentResolver.notifyUpdate() but doesn't
-                            // work for Exchange because the Sync Adapter is declared as
-                            // android:supportsUploading="false". Changing it to true is not trivial
-                            // because that would require us to protect all calls to notifyUpdate()
-                            // with syncToServer=false except in cases where we actually want to
-                            // upsync.
-                            // TODO: Look into making Exchange Sync Adapter supportsUploading=true
-                            // Since we can't use the Sync Manager "delayed-sync" feature which
-                            // applies only to UPLOAD syncs, we need to do this ourselves. The
-                            // purpose of this is not to spam syncs when making frequent
-                            // modifications.
-                            final Handler handler = getDelayedSyncHandler();
-                            final android.accounts.Account amAccount =
-                                    getAccountManagerAccount(accountId);
-                            if (amAccount != null) {
-                                final SyncRequestMessage request = new SyncRequestMessage(
-                                        uri.getAuthority(), amAccount, mailboxId);
-                                synchronized (mDelayedSyncRequests) {
-                                    if (!mDelayedSyncRequests.contains(request)) {
-                                        mDelayedSyncRequests.add(request);
-                                        final android.os.Message message =
-                                                handler.obtainMessage(0, request);
-                                        handler.sendMessageDelayed(message, SYNC_DELAY_MILLIS);
-                                    }
-                                }
-                            } else {
-                                LogUtils.d(TAG,
-                                        "Attempted to start delayed sync for invalid account %d",
-                                        accountId);
-                            }
+                            requestDelayedSync(uri.getAuthority(), accountId, mailboxId);
                         } else {
                             // Old way of doing upsync.
-                            // For synced messages, first copy the old message to the updated table
-                            // Note the insert or ignore semantics, guaranteeing that only the first
-                            // update will be reflected in the updated message table; therefore this
-                            // row will always have the "original" data
-                            db.execSQL(UPDATED_MESSAGE_INSERT + id);
+                            // For synced messages, first record the original values of the
+                            // columns being changed in the updated table
+                            recordMessageUpdate(db, id, values);
                         }
                     } else if (match == MESSAGE_ID) {
                         db.execSQL(UPDATED_MESSAGE_DELETE + id);
@@ -2122,6 +2351,7 @@ public class EmailProvider extends ContentProvider
                     final ContentValues updateValues = new ContentValues(values);
                     updateValues.remove(BodyColumns.HTML_CONTENT);
                     updateValues.remove(BodyColumns.TEXT_CONTENT);
+                    putEmbedsExternalResources(updateValues, values);
 
                     result = db.update(tableName, updateValues, whereWithId(id, selection),
                             selectionArgs);
@@ -2142,6 +2372,7 @@ public class EmailProvider extends ContentProvider
                             messageId = sql.simpleQueryForLong();
                         }
                         writeBodyFiles(context, messageId, values);
+                        MessageSearchIndex.updateBody(db, messageId, values);
                     }
                     break;
                 }
@@ -2149,6 +2380,7 @@ public class EmailProvider extends ContentProvider
                     final ContentValues updateValues = new ContentValues(values);
                     updateValues.remove(BodyColumns.HTML_CONTENT);
                     updateValues.remove(BodyColumns.TEXT_CONTENT);
+                    putEmbedsExternalResources(updateValues, values);
 
                     result = db.update(tableName, updateValues, selection, selectionArgs);
 
@@ -2198,6 +2430,7 @@ public class EmailProvider extends ContentProvider
                             for (int i = 0; i < messageIds.length; i++) {
                                 final long messageId = messageIds[i];
                                 writeBodyFiles(context, messageId, values);
+                                MessageSearchIndex.updateBody(db, messageId, values);
                             }
                         }
                     }
@@ -2235,6 +2468,16 @@ public class EmailProvider extends ContentProvider
             throw e;
         }
 
+        if (result > 0 && affectsCapabilities(match)) {
+            invalidateCapabilitySnapshots();
+        }
+        // An attachment whose content is rewritten (see AttachmentProvider.openFile) stops
+        // sharing the file it had, which may now be unused
+        if (result > 0 && (match == ATTACHMENT || match == ATTACHMENT_ID)
+                && values.containsKey(AttachmentColumns.BLOB_HASH)) {
+            deleteUnreferencedBlobs(context, db);
+        }
+
         // Notify all notifier cursors if some records where changed in the database
         if (result > 0) {
             sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
@@ -2285,6 +2528,11 @@ public class EmailProvider extends ContentProvider
             fixParentKeys(getDatabase(getContext()));
             return null;
         }
+        if (TextUtils.equals(method, AttachmentBlobs.STORE_METHOD)) {
+            getContext().enforceCallingOrSelfPermission(EmailContent.PROVIDER_PERMISSION, null);
+            final Context context = getContext();
+            return AttachmentBlobs.store(context, getDatabase(context), arg, extras);
+        }
 
         // Handle send & save.
         final Uri accountUri = Uri.parse(arg);
@@ -2314,7 +2562,73 @@ public class EmailProvider extends ContentProvider
         return result;
     }
 
-    private static void deleteBodyFiles(final Context c, final long messageId)
+    /**
+     * Sets {@link BodyColumns#EMBEDS_EXTERNAL_RESOURCES} in the values to be stored for a body, if
+     * its html content is being written, so that viewing the message doesn't need to look at it.
+     * @param dbValues the values to be stored in the database
+     * @param values the values as given to the provider, including any html content
+     */
+    private static void putEmbedsExternalResources(final ContentValues dbValues,
+            final ContentValues values) {
+        if (values.containsKey(BodyColumns.HTML_CONTENT)) {
+            dbValues.put(BodyColumns.EMBEDS_EXTERNAL_RESOURCES,
+                    embedsExternalResources(values.getAsString(BodyColumns.HTML_CONTENT)));
+        }
+    }
+
+    /**
+     * @return 1 if the html has <img> tags, so that the UI should offer to show pictures; else 0
+     */
+    private static int embedsExternalResources(final String htmlContent) {
+        return htmlContent != null && IMG_TAG_START_REGEX.matcher(htmlContent).find() ? 1 : 0;
+    }
+
+    /**
+     * Works out {@link BodyColumns#EMBEDS_EXTERNAL_RESOURCES} from a message's stored html body,
+     * for bodies written before the column was added.
+     */
+    static int readEmbedsExternalResources(final Context c, final long messageId) {
+        try {
+            return embedsExternalResources(readBodyFile(getBodyFile(c, messageId, "html")));
+        } catch (final FileNotFoundException e) {
+            // No html body
+            return 0;
+        } catch (final IOException e) {
+            LogUtils.w(TAG, e, "Unable to read html body for message %d", messageId);
+            return 0;
+        }
+    }
+
+    /**
+     * Returns whether the html body of a message embeds images, from the flag stored with the
+     * body. Bodies stored before the flag existed have it computed (and stored) here if
+     * {@link DatabaseMaintenance} hasn't got to them yet.
+     */
+    private boolean getEmbedsExternalResources(final Context context, final long messageId) {
+        final String[] args = new String[] {Long.toString(messageId)};
+        final Cursor c = getReaderDatabase(context).query(Body.TABLE_NAME,
+                new String[] {BodyColumns.EMBEDS_EXTERNAL_RESOURCES}, Body.SELECTION_BY_MESSAGE_KEY,
+                args, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            if (!c.isNull(0)) {
+                return c.getInt(0) != 0;
+            }
+        } finally {
+            c.close();
+        }
+        final int embeds = readEmbedsExternalResources(context, messageId);
+        final ContentValues cv = new ContentValues(1);
+        cv.put(BodyColumns.EMBEDS_EXTERNAL_RESOURCES, embeds);
+        // Don't overwrite the flag for a body that has just been rewritten
+        getDatabase(context).update(Body.TABLE_NAME, cv, Body.SELECTION_BY_MESSAGE_KEY + " and "
+                + BodyColumns.EMBEDS_EXTERNAL_RESOURCES + " is null", args);
+        return embeds != 0;
+    }
+
+    static void deleteBodyFiles(final Context c, final long messageId)
             throws IllegalStateException {
         final ContentValues emptyValues = new ContentValues(2);
         emptyValues.putNull(BodyColumns.HTML_CONTENT);
@@ -2334,28 +2648,162 @@ public class EmailProvider extends ContentProvider
      */
     private static void writeBodyFiles(final Context c, final long messageId,
             final ContentValues cv) throws IllegalStateException {
-        if (cv.containsKey(BodyColumns.HTML_CONTENT)) {
-            final String htmlContent = cv.getAsString(BodyColumns.HTML_CONTENT);
-            try {
-                writeBodyFile(c, messageId, "html", htmlContent);
-            } catch (final IOException e) {
-                throw new IllegalStateException("IOException while writing html body " +
-                        "for message id " + Long.toString(messageId), e);
+        final boolean hasHtml = cv.containsKey(BodyColumns.HTML_CONTENT);
+        final String htmlContent = hasHtml ? cv.getAsString(BodyColumns.HTML_CONTENT) : null;
+        final String sanitized = sanitizeHtml(htmlContent);
+        synchronized (getBodyFileLock(messageId)) {
+            if (hasHtml) {
+                try {
+                    writeBodyFile(c, messageId, "html", htmlContent);
+                    writeSanitizedHtml(c, messageId, sanitized);
+                } catch (final IOException e) {
+                    throw new IllegalStateException("IOException while writing html body " +
+                            "for message id " + Long.toString(messageId), e);
+                }
+            }
+            if (cv.containsKey(BodyColumns.TEXT_CONTENT)) {
+                final String textContent = cv.getAsString(BodyColumns.TEXT_CONTENT);
+                try {
+                    writeBodyFile(c, messageId, "txt", textContent);
+                } catch (final IOException e) {
+                    throw new IllegalStateException("IOException while writing text body " +
+                            "for message id " + Long.toString(messageId), e);
+                }
             }
         }
-        if (cv.containsKey(BodyColumns.TEXT_CONTENT)) {
-            final String textContent = cv.getAsString(BodyColumns.TEXT_CONTENT);
+    }
+
+    private static String getSanitizedHtmlExt(final int version) {
+        return "v" + version + ".html";
+    }
+
+    private static Object getBodyFileLock(final long messageId) {
+        return sBodyFileLocks[(int) (messageId & (sBodyFileLocks.length - 1))];
+    }
+
+    /**
+     * Sanitizes an html body, unless it was already done before the current batch started.
+     * @return the sanitized html, or null if there is no html
+     */
+    private static String sanitizeHtml(final String htmlContent) {
+        if (TextUtils.isEmpty(htmlContent)) {
+            return null;
+        }
+        final Map<String, String> batchSanitizedHtml = sTLBatchSanitizedHtml.get();
+        if (batchSanitizedHtml != null) {
+            final String sanitized = batchSanitizedHtml.get(htmlContent);
+            if (sanitized != null) {
+                return sanitized;
+            }
+        }
+        return HtmlSanitizer.sanitizeHtml(htmlContent);
+    }
+
+    /**
+     * Sanitizes the html bodies written by a batch, so that it needn't be done while the batch
+     * holds the database transaction.
+     * @return the sanitized html keyed by the raw html, or null if the batch writes none
+     */
+    private static Map<String, String> sanitizeBatchHtml(
+            final ArrayList<ContentProviderOperation> operations) {
+        // The back references can't be resolved yet, but they never supply the html; stand-ins
+        // let the rest of the values be read
+        final ContentProviderResult[] backRefs = new ContentProviderResult[operations.size()];
+        Arrays.fill(backRefs, new ContentProviderResult(0));
+        Map<String, String> sanitizedHtml = null;
+        for (int i = 0; i < operations.size(); i++) {
+            final ContentProviderOperation op = operations.get(i);
+            final int match = sURIMatcher.match(op.getUri());
+            if (!op.isWriteOperation() || (match != BODY && match != BODY_ID)) {
+                continue;
+            }
+            final ContentValues opValues;
             try {
-                writeBodyFile(c, messageId, "txt", textContent);
-            } catch (final IOException e) {
-                throw new IllegalStateException("IOException while writing text body " +
-                        "for message id " + Long.toString(messageId), e);
+                opValues = op.resolveValueBackReferences(backRefs, i);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // A bad back reference; it's reported when the batch is applied
+                continue;
+            }
+            final String htmlContent = opValues != null
+                    ? opValues.getAsString(BodyColumns.HTML_CONTENT) : null;
+            if (!TextUtils.isEmpty(htmlContent)) {
+                if (sanitizedHtml == null) {
+                    sanitizedHtml = new HashMap<String, String>();
+                }
+                if (!sanitizedHtml.containsKey(htmlContent)) {
+                    sanitizedHtml.put(htmlContent, HtmlSanitizer.sanitizeHtml(htmlContent));
+                }
             }
         }
+        return sanitizedHtml;
     }
 
     /**
-     * Writes a message body file to disk
+     * Writes the sanitized form of an html body next to it, and removes any copies made by older
+     * versions of the sanitizer. Must be called with the message's body file lock held.
+     * @param sanitized the sanitized html, or null/empty to delete the sanitized file
+     */
+    private static void writeSanitizedHtml(final Context c, final long messageId,
+            final String sanitized) throws IOException {
+        writeBodyFile(c, messageId, getSanitizedHtmlExt(SANITIZED_HTML_VERSION), sanitized);
+        for (int version = 1; version < SANITIZED_HTML_VERSION; version++) {
+            getBodyFile(c, messageId, getSanitizedHtmlExt(version)).delete();
+        }
+    }
+
+    /**
+     * Returns the sanitized html body of a message. This is normally written when the body is,
+     * but bodies stored before that was done, or by an older sanitizer version, are sanitized
+     * (and stored) here on first use.
+     * @return the sanitized html, or null if the message has no html body
+     */
+    static String readSanitizedHtml(final Context c, final long messageId) throws IOException {
+        final File sanitizedFile =
+                getBodyFile(c, messageId, getSanitizedHtmlExt(SANITIZED_HTML_VERSION));
+        try {
+            return readBodyFile(sanitizedFile);
+        } catch (final FileNotFoundException e) {
+            // Not sanitized yet
+        }
+        final File htmlFile = getBodyFile(c, messageId, "html");
+        final String htmlContent = readBodyFileIfExists(htmlFile);
+        if (TextUtils.isEmpty(htmlContent)) {
+            return null;
+        }
+        final String sanitized = HtmlSanitizer.sanitizeHtml(htmlContent);
+        synchronized (getBodyFileLock(messageId)) {
+            // If the body has been rewritten meanwhile, its writer has stored its own copy
+            if (!sanitizedFile.exists() && htmlContent.equals(readBodyFileIfExists(htmlFile))) {
+                writeSanitizedHtml(c, messageId, sanitized);
+            }
+        }
+        return sanitized;
+    }
+
+    /**
+     * @return the contents of a body file, or null if it doesn't exist
+     */
+    private static String readBodyFileIfExists(final File file) throws IOException {
+        try {
+            return readBodyFile(file);
+        } catch (final FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static String readBodyFile(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes a message body file to disk. It's written to a temporary file first and renamed into
+     * place, so readers never see it half written; the caller must hold the message's body file
+     * lock, which also guards the temporary file.
      *
      * @param c Context for finding files dir
      * @param messageId id of message to write body for
@@ -2371,12 +2819,17 @@ public class EmailProvider extends ContentProvider
                 LogUtils.v(LogUtils.TAG, "did not delete text body for %d", messageId);
             }
         } else {
-            final FileWriter w = new FileWriter(textFile);
+            final File tempFile = new File(textFile.getPath() + ".tmp");
+            final FileWriter w = new FileWriter(tempFile);
             try {
                 w.write(content);
             } finally {
                 w.close();
             }
+            if (!tempFile.renameTo(textFile)) {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile + " to " + textFile);
+            }
         }
     }
 
@@ -2385,13 +2838,15 @@ public class EmailProvider extends ContentProvider
      *
      * @param c Context for finding files dir
      * @param messageId id of message to locate
-     * @param ext "html" or "txt"
+     * @param ext "html", "txt", or the extension of a sanitized html file
      * @return File ready for operating upon
      */
     protected static File getBodyFile(final Context c, final long messageId, final String ext)
             throws FileNotFoundException {
-        if (!TextUtils.equals(ext, "html") && !TextUtils.equals(ext, "txt")) {
-            throw new IllegalArgumentException("ext must be one of 'html' or 'txt'");
+        if (!TextUtils.equals(ext, "html") && !TextUtils.equals(ext, "txt")
+                && !SANITIZED_HTML_EXT_PATTERN.matcher(ext).matches()) {
+            throw new IllegalArgumentException(
+                    "ext must be one of 'html', 'txt' or 'v<version>.html', not '" + ext + "'");
         }
         long l1 = messageId / 100 % 100;
         long l2 = messageId % 100;
@@ -2528,6 +2983,22 @@ public class EmailProvider extends ContentProvider
         mTLBatchNotifications.set(batchNotifications);
     }
 
+    // Whether the batch being applied on this thread may have left attachment files unused
+    private final ThreadLocal<Boolean> mTLBatchUnreferencedBlobs = new ThreadLocal<Boolean>();
+
+    /**
+     * Deletes the attachment files that are no longer referred to. In a batch, this is left
+     * until the batch is committed, so that a batch that leaves none unused doesn't pay for
+     * another write transaction.
+     */
+    private void deleteUnreferencedBlobs(final Context context, final SQLiteDatabase db) {
+        if (mTLBatchUnreferencedBlobs.get() != null) {
+            mTLBatchUnreferencedBlobs.set(Boolean.TRUE);
+        } else {
+            AttachmentBlobs.deleteUnreferenced(context, db);
+        }
+    }
+
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
@@ -2537,15 +3008,34 @@ public class EmailProvider extends ContentProvider
          * calls made in super.applyBatch()
          */
         setBatchNotificationsSet(Sets.<Uri>newHashSet());
+        mTLBatchUnreferencedBlobs.set(Boolean.FALSE);
         Context context = getContext();
         SQLiteDatabase db = getDatabase(context);
+        sTLBatchSanitizedHtml.set(sanitizeBatchHtml(operations));
         db.beginTransaction();
         try {
-            ContentProviderResult[] results = super.applyBatch(operations);
+            // Changes to many conversations at once (e.g. marking them all read) come as a batch
+            // of identical updates, which are much cheaper done together
+            final ContentValues bulkUiMessageValues = getBulkUiMessageValues(operations);
+            ContentProviderResult[] results = bulkUiMessageValues != null
+                    ? uiUpdateMessages(operations, bulkUiMessageValues)
+                    : super.applyBatch(operations);
             db.setTransactionSuccessful();
             return results;
         } finally {
             db.endTransaction();
+            sTLBatchSanitizedHtml.set(null);
+            if (mTLBatchUnreferencedBlobs.get()) {
+                AttachmentBlobs.deleteUnreferenced(context, db);
+            }
+            mTLBatchUnreferencedBlobs.set(null);
+            // The snapshots may have been recomputed before the batch was committed
+            for (final ContentProviderOperation operation : operations) {
+                if (affectsCapabilities(sURIMatcher.match(operation.getUri()))) {
+                    invalidateCapabilitySnapshots();
+                    break;
+                }
+            }
             final Set<Uri> notifications = getBatchNotificationsSet();
             setBatchNotificationsSet(null);
             for (final Uri uri : notifications) {
@@ -2963,6 +3453,99 @@ public class EmailProvider extends ContentProvider
     }
     private static ProjectionMap sAttachmentMap;
 
+    /** The number of distinct generated queries we keep; see {@link #getGeneratedSql}. */
+    private static final int GENERATED_SQL_CACHE_SIZE = 64;
+
+    /** Selection shapes for {@link #getGeneratedSql}, for matches that have more than one. */
+    // exposed for testing
+    static final int SQL_SHAPE_DEFAULT = 0;
+    static final int SQL_SHAPE_UNSEEN_ONLY = 1;
+
+    private static final class GeneratedSqlKey {
+        final int mMatch;
+        final int mShape;
+        final String[] mProjection;
+        final int mHashCode;
+
+        GeneratedSqlKey(final int match, final int shape, final String[] projection) {
+            mMatch = match;
+            mShape = shape;
+            mProjection = projection;
+            mHashCode = (match * 31 + shape) * 31 + Arrays.hashCode(projection);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof GeneratedSqlKey)) {
+                return false;
+            }
+            final GeneratedSqlKey other = (GeneratedSqlKey) o;
+            return mMatch == other.mMatch && mShape == other.mShape
+                    && Arrays.equals(mProjection, other.mProjection);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final LruCache<GeneratedSqlKey, String> sGeneratedSql =
+            new LruCache<GeneratedSqlKey, String>(GENERATED_SQL_CACHE_SIZE);
+
+    /**
+     * Returns the SQL for a query whose text depends only on what is being queried and the
+     * projection, generating it only the first time. Besides saving the work of generating it,
+     * handing SQLite the identical string each time lets it reuse its prepared statement.
+     * @param match the UriMatcher match of the query
+     * @param shape {@link #SQL_SHAPE_DEFAULT}, or a variant of the match's selection
+     * @param projection the projection as sent by UnifiedEmail
+     */
+    // exposed for testing
+    static String getGeneratedSql(final int match, final int shape, final String[] projection) {
+        String sql = sGeneratedSql.get(new GeneratedSqlKey(match, shape, projection));
+        if (sql == null) {
+            sql = generateSql(match, shape, projection);
+            // Copy the projection, in case the caller reuses the array
+            sGeneratedSql.put(new GeneratedSqlKey(match, shape,
+                    projection == null ? null : projection.clone()), sql);
+        }
+        return sql;
+    }
+
+    // exposed for testing
+    static String generateSql(final int match, final int shape, final String[] projection) {
+        switch (match) {
+            case UI_FOLDERS:
+                return genQueryAccountMailboxes(projection);
+            case UI_ALL_FOLDERS:
+            case UI_FULL_FOLDERS:
+                return genQueryAccountAllMailboxes(projection);
+            case UI_RECENT_FOLDERS:
+                return genQueryRecentMailboxes(projection);
+            case UI_SUBFOLDERS:
+                return genQuerySubfolders(projection);
+            case UI_MESSAGES:
+                return genQueryMailboxMessages(projection, shape == SQL_SHAPE_UNSEEN_ONLY);
+            case UI_CONVERSATION:
+                return genQueryConversation(projection);
+            case UI_ATTACHMENTS:
+                return genQueryAttachments(projection, null);
+            case UI_ATTACHMENT:
+                return genQueryAttachment(projection);
+            case UI_ATTACHMENT_BY_CID:
+                return genQueryAttachmentByMessageIDAndCid(projection);
+            case QUICK_RESPONSE:
+                return genQueryQuickResponses(projection, null);
+            case QUICK_RESPONSE_ID:
+                return genQueryQuickResponses(projection, QuickResponse._ID);
+            case QUICK_RESPONSE_ACCOUNT_ID:
+                return genQueryQuickResponses(projection, QuickResponse.ACCOUNT_KEY);
+            default:
+                throw new IllegalArgumentException("No generated SQL for match " + match);
+        }
+    }
+
     /**
      * Generate the SELECT clause using a specified mapping and the original UI projection
      * @param map the ProjectionMap to use for this projection
@@ -3077,13 +3660,8 @@ public class EmailProvider extends ContentProvider
         ContentValues values = new ContentValues();
         String attachmentJson = null;
         if (msg != null) {
-            Body body = Body.restoreBodyWithMessageId(context, messageId);
-            if (body != null) {
-                if (body.mHtmlContent != null) {
-                    if (IMG_TAG_START_REGEX.matcher(body.mHtmlContent).find()) {
-                        values.put(UIProvider.MessageColumns.EMBEDS_EXTERNAL_RESOURCES, 1);
-                    }
-                }
+            if (getEmbedsExternalResources(context, messageId)) {
+                values.put(UIProvider.MessageColumns.EMBEDS_EXTERNAL_RESOURCES, 1);
             }
             Address[] fromList = Address.fromHeader(msg.mFrom);
             int autoShowImages = 0;
@@ -3214,6 +3792,9 @@ public class EmailProvider extends ContentProvider
                 sb.append(MessageColumns.FLAG_SEEN).append("=0 AND ");
                 sb.append(MessageColumns.FLAG_READ).append("=0 AND ");
             }
+            // Leave out the messages of deleted accounts that are still to be purged
+            sb.append(MessageColumns.ACCOUNT_KEY + " IN (SELECT " + AccountColumns._ID + " FROM "
+                    + Account.TABLE_NAME + ") AND ");
             selectionArgs = null;
         } else {
             if (virtualMailboxId == Mailbox.TYPE_INBOX) {
@@ -3309,54 +3890,55 @@ public class EmailProvider extends ContentProvider
         return sb.toString();
     }
 
-    private int getFolderCapabilities(EmailServiceInfo info, int mailboxType, long mailboxId) {
-        // Special case for Search folders: only permit delete, do not try to give any other caps.
-        if (mailboxType == Mailbox.TYPE_SEARCH) {
-            return UIProvider.FolderCapabilities.DELETE;
-        }
-
-        // All folders support delete, except drafts.
-        int caps = 0;
-        if (mailboxType != Mailbox.TYPE_DRAFTS) {
-            caps = UIProvider.FolderCapabilities.DELETE;
-        }
-        if (info != null && info.offerLookback) {
-            // Protocols supporting lookback support settings
-            caps |= UIProvider.FolderCapabilities.SUPPORTS_SETTINGS;
-        }
-
-        if (mailboxType == Mailbox.TYPE_MAIL || mailboxType == Mailbox.TYPE_TRASH ||
-                mailboxType == Mailbox.TYPE_JUNK || mailboxType == Mailbox.TYPE_INBOX) {
-            // If the mailbox can accept moved mail, report that as well
-            caps |= UIProvider.FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES;
-            caps |= UIProvider.FolderCapabilities.ALLOWS_REMOVE_CONVERSATION;
+    /**
+     * @return the capabilities of an account, computed when they're first needed after the
+     *     account or any HostAuth changed
+     */
+    private CapabilitySnapshot getCapabilitySnapshot(final long accountId) {
+        CapabilitySnapshot snapshot = mCapabilitySnapshots.get(accountId);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        final int generation = mCapabilitySnapshotGeneration.get();
+        final Account account = Account.restoreAccountWithId(getContext(), accountId);
+        snapshot = CapabilitySnapshot.create(getContext(), account);
+        // Don't keep anything for accounts that don't exist (yet)
+        if (account != null) {
+            mCapabilitySnapshots.put(accountId, snapshot);
+            // If something changed while this was being computed, it may be out of date already
+            if (mCapabilitySnapshotGeneration.get() != generation) {
+                mCapabilitySnapshots.remove(accountId, snapshot);
+            }
         }
+        return snapshot;
+    }
 
-        // For trash, we don't allow undo
-        if (mailboxType == Mailbox.TYPE_TRASH) {
-            caps =  UIProvider.FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES |
-                    UIProvider.FolderCapabilities.ALLOWS_REMOVE_CONVERSATION |
-                    UIProvider.FolderCapabilities.DELETE |
-                    UIProvider.FolderCapabilities.DELETE_ACTION_FINAL;
-        }
-        if (isVirtualMailbox(mailboxId)) {
-            caps |= UIProvider.FolderCapabilities.IS_VIRTUAL;
-        }
+    /**
+     * @return whether a change to the table matched by the uri may change the capabilities
+     *     of an account
+     */
+    private static boolean affectsCapabilities(final int match) {
+        final int table = match >> BASE_SHIFT;
+        return match >= 0
+                && (table == ACCOUNT_BASE >> BASE_SHIFT || table == HOSTAUTH_BASE >> BASE_SHIFT);
+    }
 
-        // If we don't know the protocol or the protocol doesn't support it, don't allow moving
-        // messages
-        if (info == null || !info.offerMoveTo) {
-            caps &= ~UIProvider.FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES &
-                    ~UIProvider.FolderCapabilities.ALLOWS_REMOVE_CONVERSATION &
-                    ~UIProvider.FolderCapabilities.ALLOWS_MOVE_TO_INBOX;
-        }
+    /**
+     * Drops the capabilities of all accounts. This must be called after any change to an
+     * account or HostAuth has been committed.
+     */
+    private void invalidateCapabilitySnapshots() {
+        mCapabilitySnapshotGeneration.incrementAndGet();
+        mCapabilitySnapshots.clear();
+    }
 
-        // If the mailbox stores outgoing mail, show recipients instead of senders
-        // (however the Drafts folder shows neither senders nor recipients... just the word "Draft")
-        if (mailboxType == Mailbox.TYPE_OUTBOX || mailboxType == Mailbox.TYPE_SENT) {
-            caps |= UIProvider.FolderCapabilities.SHOW_RECIPIENTS;
+    private static int getFolderCapabilities(CapabilitySnapshot capabilities, int mailboxType,
+            long mailboxId) {
+        final int caps = capabilities.getFolderCapabilities(mailboxType);
+        // Search folders only permit delete
+        if (mailboxType != Mailbox.TYPE_SEARCH && isVirtualMailbox(mailboxId)) {
+            return caps | UIProvider.FolderCapabilities.IS_VIRTUAL;
         }
-
         return caps;
     }
 
@@ -3379,8 +3961,9 @@ public class EmailProvider extends ContentProvider
             Mailbox mailbox = Mailbox.restoreMailboxWithId(context, mailboxId);
             // Make sure we can't get NPE if mailbox has disappeared (the result will end up moot)
             if (mailbox != null) {
-                String protocol = Account.getProtocol(context, mailbox.mAccountKey);
-                EmailServiceInfo info = EmailServiceUtils.getServiceInfo(context, protocol);
+                final CapabilitySnapshot capabilities =
+                        getCapabilitySnapshot(mailbox.mAccountKey);
+                final EmailServiceInfo info = capabilities.getServiceInfo();
                 // All folders support delete
                 if (info != null && info.offerLoadMore) {
                     // "load more" is valid for protocols not supporting "lookback"
@@ -3388,7 +3971,7 @@ public class EmailProvider extends ContentProvider
                             uiUriString("uiloadmore", mailboxId));
                 }
                 values.put(UIProvider.FolderColumns.CAPABILITIES,
-                        getFolderCapabilities(info, mailbox.mType, mailboxId));
+                        getFolderCapabilities(capabilities, mailbox.mType, mailboxId));
                 // The persistent id is used to form a filename, so we must ensure that it doesn't
                 // include illegal characters (such as '/'). Only perform the encoding if this
                 // query wants the persistent id.
@@ -3430,87 +4013,6 @@ public class EmailProvider extends ContentProvider
                 .appendQueryParameter("account", account).build().toString();
     }
 
-    private static String getBits(int bitField) {
-        StringBuilder sb = new StringBuilder(" ");
-        for (int i = 0; i < 32; i++, bitField >>= 1) {
-            if ((bitField & 1) != 0) {
-                sb.append(i)
-                        .append(" ");
-            }
-        }
-        return sb.toString();
-    }
-
-    private static int getCapabilities(Context context, final Account account) {
-        if (account == null) {
-            return 0;
-        }
-        // Account capabilities are based on protocol -- different protocols (and, for EAS,
-        // different protocol versions) support different feature sets.
-        final String protocol = account.getProtocol(context);
-        int capabilities;
-        if (TextUtils.equals(context.getString(R.string.protocol_imap), protocol) ||
-                TextUtils.equals(context.getString(R.string.protocol_legacy_imap), protocol)) {
-            capabilities = AccountCapabilities.SYNCABLE_FOLDERS |
-                    AccountCapabilities.SERVER_SEARCH |
-                    AccountCapabilities.FOLDER_SERVER_SEARCH |
-                    AccountCapabilities.UNDO |
-                    AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
-        } else if (TextUtils.equals(context.getString(R.string.protocol_pop3), protocol)) {
-            capabilities = AccountCapabilities.UNDO |
-                    AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
-        } else if (TextUtils.equals(context.getString(R.string.protocol_eas), protocol)) {
-            final String easVersion = account.mProtocolVersion;
-            double easVersionDouble = 2.5D;
-            if (easVersion != null) {
-                try {
-                    easVersionDouble = Double.parseDouble(easVersion);
-                } catch (final NumberFormatException e) {
-                    // Use the default (lowest) set of capabilities.
-                }
-            }
-            if (easVersionDouble >= 12.0D) {
-                capabilities = AccountCapabilities.SYNCABLE_FOLDERS |
-                        AccountCapabilities.SERVER_SEARCH |
-                        AccountCapabilities.FOLDER_SERVER_SEARCH |
-                        AccountCapabilities.SMART_REPLY |
-                        AccountCapabilities.UNDO |
-                        AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
-            } else {
-                capabilities = AccountCapabilities.SYNCABLE_FOLDERS |
-                        AccountCapabilities.SMART_REPLY |
-                        AccountCapabilities.UNDO |
-                        AccountCapabilities.DISCARD_CONVERSATION_DRAFTS;
-            }
-        } else {
-            LogUtils.w(TAG, "Unknown protocol for account %d", account.getId());
-            return 0;
-        }
-        LogUtils.d(TAG, "getCapabilities() for %d (protocol %s): 0x%x %s", account.getId(), protocol,
-                capabilities, getBits(capabilities));
-
-        // If the configuration states that feedback is supported, add that capability
-        final Resources res = context.getResources();
-        if (res.getBoolean(R.bool.feedback_supported)) {
-            capabilities |= AccountCapabilities.SEND_FEEDBACK;
-        }
-
-        // If we can find a help URL then add the Help capability
-        if (!TextUtils.isEmpty(context.getResources().getString(R.string.help_uri))) {
-            capabilities |= AccountCapabilities.HELP_CONTENT;
-        }
-
-        capabilities |= AccountCapabilities.EMPTY_TRASH;
-
-        // TODO: Should this be stored per-account, or some other mechanism?
-        capabilities |= AccountCapabilities.NESTED_FOLDERS;
-
-        // the client is permitted to sanitize HTML emails for all Email accounts
-        capabilities |= AccountCapabilities.CLIENT_SANITIZED_HTML;
-
-        return capabilities;
-    }
-
     /**
      * Generate a "single account" SQLite query, given a projection from UnifiedEmail
      *
@@ -3523,8 +4025,6 @@ public class EmailProvider extends ContentProvider
         final long accountId = Long.parseLong(id);
         final Context context = getContext();
 
-        EmailServiceInfo info = null;
-
         // TODO: If uiProjection is null, this will NPE. We should do everything here if it's null.
         final Set<String> projectionColumns = ImmutableSet.copyOf(uiProjection);
 
@@ -3532,10 +4032,12 @@ public class EmailProvider extends ContentProvider
         if (account == null) {
             LogUtils.d(TAG, "Account %d not found during genQueryAccount", accountId);
         }
+        final CapabilitySnapshot capabilities = getCapabilitySnapshot(accountId);
+        final EmailServiceInfo info = capabilities.getServiceInfo();
         if (projectionColumns.contains(UIProvider.AccountColumns.CAPABILITIES)) {
             // Get account capabilities from the service
             values.put(UIProvider.AccountColumns.CAPABILITIES,
-                    (account == null ? 0 : getCapabilities(context, account)));
+                    capabilities.getAccountCapabilities());
         }
         if (projectionColumns.contains(UIProvider.AccountColumns.SETTINGS_INTENT_URI)) {
             values.put(UIProvider.AccountColumns.SETTINGS_INTENT_URI,
@@ -3639,7 +4141,6 @@ public class EmailProvider extends ContentProvider
             // TODO We should clarify/document the trash/setup relationship
             long trashId = Mailbox.findMailboxOfType(context, accountId, Mailbox.TYPE_TRASH);
             if (trashId == Mailbox.NO_MAILBOX) {
-                info = EmailServiceUtils.getServiceInfoForAccount(context, accountId);
                 if (info != null && info.requiresSetup) {
                     values.put(UIProvider.AccountColumns.SettingsColumns.SETUP_INTENT_URI,
                             getExternalUriString("setup", id));
@@ -3648,9 +4149,6 @@ public class EmailProvider extends ContentProvider
         }
         if (projectionColumns.contains(UIProvider.AccountColumns.TYPE)) {
             final String type;
-            if (info == null) {
-                info = EmailServiceUtils.getServiceInfoForAccount(context, accountId);
-            }
             if (info != null) {
                 type = info.accountType;
             } else {
@@ -3894,42 +4392,22 @@ public class EmailProvider extends ContentProvider
             } else if (column.equals(UIProvider.FolderColumns.CONVERSATION_LIST_URI)) {
                 values[i] = combinedUriString("uimessages", idString);
             } else if (column.equals(UIProvider.FolderColumns.UNREAD_COUNT)) {
+                // These are kept up to date by triggers; see MessageCounters
+                final long countersKey = accountId == COMBINED_ACCOUNT_ID
+                        ? MessageCounters.ALL_ACCOUNTS : accountId;
+                final String counter;
                 if (mailboxType == Mailbox.TYPE_INBOX && accountId == COMBINED_ACCOUNT_ID) {
-                    final int unreadCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                            MessageColumns.MAILBOX_KEY + " IN (SELECT " + MailboxColumns._ID
-                            + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE
-                            + "=" + Mailbox.TYPE_INBOX + ") AND " + MessageColumns.FLAG_READ + "=0",
-                            null);
-                    values[i] = unreadCount;
+                    counter = MessageCounters.INBOX_UNREAD;
                 } else if (mailboxType == Mailbox.TYPE_UNREAD) {
-                    final String accountKeyClause;
-                    final String[] whereArgs;
-                    if (accountId == COMBINED_ACCOUNT_ID) {
-                        accountKeyClause = "";
-                        whereArgs = null;
-                    } else {
-                        accountKeyClause = MessageColumns.ACCOUNT_KEY + "= ? AND ";
-                        whereArgs = new String[] { Long.toString(accountId) };
-                    }
-                    final int unreadCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                            accountKeyClause + MessageColumns.FLAG_READ + "=0 AND "
-                            + MessageColumns.MAILBOX_KEY + " NOT IN (SELECT " + MailboxColumns._ID
-                            + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE + "="
-                            + Mailbox.TYPE_TRASH + ")", whereArgs);
-                    values[i] = unreadCount;
+                    counter = MessageCounters.UNREAD;
                 } else if (mailboxType == Mailbox.TYPE_STARRED) {
-                    final String accountKeyClause;
-                    final String[] whereArgs;
-                    if (accountId == COMBINED_ACCOUNT_ID) {
-                        accountKeyClause = "";
-                        whereArgs = null;
-                    } else {
-                        accountKeyClause = MessageColumns.ACCOUNT_KEY + "= ? AND ";
-                        whereArgs = new String[] { Long.toString(accountId) };
-                    }
-                    final int starredCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                            accountKeyClause + MessageColumns.FLAG_FAVORITE + "=1", whereArgs);
-                    values[i] = starredCount;
+                    counter = MessageCounters.STARRED;
+                } else {
+                    counter = null;
+                }
+                if (counter != null) {
+                    values[i] = MessageCounters.getCount(getDatabase(getContext()), countersKey,
+                            counter);
                 }
             } else if (column.equals(UIProvider.FolderColumns.ICON_RES_ID)) {
                 if (mailboxType == Mailbox.TYPE_INBOX) {
@@ -3990,30 +4468,39 @@ public class EmailProvider extends ContentProvider
     private Cursor uiQuickResponseAccount(String[] uiProjection, String account) {
         final Context context = getContext();
         final SQLiteDatabase db = getDatabase(context);
-        final StringBuilder sb = genSelect(getQuickResponseMap(), uiProjection);
-        sb.append(" FROM " + QuickResponse.TABLE_NAME);
-        sb.append(" WHERE " + QuickResponse.ACCOUNT_KEY + "=?");
-        final String query = sb.toString();
+        final String query =
+                getGeneratedSql(QUICK_RESPONSE_ACCOUNT_ID, SQL_SHAPE_DEFAULT, uiProjection);
         return db.rawQuery(query, new String[] {account});
     }
 
     private Cursor uiQuickResponseId(String[] uiProjection, String id) {
         final Context context = getContext();
         final SQLiteDatabase db = getDatabase(context);
-        final StringBuilder sb = genSelect(getQuickResponseMap(), uiProjection);
-        sb.append(" FROM " + QuickResponse.TABLE_NAME);
-        sb.append(" WHERE " + QuickResponse._ID + "=?");
-        final String query = sb.toString();
+        final String query = getGeneratedSql(QUICK_RESPONSE_ID, SQL_SHAPE_DEFAULT, uiProjection);
         return db.rawQuery(query, new String[] {id});
     }
 
     private Cursor uiQuickResponse(String[] uiProjection) {
         final Context context = getContext();
         final SQLiteDatabase db = getDatabase(context);
+        final String query = getGeneratedSql(QUICK_RESPONSE, SQL_SHAPE_DEFAULT, uiProjection);
+        return db.rawQuery(query, new String[0]);
+    }
+
+    /**
+     * Generate a quick response SQLite query, given a projection from UnifiedEmail
+     *
+     * @param uiProjection as passed from UnifiedEmail
+     * @param keyColumn the column to select on, or null for all quick responses
+     * @return the SQLite query to be executed on the EmailProvider database
+     */
+    private static String genQueryQuickResponses(String[] uiProjection, String keyColumn) {
         final StringBuilder sb = genSelect(getQuickResponseMap(), uiProjection);
         sb.append(" FROM " + QuickResponse.TABLE_NAME);
-        final String query = sb.toString();
-        return db.rawQuery(query, new String[0]);
+        if (keyColumn != null) {
+            sb.append(" WHERE ").append(keyColumn).append("=?");
+        }
+        return sb.toString();
     }
 
     /**
@@ -4066,7 +4553,7 @@ public class EmailProvider extends ContentProvider
      * @param uiProjection as passed from UnifiedEmail
      * @return the SQLite query to be executed on the EmailProvider database
      */
-    private String genQueryAttachment(String[] uiProjection) {
+    private static String genQueryAttachment(String[] uiProjection) {
         // MAKE SURE THESE VALUES STAY IN SYNC WITH GEN QUERY ATTACHMENTS
         final ContentValues values = new ContentValues(2);
         values.put(AttachmentColumns.CONTENT_URI, createAttachmentUriColumnSQL());
@@ -4086,7 +4573,7 @@ public class EmailProvider extends ContentProvider
      * @param uiProjection as passed from UnifiedEmail
      * @return the SQLite query to be executed on the EmailProvider database
      */
-    private String genQueryAttachmentByMessageIDAndCid(String[] uiProjection) {
+    private static String genQueryAttachmentByMessageIDAndCid(String[] uiProjection) {
         final ContentValues values = new ContentValues(2);
         values.put(AttachmentColumns.CONTENT_URI, createAttachmentUriColumnSQL());
         values.put(UIProvider.AttachmentColumns.SUPPORTS_DOWNLOAD_AGAIN, 1);
@@ -4154,8 +4641,8 @@ public class EmailProvider extends ContentProvider
         if (id.equals(COMBINED_ACCOUNT_ID_STRING)) {
             return vc;
         } else {
-            Cursor c = db.rawQuery(genQueryAccountMailboxes(UIProvider.FOLDERS_PROJECTION),
-                    new String[] {id});
+            Cursor c = db.rawQuery(getGeneratedSql(UI_FOLDERS, SQL_SHAPE_DEFAULT,
+                    UIProvider.FOLDERS_PROJECTION), new String[] {id});
             c = getFolderListCursor(c, Long.valueOf(id), uiProjection);
             c.setNotificationUri(context.getContentResolver(), notifyUri);
             if (c.getCount() > 0) {
@@ -4425,10 +4912,16 @@ public class EmailProvider extends ContentProvider
         final int loadMoreUriColumn =
                 inputCursor.getColumnIndex(UIProvider.FolderColumns.LOAD_MORE_URI);
 
-        // Get the EmailServiceInfo for the current account.
-        final Context context = getContext();
-        final String protocol = Account.getProtocol(context, accountId);
-        final EmailServiceInfo info = EmailServiceUtils.getServiceInfo(context, protocol);
+        // Find the index in the input cursor corresponding to each column requested in the
+        // output projection.
+        final int[] indices = new int[uiProjection.length];
+        for (int i = 0; i < uiProjection.length; i++) {
+            indices[i] = inputCursor.getColumnIndex(uiProjection[i]);
+        }
+
+        // Get the capabilities and EmailServiceInfo for the current account.
+        final CapabilitySnapshot capabilities = getCapabilitySnapshot(accountId);
+        final EmailServiceInfo info = capabilities.getServiceInfo();
 
         // Build the return cursor. We iterate over all rows of the input cursor and construct
         // a row in the output using the columns in uiProjection.
@@ -4436,9 +4929,7 @@ public class EmailProvider extends ContentProvider
             final MatrixCursor.RowBuilder builder = outputCursor.newRow();
             final int folderType = inputCursor.getInt(typeColumn);
             for (int i = 0; i < uiProjection.length; i++) {
-                // Find the index in the input cursor corresponding the column requested in the
-                // output projection.
-                final int index = inputCursor.getColumnIndex(uiProjection[i]);
+                final int index = indices[i];
                 if (index == -1) {
                     // We don't have this value, so put a blank in the output and move on.
                     builder.add(null);
@@ -4455,7 +4946,7 @@ public class EmailProvider extends ContentProvider
                     // Get the correct capabilities for this folder.
                     final long mailboxID = inputCursor.getLong(idColumn);
                     final int mailboxType = getMailboxTypeFromFolderType(folderType);
-                    builder.add(getFolderCapabilities(info, mailboxType, mailboxID));
+                    builder.add(getFolderCapabilities(capabilities, mailboxType, mailboxID));
                     remapped = true;
                 } else if (persistentIdColumn == index) {
                     // Hash the persistent id.
@@ -4626,7 +5117,7 @@ public class EmailProvider extends ContentProvider
     private Cursor uiQuery(int match, Uri uri, String[] uiProjection, final boolean unseenOnly) {
         Context context = getContext();
         ContentResolver resolver = context.getContentResolver();
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getReaderDatabase(context);
         // Should we ever return null, or throw an exception??
         Cursor c = null;
         String id = uri.getPathSegments().get(1);
@@ -4641,7 +5132,8 @@ public class EmailProvider extends ContentProvider
                     c = vc;
                 } else {
                     // Return real and virtual mailboxes alike
-                    final Cursor rawc = db.rawQuery(genQueryAccountAllMailboxes(uiProjection),
+                    final Cursor rawc = db.rawQuery(
+                            getGeneratedSql(UI_ALL_FOLDERS, SQL_SHAPE_DEFAULT, uiProjection),
                             new String[] {id});
                     // TODO(rtenneti): Enable notifications.
                     // rawc.setNotificationUri(context.getContentResolver(), notifyUri);
@@ -4656,20 +5148,26 @@ public class EmailProvider extends ContentProvider
             case UI_FULL_FOLDERS: {
                 // We need a full projection for getFolderListCursor
                 final String[] folderProjection = folderProjectionFromUiProjection(uiProjection);
-                c = db.rawQuery(genQueryAccountAllMailboxes(folderProjection), new String[] {id});
+                c = db.rawQuery(
+                        getGeneratedSql(UI_FULL_FOLDERS, SQL_SHAPE_DEFAULT, folderProjection),
+                        new String[] {id});
                 c = getFolderListCursor(c, Long.valueOf(id), uiProjection);
                 notifyUri =
                         UIPROVIDER_FOLDERLIST_NOTIFIER.buildUpon().appendEncodedPath(id).build();
                 break;
             }
             case UI_RECENT_FOLDERS:
-                c = db.rawQuery(genQueryRecentMailboxes(uiProjection), new String[] {id});
+                c = db.rawQuery(
+                        getGeneratedSql(UI_RECENT_FOLDERS, SQL_SHAPE_DEFAULT, uiProjection),
+                        new String[] {id});
                 notifyUri = UIPROVIDER_RECENT_FOLDERS_NOTIFIER.buildUpon().appendPath(id).build();
                 break;
             case UI_SUBFOLDERS: {
                 // We need a full projection for getFolderListCursor
                 final String[] folderProjection = folderProjectionFromUiProjection(uiProjection);
-                c = db.rawQuery(genQuerySubfolders(folderProjection), new String[] {id});
+                c = db.rawQuery(
+                        getGeneratedSql(UI_SUBFOLDERS, SQL_SHAPE_DEFAULT, folderProjection),
+                        new String[] {id});
                 c = getFolderListCursor(c, Mailbox.getAccountIdForMailbox(context, id),
                         uiProjection);
                 // Get notifications for any folder changes on this account. This is broader than
@@ -4690,8 +5188,9 @@ public class EmailProvider extends ContentProvider
                 if (isVirtualMailbox(mailboxId)) {
                     c = getVirtualMailboxMessagesCursor(db, uiProjection, mailboxId, unseenOnly);
                 } else {
-                    c = db.rawQuery(
-                            genQueryMailboxMessages(uiProjection, unseenOnly), new String[] {id});
+                    c = db.rawQuery(getGeneratedSql(UI_MESSAGES,
+                            unseenOnly ? SQL_SHAPE_UNSEEN_ONLY : SQL_SHAPE_DEFAULT, uiProjection),
+                            new String[] {id});
                 }
                 notifyUri = UIPROVIDER_CONVERSATION_NOTIFIER.buildUpon().appendPath(id).build();
                 c = new EmailConversationCursor(context, c, folder, mailboxId);
@@ -4715,19 +5214,26 @@ public class EmailProvider extends ContentProvider
             case UI_ATTACHMENTS:
                 final List<String> contentTypeQueryParameters =
                         uri.getQueryParameters(PhotoContract.ContentTypeParameters.CONTENT_TYPE);
-                c = db.rawQuery(genQueryAttachments(uiProjection, contentTypeQueryParameters),
-                        new String[] {id});
+                // The content type filter is part of the SQL, so only the unfiltered query can
+                // be reused
+                final String attachmentsSql = contentTypeQueryParameters.isEmpty()
+                        ? getGeneratedSql(UI_ATTACHMENTS, SQL_SHAPE_DEFAULT, uiProjection)
+                        : genQueryAttachments(uiProjection, contentTypeQueryParameters);
+                c = db.rawQuery(attachmentsSql, new String[] {id});
                 c = new AttachmentsCursor(context, c);
                 notifyUri = UIPROVIDER_ATTACHMENTS_NOTIFIER.buildUpon().appendPath(id).build();
                 break;
             case UI_ATTACHMENT:
-                c = db.rawQuery(genQueryAttachment(uiProjection), new String[] {id});
+                c = db.rawQuery(getGeneratedSql(UI_ATTACHMENT, SQL_SHAPE_DEFAULT, uiProjection),
+                        new String[] {id});
                 notifyUri = UIPROVIDER_ATTACHMENT_NOTIFIER.buildUpon().appendPath(id).build();
                 break;
             case UI_ATTACHMENT_BY_CID:
                 final String cid = uri.getPathSegments().get(2);
                 final String[] selectionArgs = {id, cid};
-                c = db.rawQuery(genQueryAttachmentByMessageIDAndCid(uiProjection), selectionArgs);
+                c = db.rawQuery(
+                        getGeneratedSql(UI_ATTACHMENT_BY_CID, SQL_SHAPE_DEFAULT, uiProjection),
+                        selectionArgs);
 
                 // we don't have easy access to the attachment ID (which is buried in the cursor
                 // being returned), so we notify on the parent message object
@@ -4782,7 +5288,8 @@ public class EmailProvider extends ContentProvider
                 notifyUri = UIPROVIDER_ACCOUNT_NOTIFIER.buildUpon().appendPath(id).build();
                 break;
             case UI_CONVERSATION:
-                c = db.rawQuery(genQueryConversation(uiProjection), new String[] {id});
+                c = db.rawQuery(getGeneratedSql(UI_CONVERSATION, SQL_SHAPE_DEFAULT, uiProjection),
+                        new String[] {id});
                 break;
         }
         if (notifyUri != null) {
@@ -5279,7 +5786,7 @@ public class EmailProvider extends ContentProvider
                 if (flist.folders.size() != 1) {
                     LogUtils.e(TAG,
                             "Incorrect number of folders for this message: Message is %s",
-                            message.mId);
+                            message != null ? message.mId : "(bulk update)");
                 } else {
                     final Folder f = flist.folders.get(0);
                     final Uri uri = f.folderUri.fullUri;
@@ -5346,11 +5853,14 @@ public class EmailProvider extends ContentProvider
 
     // TODO: This should depend on flags on the mailbox...
     private static boolean uploadsToServer(Context context, Mailbox m) {
-        if (m.mType == Mailbox.TYPE_DRAFTS || m.mType == Mailbox.TYPE_OUTBOX ||
-                m.mType == Mailbox.TYPE_SEARCH) {
+        return uploadsToServer(context, m.mType, Account.getProtocol(context, m.mAccountKey));
+    }
+
+    private static boolean uploadsToServer(Context context, int mailboxType, String protocol) {
+        if (mailboxType == Mailbox.TYPE_DRAFTS || mailboxType == Mailbox.TYPE_OUTBOX ||
+                mailboxType == Mailbox.TYPE_SEARCH) {
             return false;
         }
-        String protocol = Account.getProtocol(context, m.mAccountKey);
         EmailServiceInfo info = EmailServiceUtils.getServiceInfo(context, protocol);
         return (info != null && info.syncChanges);
     }
@@ -5429,6 +5939,244 @@ public class EmailProvider extends ContentProvider
         return update(ourUri, ourValues, null, null);
     }
 
+    /**
+     * The UI conversation columns that {@link #uiUpdateMessages} can change for many messages at
+     * once; they don't depend on anything about the message beyond its flags and mailbox.
+     */
+    private static final String[] BULK_UI_MESSAGE_COLUMNS = {
+            UIProvider.ConversationColumns.STARRED, UIProvider.ConversationColumns.READ,
+            UIProvider.ConversationColumns.SEEN, MessageColumns.MAILBOX_KEY,
+            UIProvider.ConversationOperations.FOLDERS_UPDATED,
+            UIProvider.ConversationColumns.RAW_FOLDERS, UIProvider.ConversationColumns.VIEWED,
+            UIProvider.ConversationOperations.Parameters.SUPPRESS_UNDO,
+            UIProvider.ConversationColumns.CONVERSATION_INFO };
+
+    /**
+     * @return the values the operations set, if they're all updates to UI messages that set the
+     *     same values, and {@link #uiUpdateMessages} can handle those; otherwise null
+     */
+    private static ContentValues getBulkUiMessageValues(
+            final ArrayList<ContentProviderOperation> operations) {
+        if (operations.size() < 2) {
+            return null;
+        }
+        ContentValues values = null;
+        for (final ContentProviderOperation op : operations) {
+            // ContentProviderOperation doesn't tell us what kind of operation it is; the only
+            // write to a UI message that has values is an update.
+            if (!op.isWriteOperation() || sURIMatcher.match(op.getUri()) != UI_MESSAGE) {
+                return null;
+            }
+            final ContentValues opValues;
+            try {
+                opValues = op.resolveValueBackReferences(new ContentProviderResult[0], 0);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // The values refer back to earlier results
+                return null;
+            }
+            if (opValues == null) {
+                return null;
+            }
+            if (values == null) {
+                for (final String column : opValues.keySet()) {
+                    if (!Utility.arrayContains(BULK_UI_MESSAGE_COLUMNS, column)) {
+                        return null;
+                    }
+                }
+                values = opValues;
+            } else if (!values.equals(opValues)) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * What {@link #uiUpdateMessages} needs to know of each message.
+     */
+    private static final String[] BULK_UI_MESSAGE_PROJECTION = {
+            "m." + MessageColumns._ID, "m." + MessageColumns.MAILBOX_KEY,
+            "m." + MessageColumns.ACCOUNT_KEY, "m." + MessageColumns.FLAG_READ,
+            "m." + MessageColumns.FLAG_SEEN, "m." + MessageColumns.FLAG_FAVORITE,
+            "b." + MailboxColumns.TYPE };
+    private static final int BULK_UI_MESSAGE_ID_COLUMN = 0;
+    private static final int BULK_UI_MESSAGE_MAILBOX_KEY_COLUMN = 1;
+    private static final int BULK_UI_MESSAGE_ACCOUNT_KEY_COLUMN = 2;
+    private static final int BULK_UI_MESSAGE_FLAG_READ_COLUMN = 3;
+    private static final int BULK_UI_MESSAGE_FLAG_SEEN_COLUMN = 4;
+    private static final int BULK_UI_MESSAGE_FLAG_FAVORITE_COLUMN = 5;
+    private static final int BULK_UI_MESSAGE_MAILBOX_TYPE_COLUMN = 6;
+
+    /**
+     * The equivalent of calling {@link #uiUpdateMessage} for each of a batch of UI message
+     * updates that all set the same values (see {@link #getBulkUiMessageValues}), done with one
+     * query for all of the messages and their mailboxes, one update of all of them, and one
+     * notification per affected folder. Must be called within a transaction.
+     * @return the result of each operation
+     */
+    private ContentProviderResult[] uiUpdateMessages(
+            final ArrayList<ContentProviderOperation> operations, final ContentValues uiValues) {
+        final Context context = getContext();
+        final SQLiteDatabase db = getDatabase(context);
+        final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        final ContentValues ourValues = convertUiMessageValues(null, uiValues);
+        if (ourValues.size() == 0) {
+            // Nothing to change (or undo)
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(-1);
+            }
+            return results;
+        }
+
+        // Find all of the messages and their mailboxes in one go. A message may be updated more
+        // than once in the batch; it's changed (and its undo recorded) once, as its later updates
+        // would make no difference.
+        final long[] messageIds = new long[results.length];
+        final StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < results.length; i++) {
+            messageIds[i] = Long.parseLong(operations.get(i).getUri().getLastPathSegment());
+            ids.append(i == 0 ? "" : ",").append(messageIds[i]);
+        }
+        // The original values of the messages that were found, and which of them are synced
+        final Map<Long, ContentValues> undoValues = new HashMap<Long, ContentValues>();
+        final Set<Long> syncedMessageIds = new HashSet<Long>();
+        // The mailboxes the messages are in, and their accounts
+        final Map<Long, Long> mailboxAccounts = new HashMap<Long, Long>();
+        final Map<Long, String> accountProtocols = new HashMap<Long, String>();
+        final Set<Long> easMailboxIds = new HashSet<Long>();
+        final StringBuilder foundIds = new StringBuilder();
+        final StringBuilder syncedIds = new StringBuilder();
+        final StringBuilder unsyncedIds = new StringBuilder();
+        final List<String> easIds = new ArrayList<String>();
+        final Cursor c = db.query(Message.TABLE_NAME + " m join " + Mailbox.TABLE_NAME + " b on m."
+                + MessageColumns.MAILBOX_KEY + "=b." + MailboxColumns._ID,
+                BULK_UI_MESSAGE_PROJECTION, "m." + MessageColumns._ID + " in (" + ids + ")",
+                null, null, null, null);
+        final String easProtocol = context.getString(R.string.protocol_eas);
+        try {
+            while (c.moveToNext()) {
+                final long messageId = c.getLong(BULK_UI_MESSAGE_ID_COLUMN);
+                final long mailboxId = c.getLong(BULK_UI_MESSAGE_MAILBOX_KEY_COLUMN);
+                final long accountId = c.getLong(BULK_UI_MESSAGE_ACCOUNT_KEY_COLUMN);
+                final ContentValues undo = new ContentValues();
+                for (final String columnName : ourValues.keySet()) {
+                    if (columnName.equals(MessageColumns.MAILBOX_KEY)) {
+                        undo.put(MessageColumns.MAILBOX_KEY, mailboxId);
+                    } else if (columnName.equals(MessageColumns.FLAG_READ)) {
+                        undo.put(MessageColumns.FLAG_READ,
+                                c.getInt(BULK_UI_MESSAGE_FLAG_READ_COLUMN) == 1);
+                    } else if (columnName.equals(MessageColumns.FLAG_SEEN)) {
+                        undo.put(MessageColumns.FLAG_SEEN,
+                                c.getInt(BULK_UI_MESSAGE_FLAG_SEEN_COLUMN) == 1);
+                    } else if (columnName.equals(MessageColumns.FLAG_FAVORITE)) {
+                        undo.put(MessageColumns.FLAG_FAVORITE,
+                                c.getInt(BULK_UI_MESSAGE_FLAG_FAVORITE_COLUMN) == 1);
+                    }
+                }
+                undoValues.put(messageId, undo);
+                mailboxAccounts.put(mailboxId, accountId);
+                foundIds.append(foundIds.length() == 0 ? "" : ",").append(messageId);
+
+                String protocol = accountProtocols.get(accountId);
+                if (protocol == null) {
+                    protocol = Account.getProtocol(context, accountId);
+                    accountProtocols.put(accountId, protocol);
+                }
+                if (uploadsToServer(context, c.getInt(BULK_UI_MESSAGE_MAILBOX_TYPE_COLUMN),
+                        protocol)) {
+                    syncedMessageIds.add(messageId);
+                    if (easProtocol.equals(protocol)) {
+                        easIds.add(Long.toString(messageId));
+                        easMailboxIds.add(mailboxId);
+                    } else {
+                        syncedIds.append(syncedIds.length() == 0 ? "" : ",").append(messageId);
+                    }
+                } else {
+                    unsyncedIds.append(unsyncedIds.length() == 0 ? "" : ",").append(messageId);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        if (foundIds.length() == 0) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(0);
+            }
+            return results;
+        }
+
+        // Record the changes for upsync, as update() does for each synced message
+        if (syncedIds.length() > 0) {
+            recordMessageUpdates(db, BaseColumns._ID + " in (" + syncedIds + ")", new Object[0],
+                    ourValues);
+        }
+        // As in update(), messages that aren't synced have no pending upsync
+        if (unsyncedIds.length() > 0) {
+            db.execSQL("delete from " + Message.UPDATED_TABLE_NAME + " where "
+                    + BaseColumns._ID + " in (" + unsyncedIds + ")");
+        }
+        final Long dstFolderId = ourValues.getAsLong(MessageColumns.MAILBOX_KEY);
+        final Integer flagRead = ourValues.getAsInteger(MessageColumns.FLAG_READ);
+        final Integer flagFavorite = ourValues.getAsInteger(MessageColumns.FLAG_FAVORITE);
+        for (final String id : easIds) {
+            if (dstFolderId != null) {
+                addToMessageMove(db, id, dstFolderId);
+            }
+            if (flagRead != null || flagFavorite != null) {
+                addToMessageStateChange(db, id,
+                        flagRead != null ? flagRead : MessageStateChange.VALUE_UNCHANGED,
+                        flagFavorite != null ? flagFavorite : MessageStateChange.VALUE_UNCHANGED);
+            }
+        }
+        db.update(Message.TABLE_NAME, ourValues, MessageColumns._ID + " in (" + foundIds + ")",
+                null);
+
+        // The undo operations go into the sequence together; a message that wasn't found (or
+        // whose mailbox wasn't) isn't changed, just as in uiUpdateMessage
+        final Boolean suppressUndo =
+                uiValues.getAsBoolean(UIProvider.ConversationOperations.Parameters.SUPPRESS_UNDO);
+        final Set<Long> recorded = new HashSet<Long>();
+        for (int i = 0; i < results.length; i++) {
+            final long messageId = messageIds[i];
+            final ContentValues undo = undoValues.get(messageId);
+            if (undo == null) {
+                results[i] = new ContentProviderResult(0);
+                continue;
+            }
+            results[i] = new ContentProviderResult(1);
+            if (!recorded.add(messageId)) {
+                // Already handled for an earlier update of the same message
+                continue;
+            }
+            if (suppressUndo == null || !suppressUndo) {
+                final Uri uri = operations.get(i).getUri();
+                addToSequence(uri, ContentProviderOperation.newUpdate(convertToEmailProviderUri(
+                        uri, syncedMessageIds.contains(messageId) ? Message.SYNCED_CONTENT_URI
+                                : Message.CONTENT_URI, false))
+                        .withValues(undo)
+                        .build());
+            }
+            notifyUIMessage(messageId);
+        }
+
+        for (final long mailboxId : easMailboxIds) {
+            requestDelayedSync(EmailContent.AUTHORITY, mailboxAccounts.get(mailboxId), mailboxId);
+        }
+        if (ourValues.containsKey(MessageColumns.FLAG_READ) || dstFolderId != null) {
+            for (final Map.Entry<Long, Long> entry : mailboxAccounts.entrySet()) {
+                notifyUIFolder(entry.getKey(), entry.getValue());
+            }
+            if (dstFolderId != null && !mailboxAccounts.containsKey(dstFolderId)) {
+                notifyUIFolder(dstFolderId, Mailbox.getAccountIdForMailbox(context,
+                        Long.toString(dstFolderId)));
+            }
+        }
+        sendNotifierChange(Message.NOTIFIER_URI, NOTIFICATION_OP_UPDATE, null);
+        notifyUI(EmailContent.CONTENT_URI, null);
+        return results;
+    }
+
     /**
      * Projection for use with getting mailbox & account keys for a message.
      */
@@ -5531,11 +6279,14 @@ public class EmailProvider extends ContentProvider
                 null, null, null, null);
         int deletedCount = 0;
 
+        // The attachment files are all found in one go, before their records are deleted
+        AttachmentUtilities.deleteAllMailboxAttachmentFilesInBackground(context, accountId,
+                mailboxId);
+
         // Kill them with fire
         while (messageCursor != null && messageCursor.moveToNext()) {
             final long messageId = messageCursor.getLong(messageCursor.getColumnIndex(
                     MessageColumns._ID));
-            AttachmentUtilities.deleteAllAttachmentFiles(context, accountId, messageId);
             deletedCount += context.getContentResolver().delete(
                     ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, messageId), null, null);
             notifyUIMessage(messageId);
@@ -5632,7 +6383,7 @@ public class EmailProvider extends ContentProvider
             notifyUI(UIPROVIDER_CONVERSATION_NOTIFIER,
                     EmailProvider.combinedMailboxId(Mailbox.TYPE_INBOX));
         }
-        notifyWidgets(id);
+        notifyWidgets(id, mailbox.mType);
     }
 
     /**
@@ -5902,6 +6653,7 @@ public class EmailProvider extends ContentProvider
 
     private static final String SEARCH_MAILBOX_SERVER_ID = "__search_mailbox__";
     private SearchParams mSearchParams;
+    private int mLocalSearchResultCount;
 
     /**
      * Returns the search mailbox for the specified account, creating one if necessary
@@ -5925,6 +6677,44 @@ public class EmailProvider extends ContentProvider
         return m;
     }
 
+    /** The maximum number of locally stored messages shown for a search. */
+    private static final int LOCAL_SEARCH_LIMIT = 50;
+
+    /**
+     * Copies locally stored messages that match a search into the search mailbox, so that they
+     * are shown right away (and at all when offline, or for accounts that can't search on the
+     * server). Server results for the same messages are merged into these copies as they arrive.
+     * @return the number of messages copied
+     */
+    private int copyLocalSearchResults(final long accountId, final String filter,
+            final long searchMailboxId) {
+        final Context context = getContext();
+        final long[] ids = MessageSearchIndex.search(getDatabase(context), accountId, filter,
+                LOCAL_SEARCH_LIMIT);
+        int count = 0;
+        for (final long id : ids) {
+            final Message msg = Message.restoreMessageWithId(context, id);
+            if (msg == null) {
+                continue;
+            }
+            final Mailbox mailbox = Mailbox.restoreMailboxWithId(context, msg.mMailboxKey);
+            if (mailbox == null) {
+                continue;
+            }
+            msg.mText = Body.restoreBodyTextWithMessageId(context, id);
+            msg.mHtml = Body.restoreBodyHtmlWithMessageId(context, id);
+            // Same bookkeeping as for server results; see ImapService#searchMailboxImpl
+            msg.mMainMailboxKey = msg.mMailboxKey;
+            msg.mMailboxKey = searchMailboxId;
+            msg.mProtocolSearchInfo = mailbox.mServerId;
+            msg.mId = EmailContent.NOT_SAVED;
+            msg.save(context);
+            count++;
+        }
+        LogUtils.d(TAG, "copied %d local search results", count);
+        return count;
+    }
+
     private void runSearchQuery(final Context context, final long accountId,
             final long searchMailboxId) {
         LogUtils.d(TAG, "runSearchQuery. account: %d mailbox id: %d",
@@ -5938,8 +6728,10 @@ public class EmailProvider extends ContentProvider
                         EmailServiceUtils.getServiceForAccount(context, accountId);
                 if (service != null) {
                     try {
-                        final int totalCount =
-                                service.searchMessages(accountId, mSearchParams, searchMailboxId);
+                        // Local results that the server doesn't know about (or that are
+                        // beyond the server's results) are still in the search mailbox.
+                        final int totalCount = Math.max(mLocalSearchResultCount,
+                                service.searchMessages(accountId, mSearchParams, searchMailboxId));
 
                         // Save away the total count
                         final ContentValues cv = new ContentValues(1);
@@ -6007,6 +6799,16 @@ public class EmailProvider extends ContentProvider
             // Delete existing contents of search mailbox
             resolver.delete(Message.CONTENT_URI, MessageColumns.MAILBOX_KEY + "=" + searchMailboxId,
                     null);
+
+            // Show what we have locally while the server search runs
+            mLocalSearchResultCount =
+                    copyLocalSearchResults(accountId, mSearchParams.mFilter, searchMailboxId);
+            if (mLocalSearchResultCount > 0) {
+                cv.clear();
+                cv.put(Mailbox.TOTAL_COUNT, mLocalSearchResultCount);
+                resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, searchMailboxId),
+                        cv, null, null);
+            }
         }
 
         // Start the search running in the background
@@ -6020,7 +6822,9 @@ public class EmailProvider extends ContentProvider
     private static final String MAILBOXES_FOR_ACCOUNT_SELECTION = MailboxColumns.ACCOUNT_KEY + "=?";
 
     /**
-     * Delete an account and clean it up
+     * Delete an account and clean it up. Only the account row is deleted here; its trigger leaves
+     * a tombstone, and the account's mailboxes, messages and files are purged in the background
+     * (see {@link AccountPurge}), so that deleting a large account doesn't hold up the provider.
      */
     private int uiDeleteAccount(Uri uri) {
         Context context = getContext();
@@ -6032,7 +6836,8 @@ public class EmailProvider extends ContentProvider
                 return 0; // Already deleted?
             }
 
-            deleteAccountData(context, accountId);
+            // This needs the account, so it's done first
+            deleteAccountPimData(context, accountId);
 
             // Now delete the account itself
             uri = ContentUris.withAppendedId(Account.CONTENT_URI, accountId);
@@ -6104,18 +6909,8 @@ public class EmailProvider extends ContentProvider
     private static final String[] ACCOUNT_EMAIL_PROJECTION = { AccountColumns.EMAIL_ADDRESS };
 
     private static void deleteAccountData(Context context, long accountId) {
-        // We will delete PIM data, but by the time the asynchronous call to do that happens,
-        // the account may have been deleted from the DB. Therefore we have to get the email
-        // address now and send that, rather than the account id.
-        final String emailAddress = Utility.getFirstRowString(context, Account.CONTENT_URI,
-                ACCOUNT_EMAIL_PROJECTION, Account.ID_SELECTION,
-                new String[] {Long.toString(accountId)}, null, 0);
-        if (emailAddress == null) {
-            LogUtils.e(TAG, "Could not find email address for account %d", accountId);
-        }
-
         // Delete synced attachments
-        AttachmentUtilities.deleteAllAccountAttachmentFiles(context, accountId);
+        AttachmentUtilities.deleteAllAccountAttachmentFilesInBackground(context, accountId);
 
         // Delete all mailboxes.
         ContentResolver resolver = context.getContentResolver();
@@ -6127,8 +6922,22 @@ public class EmailProvider extends ContentProvider
         cv.putNull(AccountColumns.SYNC_KEY);
         resolver.update(Account.CONTENT_URI, cv, Account.ID_SELECTION, accountIdArgs);
 
-        // Delete PIM data (contacts, calendar), stop syncs, etc. if applicable
-        if (emailAddress != null) {
+        deleteAccountPimData(context, accountId);
+    }
+
+    /**
+     * Delete PIM data (contacts, calendar), stop syncs, etc. if applicable
+     */
+    private static void deleteAccountPimData(Context context, long accountId) {
+        // By the time the asynchronous call to do that happens, the account may have been deleted
+        // from the DB. Therefore we have to get the email address now and send that, rather than
+        // the account id.
+        final String emailAddress = Utility.getFirstRowString(context, Account.CONTENT_URI,
+                ACCOUNT_EMAIL_PROJECTION, Account.ID_SELECTION,
+                new String[] {Long.toString(accountId)}, null, 0);
+        if (emailAddress == null) {
+            LogUtils.e(TAG, "Could not find email address for account %d", accountId);
+        } else {
             final IEmailService service =
                     EmailServiceUtils.getServiceForAccount(context, accountId);
             if (service != null) {
@@ -6141,69 +6950,118 @@ public class EmailProvider extends ContentProvider
         }
     }
 
-    private int[] mSavedWidgetIds = new int[0];
-    private final ArrayList<Long> mWidgetNotifyMailboxes = new ArrayList<Long>();
+    /** How long widget notifications for a mailbox are held, so that a burst sends just one. */
+    private static final long WIDGET_NOTIFY_DELAY_MS = 500;
+
+    /** Set when the widgets, or the folders they show, may have changed. */
+    private static volatile boolean sWidgetConfigurationChanged = true;
+
+    private final Object mWidgetLock = new Object();
+    /** The regular mailboxes shown in widgets, sorted. */
+    private long[] mWidgetMailboxIds = new long[0];
+    /** Whether a widget shows the combined inbox, which covers every inbox. */
+    private boolean mWidgetShowsCombinedInbox;
+    /** Mailboxes with a notification waiting to be sent, and the folder uri to send. */
+    private final LongSparseArray<Uri> mPendingWidgetNotifications = new LongSparseArray<Uri>();
+    private Handler mWidgetNotifyHandler;
     private AppWidgetManager mAppWidgetManager;
     private ComponentName mEmailComponent;
 
-    private void notifyWidgets(long mailboxId) {
-        Context context = getContext();
-        // Lazily initialize these
-        if (mAppWidgetManager == null) {
-            if (!WidgetService.isWidgetSupported(context)) {
-                return;
+    /**
+     * Called when widgets are added, removed or reconfigured, so that the next notification
+     * finds out which mailboxes they show again.
+     */
+    static void invalidateWidgetMailboxes() {
+        sWidgetConfigurationChanged = true;
+    }
+
+    private final Runnable mSendWidgetNotifications = new Runnable() {
+        @Override
+        public void run() {
+            final Context context = getContext();
+            final Uri[] folderUris;
+            synchronized (mWidgetLock) {
+                folderUris = new Uri[mPendingWidgetNotifications.size()];
+                for (int i = 0; i < folderUris.length; i++) {
+                    folderUris[i] = mPendingWidgetNotifications.valueAt(i);
+                }
+                mPendingWidgetNotifications.clear();
+            }
+            // Broadcast without the lock, which writers take to queue notifications
+            for (final Uri folderUri : folderUris) {
+                final Intent intent = new Intent(Utils.ACTION_NOTIFY_DATASET_CHANGED);
+                intent.putExtra(Utils.EXTRA_FOLDER_URI, folderUri);
+                intent.setType(EMAIL_APP_MIME_TYPE);
+                context.sendBroadcast(intent);
             }
-            mAppWidgetManager = AppWidgetManager.getInstance(context);
-            mEmailComponent = new ComponentName(context, WidgetProvider.getProviderName(context));
         }
+    };
 
-        // See if we have to populate our array of mailboxes used in widgets
-        int[] widgetIds = mAppWidgetManager.getAppWidgetIds(mEmailComponent);
-        if (!Arrays.equals(widgetIds, mSavedWidgetIds)) {
-            mSavedWidgetIds = widgetIds;
-            String[][] widgetInfos = BaseWidgetProvider.getWidgetInfo(context, widgetIds);
-            // widgetInfo now has pairs of account uri/folder uri
-            mWidgetNotifyMailboxes.clear();
-            for (String[] widgetInfo: widgetInfos) {
-                try {
-                    if (widgetInfo == null || TextUtils.isEmpty(widgetInfo[1])) continue;
-                    long id = Long.parseLong(Uri.parse(widgetInfo[1]).getLastPathSegment());
-                    if (!isCombinedMailbox(id)) {
-                        // For a regular mailbox, just add it to the list
-                        if (!mWidgetNotifyMailboxes.contains(id)) {
-                            mWidgetNotifyMailboxes.add(id);
-                        }
-                    } else {
-                        switch (getVirtualMailboxType(id)) {
-                            // We only handle the combined inbox in widgets
-                            case Mailbox.TYPE_INBOX:
-                                Cursor c = query(Mailbox.CONTENT_URI, Mailbox.ID_PROJECTION,
-                                        MailboxColumns.TYPE + "=?",
-                                        new String[] {Integer.toString(Mailbox.TYPE_INBOX)}, null);
-                                try {
-                                    while (c.moveToNext()) {
-                                        mWidgetNotifyMailboxes.add(
-                                                c.getLong(Mailbox.ID_PROJECTION_COLUMN));
-                                    }
-                                } finally {
-                                    c.close();
-                                }
-                                break;
-                        }
-                    }
-                } catch (NumberFormatException e) {
-                    // Move along
+    /**
+     * Reads which mailboxes the widgets show. Must be called with {@link #mWidgetLock} held.
+     */
+    private void loadWidgetMailboxes(final Context context) {
+        final int[] widgetIds = mAppWidgetManager.getAppWidgetIds(mEmailComponent);
+        final String[][] widgetInfos = BaseWidgetProvider.getWidgetInfo(context, widgetIds);
+        // widgetInfo now has pairs of account uri/folder uri
+        long[] ids = new long[widgetInfos.length];
+        int count = 0;
+        boolean showsCombinedInbox = false;
+        for (String[] widgetInfo: widgetInfos) {
+            try {
+                if (widgetInfo == null || TextUtils.isEmpty(widgetInfo[1])) continue;
+                long id = Long.parseLong(Uri.parse(widgetInfo[1]).getLastPathSegment());
+                if (!isCombinedMailbox(id)) {
+                    ids[count++] = id;
+                } else if (getVirtualMailboxType(id) == Mailbox.TYPE_INBOX) {
+                    // We only handle the combined inbox in widgets
+                    showsCombinedInbox = true;
                 }
+            } catch (NumberFormatException e) {
+                // Move along
             }
         }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        mWidgetMailboxIds = ids;
+        mWidgetShowsCombinedInbox = showsCombinedInbox;
+    }
+
+    /**
+     * Lets any widget showing the mailbox know that its contents changed. Notifications for the
+     * same mailbox that arrive within {@link #WIDGET_NOTIFY_DELAY_MS} are sent as one.
+     */
+    private void notifyWidgets(long mailboxId, int mailboxType) {
+        Context context = getContext();
+        synchronized (mWidgetLock) {
+            // Lazily initialize these
+            if (mAppWidgetManager == null) {
+                if (!WidgetService.isWidgetSupported(context)) {
+                    return;
+                }
+                mAppWidgetManager = AppWidgetManager.getInstance(context);
+                mEmailComponent =
+                        new ComponentName(context, WidgetProvider.getProviderName(context));
+                mWidgetNotifyHandler = new Handler(context.getMainLooper());
+            }
 
-        // If our mailbox needs to be notified, do so...
-        if (mWidgetNotifyMailboxes.contains(mailboxId)) {
-            Intent intent = new Intent(Utils.ACTION_NOTIFY_DATASET_CHANGED);
-            intent.putExtra(Utils.EXTRA_FOLDER_URI, uiUri("uifolder", mailboxId));
-            intent.setType(EMAIL_APP_MIME_TYPE);
-            context.sendBroadcast(intent);
-         }
+            // See if we have to find out again which mailboxes are used in widgets
+            if (sWidgetConfigurationChanged) {
+                sWidgetConfigurationChanged = false;
+                loadWidgetMailboxes(context);
+            }
+
+            // If our mailbox needs to be notified, do so...
+            if (Arrays.binarySearch(mWidgetMailboxIds, mailboxId) < 0
+                    && !(mWidgetShowsCombinedInbox && mailboxType == Mailbox.TYPE_INBOX)) {
+                return;
+            }
+            if (mPendingWidgetNotifications.size() == 0) {
+                mWidgetNotifyHandler.postDelayed(mSendWidgetNotifications,
+                        WIDGET_NOTIFY_DELAY_MS);
+            }
+            mPendingWidgetNotifications.put(mailboxId, uiUri("uifolder", mailboxId));
+        }
     }
 
     @Override
@@ -6235,6 +7093,17 @@ public class EmailProvider extends ContentProvider
         } finally {
             cursor.close();
         }
+        final SQLiteDatabase db = getDatabase(context);
+        if (AccountPurge.isPending(db)) {
+            writer.println();
+            writer.println("Deleted accounts being purged:");
+            AccountPurge.dumpProgress(db, writer);
+        }
+        if (!MessageCounters.check(db)) {
+            writer.println();
+            writer.println("Message counters were inconsistent; recalculated");
+            MessageCounters.recalculate(db);
+        }
     }
 
     synchronized public Handler getDelayedSyncHandler() {
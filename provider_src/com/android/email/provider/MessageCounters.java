@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Message counts for the virtual folders (the combined inbox, unread and starred), kept by
+ * triggers so that the folder list doesn't have to count messages each time it's queried.
+ *
+ * There is a row per account, plus a row for all accounts together whose account key is
+ * {@link #ALL_ACCOUNTS}. The counts mean the same as the queries they replace:
+ * <ul>
+ * <li>{@link #INBOX_UNREAD}: unread messages in inboxes</li>
+ * <li>{@link #UNREAD}: unread messages anywhere but in the trash</li>
+ * <li>{@link #STARRED}: starred messages</li>
+ * </ul>
+ * Only the messages of existing accounts are counted: those of a deleted account stay behind
+ * until {@link AccountPurge} gets to them, but no longer show in the combined views.
+ */
+public final class MessageCounters {
+    public static final String TABLE_NAME = "MessageCounters";
+
+    public static final String ACCOUNT_KEY = "accountKey";
+    public static final String INBOX_UNREAD = "inboxUnread";
+    public static final String UNREAD = "unread";
+    public static final String STARRED = "starred";
+
+    /** The account key of the row that counts messages in all accounts. */
+    public static final long ALL_ACCOUNTS = 0;
+
+    private static final String[] COUNTER_COLUMNS = { INBOX_UNREAD, UNREAD, STARRED };
+
+    private static final String[] TRIGGERS = { "message_counters_insert",
+            "message_counters_delete", "message_counters_update", "message_counters_mailbox_type",
+            "message_counters_account_delete" };
+
+    private MessageCounters() {}
+
+    /** @return the type of the message's mailbox, or -1 if it doesn't exist */
+    private static String mailboxType(final String row) {
+        return "coalesce((select " + MailboxColumns.TYPE + " from " + Mailbox.TABLE_NAME
+                + " where " + MailboxColumns._ID + "=" + row + "." + MessageColumns.MAILBOX_KEY
+                + "), -1)";
+    }
+
+    /**
+     * @param row "NEW" or "OLD" in a trigger, or the table name in a query
+     * @return the amount that a message adds to each of the counters, in column order
+     */
+    private static String[] getContributions(final String row) {
+        final String unread = row + "." + MessageColumns.FLAG_READ + "=0";
+        return new String[] {
+                "(case when " + unread + " and " + mailboxType(row) + "=" + Mailbox.TYPE_INBOX
+                        + " then 1 else 0 end)",
+                "(case when " + unread + " and " + mailboxType(row) + "!=" + Mailbox.TYPE_TRASH
+                        + " then 1 else 0 end)",
+                "(case when " + row + "." + MessageColumns.FLAG_FAVORITE
+                        + "=1 then 1 else 0 end)" };
+    }
+
+    /** @return a condition that the message's account still exists */
+    private static String accountExists(final String row) {
+        return row + "." + MessageColumns.ACCOUNT_KEY + " in (select " + AccountColumns._ID
+                + " from " + Account.TABLE_NAME + ")";
+    }
+
+    /**
+     * @return an update adding (or subtracting) a message's contributions to its account's row
+     *     and the row for all accounts, if the account still exists
+     */
+    private static String adjustCounters(final String row, final char sign) {
+        final String[] contributions = getContributions(row);
+        final StringBuilder sb = new StringBuilder("update ").append(TABLE_NAME).append(" set ");
+        for (int i = 0; i < COUNTER_COLUMNS.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(COUNTER_COLUMNS[i]).append('=').append(COUNTER_COLUMNS[i]).append(sign)
+                    .append(contributions[i]);
+        }
+        return sb.append(" where ").append(ACCOUNT_KEY).append(" in (").append(ALL_ACCOUNTS)
+                .append(", ").append(row).append('.').append(MessageColumns.ACCOUNT_KEY)
+                .append(") and ").append(accountExists(row)).toString();
+    }
+
+    /** @return an insert of a row, if it's missing, for the account of the message */
+    private static String ensureRow(final String row) {
+        return "insert or ignore into " + TABLE_NAME + " (" + ACCOUNT_KEY + ") select " + row
+                + "." + MessageColumns.ACCOUNT_KEY + " where " + accountExists(row);
+    }
+
+    /**
+     * Creates the table, with an empty row for all accounts, and the triggers that keep it
+     * current. Call {@link #recalculate} afterwards if there are already messages.
+     */
+    static void createTable(final SQLiteDatabase db) {
+        db.execSQL("create table " + TABLE_NAME + " (" + ACCOUNT_KEY + " integer primary key, "
+                + INBOX_UNREAD + " integer not null default 0, "
+                + UNREAD + " integer not null default 0, "
+                + STARRED + " integer not null default 0)");
+        db.execSQL("insert into " + TABLE_NAME + " (" + ACCOUNT_KEY + ") values ("
+                + ALL_ACCOUNTS + ")");
+        createTriggers(db);
+    }
+
+    /**
+     * Replaces the triggers with the current ones, for an upgrade that changes what they count.
+     * Call {@link #recalculate} afterwards.
+     */
+    static void recreateTriggers(final SQLiteDatabase db) {
+        for (final String trigger : TRIGGERS) {
+            db.execSQL("drop trigger if exists " + trigger);
+        }
+        createTriggers(db);
+    }
+
+    private static void createTriggers(final SQLiteDatabase db) {
+        db.execSQL("create trigger message_counters_insert after insert on " + Message.TABLE_NAME
+                + " begin " + ensureRow("NEW") + "; " + adjustCounters("NEW", '+') + "; end");
+
+        db.execSQL("create trigger message_counters_delete after delete on " + Message.TABLE_NAME
+                + " begin " + adjustCounters("OLD", '-') + "; end");
+
+        // Messages that are moved or flagged are taken out of the counts as they were, and put
+        // back in as they are now.
+        db.execSQL("create trigger message_counters_update after update of "
+                + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.ACCOUNT_KEY + ", "
+                + MessageColumns.FLAG_READ + ", " + MessageColumns.FLAG_FAVORITE + " on "
+                + Message.TABLE_NAME
+                + " when OLD." + MessageColumns.MAILBOX_KEY + " is not NEW."
+                + MessageColumns.MAILBOX_KEY + " or OLD." + MessageColumns.ACCOUNT_KEY
+                + " is not NEW." + MessageColumns.ACCOUNT_KEY + " or OLD."
+                + MessageColumns.FLAG_READ + " is not NEW." + MessageColumns.FLAG_READ
+                + " or OLD." + MessageColumns.FLAG_FAVORITE + " is not NEW."
+                + MessageColumns.FLAG_FAVORITE
+                + " begin " + ensureRow("NEW") + "; " + adjustCounters("OLD", '-') + "; "
+                + adjustCounters("NEW", '+') + "; end");
+
+        // A mailbox that becomes (or stops being) an inbox or the trash moves its unread
+        // messages in or out of the counts.
+        final String unreadInMailbox = "(select count(*) from " + Message.TABLE_NAME + " where "
+                + MessageColumns.MAILBOX_KEY + "=NEW." + MailboxColumns._ID + " and "
+                + MessageColumns.FLAG_READ + "=0 and " + TABLE_NAME + "." + ACCOUNT_KEY
+                + " in (" + ALL_ACCOUNTS + ", " + Message.TABLE_NAME + "."
+                + MessageColumns.ACCOUNT_KEY + ") and " + accountExists(Message.TABLE_NAME)
+                + ")";
+        final String oldType = "coalesce(OLD." + MailboxColumns.TYPE + ", -1)";
+        final String newType = "coalesce(NEW." + MailboxColumns.TYPE + ", -1)";
+        db.execSQL("create trigger message_counters_mailbox_type after update of "
+                + MailboxColumns.TYPE + " on " + Mailbox.TABLE_NAME
+                + " when OLD." + MailboxColumns.TYPE + " is not NEW." + MailboxColumns.TYPE
+                + " begin update " + TABLE_NAME + " set "
+                + INBOX_UNREAD + "=" + INBOX_UNREAD + "+" + unreadInMailbox + "*((" + newType
+                + "=" + Mailbox.TYPE_INBOX + ")-(" + oldType + "=" + Mailbox.TYPE_INBOX + ")), "
+                + UNREAD + "=" + UNREAD + "+" + unreadInMailbox + "*((" + oldType + "="
+                + Mailbox.TYPE_TRASH + ")-(" + newType + "=" + Mailbox.TYPE_TRASH + ")); end");
+
+        // The messages of a deleted account are only purged later, so its counts are taken out
+        // of the counts for all accounts when the account goes.
+        final StringBuilder subtract = new StringBuilder();
+        for (final String column : COUNTER_COLUMNS) {
+            subtract.append(subtract.length() == 0 ? "" : ", ").append(column).append('=')
+                    .append(column).append("-coalesce((select ").append(column).append(" from ")
+                    .append(TABLE_NAME).append(" where ").append(ACCOUNT_KEY).append("=OLD.")
+                    .append(AccountColumns._ID).append("), 0)");
+        }
+        db.execSQL("create trigger message_counters_account_delete after delete on "
+                + Account.TABLE_NAME + " begin update " + TABLE_NAME + " set " + subtract
+                + " where " + ACCOUNT_KEY + "=" + ALL_ACCOUNTS + "; delete from " + TABLE_NAME
+                + " where " + ACCOUNT_KEY + "=OLD." + AccountColumns._ID + "; end");
+    }
+
+    /** @return a query for the counts, computed from scratch, in the same form as the table */
+    private static String getCountsQuery() {
+        final String[] contributions = getContributions(Message.TABLE_NAME);
+        final StringBuilder sums = new StringBuilder();
+        for (int i = 0; i < COUNTER_COLUMNS.length; i++) {
+            sums.append(", coalesce(sum(").append(contributions[i]).append("), 0) as ")
+                    .append(COUNTER_COLUMNS[i]);
+        }
+        final String where = " where " + accountExists(Message.TABLE_NAME);
+        return "select " + MessageColumns.ACCOUNT_KEY + " as " + ACCOUNT_KEY + sums + " from "
+                + Message.TABLE_NAME + where + " group by " + MessageColumns.ACCOUNT_KEY
+                + " union all select " + ALL_ACCOUNTS + sums + " from " + Message.TABLE_NAME
+                + where;
+    }
+
+    /**
+     * Recounts every row from the Message table.
+     */
+    static void recalculate(final SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("delete from " + TABLE_NAME);
+            // The row for all accounts comes last, so it replaces one for an account with key 0
+            db.execSQL("insert or replace into " + TABLE_NAME + " (" + ACCOUNT_KEY + ", "
+                    + INBOX_UNREAD + ", " + UNREAD + ", " + STARRED + ") " + getCountsQuery());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Compares the counters with the Message table, logging any that are off.
+     * @return whether they all match
+     */
+    static boolean check(final SQLiteDatabase db) {
+        final String actual = "select " + ACCOUNT_KEY + ", " + INBOX_UNREAD + ", " + UNREAD + ", "
+                + STARRED + " from " + TABLE_NAME;
+        final String expected = "select * from (" + getCountsQuery() + ")";
+        // A row of zeroes is the same as no row at all
+        final String nonZero = " where " + INBOX_UNREAD + "!=0 or " + UNREAD + "!=0 or "
+                + STARRED + "!=0";
+        final Cursor c = db.rawQuery("select * from (" + actual + nonZero + " except " + expected
+                + ") union all select * from (" + expected + nonZero + " except " + actual + ")",
+                null);
+        try {
+            boolean consistent = true;
+            while (c.moveToNext()) {
+                consistent = false;
+                LogUtils.w(Logging.LOG_TAG, "Message counters for account %d differ: %d, %d, %d",
+                        c.getLong(0), c.getInt(1), c.getInt(2), c.getInt(3));
+            }
+            return consistent;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @param accountId an account id, or {@link #ALL_ACCOUNTS}
+     * @param column one of {@link #INBOX_UNREAD}, {@link #UNREAD} or {@link #STARRED}
+     * @return the value of the counter
+     */
+    static int getCount(final SQLiteDatabase db, final long accountId, final String column) {
+        final Cursor c = db.query(TABLE_NAME, new String[] { column }, ACCOUNT_KEY + "=?",
+                new String[] { Long.toString(accountId) }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+}
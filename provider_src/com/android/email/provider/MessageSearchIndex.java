@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.regex.Pattern;
+
+/**
+ * A local full-text index over messages, used to answer searches without a round trip to the
+ * server (and at all for protocols, such as POP3, that can't search remotely).
+ *
+ * The index is an FTS4 table keyed by message id. The message-level columns (subject, sender,
+ * recipients and snippet) are kept current by triggers on the Message table; the body column is
+ * maintained by {@link EmailProvider} when it writes body files, since bodies live on disk and
+ * in a separate database that triggers can't reach.
+ */
+public final class MessageSearchIndex {
+    public static final String TABLE_NAME = "MessageSearch";
+
+    // The docid of each row is the _id of the message it indexes.
+    public static final String DOCID = "docid";
+    public static final String SUBJECT = "subject";
+    public static final String FROM_LIST = "fromList";
+    public static final String TO_LIST = "toList";
+    public static final String SNIPPET = "snippet";
+    public static final String BODY = "body";
+
+    /** Strips markup so that tag and attribute names don't pollute the index. */
+    private static final Pattern HTML_TAG_PATTERN = Pattern.compile("<[^>]*>");
+    /** Characters that have a meaning in FTS query syntax. */
+    private static final Pattern QUERY_SPECIAL_CHARS = Pattern.compile("[\"*():^-]");
+
+    private MessageSearchIndex() {}
+
+    /**
+     * Creates the index table along with the triggers that keep it in step with the Message table.
+     */
+    static void createTable(final SQLiteDatabase db) {
+        db.execSQL("create virtual table " + TABLE_NAME + " using fts4("
+                + SUBJECT + ", " + FROM_LIST + ", " + TO_LIST + ", " + SNIPPET + ", " + BODY
+                + ")");
+
+        db.execSQL("create trigger message_search_insert after insert on " + Message.TABLE_NAME
+                + " begin insert into " + TABLE_NAME + " (" + DOCID + ", " + SUBJECT + ", "
+                + FROM_LIST + ", " + TO_LIST + ", " + SNIPPET + ") values (NEW."
+                + MessageColumns._ID + ", NEW." + MessageColumns.SUBJECT + ", NEW."
+                + MessageColumns.FROM_LIST + ", NEW." + MessageColumns.TO_LIST + ", NEW."
+                + MessageColumns.SNIPPET + "); end");
+
+        db.execSQL("create trigger message_search_update after update of "
+                + MessageColumns.SUBJECT + ", " + MessageColumns.FROM_LIST + ", "
+                + MessageColumns.TO_LIST + ", " + MessageColumns.SNIPPET + " on "
+                + Message.TABLE_NAME
+                + " begin update " + TABLE_NAME + " set " + SUBJECT + "=NEW."
+                + MessageColumns.SUBJECT + ", " + FROM_LIST + "=NEW." + MessageColumns.FROM_LIST
+                + ", " + TO_LIST + "=NEW." + MessageColumns.TO_LIST + ", " + SNIPPET + "=NEW."
+                + MessageColumns.SNIPPET + " where " + DOCID + "=NEW." + MessageColumns._ID
+                + "; end");
+
+        db.execSQL("create trigger message_search_delete after delete on " + Message.TABLE_NAME
+                + " begin delete from " + TABLE_NAME + " where " + DOCID + "=OLD."
+                + MessageColumns._ID + "; end");
+    }
+
+    /**
+     * Indexes the message-level columns of every existing message. Bodies are picked up as they
+     * are next written.
+     */
+    static void populate(final SQLiteDatabase db) {
+        db.execSQL("insert into " + TABLE_NAME + " (" + DOCID + ", " + SUBJECT + ", " + FROM_LIST
+                + ", " + TO_LIST + ", " + SNIPPET + ") select " + MessageColumns._ID + ", "
+                + MessageColumns.SUBJECT + ", " + MessageColumns.FROM_LIST + ", "
+                + MessageColumns.TO_LIST + ", " + MessageColumns.SNIPPET + " from "
+                + Message.TABLE_NAME);
+    }
+
+    /**
+     * Updates the indexed body text of a message from a set of body values, if they contain any
+     * body content. Plain text is preferred; otherwise the markup is stripped from the HTML.
+     */
+    static void updateBody(final SQLiteDatabase db, final long messageId,
+            final ContentValues values) {
+        if (!values.containsKey(BodyColumns.TEXT_CONTENT)
+                && !values.containsKey(BodyColumns.HTML_CONTENT)) {
+            return;
+        }
+        final ContentValues cv = new ContentValues(1);
+        cv.put(BODY, getIndexableText(values.getAsString(BodyColumns.TEXT_CONTENT),
+                values.getAsString(BodyColumns.HTML_CONTENT)));
+        db.update(TABLE_NAME, cv, DOCID + "=?", new String[] { Long.toString(messageId) });
+    }
+
+    @VisibleForTesting
+    static String getIndexableText(final String text, final String html) {
+        if (!TextUtils.isEmpty(text)) {
+            return text;
+        }
+        if (!TextUtils.isEmpty(html)) {
+            return HTML_TAG_PATTERN.matcher(html).replaceAll(" ");
+        }
+        return null;
+    }
+
+    /**
+     * Converts a user-entered search string into an FTS match expression: every word must be
+     * present, and each word also matches as a prefix. Returns null if nothing searchable is left.
+     */
+    @VisibleForTesting
+    static String toMatchExpression(final String filter) {
+        if (filter == null) {
+            return null;
+        }
+        final String[] words =
+                QUERY_SPECIAL_CHARS.matcher(filter).replaceAll(" ").trim().split("\\s+");
+        final StringBuilder sb = new StringBuilder();
+        for (final String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(word).append("\"*");
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Finds the ids of locally stored messages in an account that match a search string, newest
+     * first. Messages already in a search results mailbox are not included.
+     * @param limit the maximum number of ids to return
+     * @return the matching message ids; never null
+     */
+    static long[] search(final SQLiteDatabase db, final long accountId, final String filter,
+            final int limit) {
+        final String match = toMatchExpression(filter);
+        if (match == null) {
+            return new long[0];
+        }
+        final Cursor c = db.rawQuery("select " + Message.TABLE_NAME + "." + MessageColumns._ID
+                + " from " + TABLE_NAME + ", " + Message.TABLE_NAME
+                + " where " + TABLE_NAME + " match ?"
+                + " and " + TABLE_NAME + "." + DOCID + "=" + Message.TABLE_NAME + "."
+                + MessageColumns._ID
+                + " and " + MessageColumns.ACCOUNT_KEY + "=?"
+                + " and " + MessageColumns.MAILBOX_KEY + " not in (select " + MailboxColumns._ID
+                + " from " + Mailbox.TABLE_NAME + " where " + MailboxColumns.TYPE + "="
+                + Mailbox.TYPE_SEARCH + ")"
+                + " order by " + MessageColumns.TIMESTAMP + " desc limit " + limit,
+                new String[] { match, Long.toString(accountId) });
+        try {
+            final long[] ids = new long[c.getCount()];
+            int i = 0;
+            while (c.moveToNext()) {
+                ids[i++] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.email.provider;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
@@ -28,6 +29,7 @@ import com.android.mail.providers.Folder;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.Utils;
 import com.android.mail.widget.BaseWidgetProvider;
 import com.android.mail.widget.WidgetService;
 
@@ -38,6 +40,16 @@ public class WidgetProvider extends BaseWidgetProvider {
 
     private static final String LOG_TAG = LogTag.getLogTag();
 
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // Anything other than the provider's own notifications of changed data may mean that
+        // widgets were added, removed or pointed at another folder
+        if (!Utils.ACTION_NOTIFY_DATASET_CHANGED.equals(intent.getAction())) {
+            EmailProvider.invalidateWidgetMailboxes();
+        }
+        super.onReceive(context, intent);
+    }
+
     /**
      * Remove preferences when deleting widget
      */
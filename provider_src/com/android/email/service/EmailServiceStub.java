@@ -348,13 +348,14 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                         break;
                     default:
                         // Drop all attachment files related to this mailbox
-                        AttachmentUtilities.deleteAllMailboxAttachmentFiles(
+                        AttachmentUtilities.deleteAllMailboxAttachmentFilesInBackground(
                                 mContext, accountId, mailboxId);
                         // Delete the mailbox; database triggers take care of related
                         // Message, Body and Attachment records
                         Uri uri = ContentUris.withAppendedId(
                                 Mailbox.CONTENT_URI, mailboxId);
                         mContext.getContentResolver().delete(uri, null, null);
+                        ImapService.removeMailboxLock(mailboxId);
                         break;
                 }
             }
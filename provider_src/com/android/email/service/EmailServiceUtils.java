@@ -73,11 +73,20 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility functions for EmailService support.
  */
 public class EmailServiceUtils {
+    /**
+     * The protocols of accounts we've looked up, by account id. An account's protocol only
+     * changes in {@link #updateAccountManagerType}, and account ids aren't reused, so there's
+     * nothing else to invalidate; accounts that don't exist aren't cached.
+     */
+    private static final Map<Long, String> sAccountProtocols =
+            new ConcurrentHashMap<Long, String>();
+
     /**
      * Ask a service to kill its process. This is used when an account is deleted so that
      * no background thread that happens to be running will continue, possibly hitting an
@@ -173,7 +182,22 @@ public class EmailServiceUtils {
      * @return service proxy, or null if n/a
      */
     public static EmailServiceProxy getServiceForAccount(Context context, long accountId) {
-        return getService(context, Account.getProtocol(context, accountId));
+        return getService(context, getProtocolForAccount(context, accountId));
+    }
+
+    /**
+     * Like {@link Account#getProtocol(Context, long)}, but only queries the provider the first
+     * time each account is asked about.
+     */
+    public static String getProtocolForAccount(Context context, long accountId) {
+        String protocol = sAccountProtocols.get(accountId);
+        if (protocol == null) {
+            protocol = Account.getProtocol(context, accountId);
+            if (protocol != null) {
+                sAccountProtocols.put(accountId, protocol);
+            }
+        }
+        return protocol;
     }
 
     /**
@@ -250,7 +274,7 @@ public class EmailServiceUtils {
     }
 
     public static EmailServiceInfo getServiceInfoForAccount(Context context, long accountId) {
-        String protocol = Account.getProtocol(context, accountId);
+        String protocol = getProtocolForAccount(context, accountId);
         return getServiceInfo(context, protocol);
     }
 
@@ -366,6 +390,7 @@ public class EmailServiceUtils {
                 hostValues.put(HostAuthColumns.PROTOCOL, newProtocol);
                 resolver.update(ContentUris.withAppendedId(HostAuth.CONTENT_URI, hostAuth.mId),
                         hostValues, null, null);
+                sAccountProtocols.remove(account.mId);
                 LogUtils.w(LogUtils.TAG, "Updated HostAuths");
 
                 try {
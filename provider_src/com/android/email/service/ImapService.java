@@ -32,7 +32,6 @@ import android.text.format.DateUtils;
 
 import com.android.email.DebugUtils;
 import com.android.email.LegacyConversions;
-import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.R;
 import com.android.email.mail.Store;
@@ -63,13 +62,16 @@ import com.android.emailcommon.service.SyncWindow;
 import com.android.emailcommon.utility.AttachmentUtilities;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ImapService extends Service {
     // TODO get these from configurations or settings.
@@ -95,14 +97,25 @@ public class ImapService extends Service {
     private static long mLastSearchAccountKey = Account.NO_ACCOUNT;
     private static String mLastSearchServerId = null;
     private static Mailbox mLastSearchRemoteMailbox = null;
+    /** Guards the last search mailbox, which syncs of different accounts may use at once. */
+    private static final Object sLastSearchLock = new Object();
 
     /**
-     * Cache search results by account; this allows for "load more" support without having to
-     * redo the search (which can be quite slow).  SortableMessage is a smallish class, so memory
-     * shouldn't be an issue
+     * Locks held while a mailbox is synced, and while an account's pending actions are uploaded,
+     * so that the same mailbox (or account) is never worked on twice at once, while different
+     * mailboxes can be synced together. There is one per mailbox or account that has been synced;
+     * a mailbox's is removed when the mailbox is deleted.
      */
-    private static final HashMap<Long, SortableMessage[]> sSearchResults =
-            new HashMap<Long, SortableMessage[]>();
+    private static final ConcurrentHashMap<Long, Object> sMailboxLocks =
+            new ConcurrentHashMap<Long, Object>();
+    private static final ConcurrentHashMap<Long, Object> sAccountLocks =
+            new ConcurrentHashMap<Long, Object>();
+
+    /**
+     * Cache of search results; this allows for "load more" support without having to redo the
+     * search (which can be quite slow).
+     */
+    private static final SearchResultCache sSearchResults = new SearchResultCache();
 
     /**
      * We write this into the serverId field of messages that will never be upsynced.
@@ -154,6 +167,12 @@ public class ImapService extends Service {
         return mBinder;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("ImapService");
+        Store.dumpStores(pw);
+    }
+
     /**
      * Start foreground synchronization of the specified folder. This is called by
      * synchronizeMailbox or checkMail.
@@ -161,38 +180,109 @@ public class ImapService extends Service {
      * @return The status code for whether this operation succeeded.
      * @throws MessagingException
      */
-    public static synchronized int synchronizeMailboxSynchronous(Context context,
+    public static int synchronizeMailboxSynchronous(Context context,
             final Account account, final Mailbox folder, final boolean loadMore,
             final boolean uiRefresh) throws MessagingException {
-        TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
-        final NotificationController nc =
-                NotificationControllerCreatorHolder.getInstance(context);
         Store remoteStore = null;
         try {
             remoteStore = Store.getInstance(account, context);
-            processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
-            synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore, uiRefresh);
-            // Clear authentication notification for this account
-            nc.cancelLoginFailedNotification(account.mId);
-        } catch (MessagingException e) {
-            if (Logging.LOGD) {
-                LogUtils.d(Logging.LOG_TAG, "synchronizeMailboxSynchronous", e);
-            }
-            if (e instanceof AuthenticationFailedException) {
-                // Generate authentication notification
-                nc.showLoginFailedNotificationSynchronous(account.mId, true /* incoming */);
-            }
-            throw e;
+            processPendingActions(context, account, remoteStore, uiRefresh);
+            return synchronizeMailboxWithStore(context, account, remoteStore, folder, loadMore,
+                    uiRefresh);
         } finally {
             if (remoteStore != null) {
                 remoteStore.closeConnections();
             }
         }
+    }
+
+    /**
+     * Uploads the account's pending changes (deletes, moves, flag changes, sent messages); done
+     * once at the start of a sync, before any mailbox is synced.
+     * @throws MessagingException
+     */
+    public static void processPendingActions(Context context, Account account,
+            Store remoteStore, boolean uiRefresh) throws MessagingException {
+        try {
+            synchronized (getAccountLock(account.mId)) {
+                processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
+            }
+        } catch (MessagingException e) {
+            handleSyncException(context, account, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Synchronizes one folder, using (and leaving open) connections from the given store. Several
+     * folders of an account can be synced like this at once, each on its own connection from the
+     * store's pool; the caller is expected to have called {@link #processPendingActions} first,
+     * and to close the store's connections once they are all done.
+     * @return The status code for whether this operation succeeded.
+     * @throws MessagingException
+     */
+    public static int synchronizeMailboxWithStore(Context context, final Account account,
+            final Store remoteStore, final Mailbox folder, final boolean loadMore,
+            final boolean uiRefresh) throws MessagingException {
+        TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
+        try {
+            synchronized (getMailboxLock(folder.mId)) {
+                synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore,
+                        uiRefresh);
+            }
+            // Searches of this mailbox may no longer match what's on the server
+            sSearchResults.invalidate(account.mId, folder.mId);
+            // Clear authentication notification for this account
+            NotificationControllerCreatorHolder.getInstance(context)
+                    .cancelLoginFailedNotification(account.mId);
+        } catch (MessagingException e) {
+            handleSyncException(context, account, e);
+            throw e;
+        }
         // TODO: Rather than use exceptions as logic above, return the status and handle it
         // correctly in caller.
         return EmailServiceStatus.SUCCESS;
     }
 
+    @VisibleForTesting
+    static Object getMailboxLock(final long mailboxId) {
+        return getLock(sMailboxLocks, mailboxId);
+    }
+
+    private static Object getAccountLock(final long accountId) {
+        return getLock(sAccountLocks, accountId);
+    }
+
+    /**
+     * Drops the lock of a mailbox that has been deleted. A sync of it that is still running
+     * won't find the mailbox's rows, so it doesn't matter if another starts alongside it.
+     */
+    static void removeMailboxLock(final long mailboxId) {
+        sMailboxLocks.remove(mailboxId);
+    }
+
+    private static Object getLock(final ConcurrentHashMap<Long, Object> locks, final long id) {
+        final Object lock = locks.get(id);
+        if (lock != null) {
+            return lock;
+        }
+        final Object newLock = new Object();
+        final Object existing = locks.putIfAbsent(id, newLock);
+        return existing != null ? existing : newLock;
+    }
+
+    private static void handleSyncException(Context context, Account account,
+            MessagingException e) {
+        if (Logging.LOGD) {
+            LogUtils.d(Logging.LOG_TAG, "synchronizeMailboxSynchronous", e);
+        }
+        if (e instanceof AuthenticationFailedException) {
+            // Generate authentication notification
+            NotificationControllerCreatorHolder.getInstance(context)
+                    .showLoginFailedNotificationSynchronous(account.mId, true /* incoming */);
+        }
+    }
+
     /**
      * Lightweight record for the first pass of message sync, where I'm just seeing if
      * the local message requires sync.  Later (for messages that need syncing) we'll do a full
@@ -359,7 +449,7 @@ public class ImapService extends Service {
      * @param uiRefresh whether this request is in response to a user action
      * @throws MessagingException
      */
-    private synchronized static void synchronizeMailboxGeneric(final Context context,
+    private static void synchronizeMailboxGeneric(final Context context,
             final Account account, Store remoteStore, final Mailbox mailbox, final boolean loadMore,
             final boolean uiRefresh)
             throws MessagingException {
@@ -783,9 +873,11 @@ public class ImapService extends Service {
         if (!TextUtils.isEmpty(message.mProtocolSearchInfo)) {
             long accountKey = message.mAccountKey;
             String protocolSearchInfo = message.mProtocolSearchInfo;
-            if (accountKey == mLastSearchAccountKey &&
-                    protocolSearchInfo.equals(mLastSearchServerId)) {
-                return mLastSearchRemoteMailbox;
+            synchronized (sLastSearchLock) {
+                if (accountKey == mLastSearchAccountKey &&
+                        protocolSearchInfo.equals(mLastSearchServerId)) {
+                    return mLastSearchRemoteMailbox;
+                }
             }
             Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI,
                     Mailbox.CONTENT_PROJECTION, Mailbox.PATH_AND_ACCOUNT_SELECTION,
@@ -795,9 +887,11 @@ public class ImapService extends Service {
                 if (c.moveToNext()) {
                     Mailbox mailbox = new Mailbox();
                     mailbox.restore(c);
-                    mLastSearchAccountKey = accountKey;
-                    mLastSearchServerId = protocolSearchInfo;
-                    mLastSearchRemoteMailbox = mailbox;
+                    synchronized (sLastSearchLock) {
+                        mLastSearchAccountKey = accountKey;
+                        mLastSearchServerId = protocolSearchInfo;
+                        mLastSearchRemoteMailbox = mailbox;
+                    }
                     return mailbox;
                 } else {
                     return null;
@@ -939,6 +1033,25 @@ public class ImapService extends Service {
         }
     }
 
+    /**
+     * The columns of the Message_Updates table that upsync uses. Other than the first five, they
+     * hold the original values of the columns that have changed, and are null for those that
+     * haven't.
+     */
+    private static final String[] UPDATES_PROJECTION = new String[] {
+            EmailContent.RECORD_ID, EmailContent.SyncColumns.SERVER_ID,
+            MessageColumns.MAILBOX_KEY, MessageColumns.ACCOUNT_KEY,
+            MessageColumns.PROTOCOL_SEARCH_INFO, MessageColumns.FLAG_READ,
+            MessageColumns.FLAG_FAVORITE, MessageColumns.FLAGS };
+    private static final int UPDATES_ID_COLUMN = 0;
+    private static final int UPDATES_SERVER_ID_COLUMN = 1;
+    private static final int UPDATES_MAILBOX_KEY_COLUMN = 2;
+    private static final int UPDATES_ACCOUNT_KEY_COLUMN = 3;
+    private static final int UPDATES_PROTOCOL_SEARCH_INFO_COLUMN = 4;
+    private static final int UPDATES_FLAG_READ_COLUMN = 5;
+    private static final int UPDATES_FLAG_FAVORITE_COLUMN = 6;
+    private static final int UPDATES_FLAGS_COLUMN = 7;
+
     /**
      * Scan for messages that are in the Message_Updates table, look for differences that
      * we can deal with, and do the work.
@@ -947,7 +1060,7 @@ public class ImapService extends Service {
             Store remoteStore, String[] accountIdArgs) {
         ContentResolver resolver = context.getContentResolver();
         Cursor updates = resolver.query(EmailContent.Message.UPDATED_CONTENT_URI,
-                EmailContent.Message.CONTENT_PROJECTION,
+                UPDATES_PROJECTION,
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 EmailContent.MessageColumns.MAILBOX_KEY);
         long lastMessageId = -1;
@@ -962,8 +1075,14 @@ public class ImapService extends Service {
                 boolean changeMailbox = false;
                 boolean changeAnswered = false;
 
-                EmailContent.Message oldMessage =
-                        EmailContent.getContent(context, updates, EmailContent.Message.class);
+                // The original values of the columns that have changed
+                final EmailContent.Message oldMessage = new EmailContent.Message();
+                oldMessage.mId = updates.getLong(UPDATES_ID_COLUMN);
+                oldMessage.mServerId = updates.getString(UPDATES_SERVER_ID_COLUMN);
+                oldMessage.mMailboxKey = updates.getLong(UPDATES_MAILBOX_KEY_COLUMN);
+                oldMessage.mAccountKey = updates.getLong(UPDATES_ACCOUNT_KEY_COLUMN);
+                oldMessage.mProtocolSearchInfo =
+                        updates.getString(UPDATES_PROTOCOL_SEARCH_INFO_COLUMN);
                 lastMessageId = oldMessage.mId;
                 EmailContent.Message newMessage =
                         EmailContent.Message.restoreMessageWithId(context, oldMessage.mId);
@@ -979,10 +1098,21 @@ public class ImapService extends Service {
                             changeMailbox = true;
                         }
                     }
-                    changeRead = oldMessage.mFlagRead != newMessage.mFlagRead;
-                    changeFlagged = oldMessage.mFlagFavorite != newMessage.mFlagFavorite;
-                    changeAnswered = (oldMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) !=
-                            (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO);
+                    if (!updates.isNull(UPDATES_FLAG_READ_COLUMN)) {
+                        oldMessage.mFlagRead = updates.getInt(UPDATES_FLAG_READ_COLUMN) == 1;
+                        changeRead = oldMessage.mFlagRead != newMessage.mFlagRead;
+                    }
+                    if (!updates.isNull(UPDATES_FLAG_FAVORITE_COLUMN)) {
+                        oldMessage.mFlagFavorite =
+                                updates.getInt(UPDATES_FLAG_FAVORITE_COLUMN) == 1;
+                        changeFlagged = oldMessage.mFlagFavorite != newMessage.mFlagFavorite;
+                    }
+                    if (!updates.isNull(UPDATES_FLAGS_COLUMN)) {
+                        oldMessage.mFlags = updates.getInt(UPDATES_FLAGS_COLUMN);
+                        changeAnswered =
+                                (oldMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) !=
+                                (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO);
+                    }
                 }
 
                 // Load the remote store if it will be needed
@@ -1440,17 +1570,52 @@ public class ImapService extends Service {
         return true;
     }
 
+    /** Selects a message copied into a search mailbox from a given mailbox, by server id. */
+    private static final String LOCAL_SEARCH_RESULT_SELECTION =
+            MessageColumns.MAILBOX_KEY + "=? AND " + SyncColumns.SERVER_ID + "=? AND "
+            + MessageColumns.MAIN_MAILBOX_KEY + "=?";
+
+    private static final String[] LOCAL_SEARCH_RESULT_PROJECTION =
+            { MessageColumns._ID, MessageColumns.FLAGS };
+
     /**
-     * A message and numeric uid that's easily sortable
+     * Updates the read, favorite and replied state of a message already copied into a search
+     * mailbox, if there is one.
+     * @return whether the search mailbox held a copy of the message
      */
-    private static class SortableMessage {
-        private final Message mMessage;
-        private final long mUid;
-
-        SortableMessage(Message message, long uid) {
-            mMessage = message;
-            mUid = uid;
+    private static boolean updateLocalSearchResult(final Context context, final Message message,
+            final long destMailboxId, final long mailboxId) {
+        final long id;
+        int flags;
+        final Cursor c = context.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                LOCAL_SEARCH_RESULT_PROJECTION, LOCAL_SEARCH_RESULT_SELECTION, new String[] {
+                        Long.toString(destMailboxId), message.getUid(), Long.toString(mailboxId)},
+                null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            id = c.getLong(0);
+            flags = c.getInt(1);
+        } finally {
+            c.close();
+        }
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_READ, message.isSet(Flag.SEEN));
+        values.put(MessageColumns.FLAG_FAVORITE, message.isSet(Flag.FLAGGED));
+        if (message.isSet(Flag.ANSWERED)) {
+            flags |= EmailContent.Message.FLAG_REPLIED_TO;
+        } else {
+            flags &= ~EmailContent.Message.FLAG_REPLIED_TO;
         }
+        values.put(MessageColumns.FLAGS, flags);
+        context.getContentResolver().update(
+                ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, id), values,
+                null, null);
+        return true;
     }
 
     private static int searchMailboxImpl(final Context context, final long accountId,
@@ -1476,55 +1641,34 @@ public class ImapService extends Service {
             final Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
             remoteFolder.open(OpenMode.READ_WRITE);
 
-            SortableMessage[] sortableMessages = new SortableMessage[0];
-            if (searchParams.mOffset == 0) {
-                // Get the "bare" messages (basically uid)
-                final Message[] remoteMessages = remoteFolder.getMessages(searchParams, null);
-                final int remoteCount = remoteMessages.length;
-                if (remoteCount > 0) {
-                    sortableMessages = new SortableMessage[remoteCount];
-                    int i = 0;
-                    for (Message msg : remoteMessages) {
-                        sortableMessages[i++] = new SortableMessage(msg,
-                                Long.parseLong(msg.getUid()));
-                    }
-                    // Sort the uid's, most recent first
-                    // Note: Not all servers will be nice and return results in the order of
-                    // request; those that do will see messages arrive from newest to oldest
-                    Arrays.sort(sortableMessages, new Comparator<SortableMessage>() {
-                        @Override
-                        public int compare(SortableMessage lhs, SortableMessage rhs) {
-                            return lhs.mUid > rhs.mUid ? -1 : lhs.mUid < rhs.mUid ? 1 : 0;
-                        }
-                    });
-                    sSearchResults.put(accountId, sortableMessages);
-                }
-            } else {
-                // It seems odd for this to happen, but if the previous query returned zero results,
-                // but the UI somehow still attempted to load more, then sSearchResults will have
-                // a null value for this account. We need to handle this below.
-                sortableMessages = sSearchResults.get(accountId);
+            // When loading more, reuse the uids from the search that showed the first page, if we
+            // still have them; this is what makes paging cheap. A new search always goes to the
+            // server, so that mail that arrived since the last one shows up.
+            long[] uids = searchParams.mOffset > 0
+                    ? sSearchResults.get(accountId, mailbox.mId, searchParams.mFilter) : null;
+            if (uids == null) {
+                // Get the "bare" messages (basically uid), and keep just the uids, newest first
+                uids = SearchResultCache.toSortedUids(remoteFolder.getMessages(searchParams,
+                        null));
+                sSearchResults.put(accountId, mailbox.mId, searchParams.mFilter, uids);
             }
 
-            numSearchResults = (sortableMessages != null ? sortableMessages.length : 0);
-            final int numToLoad =
-                    Math.min(numSearchResults - searchParams.mOffset, searchParams.mLimit);
+            numSearchResults = uids.length;
             destMailbox.updateMessageCount(context, numSearchResults);
-            if (numToLoad <= 0) {
+            final String[] pageUids =
+                    SearchResultCache.getPage(uids, searchParams.mOffset, searchParams.mLimit);
+            if (pageUids.length == 0) {
                 return 0;
             }
 
-            final ArrayList<Message> messageList = new ArrayList<>();
-            for (int i = searchParams.mOffset; i < numToLoad + searchParams.mOffset; i++) {
-                messageList.add(sortableMessages[i].mMessage);
-            }
-            // First fetch FLAGS and ENVELOPE. In a second pass, we'll fetch STRUCTURE and
-            // the first body part.
+            // Fetch FLAGS, ENVELOPE and STRUCTURE for the whole page in one command; afterwards,
+            // we fetch the first body part of each message.
             final FetchProfile fp = new FetchProfile();
             fp.add(FetchProfile.Item.FLAGS);
             fp.add(FetchProfile.Item.ENVELOPE);
+            fp.add(FetchProfile.Item.STRUCTURE);
 
-            Message[] messageArray = messageList.toArray(new Message[messageList.size()]);
+            Message[] messageArray = remoteFolder.getMessages(pageUids, null);
 
             // TODO: We are purposely processing messages with a MessageRetrievalListener here,
             // rather than just walking the messageArray after the operation completes. This is so
@@ -1543,6 +1687,13 @@ public class ImapService extends Service {
                 @Override
                 public void messageRetrieved(Message message) {
                     try {
+                        // The provider may already have copied this message into the search
+                        // mailbox from its local index; if so, bring its flags up to date with
+                        // the server's rather than adding a second copy.
+                        if (updateLocalSearchResult(context, message, destMailboxId,
+                                mailbox.mId)) {
+                            return;
+                        }
                         EmailContent.Message localMessage = new EmailContent.Message();
 
                         // Copy the fields that are available into the message
@@ -1575,11 +1726,6 @@ public class ImapService extends Service {
                 }
             });
 
-            // Now load the structure for all of the messages:
-            fp.clear();
-            fp.add(FetchProfile.Item.STRUCTURE);
-            remoteFolder.fetch(messageArray, fp, null);
-
             // Finally, load the first body part (i.e. message text).
             // This means attachment contents are not yet loaded, but that's okay,
             // we'll load them as needed, same as in synced messages.
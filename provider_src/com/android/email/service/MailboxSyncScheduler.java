@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which mailboxes of a POP3 or IMAP account an automatic sync covers, and in what order.
+ *
+ * The inbox is synced every time, as it always has been, and goes first. Other mailboxes the user
+ * has opted in to sync are due once their last sync is older than the account's sync interval.
+ * That interval is halved for a mailbox the user has looked at recently, and shortened by a
+ * quarter for one with unread mail. Of the due mailboxes, the most overdue go first, and at most
+ * {@link #MAX_MAILBOXES_PER_CYCLE} are synced per cycle; any left over are just more overdue next
+ * time.
+ */
+final class MailboxSyncScheduler {
+    @VisibleForTesting
+    static final int MAX_MAILBOXES_PER_CYCLE = 8;
+    /** The interval used for accounts that aren't synced periodically. */
+    @VisibleForTesting
+    static final long DEFAULT_INTERVAL_MILLIS = 15 * DateUtils.MINUTE_IN_MILLIS;
+    /** How long after the user last looked at a mailbox it counts as active. */
+    @VisibleForTesting
+    static final long RECENTLY_TOUCHED_MILLIS = DateUtils.HOUR_IN_MILLIS;
+
+    private static final String[] PROJECTION = new String[] {
+            MailboxColumns._ID, MailboxColumns.TYPE, MailboxColumns.SYNC_TIME,
+            MailboxColumns.LAST_TOUCHED_TIME, MailboxColumns.UNREAD_COUNT };
+    private static final String INBOX_SELECTION = MailboxColumns.ACCOUNT_KEY + "=? and "
+            + MailboxColumns.TYPE + "=" + Mailbox.TYPE_INBOX;
+    private static final String SYNCING_SELECTION = MailboxColumns.ACCOUNT_KEY + "=? and ("
+            + MailboxColumns.TYPE + "=" + Mailbox.TYPE_INBOX + " or "
+            + MailboxColumns.SYNC_INTERVAL + "=1) and " + MailboxColumns.TYPE + " not in ("
+            + Mailbox.TYPE_DRAFTS + "," + Mailbox.TYPE_OUTBOX + "," + Mailbox.TYPE_SEARCH + ")";
+
+    /** The state of a mailbox that we schedule on. */
+    static final class Candidate {
+        final long mId;
+        final int mType;
+        final long mSyncTime;
+        final long mLastTouchedTime;
+        final int mUnreadCount;
+
+        Candidate(final long id, final int type, final long syncTime,
+                final long lastTouchedTime, final int unreadCount) {
+            mId = id;
+            mType = type;
+            mSyncTime = syncTime;
+            mLastTouchedTime = lastTouchedTime;
+            mUnreadCount = unreadCount;
+        }
+    }
+
+    private MailboxSyncScheduler() {}
+
+    /**
+     * @param inboxOnly whether the account only syncs its inbox (i.e. it's POP3)
+     * @return the mailboxes of the account that an automatic sync might cover
+     */
+    static List<Candidate> loadCandidates(final Context context, final long accountId,
+            final boolean inboxOnly) {
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        final Cursor c = context.getContentResolver().query(Mailbox.CONTENT_URI, PROJECTION,
+                inboxOnly ? INBOX_SELECTION : SYNCING_SELECTION,
+                new String[] { Long.toString(accountId) }, null);
+        if (c == null) {
+            return candidates;
+        }
+        try {
+            while (c.moveToNext()) {
+                candidates.add(new Candidate(c.getLong(0), c.getInt(1), c.getLong(2),
+                        c.getLong(3), c.getInt(4)));
+            }
+        } finally {
+            c.close();
+        }
+        return candidates;
+    }
+
+    /**
+     * @return how far through its interval a mailbox is; it is due once this reaches 1
+     */
+    @VisibleForTesting
+    static double getUrgency(final Candidate candidate, final long now,
+            final long intervalMillis) {
+        if (candidate.mSyncTime <= 0) {
+            // Never synced
+            return Double.MAX_VALUE;
+        }
+        double urgency = (double) (now - candidate.mSyncTime) / intervalMillis;
+        if (now - candidate.mLastTouchedTime < RECENTLY_TOUCHED_MILLIS) {
+            urgency *= 2;
+        }
+        if (candidate.mUnreadCount > 0) {
+            urgency *= 4.0 / 3;
+        }
+        return urgency;
+    }
+
+    /**
+     * @param candidates the mailboxes from {@link #loadCandidates}
+     * @param now the current time, as in {@link Mailbox#mSyncTime}
+     * @param syncIntervalMinutes the account's sync interval, or one of the
+     *     {@link com.android.emailcommon.provider.Account} CHECK_INTERVAL values
+     * @return the ids of the mailboxes to sync, in the order they should be synced
+     */
+    static long[] getDueMailboxes(final List<Candidate> candidates, final long now,
+            final int syncIntervalMinutes) {
+        final long intervalMillis = syncIntervalMinutes > 0
+                ? syncIntervalMinutes * DateUtils.MINUTE_IN_MILLIS : DEFAULT_INTERVAL_MILLIS;
+        final List<Candidate> due = new ArrayList<Candidate>();
+        Candidate inbox = null;
+        for (final Candidate candidate : candidates) {
+            if (candidate.mType == Mailbox.TYPE_INBOX) {
+                inbox = candidate;
+            } else if (getUrgency(candidate, now, intervalMillis) >= 1) {
+                due.add(candidate);
+            }
+        }
+        Collections.sort(due, new Comparator<Candidate>() {
+            @Override
+            public int compare(final Candidate lhs, final Candidate rhs) {
+                return Double.compare(getUrgency(rhs, now, intervalMillis),
+                        getUrgency(lhs, now, intervalMillis));
+            }
+        });
+
+        final int otherCount = Math.min(due.size(),
+                inbox == null ? MAX_MAILBOXES_PER_CYCLE : MAX_MAILBOXES_PER_CYCLE - 1);
+        final long[] ids = new long[otherCount + (inbox == null ? 0 : 1)];
+        int i = 0;
+        if (inbox != null) {
+            ids[i++] = inbox.mId;
+        }
+        for (int j = 0; j < otherCount; j++) {
+            ids[i++] = due.get(j).mId;
+        }
+        return ids;
+    }
+}
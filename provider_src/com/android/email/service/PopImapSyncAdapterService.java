@@ -29,8 +29,11 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 
 import com.android.email.R;
+import com.android.email.mail.Store;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
@@ -45,9 +48,23 @@ import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PopImapSyncAdapterService extends Service {
     private static final String TAG = "PopImapSyncService";
+    /** The most IMAP mailboxes synced at once; ImapStore keeps this many connections pooled. */
+    private static final int MAX_PARALLEL_SYNCS = 3;
+    /** How often the folder list is refreshed, unless the user asks for a sync. */
+    private static final long FOLDER_LIST_REFRESH_INTERVAL = DateUtils.HOUR_IN_MILLIS;
+
+    /** When the folder list of each account was last refreshed; guarded by itself. */
+    private static final HashMap<Long, Long> sFolderListUpdateTimes = new HashMap<Long, Long>();
+
     private SyncAdapterImpl mSyncAdapter = null;
 
     public PopImapSyncAdapterService() {
@@ -99,9 +116,14 @@ public class PopImapSyncAdapterService extends Service {
         return false;
     }
 
+    /**
+     * Syncs one mailbox.
+     * @param store for IMAP, the store to sync over, if this is part of a sync cycle run by
+     *     {@link #syncMailboxes}; if null, a store is set up and torn down just for this mailbox
+     */
     private static void sync(final Context context, final long mailboxId,
             final Bundle extras, final SyncResult syncResult, final boolean uiRefresh,
-            final int deltaMessageCount) {
+            final int deltaMessageCount, final Store store) {
         TempDirectory.setTempDirectory(context);
         Mailbox mailbox = Mailbox.restoreMailboxWithId(context, mailboxId);
         if (mailbox == null) return;
@@ -138,7 +160,10 @@ public class PopImapSyncAdapterService extends Service {
                     EmailServiceStatus.syncMailboxStatus(resolver, extras, mailboxId,
                             EmailServiceStatus.IN_PROGRESS, 0, lastSyncResult);
                     final int status;
-                    if (protocol.equals(legacyImapProtocol)) {
+                    if (protocol.equals(legacyImapProtocol) && store != null) {
+                        status = ImapService.synchronizeMailboxWithStore(context, account, store,
+                                mailbox, deltaMessageCount != 0, uiRefresh);
+                    } else if (protocol.equals(legacyImapProtocol)) {
                         status = ImapService.synchronizeMailboxSynchronous(context, account,
                                 mailbox, deltaMessageCount != 0, uiRefresh);
                     } else {
@@ -157,14 +182,20 @@ public class PopImapSyncAdapterService extends Service {
                                 EmailContent.LAST_SYNC_RESULT_CONNECTION_ERROR);
                         EmailServiceStatus.syncMailboxStatus(resolver, extras, mailboxId,
                                 EmailServiceStatus.FAILURE, 0, lastSyncResult);
-                        syncResult.stats.numIoExceptions++;
+                        // Mailboxes may be synced in parallel
+                        synchronized (syncResult) {
+                            syncResult.stats.numIoExceptions++;
+                        }
                         break;
                     case MessagingException.AUTHENTICATION_FAILED:
                         lastSyncResult = UIProvider.createSyncValue(syncStatus,
                                 EmailContent.LAST_SYNC_RESULT_AUTH_ERROR);
                         EmailServiceStatus.syncMailboxStatus(resolver, extras, mailboxId,
                                 EmailServiceStatus.FAILURE, 0, lastSyncResult);
-                        syncResult.stats.numAuthExceptions++;
+                        // Mailboxes may be synced in parallel
+                        synchronized (syncResult) {
+                            syncResult.stats.numAuthExceptions++;
+                        }
                         break;
                     case MessagingException.SERVER_ERROR:
                         lastSyncResult = UIProvider.createSyncValue(syncStatus,
@@ -188,6 +219,98 @@ public class PopImapSyncAdapterService extends Service {
         }
     }
 
+    /**
+     * Syncs a set of mailboxes of an account, in order, and logs how long each took. For IMAP,
+     * pending changes are uploaded once up front, and then up to {@link #MAX_PARALLEL_SYNCS}
+     * mailboxes are synced at a time, sharing the store's pool of connections, which are only
+     * closed once the whole cycle is done.
+     */
+    private static void syncMailboxes(final Context context, final Account account,
+            final long[] mailboxIds, final Bundle extras, final SyncResult syncResult,
+            final boolean uiRefresh, final int deltaMessageCount) {
+        final long cycleStart = SystemClock.elapsedRealtime();
+        final long[] times = new long[mailboxIds.length];
+        final boolean isImap = context.getString(R.string.protocol_legacy_imap)
+                .equals(account.getProtocol(context));
+        Store store = null;
+        if (isImap && mailboxIds.length > 1) {
+            try {
+                store = Store.getInstance(account, context);
+                ImapService.processPendingActions(context, account, store, uiRefresh);
+            } catch (MessagingException e) {
+                // Each mailbox sync will run into this too, and report it
+                LogUtils.w(TAG, "Unable to upload changes for account %d: %s", account.mId,
+                        e.getMessage());
+            }
+        }
+
+        if (store == null) {
+            for (int i = 0; i < mailboxIds.length; i++) {
+                final long start = SystemClock.elapsedRealtime();
+                sync(context, mailboxIds[i], extras, syncResult, uiRefresh, deltaMessageCount,
+                        null);
+                times[i] = SystemClock.elapsedRealtime() - start;
+            }
+        } else {
+            final Store sharedStore = store;
+            final ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(MAX_PARALLEL_SYNCS, mailboxIds.length));
+            try {
+                final List<Future<?>> futures = new ArrayList<Future<?>>(mailboxIds.length);
+                for (int i = 0; i < mailboxIds.length; i++) {
+                    final int index = i;
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            final long start = SystemClock.elapsedRealtime();
+                            sync(context, mailboxIds[index], extras, syncResult, uiRefresh,
+                                    deltaMessageCount, sharedStore);
+                            times[index] = SystemClock.elapsedRealtime() - start;
+                        }
+                    }));
+                }
+                for (final Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        LogUtils.w(TAG, e.getCause(), "Mailbox sync failed");
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The sync was cancelled
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdown();
+                sharedStore.closeConnections();
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mailboxIds.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(mailboxIds[i]).append(": ").append(times[i])
+                    .append(" ms");
+        }
+        LogUtils.d(TAG, "Synced %d mailbox(es) of account %d in %d ms (%s)", mailboxIds.length,
+                account.mId, SystemClock.elapsedRealtime() - cycleStart, sb);
+    }
+
+    /**
+     * @return whether the folder list of an account is due to be refreshed by an automatic sync;
+     *     if it is, it's recorded as refreshed as of now
+     */
+    private static boolean checkFolderListDue(final long accountId) {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (sFolderListUpdateTimes) {
+            final Long lastUpdate = sFolderListUpdateTimes.get(accountId);
+            if (lastUpdate != null && now - lastUpdate < FOLDER_LIST_REFRESH_INTERVAL) {
+                return false;
+            }
+            sFolderListUpdateTimes.put(accountId, now);
+            return true;
+        }
+    }
+
     /**
      * Partial integration with system SyncManager; we initiate manual syncs upon request
      */
@@ -225,40 +348,43 @@ public class PopImapSyncAdapterService extends Service {
                             updatesCursor.close();
                         }
                     }
-                    for (long mailboxId: mailboxesToUpdate) {
-                        sync(context, mailboxId, extras, syncResult, false, 0);
+                    final long[] mailboxIds = new long[mailboxesToUpdate.size()];
+                    for (int i = 0; i < mailboxIds.length; i++) {
+                        mailboxIds[i] = mailboxesToUpdate.get(i);
                     }
+                    syncMailboxes(context, acct, mailboxIds, extras, syncResult, false, 0);
                 } else {
                     LogUtils.d(TAG, "Sync request for " + acct.mDisplayName);
                     LogUtils.d(TAG, extras.toString());
 
-                    // We update our folder structure on every sync.
-                    final EmailServiceProxy service =
-                            EmailServiceUtils.getServiceForAccount(context, acct.mId);
-                    service.updateFolderList(acct.mId);
+                    final boolean uiRefresh =
+                            extras.getBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, false);
+                    final int deltaMessageCount =
+                            extras.getInt(Mailbox.SYNC_EXTRA_DELTA_MESSAGE_COUNT, 0);
 
-                    // Get the id for the mailbox we want to sync.
+                    // We update our folder structure when the user asks for a sync, and
+                    // otherwise every so often.
+                    if (uiRefresh || checkFolderListDue(acct.mId)) {
+                        final EmailServiceProxy service =
+                                EmailServiceUtils.getServiceForAccount(context, acct.mId);
+                        service.updateFolderList(acct.mId);
+                    }
+
+                    // Get the ids of the mailboxes we want to sync.
                     long [] mailboxIds = Mailbox.getMailboxIdsFromBundle(extras);
                     if (mailboxIds == null || mailboxIds.length == 0) {
-                        // No mailbox specified, just sync the inbox.
-                        // TODO: IMAP may eventually want to allow multiple auto-sync mailboxes.
-                        final long inboxId = Mailbox.findMailboxOfType(context, acct.mId,
-                                Mailbox.TYPE_INBOX);
-                        if (inboxId != Mailbox.NO_MAILBOX) {
-                            mailboxIds = new long[1];
-                            mailboxIds[0] = inboxId;
-                        }
+                        // No mailbox specified; sync the inbox, and whichever other mailboxes
+                        // are due.
+                        final boolean inboxOnly = !context.getString(
+                                R.string.protocol_legacy_imap).equals(acct.getProtocol(context));
+                        mailboxIds = MailboxSyncScheduler.getDueMailboxes(
+                                MailboxSyncScheduler.loadCandidates(context, acct.mId, inboxOnly),
+                                System.currentTimeMillis(), acct.mSyncInterval);
                     }
 
-                    if (mailboxIds != null) {
-                        boolean uiRefresh =
-                            extras.getBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, false);
-                        int deltaMessageCount =
-                                extras.getInt(Mailbox.SYNC_EXTRA_DELTA_MESSAGE_COUNT, 0);
-                        for (long mailboxId : mailboxIds) {
-                            sync(context, mailboxId, extras, syncResult, uiRefresh,
-                                    deltaMessageCount);
-                        }
+                    if (mailboxIds.length > 0) {
+                        syncMailboxes(context, acct, mailboxIds, extras, syncResult, uiRefresh,
+                                deltaMessageCount);
                     }
                 }
             }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.Message;
+import com.android.mail.utils.Clock;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the uids matched by recent server searches, so that "load more" can page through a
+ * result without repeating the search (which can be quite slow).
+ *
+ * Results are keyed by account, mailbox and query, and held as arrays of uids sorted newest
+ * first. The cache is bounded both in the number of results and in the total number of uids it
+ * holds, evicting the least recently used result first; a result also expires after a while, or
+ * as soon as the mailbox it came from is synced.
+ */
+final class SearchResultCache {
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 8;
+    @VisibleForTesting
+    static final int MAX_TOTAL_UIDS = 50000;
+    @VisibleForTesting
+    static final long TTL_MILLIS = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final class Key {
+        final long mAccountId;
+        final long mMailboxId;
+        final String mQuery;
+
+        Key(final long accountId, final long mailboxId, final String query) {
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            mQuery = query;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mAccountId == other.mAccountId && mMailboxId == other.mMailboxId
+                    && mQuery.equals(other.mQuery);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { mAccountId, mMailboxId, mQuery });
+        }
+    }
+
+    private static final class Entry {
+        final long[] mUids;
+        final long mTime;
+
+        Entry(final long[] uids, final long time) {
+            mUids = uids;
+            mTime = time;
+        }
+    }
+
+    private final Clock mClock;
+    /** In access order, so that the eldest entry is the least recently used. */
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(MAX_ENTRIES, 0.75f, true);
+    private int mTotalUids;
+
+    SearchResultCache() {
+        this(Clock.INSTANCE);
+    }
+
+    @VisibleForTesting
+    SearchResultCache(final Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * @return the cached uids for a search, newest first, or null if there are none or they have
+     *     expired
+     */
+    synchronized long[] get(final long accountId, final long mailboxId, final String query) {
+        final Key key = new Key(accountId, mailboxId, query);
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (mClock.getTime() - entry.mTime > TTL_MILLIS) {
+            remove(key);
+            return null;
+        }
+        return entry.mUids;
+    }
+
+    /**
+     * Caches the uids found by a search, replacing any earlier result for it.
+     * @param uids the uids, newest first, as returned by {@link #toSortedUids}
+     */
+    synchronized void put(final long accountId, final long mailboxId, final String query,
+            final long[] uids) {
+        final Key key = new Key(accountId, mailboxId, query);
+        remove(key);
+        if (uids.length > MAX_TOTAL_UIDS) {
+            // Not worth evicting everything else for
+            return;
+        }
+        mEntries.put(key, new Entry(uids, mClock.getTime()));
+        mTotalUids += uids.length;
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (mEntries.size() > MAX_ENTRIES || mTotalUids > MAX_TOTAL_UIDS) {
+            mTotalUids -= it.next().mUids.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops all results from a mailbox; called when its contents may have changed.
+     */
+    synchronized void invalidate(final long accountId, final long mailboxId) {
+        final Iterator<Key> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            final Key key = it.next();
+            if (key.mAccountId == accountId && key.mMailboxId == mailboxId) {
+                mTotalUids -= mEntries.get(key).mUids.length;
+                it.remove();
+            }
+        }
+    }
+
+    private void remove(final Key key) {
+        final Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mTotalUids -= entry.mUids.length;
+        }
+    }
+
+    /**
+     * Extracts the uids of a search result, sorted newest (i.e. highest) first. Not all servers
+     * return results in the order of the request, so we can't rely on the order we're given.
+     */
+    static long[] toSortedUids(final Message[] messages) {
+        final long[] uids = new long[messages.length];
+        int count = 0;
+        for (final Message message : messages) {
+            try {
+                uids[count] = Long.parseLong(message.getUid());
+                count++;
+            } catch (final NumberFormatException e) {
+                LogUtils.w(Logging.LOG_TAG, "Ignoring search result with bad uid %s",
+                        message.getUid());
+            }
+        }
+        Arrays.sort(uids, 0, count);
+        final long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = uids[count - 1 - i];
+        }
+        return sorted;
+    }
+
+    /**
+     * @return the uids in a window of a search result, as strings for use with
+     *     {@link com.android.emailcommon.mail.Folder#getMessages(String[],
+     *     com.android.emailcommon.mail.Folder.MessageRetrievalListener)}
+     */
+    static String[] getPage(final long[] uids, final int offset, final int limit) {
+        final int count = Math.max(0, Math.min(uids.length - offset, limit));
+        final String[] page = new String[count];
+        for (int i = 0; i < count; i++) {
+            page[i] = Long.toString(uids[offset + i]);
+        }
+        return page;
+    }
+}
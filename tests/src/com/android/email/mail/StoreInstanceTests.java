@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.mail.utils.LogUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests of the Store instance cache, using in-memory accounts
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.StoreInstanceTests email
+ */
+@SmallTest
+public class StoreInstanceTests extends AndroidTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Store.sStores.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Store.sStores.clear();
+        super.tearDown();
+    }
+
+    private static Account setupAccount(long id, String password) {
+        final Account account = new Account();
+        account.mId = id;
+        account.mDisplayName = "account" + id;
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.mId = id;
+        hostAuth.mProtocol = "pop3";
+        hostAuth.mAddress = "pop3.example.com";
+        hostAuth.mPort = 110;
+        hostAuth.mLogin = "user" + id;
+        hostAuth.mPassword = password;
+        account.mHostAuthRecv = hostAuth;
+        account.mHostAuthKeyRecv = id;
+        return account;
+    }
+
+    public void testCached() throws MessagingException {
+        final Account account = setupAccount(1, "password");
+        final Store store = Store.getInstance(account, getContext());
+        assertNotNull(store);
+        assertSame(store, Store.getInstance(account, getContext()));
+        // A different object for the same account gets the same store, and updates its account
+        final Account copy = setupAccount(1, "password");
+        assertSame(store, Store.getInstance(copy, getContext()));
+        assertSame(copy, store.getAccount());
+        assertNotSame(store, Store.getInstance(setupAccount(2, "password"), getContext()));
+        assertEquals(2, Store.sStores.size());
+    }
+
+    public void testTemporaryNotCached() throws MessagingException {
+        final Account account = setupAccount(1, "password");
+        account.setTemporary(true);
+        final Store store = Store.getInstance(account, getContext());
+        assertNotNull(store);
+        assertNotSame(store, Store.getInstance(account, getContext()));
+        assertEquals(0, Store.sStores.size());
+    }
+
+    public void testCredentialChangeInvalidates() throws MessagingException {
+        final Store oldStore = Store.getInstance(setupAccount(1, "old"), getContext());
+        final Account changed = setupAccount(1, "new");
+        final Store newStore = Store.getInstance(changed, getContext());
+        assertNotSame(oldStore, newStore);
+        // The store for the old credentials is gone, and closed
+        assertEquals(1, Store.sStores.size());
+        assertSame(newStore, Store.sStores.get(1L).mStore);
+        assertTrue(oldStore.isClosed());
+        assertFalse(newStore.isClosed());
+    }
+
+    /**
+     * Test that a caller with an out of date account doesn't evict the store cached for the
+     * current one, so that old and new account objects don't keep replacing each other's store.
+     */
+    public void testOldAccountDoesNotEvict() throws MessagingException {
+        final Account old = setupAccount(1, "old");
+        Store.getInstance(old, getContext());
+        final Account changed = setupAccount(1, "new");
+        final Store newStore = Store.getInstance(changed, getContext());
+
+        final Store oldStore = Store.getInstance(old, getContext());
+        assertNotSame(newStore, oldStore);
+        // It gets a store of its own, which doesn't keep its connections
+        assertTrue(oldStore.isClosed());
+        assertSame(newStore, Store.sStores.get(1L).mStore);
+        assertSame(newStore, Store.getInstance(changed, getContext()));
+        assertFalse(newStore.isClosed());
+    }
+
+    public void testConcurrentGetInstance() throws Exception {
+        final int threadCount = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Store[] stores = new Store[threadCount];
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        stores[index] = Store.getInstance(setupAccount(1, "password"),
+                                getContext());
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        // Everyone got the one store that was cached
+        for (final Store store : stores) {
+            assertSame(Store.sStores.get(1L).mStore, store);
+        }
+    }
+
+    /**
+     * Not a test as such; logs how long many threads take to look up the stores of many
+     * accounts at once.
+     */
+    @LargeTest
+    public void testGetInstanceContention() throws Exception {
+        final int threadCount = 16;
+        final int accountCount = 50;
+        final int lookupsPerThread = 50000;
+        final Account[] accounts = new Account[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = setupAccount(i + 1, "password");
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int offset = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < lookupsPerThread; n++) {
+                            Store.getInstance(accounts[(n + offset) % accountCount],
+                                    getContext());
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        final long startTime = SystemClock.elapsedRealtime();
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - startTime;
+        assertNull(failure.get());
+        assertEquals(accountCount, Store.sStores.size());
+        LogUtils.d(LogUtils.TAG, "Store.getInstance: %d threads, %d accounts, %d lookups in %d ms",
+                threadCount, accountCount, threadCount * lookupsPerThread, elapsed);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.internet;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.text.format.DateUtils;
+
+import com.android.email.DBTestHelper;
+import com.android.email.MockClock;
+import com.android.email.mail.internet.OAuthAuthenticator.AuthenticationResult;
+import com.android.email.provider.ProviderTestUtils;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Credential;
+import com.android.emailcommon.provider.HostAuth;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the token refresh behavior of {@link AuthenticationCache}. The token endpoint is
+ * replaced by {@link FakeAuthenticator}, and time by a {@link MockClock}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.internet.AuthenticationCacheTests email
+ */
+@MediumTest
+public class AuthenticationCacheTests extends AndroidTestCase {
+    private static final long NOW = 1000 * DateUtils.DAY_IN_MILLIS;
+    private static final int EXPIRES_IN_SECONDS = 3600;
+
+    private Context mProviderContext;
+    private MockClock mClock;
+    private ScheduledThreadPoolExecutor mScheduler;
+    private FakeAuthenticator mAuthenticator;
+    private AuthenticationCache mCache;
+
+    /**
+     * Stands in for the OAuth token endpoint. Each refresh hands out a new numbered token, and
+     * can be made to wait until the test lets it complete.
+     */
+    private static class FakeAuthenticator extends OAuthAuthenticator {
+        final AtomicInteger mRefreshCount = new AtomicInteger();
+        volatile CountDownLatch mStarted = new CountDownLatch(1);
+        volatile CountDownLatch mRelease;
+
+        @Override
+        public AuthenticationResult requestRefresh(final Context context, final String providerId,
+                final String refreshToken) throws MessagingException, IOException {
+            final int count = mRefreshCount.incrementAndGet();
+            mStarted.countDown();
+            if (mRelease != null) {
+                try {
+                    mRelease.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException();
+                }
+            }
+            return new AuthenticationResult("access-" + count, null, EXPIRES_IN_SECONDS);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+        mClock = new MockClock();
+        mClock.mTime = NOW;
+        mScheduler = new ScheduledThreadPoolExecutor(1);
+        mAuthenticator = new FakeAuthenticator();
+        mCache = new AuthenticationCache(mAuthenticator, mClock, mScheduler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.shutdownNow();
+        super.tearDown();
+    }
+
+    private Account setupAccount(final long expiration) {
+        final Account account = ProviderTestUtils.setupAccount("oauth", false, mProviderContext);
+        final HostAuth hostAuth = ProviderTestUtils.setupHostAuth("imap", "oauth", false,
+                mProviderContext);
+        final Credential credential = hostAuth.getOrCreateCredential(mProviderContext);
+        credential.mProviderId = "provider";
+        credential.mAccessToken = "access-initial";
+        credential.mRefreshToken = "refresh";
+        credential.mExpiration = expiration;
+        account.mHostAuthRecv = hostAuth;
+        account.save(mProviderContext);
+        return account;
+    }
+
+    /** A valid token is returned without waiting for the server. */
+    public void testValidTokenDoesNotBlock() throws Exception {
+        final Account account = setupAccount(NOW + DateUtils.HOUR_IN_MILLIS);
+        mAuthenticator.mRelease = new CountDownLatch(1);
+        assertEquals("access-initial", mCache.retrieveAccessToken(mProviderContext, account));
+        assertEquals(0, mAuthenticator.mRefreshCount.get());
+    }
+
+    /**
+     * The background refresh is scheduled ahead of expiry, with the jitter keeping it within the
+     * window.
+     */
+    public void testRefreshScheduledAheadOfExpiry() throws Exception {
+        final Account account = setupAccount(NOW + DateUtils.HOUR_IN_MILLIS);
+        assertEquals(-1, mCache.getScheduledRefreshDelay(account.mId));
+        mCache.retrieveAccessToken(mProviderContext, account);
+
+        final long delay = mCache.getScheduledRefreshDelay(account.mId);
+        final long latest = DateUtils.HOUR_IN_MILLIS - AuthenticationCache.REFRESH_AHEAD;
+        final long earliest = latest - AuthenticationCache.REFRESH_JITTER;
+        // Allow a little for the real time that has passed since it was scheduled
+        assertTrue("delay " + delay, delay <= latest);
+        assertTrue("delay " + delay, delay > earliest - DateUtils.SECOND_IN_MILLIS);
+
+        // Asking again doesn't reschedule it
+        mCache.retrieveAccessToken(mProviderContext, account);
+        assertTrue(mCache.getScheduledRefreshDelay(account.mId) <= delay);
+    }
+
+    /**
+     * A token that is inside the refresh window but still usable is handed out straight away,
+     * and renewed in the background.
+     */
+    public void testBackgroundRefresh() throws Exception {
+        final Account account = setupAccount(NOW + 10 * DateUtils.MINUTE_IN_MILLIS);
+        assertEquals("access-initial", mCache.retrieveAccessToken(mProviderContext, account));
+        assertTrue(mAuthenticator.mStarted.await(5, TimeUnit.SECONDS));
+        waitForIdle();
+
+        assertEquals(1, mAuthenticator.mRefreshCount.get());
+        assertEquals("access-1", mCache.retrieveAccessToken(mProviderContext, account));
+        // The new token was saved, and handing it out scheduled its own refresh
+        final Account restored = Account.restoreAccountWithId(mProviderContext, account.mId);
+        final Credential credential = restored.getOrCreateHostAuthRecv(mProviderContext)
+                .getOrCreateCredential(mProviderContext);
+        assertEquals("access-1", credential.mAccessToken);
+        assertEquals("refresh", credential.mRefreshToken);
+        assertEquals(NOW + EXPIRES_IN_SECONDS * DateUtils.SECOND_IN_MILLIS,
+                credential.mExpiration);
+        assertTrue(mCache.getScheduledRefreshDelay(account.mId) > 0);
+    }
+
+    /** A background refresh doesn't schedule another one until the new token is used. */
+    public void testBackgroundRefreshNotRescheduledWithoutUse() throws Exception {
+        final Account account = setupAccount(NOW + 10 * DateUtils.MINUTE_IN_MILLIS);
+        mCache.retrieveAccessToken(mProviderContext, account);
+        assertTrue(mAuthenticator.mStarted.await(5, TimeUnit.SECONDS));
+        waitForIdle();
+
+        assertEquals(1, mAuthenticator.mRefreshCount.get());
+        assertEquals(-1, mCache.getScheduledRefreshDelay(account.mId));
+    }
+
+    /** An entry whose account is deleted while it's being refreshed is dropped. */
+    public void testDeletedAccountDropped() throws Exception {
+        final Account account = setupAccount(NOW + 10 * DateUtils.MINUTE_IN_MILLIS);
+        mAuthenticator.mRelease = new CountDownLatch(1);
+        mCache.retrieveAccessToken(mProviderContext, account);
+        assertTrue(mAuthenticator.mStarted.await(5, TimeUnit.SECONDS));
+        mProviderContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Account.CONTENT_URI, account.mId), null, null);
+        assertNull(Account.restoreAccountWithId(mProviderContext, account.mId));
+        mAuthenticator.mRelease.countDown();
+        waitForIdle();
+
+        assertEquals(1, mAuthenticator.mRefreshCount.get());
+        assertEquals(-1, mCache.getScheduledRefreshDelay(account.mId));
+    }
+
+    /** A token that is about to expire is replaced before it is returned. */
+    public void testExpiredTokenBlocksForRefresh() throws Exception {
+        final Account account = setupAccount(NOW + DateUtils.MINUTE_IN_MILLIS);
+        assertEquals("access-1", mCache.retrieveAccessToken(mProviderContext, account));
+        assertEquals(1, mAuthenticator.mRefreshCount.get());
+        assertEquals("access-1", mCache.retrieveAccessToken(mProviderContext, account));
+        assertEquals(1, mAuthenticator.mRefreshCount.get());
+    }
+
+    /** Threads that all need a new token at once share a single request for it. */
+    public void testConcurrentRefreshIsSingleFlight() throws Exception {
+        final Account account = setupAccount(NOW - DateUtils.MINUTE_IN_MILLIS);
+        mAuthenticator.mRelease = new CountDownLatch(1);
+        final int threadCount = 4;
+        final String[] tokens = new String[threadCount];
+        final Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        tokens[index] = mCache.retrieveAccessToken(mProviderContext, account);
+                    } catch (Exception e) {
+                        // Leaves the token null, which fails the test
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        assertTrue(mAuthenticator.mStarted.await(5, TimeUnit.SECONDS));
+        // Give the other threads a chance to pile up behind the first
+        Thread.sleep(100);
+        mAuthenticator.mRelease.countDown();
+        for (final Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(1, mAuthenticator.mRefreshCount.get());
+        for (final String token : tokens) {
+            assertEquals("access-1", token);
+        }
+    }
+
+    /** A forced refresh that races with another one doesn't make a second request. */
+    public void testRefreshAccessTokenDeduplicated() throws Exception {
+        final Account account = setupAccount(NOW + DateUtils.HOUR_IN_MILLIS);
+        mAuthenticator.mRelease = new CountDownLatch(1);
+        final String[] result = new String[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = mCache.refreshAccessToken(mProviderContext, account);
+                } catch (Exception e) {
+                    // Leaves the token null, which fails the test
+                }
+            }
+        };
+        thread.start();
+        assertTrue(mAuthenticator.mStarted.await(5, TimeUnit.SECONDS));
+        final Thread second = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    mCache.refreshAccessToken(mProviderContext, account);
+                } catch (Exception e) {
+                    // Checked by the count below
+                }
+            }
+        };
+        second.start();
+        Thread.sleep(100);
+        mAuthenticator.mRelease.countDown();
+        thread.join(5000);
+        second.join(5000);
+
+        assertEquals("access-1", result[0]);
+        // The second caller asked while the first request was in flight, so it shares it
+        assertEquals(1, mAuthenticator.mRefreshCount.get());
+        // Once that has finished, a forced refresh makes a new request
+        assertEquals("access-2", mCache.refreshAccessToken(mProviderContext, account));
+    }
+
+    /** Waits for everything the scheduler has been asked to run so far to finish. */
+    private void waitForIdle() throws Exception {
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 0, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+    }
+}
@@ -28,6 +28,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 
 import com.android.email.DBTestHelper;
+import com.android.email.MockClock;
 import com.android.email.MockSharedPreferences;
 import com.android.email.MockVendorPolicy;
 import com.android.email.mail.store.ImapStore.ImapMessage;
@@ -1445,6 +1446,8 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
     public void testOpen() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
+        // Connections are handed back out without a NOOP while they're fresh
+        mStore.setClockForTest(new MockClock());
         expectLogin(mock);
 
         final Folder folder = mStore.getFolder("test");
@@ -1460,8 +1463,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         } catch (MessagingException expected) {
         }
 
-        // READ-WRITE
-        expectNoop(mock, true); // Need it because we reuse the connection.
+        // READ-WRITE; the failed SELECT left nothing selected, so this one is sent
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
                 "* 1 eXISTS",
@@ -1477,31 +1479,68 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         folder.close(false);
         assertFalse(folder.isOpen());
 
-        // READ-ONLY
-        expectNoop(mock, true); // Need it because we reuse the connection.
-        mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
+        // The connection still has the mailbox selected, so only a NOOP is sent, which picks up
+        // the new message count
+        mock.expect(getNextTag(false) + " NOOP",
                 new String[] {
                 "* 2 eXISTS",
-                getNextTag(true) + " oK [rEAD-oNLY]"
+                getNextTag(true) + " oK success"
                 });
 
         folder.open(OpenMode.READ_WRITE);
         assertTrue(folder.exists());
         assertEquals(2, folder.getMessageCount());
-        assertEquals(OpenMode.READ_ONLY, folder.getMode());
+        assertEquals(OpenMode.READ_WRITE, folder.getMode());
+    }
+
+    /**
+     * Test that a skipped SELECT reports the message count as it is now: messages expunged while
+     * the folder was in use (reported in the middle of a FETCH) and new ones that arrived while
+     * the connection was in the pool are both counted.
+     */
+    public void testSkippedSelectMessageCount() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mStore.setClockForTest(new MockClock());
+        expectLogin(mock);
 
-        // Try to re-open as read-write.  Should send SELECT again.
-        expectNoop(mock, true); // Need it because we reuse the connection.
+        final Folder folder = mStore.getFolder("test");
         mock.expect(getNextTag(false) + " SELECT \\\"test\\\"",
                 new String[] {
-                "* 15 eXISTS",
-                getNextTag(true) + " oK selected"
+                "* 5 eXISTS",
+                getNextTag(true) + " oK [rEAD-wRITE]"
+                });
+        folder.open(OpenMode.READ_WRITE);
+        assertEquals(5, folder.getMessageCount());
+
+        final Message message = folder.createMessage("1");
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        mock.expect(getNextTag(false) + " UID FETCH 1 \\(UID FLAGS\\)",
+                new String[] {
+                "* 3 eXPUNGE",
+                "* 1 fETCH (uID 1 fLAGS (\\Seen))",
+                "* 2 eXPUNGE",
+                getNextTag(true) + " oK SUCCESS"
                 });
+        folder.fetch(new Message[] { message }, fp, null);
+        assertTrue(message.isSet(Flag.SEEN));
+        assertEquals(3, folder.getMessageCount());
+        folder.close(false);
 
+        // Reopened on the same connection: no SELECT, and the expunges are remembered
+        expectNoop(mock, true);
         folder.open(OpenMode.READ_WRITE);
-        assertTrue(folder.exists());
-        assertEquals(15, folder.getMessageCount());
-        assertEquals(OpenMode.READ_WRITE, folder.getMode());
+        assertEquals(3, folder.getMessageCount());
+        folder.close(false);
+
+        // Mail that arrived meanwhile is reported in response to the NOOP
+        mock.expect(getNextTag(false) + " NOOP",
+                new String[] {
+                "* 4 eXISTS",
+                getNextTag(true) + " oK success"
+                });
+        folder.open(OpenMode.READ_WRITE);
+        assertEquals(4, folder.getMessageCount());
     }
 
     public void testExists() throws Exception {
@@ -1986,6 +2025,8 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      */
     public void testGetConnection() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
+        MockClock clock = new MockClock();
+        mStore.setClockForTest(clock);
 
         // Start: No pooled connections.
         assertEquals(0, mStore.getConnectionPoolForTest().size());
@@ -2025,6 +2066,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(1, mStore.getConnectionPoolForTest().size());
 
         // Get another connection.  Should get con1, after verifying the connection.
+        clock.advance(ImapStore.CONNECTION_VALIDATION_INTERVAL_MILLIS);
         saveTag = resetTag(saveTag);
         mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + " oK success"});
 
@@ -2041,6 +2083,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         resetTag(saveTag);
 
         // Try to get connection, but this time, connection gets closed.
+        clock.advance(ImapStore.CONNECTION_VALIDATION_INTERVAL_MILLIS);
         mock.expect(getNextTag(false) + " NOOP", new String[] {getNextTag(true) + "* bYE bye"});
         final ImapConnection con3 = mStore.getConnection();
         assertNotNull(con3);
@@ -2051,6 +2094,72 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertNotSame(con2, con3);
     }
 
+    /**
+     * Test that {@link ImapStore#getConnection} only validates connections that have been idle
+     * for a while, and drops those that have been idle too long.
+     */
+    public void testGetConnectionSkipsRecentValidation() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        MockClock clock = new MockClock();
+        mStore.setClockForTest(clock);
+
+        final ImapConnection con1 = mStore.getConnection();
+        expectLogin(mock);
+        con1.open();
+        mStore.poolConnection(con1);
+        assertEquals(1, mStore.getConnectionPoolForTest().size());
+
+        // Returned just now, so no NOOP is sent (the mock would fail on an unexpected command)
+        clock.advance(ImapStore.CONNECTION_VALIDATION_INTERVAL_MILLIS - 1);
+        assertSame(con1, mStore.getConnection());
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+        assertTrue(con1.isTransportOpenForTest());
+
+        // Idle past the timeout; the connection is closed and a new one is created
+        mStore.poolConnection(con1);
+        clock.advance(ImapStore.CONNECTION_IDLE_TIMEOUT_MILLIS);
+        final ImapConnection con2 = mStore.getConnection();
+        assertNotSame(con1, con2);
+        assertFalse(con1.isTransportOpenForTest());
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+    }
+
+    /**
+     * Test that the pool never holds more than {@link ImapStore#MAX_POOLED_CONNECTIONS}.
+     */
+    public void testPoolConnectionCapsIdleConnections() throws Exception {
+        openAndInjectMockTransport();
+        mStore.setClockForTest(new MockClock());
+
+        final ArrayList<ImapConnection> connections = new ArrayList<ImapConnection>();
+        for (int i = 0; i <= ImapStore.MAX_POOLED_CONNECTIONS; i++) {
+            connections.add(mStore.getConnection());
+        }
+        for (ImapConnection connection : connections) {
+            mStore.poolConnection(connection);
+        }
+        assertEquals(ImapStore.MAX_POOLED_CONNECTIONS, mStore.getConnectionPoolForTest().size());
+        // The least recently returned connection is the one that was dropped
+        assertFalse(mStore.getConnectionPoolForTest().contains(connections.get(0)));
+    }
+
+    /**
+     * Test that a connection in use when the store is closed is closed when it's released,
+     * rather than pooled.
+     */
+    public void testPoolConnectionClosesAfterStoreClosed() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        mStore.setClockForTest(new MockClock());
+
+        final ImapConnection con1 = mStore.getConnection();
+        expectLogin(mock);
+        con1.open();
+        mStore.close();
+        mStore.poolConnection(con1);
+        assertEquals(0, mStore.getConnectionPoolForTest().size());
+        assertFalse(con1.isTransportOpenForTest());
+    }
+
     public void testCheckSettings() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.utility.Utility;
+import com.beetstra.jutf7.CharsetProvider;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Random;
+
+/**
+ * Tests of the modified UTF-7 codec, mostly by comparison with the jutf7 charset it replaces.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.ModifiedUtf7Tests email
+ */
+@SmallTest
+public class ModifiedUtf7Tests extends TestCase {
+    private static final Charset JUTF7 = new CharsetProvider().charsetForName("X-RFC-3501");
+
+    /** Characters that exercise the edges of the encoding. */
+    private static final char[] INTERESTING_CHARS = new char[] {
+            'a', 'Z', '0', '&', '-', '+', ',', '/', '~', ' ', '\t', '\u0000', '\u007f', '\u00e9',
+            '\u65E5', '\uffff', '\ud83d', '\ude00' };
+    /** Characters that can appear in an encoded name. */
+    private static final String ENCODED_CHARS = "AZaz09+,&-&-x ";
+
+    private static String jutf7Encode(String s) {
+        final ByteBuffer bb = JUTF7.encode(s);
+        final byte[] b = new byte[bb.limit()];
+        bb.get(b);
+        return Utility.fromAscii(b);
+    }
+
+    /** @return the jutf7 decoding of the string, or null if jutf7 considers it malformed */
+    private static String jutf7Decode(String s) {
+        try {
+            return JUTF7.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(Utility.toAscii(s))).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    public void testEncode() {
+        assertEquals("", ModifiedUtf7.encode(""));
+        assertEquals("INBOX/Sent Items", ModifiedUtf7.encode("INBOX/Sent Items"));
+        assertEquals("&-", ModifiedUtf7.encode("&"));
+        assertEquals("&ZeVnLIqe-", ModifiedUtf7.encode("\u65E5\u672C\u8A9E"));
+        assertEquals("~peter/mail/&U,BTFw-/&ZeVnLIqe-",
+                ModifiedUtf7.encode("~peter/mail/\u53F0\u5317/\u65E5\u672C\u8A9E"));
+        // Just like jutf7, a '&' inside a run of non-ASCII is encoded along with it
+        assertEquals(jutf7Encode("\u65E5&"), ModifiedUtf7.encode("\u65E5&"));
+    }
+
+    public void testPlainNamesNotCopied() {
+        final String name = "Archive/2014";
+        assertSame(name, ModifiedUtf7.encode(name));
+        assertSame(name, ModifiedUtf7.decode(name));
+    }
+
+    public void testDecode() {
+        assertEquals("", ModifiedUtf7.decode(""));
+        assertEquals("&", ModifiedUtf7.decode("&-"));
+        assertEquals("\u65E5\u672C\u8A9E", ModifiedUtf7.decode("&ZeVnLIqe-"));
+        assertEquals("~peter/mail/\u53F0\u5317/\u65E5\u672C\u8A9E",
+                ModifiedUtf7.decode("~peter/mail/&U,BTFw-/&ZeVnLIqe-"));
+    }
+
+    public void testDecodeMalformed() {
+        // Unterminated
+        assertNull(ModifiedUtf7.decode("&ZeVnLIqe"));
+        // Not base64
+        assertNull(ModifiedUtf7.decode("&Ze.nLIqe-"));
+        // Non-zero padding
+        assertNull(ModifiedUtf7.decode("&ZeX-"));
+        // Adjacent runs
+        assertNull(ModifiedUtf7.decode("&ZeU-&ZeU-"));
+        // Not ASCII
+        assertNull(ModifiedUtf7.decode("\u00e9&-"));
+        // The store falls back to jutf7 for these, so the result is unchanged
+        assertEquals(JUTF7.decode(ByteBuffer.wrap(Utility.toAscii("&ZeU-&ZeU-"))).toString(),
+                ImapStore.decodeFolderName("&ZeU-&ZeU-", null));
+    }
+
+    /**
+     * Encodes random strings with both codecs, and checks that the results match and that they
+     * decode back to the original.
+     */
+    public void testEncodeMatchesJutf7() {
+        final Random random = new Random(0);
+        for (int n = 0; n < 20000; n++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                sb.append(random.nextInt(3) == 0 ? (char) random.nextInt(0x10000)
+                        : INTERESTING_CHARS[random.nextInt(INTERESTING_CHARS.length)]);
+            }
+            final String s = sb.toString();
+            final String expected = jutf7Encode(s);
+            assertEquals(expected, ModifiedUtf7.encode(s));
+            assertEquals(s, ModifiedUtf7.decode(expected));
+        }
+    }
+
+    /**
+     * Decodes random strings of the characters that can appear in encoded names with both
+     * codecs, and checks that they agree on both the result and which strings are malformed.
+     */
+    public void testDecodeMatchesJutf7() {
+        final Random random = new Random(0);
+        for (int n = 0; n < 20000; n++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                sb.append(ENCODED_CHARS.charAt(random.nextInt(ENCODED_CHARS.length())));
+            }
+            final String s = sb.toString();
+            assertEquals(s, jutf7Decode(s), ModifiedUtf7.decode(s));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+
+import junit.framework.TestCase;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the IMAP date-time parser, mostly by comparison with the {@link SimpleDateFormat} it
+ * replaces.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.store.imap.ImapDateTimeTest email
+ */
+@SmallTest
+public class ImapDateTimeTest extends TestCase {
+    private static final String[] MONTHS = new String[] { "Jan", "Feb", "Mar", "Apr", "May",
+            "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec", "jan", "FEB", "Foo" };
+    /** Characters that are swapped in to make values malformed. */
+    private static final String NOISE = "0123456789-+: aJnx";
+
+    private static long parseWithSimpleDateFormat(String s) {
+        try {
+            return new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US).parse(s).getTime();
+        } catch (ParseException e) {
+            return ImapDateTime.INVALID;
+        }
+    }
+
+    private static String randomDateTime(Random random) {
+        final int day = random.nextInt(32);
+        final String dayString;
+        switch (random.nextInt(4)) {
+            case 0:
+                dayString = " " + (day % 10);
+                break;
+            case 1:
+                dayString = Integer.toString(day % 10);
+                break;
+            default:
+                dayString = String.format(Locale.US, "%02d", day);
+                break;
+        }
+        String s = String.format(Locale.US, "%s-%s-%04d %02d:%02d:%02d %c%02d%02d", dayString,
+                MONTHS[random.nextInt(MONTHS.length)],
+                random.nextInt(20) == 0 ? random.nextInt(10000) : 1900 + random.nextInt(300),
+                random.nextInt(24), random.nextInt(60), random.nextInt(61),
+                random.nextBoolean() ? '+' : '-', random.nextInt(24), random.nextInt(60));
+        if (random.nextInt(5) == 0) {
+            final char[] chars = s.toCharArray();
+            chars[random.nextInt(chars.length)] = NOISE.charAt(random.nextInt(NOISE.length()));
+            s = new String(chars);
+        }
+        return s;
+    }
+
+    public void testWellFormed() {
+        assertEquals(1230813296000L, ImapDateTime.parseWellFormed("01-Jan-2009 11:34:56 -0100"));
+        assertEquals(1230813296000L, ImapDateTime.parseWellFormed(" 1-Jan-2009 13:34:56 +0100"));
+        assertEquals(1230813296000L, ImapDateTime.parseWellFormed("1-jan-2009 12:34:56 +0000"));
+        assertEquals(951782400000L, ImapDateTime.parseWellFormed("29-Feb-2000 00:00:00 +0000"));
+        assertEquals(0L, ImapDateTime.parseWellFormed("31-Dec-1969 16:00:00 -0800"));
+    }
+
+    public void testNotWellFormed() {
+        assertEquals(ImapDateTime.INVALID, ImapDateTime.parseWellFormed(""));
+        assertEquals(ImapDateTime.INVALID, ImapDateTime.parseWellFormed("1234"));
+        assertEquals(ImapDateTime.INVALID,
+                ImapDateTime.parseWellFormed("01-Foo-2009 11:34:56 -0100"));
+        // Out of range
+        assertEquals(ImapDateTime.INVALID,
+                ImapDateTime.parseWellFormed("29-Feb-2001 11:34:56 -0100"));
+        assertEquals(ImapDateTime.INVALID,
+                ImapDateTime.parseWellFormed("01-Jan-2009 24:00:00 -0100"));
+        // Trailing text
+        assertEquals(ImapDateTime.INVALID,
+                ImapDateTime.parseWellFormed("01-Jan-2009 11:34:56 -0100 (PST)"));
+
+        // These are still parsed, just as before
+        assertEquals(parseWithSimpleDateFormat("29-Feb-2001 11:34:56 -0100"),
+                ImapDateTime.parse("29-Feb-2001 11:34:56 -0100"));
+        assertEquals(1230813296000L, ImapDateTime.parse("01-Jan-2009 11:34:56 -0100 (PST)"));
+        assertEquals(ImapDateTime.INVALID, ImapDateTime.parse("1234"));
+    }
+
+    /**
+     * Parses random values, many of them malformed or out of range, with both parsers, and checks
+     * that the results match.
+     */
+    public void testMatchesSimpleDateFormat() {
+        final Random random = new Random(0);
+        int wellFormed = 0;
+        for (int n = 0; n < 20000; n++) {
+            final String s = randomDateTime(random);
+            if (ImapDateTime.parseWellFormed(s) != ImapDateTime.INVALID) {
+                wellFormed++;
+            }
+            assertEquals(s, parseWithSimpleDateFormat(s), ImapDateTime.parse(s));
+        }
+        // Make sure that both paths were exercised
+        assertTrue(wellFormed > 1000);
+        assertTrue(wellFormed < 19000);
+    }
+
+    public void testConcurrentParsing() throws Exception {
+        final String[] values = new String[200];
+        final long[] expected = new long[values.length];
+        final Random random = new Random(0);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = randomDateTime(random);
+            expected[i] = parseWithSimpleDateFormat(values[i]);
+        }
+        final AtomicInteger mismatches = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 20; n++) {
+                        for (int i = 0; i < values.length; i++) {
+                            if (ImapDateTime.parse(values[i]) != expected[i]) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, mismatches.get());
+    }
+
+    /**
+     * Compares the time taken to parse well formed values with the old parser. Timings are
+     * logged rather than asserted, since they depend on the device.
+     */
+    @LargeTest
+    public void testParseSpeed() throws Exception {
+        final int count = 100000;
+        final String[] values = new String[1000];
+        final Random random = new Random(0);
+        for (int i = 0; i < values.length; i++) {
+            String s;
+            do {
+                s = randomDateTime(random);
+            } while (ImapDateTime.parseWellFormed(s) == ImapDateTime.INVALID);
+            values[i] = s;
+        }
+
+        final SimpleDateFormat format = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            format.parse(values[i % values.length]);
+        }
+        final long oldMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            ImapDateTime.parse(values[i % values.length]);
+        }
+        final long newMillis = (System.nanoTime() - start) / 1000000;
+        LogUtils.d(LogUtils.TAG, "Parsing %d dates: SimpleDateFormat %d ms, ImapDateTime %d ms",
+                count, oldMillis, newMillis);
+    }
+}
@@ -16,9 +16,13 @@
 
 package com.android.email.mail.transport;
 
+import android.os.SystemClock;
 import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.mail.utils.LogUtils;
+
 import junit.framework.TestCase;
 
 @SmallTest
@@ -123,6 +127,76 @@ public class DiscourseLoggerTest extends TestCase {
                 ));
     }
 
+    public void testCommandsOrderedByLineEnd() {
+        // A command sent while a line is being received is logged before that line
+        checkDiscourseStore(10,
+                o(
+                        "1",
+                        b("2"),
+                        "3",
+                        b("4\n5\n")
+                ),
+                s(
+                        "1",
+                        "3",
+                        "24",
+                        "5"
+                ));
+    }
+
+    public void testReceivedBytesOverflow() {
+        final DiscourseLogger store = new DiscourseLogger(4);
+        for (final byte b : b("lost\n")) {
+            store.addReceivedByte(b);
+        }
+        for (int i = 0; i < 100000; i++) {
+            store.addReceivedByte('x');
+        }
+        for (int i = 0; i < 5; i++) {
+            store.addReceivedByte('y');
+        }
+        store.addReceivedByte('\n');
+        store.addReceivedByte('z');
+
+        final String[] lines = store.getLines();
+        assertEquals(2, lines.length);
+        // Only the end of the long line is kept, and it's marked as such
+        assertTrue(lines[0].startsWith("...x"));
+        assertTrue(lines[0].endsWith("xyyyyy"));
+        assertEquals("z", lines[1]);
+    }
+
+    /**
+     * Measures the cost of logging received data, compared with just reading it. The numbers are
+     * logged rather than asserted, since they depend on the device.
+     */
+    @LargeTest
+    public void testReceiveOverhead() {
+        final byte[] response = new byte[16 * 1024 * 1024];
+        for (int i = 0; i < response.length; i++) {
+            response[i] = (byte) ((i % 80 == 79) ? '\n' : 'a' + (i % 26));
+        }
+        final DiscourseLogger store = new DiscourseLogger(64);
+
+        long start = SystemClock.elapsedRealtime();
+        int checksum = 0;
+        for (final byte b : response) {
+            checksum += b;
+        }
+        final long baseline = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (final byte b : response) {
+            checksum += b;
+            store.addReceivedByte(b);
+        }
+        final long logged = SystemClock.elapsedRealtime() - start;
+
+        LogUtils.d(LogUtils.TAG, "DiscourseLogger over %d bytes: read %d ms, logged %d ms (%d)",
+                response.length, baseline, logged, checksum);
+        assertEquals(64, store.getLines().length);
+    }
+
     private void checkDiscourseStore(int storeSize, Object[] discource, String[] expected) {
         DiscourseLogger store = new DiscourseLogger(storeSize);
         for (Object o : discource) {
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.HostAuth;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Tests of TLS session reuse by {@link MailTransport}, against a local {@link TlsTestServer}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.mail.transport.MailTransportTlsTests email
+ */
+@MediumTest
+public class MailTransportTlsTests extends AndroidTestCase {
+    private static final int CONNECTIONS = 10;
+
+    // HostAuth ids that won't be found in the provider; the trust manager looks them up
+    private static long sNextHostAuthId = Long.MAX_VALUE / 2;
+
+    private TlsTestServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new TlsTestServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    private HostAuth newHostAuth() {
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.mId = sNextHostAuthId++;
+        hostAuth.mAddress = mServer.getHost();
+        hostAuth.mPort = mServer.getPort();
+        hostAuth.mFlags = HostAuth.FLAG_SSL | HostAuth.FLAG_TRUST_ALL;
+        return hostAuth;
+    }
+
+    /**
+     * Opens a connection, reads the greeting and closes it.
+     * @return the time taken to connect, including the handshake, in milliseconds
+     */
+    private long connect(final HostAuth hostAuth) throws Exception {
+        final MailTransport transport = new MailTransport(getContext(), "test", hostAuth);
+        final long start = SystemClock.elapsedRealtime();
+        transport.open();
+        try {
+            assertEquals(TlsTestServer.GREETING, transport.readLine(false));
+            return SystemClock.elapsedRealtime() - start;
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void testSessionResumedAcrossTransports() throws Exception {
+        final HostAuth hostAuth = newHostAuth();
+        final long firstTime = connect(hostAuth);
+        long resumedTime = 0;
+        for (int i = 1; i < CONNECTIONS; i++) {
+            resumedTime += connect(hostAuth);
+        }
+        assertEquals(1, mServer.getFullHandshakes());
+        assertEquals(CONNECTIONS - 1, mServer.getAbbreviatedHandshakes());
+        LogUtils.d(LogUtils.TAG, "Full handshake: %d ms; abbreviated: %d ms on average",
+                firstTime, resumedTime / (CONNECTIONS - 1));
+    }
+
+    public void testSessionsNotSharedBetweenHostAuths() throws Exception {
+        long fullTime = 0;
+        for (int i = 0; i < CONNECTIONS; i++) {
+            fullTime += connect(newHostAuth());
+        }
+        assertEquals(CONNECTIONS, mServer.getFullHandshakes());
+        assertEquals(0, mServer.getAbbreviatedHandshakes());
+        LogUtils.d(LogUtils.TAG, "Full handshake: %d ms on average", fullTime / CONNECTIONS);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * A TLS server on the loopback interface, for testing the client side of TLS connections. Each
+ * connection is greeted with a single line and held open until the client closes it. The server
+ * counts how many handshakes were full and how many resumed an earlier session.
+ *
+ * The server speaks TLS 1.2 where it can, since that's where resumption can be recognized from
+ * the session id. Its certificate is self-signed, so clients must trust all certificates.
+ */
+public class TlsTestServer {
+    public static final String GREETING = "* OK test server ready";
+
+    // A PKCS#12 key store holding a self-signed certificate for localhost/127.0.0.1
+    private static final char[] KEY_STORE_PASSWORD = "password".toCharArray();
+    private static final String KEY_STORE =
+            "MIIJpgIBAzCCCWwGCSqGSIb3DQEHAaCCCV0EgglZMIIJVTCCA+8GCSqGSIb3DQEHBqCCA+AwggPcAgEAMIID"
+            + "1QYJKoZIhvcNAQcBMBwGCiqGSIb3DQEMAQMwDgQIXlyVtDPkTLgCAggAgIIDqDyzixGyJay3lNhv/nSQHMqg"
+            + "bnClSzeenlsDf8v6pbxI2oc0XdTUv5IRH0WHbabNubdyxxtBSfhtpKd12N3nXeaTosGNd84WDFu/2I/2M7pa"
+            + "0GeJ8fKyno6ygystLRnCMcmGwoOxGyy+vua9U9J+HZ9YZHHJ1cC92YYMUPdOO8e5KZcqzQqrqGYrqRPR0+4g"
+            + "m3oe1wTKaYqYO6gi1q2fPLh3OuXfAsCbNmsdPXIu656shra9piutzq+0KD2aO8NnIupnE/S5br/Jn+0xq5JI"
+            + "BNc5ZUMUA1HH4uA5P+kfN6NB9ElHoMW+A7Rb4nIZ18Ey1t9bJ+fjkVOXcddL9WjH+rQ37fG0fmXfzp7ha7rx"
+            + "uhnCLyzdiKdiOSzFbAVPXiR3njlv4euzAg1OYLXlYLAYcHA7T8U1JFR2Epa5y1kuFGGuxiUU+oeApXnVaQBZ"
+            + "MH/I90Dd8huryB/AXSD4myq5MXeqEj5vttnGf+M4lb7qhr5YiO87ZAQc+reEifJC5ALFAXDnTcRDSS/t6D0e"
+            + "nZlh1XXLEARZ5kcpDryzP7Mz6oWhGvwiRvQSnmLBJ3Tr0P3CEbvCGOB1eJIwpceZNWBDmroT2wOnHg333sSP"
+            + "tNLckdYWMEU0ulS0YxQLoe/B8mkGP99PNIcoQsdUJWuEyjQt+raV0THc7uVxdcgVthzqw/OcZ9PnkKsDAtuo"
+            + "lGclepM+GgnIuG1I9smpoRf1rpQ2qTZv68jFD7BDSIY+xT6U3OHqX7uYc5MbMei8qp0+KJyBTnSKMfXnL2Pq"
+            + "S71G0y/mToftjKL/03HAz5RpTZyq66UF0IS7BJ72icEbEQv+Bwm5kJvThDwoVnKrSKcnu1pUegyZhckE9bVY"
+            + "gsKWmQRofnR0WrsAyIheLIumLatNl663RLmkkpxvf8mFo9EoHUviSMLVMp0aZm/YMJ296jl5bStW2GzggoXQ"
+            + "6PcIktjXUpQyjoRt1yePMX7Sw+33N2N+4QlVzKxbH+pZTxWTihJIOyk+K5tHp2Xtr4r9KGzIxtA0e7mYG7Mj"
+            + "jsRRiIQIxu/NwS/2aruuDyoZ91z0HVkJ2T0amQ3eS9z36STidGZ/LIpylGKIqFHEvT+PZVn2Sp5ZwtV94zSC"
+            + "C2C7yROKmakCeWnuI6lEbnRCdrv9jYE+DY+6WE8q/hQqJfp2aZBsnQwqKFJq/a9WxXsnYhDHkZ6RxGPn9k7P"
+            + "6TIjRAgw8ocHoqhdn35ngqD8/KhgyB3c6B9taL5n0DEh8BPtZDCCBV4GCSqGSIb3DQEHAaCCBU8EggVLMIIF"
+            + "RzCCBUMGCyqGSIb3DQEMCgECoIIE7jCCBOowHAYKKoZIhvcNAQwBAzAOBAg22TEN3cZEKQICCAAEggTIgsYd"
+            + "ybdrlW28FqJhElFQbwlTY2e4kMu2OvIs1x4SuTEOTpcWi3QDnsh0I/whbsSZKVRB/Sl53hMuxGJ65qyLlqMS"
+            + "1NxwY9yLhEmi4qzg5K/nPzZJHxxLW/MHme1Z1TXlmgoewfK5lwmjtkJL1XxdalJu/42c3lBVVkcPu2O1FhgN"
+            + "yAvS+u2T86I1p1XUqgqATrEhs3XckrIjfgNZ4OHS9YfyNZ/IuJtICERmm+WPUc3ScAoLni35uEACyQrdPO16"
+            + "L0mVwcqQc3fV/hp6Uo5gPy9kw+isb/KawFlAxDKCLVS+GD7o3fJ6l2Up5QeO9hE29DPnzZeuGJo/FMfbWfjR"
+            + "0rFXbygB7VH1cTvPNKY/jky60xjd6YFfx03BQu9ol46vQRPa88sOUjbmZzBJSxEj6v63Q3brWZ+0cddF9YRS"
+            + "Wub3plmOUi223vh371Uv9IN78onfamvbYDht1jVq+STJim9zWJEtmnkBm6GWJVajCNNGMVpuDqQsnRZmLtjM"
+            + "GDYjZYHjyak9C9g/clOTXXCwfGU2X1Npgj1awspCaLYbUD/0xTLFujiQD4slUSfBw09owA+WnqtfvBjLEeUL"
+            + "6ilMPbuTFxF99ogy9GtpCvIAEykQryf67B4KFgK0wDF2M37QFWphOqkL+2XZm/gv08nhIHsB370QFpTm/f6l"
+            + "+tSt71ObjFDbWqn6zo+qrqtge43I+YHrmqQFkg+GfTyItUd6IjgA25orP0r/zw7/4wbM6+VaLvy+CE0ueaxf"
+            + "CUL4BNiztYOXEfvQTae3VOik4BRxUgKJLF2FZk20ccStdH5x/LJT9PuRA4OWa5dZsb5IDLLI6jZXEfYiviR3"
+            + "QAf24r1RpB1FTgntnssL98VSjXV6A8c52XneYm4WzyoNPLHHpgsMvIv9h8QYwiUkDls31z5SX1nVl0voHF7r"
+            + "j05oISh2qHiGaa8qtU+zoGmjdflmxmG9VFG2Jf2UlbOkypNnaZO+5b/nPYKgxvZCjZpDTUr+MVYltz7MSHzR"
+            + "UZGj4xcmMVo3E8SnIBu0IID8jNS6AsyErZhVKz0zEzC3KM11MORpHtIsOY5CCFMGNKjgizlgkR+tGSYWE4HC"
+            + "3ZiqK0HHW802a5B2SijjlhVhl4sZ/07ZFZ+kfmeIbsT8bcOQo992jUd4qi7uC78biT9j5d1F8v/sqMHBSQqL"
+            + "BbQrJCVblBchMDl4Bn2KlfVDwauXEhiPhHXPH6y/NuO24u/QErMdWDhfJh1jDZhj0azYOaw0ZsXqtoWVzCQ1"
+            + "AagnN++HO8aIYjD5FZ/a0RyWcbowMVYsiCXtyUmR+rIH3202PuRQFANgYX1B6aPbr/eLra1G/mDvQsi2ZXVp"
+            + "km9QY3cKovJpGyc1to5nIcTwgDdOvASVIJQarjmf5MhXITETeYlX8TYeKYVq4kgRGgoNEmpUW98bjvmXjWjE"
+            + "ZfGm3s9uxt3Tg0X64bMHEY4xlR3ZXapcnYdftOuFGQmxquKASfAoRE+nmRr+/33rhdO8ZaXPLoj1vZpVjY6/"
+            + "lqve5FaryWrGOyHcMCvDMlbqohnar47l+niBi0x5akoKXfZPmHsgH7YIXaaJjUuBlhxrWzckjTh7YJms6z4H"
+            + "1y/AE3NO+xJj0UKJxeAoGemhYkH7i6y0MUIwGwYJKoZIhvcNAQkUMQ4eDABzAGUAcgB2AGUAcjAjBgkqhkiG"
+            + "9w0BCRUxFgQUKcYb8Mgmn3ynm2695g6aYks0gFEwMTAhMAkGBSsOAwIaBQAEFFqkfPgVXrxfxOdlOgz9DBQv"
+            + "hB2iBAh6QllKwPl4uAICCAA=";
+
+    private final SSLServerSocket mServerSocket;
+    private final Thread mThread;
+    private final Set<String> mSessionIds = new HashSet<String>();
+    private int mFullHandshakes;
+    private int mAbbreviatedHandshakes;
+
+    public TlsTestServer() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new ByteArrayInputStream(Base64.decode(KEY_STORE, Base64.DEFAULT)),
+                KEY_STORE_PASSWORD);
+        final KeyManagerFactory kmf =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, KEY_STORE_PASSWORD);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+
+        mServerSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0,
+                50, InetAddress.getByName("127.0.0.1"));
+        if (Arrays.asList(mServerSocket.getSupportedProtocols()).contains("TLSv1.2")) {
+            mServerSocket.setEnabledProtocols(new String[] { "TLSv1.2" });
+        }
+        mThread = new Thread("TlsTestServer") {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        serve((SSLSocket) mServerSocket.accept());
+                    } catch (IOException e) {
+                        // Closed, or a client went away mid-handshake
+                    }
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    public synchronized int getFullHandshakes() {
+        return mFullHandshakes;
+    }
+
+    public synchronized int getAbbreviatedHandshakes() {
+        return mAbbreviatedHandshakes;
+    }
+
+    public void close() throws IOException, InterruptedException {
+        mServerSocket.close();
+        mThread.join();
+    }
+
+    private void serve(final SSLSocket socket) throws IOException {
+        try {
+            socket.startHandshake();
+            final String sessionId = Arrays.toString(socket.getSession().getId());
+            synchronized (this) {
+                if (mSessionIds.add(sessionId)) {
+                    mFullHandshakes++;
+                } else {
+                    mAbbreviatedHandshakes++;
+                }
+            }
+            final OutputStream out = socket.getOutputStream();
+            out.write((GREETING + "\r\n").getBytes());
+            out.flush();
+            final InputStream in = socket.getInputStream();
+            while (in.read() != -1) {
+                // Wait for the client to close the connection
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
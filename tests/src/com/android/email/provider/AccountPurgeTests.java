@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import static com.android.email.provider.RawDatabaseTestUtils.count;
+import static com.android.email.provider.RawDatabaseTestUtils.insertAccount;
+import static com.android.email.provider.RawDatabaseTestUtils.insertMailbox;
+import static com.android.email.provider.RawDatabaseTestUtils.insertMessage;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.mail.utils.LogUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests of the deletion of accounts, which leaves a tombstone, and of the purge of their data
+ * that follows. These run against a private in-memory database from
+ * {@link RawDatabaseTestUtils}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.AccountPurgeTests email
+ */
+@SmallTest
+public class AccountPurgeTests extends AndroidTestCase {
+    // Far from the ids of real accounts, whose attachment directories we mustn't touch
+    private static final long ACCOUNT1 = 987654321;
+    private static final long ACCOUNT2 = 987654322;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDb = RawDatabaseTestUtils.createDatabase(getContext());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDb.close();
+        deleteAttachmentDirectory(ACCOUNT1);
+        deleteAttachmentDirectory(ACCOUNT2);
+        super.tearDown();
+    }
+
+    private void deleteAttachmentDirectory(long accountId) {
+        final File directory = AttachmentUtilities.getAttachmentDirectory(getContext(), accountId);
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /** Inserts a message with a body and an attachment. */
+    private void insertMessageWithParts(long accountId, long mailboxId) {
+        final long messageId = insertMessage(mDb, accountId, mailboxId);
+        ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.MESSAGE_KEY, messageId);
+        mDb.insert(Body.TABLE_NAME, null, cv);
+        cv = new ContentValues();
+        cv.put(AttachmentColumns.MESSAGE_KEY, messageId);
+        cv.put(AttachmentColumns.ACCOUNT_KEY, accountId);
+        mDb.insert(Attachment.TABLE_NAME, null, cv);
+    }
+
+    private long getPurgeColumn(long accountId, String column) {
+        return DatabaseUtils.longForQuery(mDb, "select coalesce((select " + column + " from "
+                + AccountPurge.TABLE_NAME + " where " + AccountPurge.ACCOUNT_KEY + "="
+                + accountId + "), -1)", null);
+    }
+
+    private void deleteAccount(long accountId) {
+        mDb.delete(Account.TABLE_NAME, AccountColumns._ID + "=" + accountId, null);
+    }
+
+    public void testDeleteLeavesTombstone() {
+        insertAccount(mDb, ACCOUNT1);
+        final long inbox = insertMailbox(mDb, ACCOUNT1, Mailbox.TYPE_INBOX);
+        final long sent = insertMailbox(mDb, ACCOUNT1, Mailbox.TYPE_SENT);
+        insertMessageWithParts(ACCOUNT1, inbox);
+        insertMessageWithParts(ACCOUNT1, inbox);
+        insertMessageWithParts(ACCOUNT1, sent);
+        assertFalse(AccountPurge.isPending(mDb));
+
+        deleteAccount(ACCOUNT1);
+        assertEquals(0, count(mDb, Account.TABLE_NAME, null));
+        assertTrue(AccountPurge.isPending(mDb));
+        assertEquals(3, getPurgeColumn(ACCOUNT1, AccountPurge.MESSAGE_COUNT));
+        assertEquals(0, getPurgeColumn(ACCOUNT1, AccountPurge.PURGED_COUNT));
+
+        // The data is still there, to be purged later
+        assertEquals(2, count(mDb, Mailbox.TABLE_NAME, null));
+        assertEquals(3, count(mDb, Message.TABLE_NAME, null));
+        assertEquals(3, count(mDb, Body.TABLE_NAME, null));
+        assertEquals(3, count(mDb, Attachment.TABLE_NAME, null));
+    }
+
+    public void testPurgeInChunks() throws IOException {
+        insertAccount(mDb, ACCOUNT1);
+        insertAccount(mDb, ACCOUNT2);
+        final long inbox1 = insertMailbox(mDb, ACCOUNT1, Mailbox.TYPE_INBOX);
+        final long inbox2 = insertMailbox(mDb, ACCOUNT2, Mailbox.TYPE_INBOX);
+        for (int i = 0; i < 5; i++) {
+            insertMessageWithParts(ACCOUNT1, inbox1);
+        }
+        insertMessageWithParts(ACCOUNT2, inbox2);
+        final File directory = AttachmentUtilities.getAttachmentDirectory(getContext(), ACCOUNT1);
+        directory.mkdirs();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(new File(directory, Integer.toString(i)).createNewFile());
+        }
+
+        deleteAccount(ACCOUNT1);
+        assertTrue(AccountPurge.purgeChunk(getContext(), mDb, 2));
+        assertEquals(2, getPurgeColumn(ACCOUNT1, AccountPurge.PURGED_COUNT));
+        assertEquals(3, count(mDb, Message.TABLE_NAME,
+                MessageColumns.ACCOUNT_KEY + "=" + ACCOUNT1));
+        final StringWriter progress = new StringWriter();
+        AccountPurge.dumpProgress(mDb, new PrintWriter(progress));
+        assertTrue(progress.toString().contains("2 of 5 messages purged"));
+
+        // Three chunks of messages, two of files, and the mailboxes
+        int chunks = 1;
+        while (AccountPurge.purgeChunk(getContext(), mDb, 2)) {
+            chunks++;
+        }
+        assertEquals(6, chunks);
+        assertFalse(AccountPurge.isPending(mDb));
+        assertEquals(-1, getPurgeColumn(ACCOUNT1, AccountPurge.PURGED_COUNT));
+        assertFalse(directory.exists());
+
+        // Only the other account's data is left
+        assertEquals(1, count(mDb, Mailbox.TABLE_NAME, null));
+        assertEquals(1, count(mDb, Message.TABLE_NAME, null));
+        assertEquals(1, count(mDb, Body.TABLE_NAME, null));
+        assertEquals(1, count(mDb, Attachment.TABLE_NAME, null));
+        assertEquals(1, count(mDb, Message.TABLE_NAME,
+                MessageColumns.ACCOUNT_KEY + "=" + ACCOUNT2));
+        assertFalse(AccountPurge.purgeChunk(getContext(), mDb, 2));
+    }
+
+    public void testCountersLeaveOutDeletedAccount() {
+        insertAccount(mDb, ACCOUNT1);
+        insertAccount(mDb, ACCOUNT2);
+        insertMessageWithParts(ACCOUNT1, insertMailbox(mDb, ACCOUNT1, Mailbox.TYPE_INBOX));
+        insertMessageWithParts(ACCOUNT2, insertMailbox(mDb, ACCOUNT2, Mailbox.TYPE_INBOX));
+        assertEquals(2, MessageCounters.getCount(mDb, MessageCounters.ALL_ACCOUNTS,
+                MessageCounters.INBOX_UNREAD));
+
+        deleteAccount(ACCOUNT1);
+        assertEquals(1, MessageCounters.getCount(mDb, MessageCounters.ALL_ACCOUNTS,
+                MessageCounters.INBOX_UNREAD));
+        assertTrue(MessageCounters.check(mDb));
+        while (AccountPurge.purgeChunk(getContext(), mDb, 10)) {}
+        assertEquals(1, MessageCounters.getCount(mDb, MessageCounters.ALL_ACCOUNTS,
+                MessageCounters.INBOX_UNREAD));
+        assertTrue(MessageCounters.check(mDb));
+    }
+
+    /**
+     * Compares the time for which deleting a large account holds the database, the old way (by
+     * deleting its mailboxes, which cascades to everything else) and with a tombstone and a purge
+     * in chunks. Timings are logged rather than asserted, since they depend on the device.
+     */
+    @LargeTest
+    public void testDeleteSpeed() {
+        final int messageCount = 20000;
+        final int chunkSize = DatabaseMaintenance.CHUNK_SIZE;
+        for (final long accountId : new long[] { ACCOUNT1, ACCOUNT2 }) {
+            insertAccount(mDb, accountId);
+            final long inbox = insertMailbox(mDb, accountId, Mailbox.TYPE_INBOX);
+            mDb.beginTransaction();
+            try {
+                for (int i = 0; i < messageCount; i++) {
+                    insertMessageWithParts(accountId, inbox);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        mDb.delete(Mailbox.TABLE_NAME, MailboxColumns.ACCOUNT_KEY + "=" + ACCOUNT1, null);
+        deleteAccount(ACCOUNT1);
+        final long oldMillis = SystemClock.elapsedRealtime() - start;
+        while (AccountPurge.purgeChunk(getContext(), mDb, chunkSize)) {}
+
+        start = SystemClock.elapsedRealtime();
+        deleteAccount(ACCOUNT2);
+        final long tombstoneMillis = SystemClock.elapsedRealtime() - start;
+        long longestChunkMillis = 0;
+        boolean more;
+        do {
+            final long chunkStart = SystemClock.elapsedRealtime();
+            more = AccountPurge.purgeChunk(getContext(), mDb, chunkSize);
+            longestChunkMillis = Math.max(longestChunkMillis,
+                    SystemClock.elapsedRealtime() - chunkStart);
+        } while (more);
+        final long purgeMillis = SystemClock.elapsedRealtime() - start - tombstoneMillis;
+        assertEquals(0, count(mDb, Message.TABLE_NAME, null));
+
+        LogUtils.d(LogUtils.TAG, "Deleting an account of %d messages: %d ms before; %d ms now,"
+                + " then %d ms to purge in chunks of %d, the longest taking %d ms",
+                messageCount, oldMillis, tombstoneMillis, purgeMillis, chunkSize,
+                longestChunkMillis);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import static com.android.email.provider.RawDatabaseTestUtils.insertMessage;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests of the reference counting of shared attachment files. These run against a private
+ * in-memory database from {@link RawDatabaseTestUtils}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.AttachmentBlobsTests email
+ */
+@SmallTest
+public class AttachmentBlobsTests extends AndroidTestCase {
+    private static final String HASH1 = "0123456789abcdef";
+    private static final String HASH2 = "fedcba9876543210";
+    private static final long ACCOUNT_ID = 1;
+    private static final long MAILBOX_ID = 1;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDb = RawDatabaseTestUtils.createDatabase(getContext());
+        deleteBlobFiles();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDb.close();
+        deleteBlobFiles();
+        super.tearDown();
+    }
+
+    private void deleteBlobFiles() {
+        AttachmentBlobs.getFile(getContext(), HASH1).delete();
+        AttachmentBlobs.getFile(getContext(), HASH2).delete();
+    }
+
+    private long insertAttachment(long messageId, String hash) {
+        final ContentValues cv = new ContentValues();
+        cv.put(AttachmentColumns.MESSAGE_KEY, messageId);
+        cv.put(AttachmentColumns.BLOB_HASH, hash);
+        return mDb.insert(Attachment.TABLE_NAME, null, cv);
+    }
+
+    private void setHash(long attachmentId, String hash) {
+        final ContentValues cv = new ContentValues();
+        cv.put(AttachmentColumns.BLOB_HASH, hash);
+        mDb.update(Attachment.TABLE_NAME, cv, AttachmentColumns._ID + "=" + attachmentId, null);
+    }
+
+    private void deleteAttachment(long attachmentId) {
+        mDb.delete(Attachment.TABLE_NAME, AttachmentColumns._ID + "=" + attachmentId, null);
+    }
+
+    /** @return the reference count of the hash, or -1 if it has no row */
+    private long getRefCount(String hash) {
+        return DatabaseUtils.longForQuery(mDb, "select coalesce((select "
+                + AttachmentBlobs.REF_COUNT + " from " + AttachmentBlobs.TABLE_NAME + " where "
+                + AttachmentBlobs.HASH + "=?), -1)", new String[] { hash });
+    }
+
+    private File createTempFile(String content) throws IOException {
+        final File file = File.createTempFile("blob", ".tmp", getContext().getCacheDir());
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public void testRefCounts() {
+        final long message = insertMessage(mDb, ACCOUNT_ID, MAILBOX_ID);
+        final long a1 = insertAttachment(message, HASH1);
+        final long a2 = insertAttachment(message, HASH1);
+        final long a3 = insertAttachment(message, null);
+        assertEquals(2, getRefCount(HASH1));
+
+        // Content that's shared later, and content that's no longer shared
+        setHash(a3, HASH1);
+        assertEquals(3, getRefCount(HASH1));
+        setHash(a2, null);
+        assertEquals(2, getRefCount(HASH1));
+        setHash(a1, HASH2);
+        assertEquals(1, getRefCount(HASH1));
+        assertEquals(1, getRefCount(HASH2));
+        // Setting the same hash again doesn't count twice
+        setHash(a1, HASH2);
+        assertEquals(1, getRefCount(HASH2));
+
+        deleteAttachment(a1);
+        deleteAttachment(a2);
+        assertEquals(0, getRefCount(HASH2));
+        assertEquals(1, getRefCount(HASH1));
+    }
+
+    public void testMessageDeletion() {
+        final long message1 = insertMessage(mDb, ACCOUNT_ID, MAILBOX_ID);
+        final long message2 = insertMessage(mDb, ACCOUNT_ID, MAILBOX_ID);
+        insertAttachment(message1, HASH1);
+        insertAttachment(message2, HASH1);
+        insertAttachment(message2, HASH2);
+
+        // The attachments of a deleted message are deleted by a trigger, which releases them
+        mDb.delete(Message.TABLE_NAME, MessageColumns._ID + "=" + message2, null);
+        assertEquals(1, getRefCount(HASH1));
+        assertEquals(0, getRefCount(HASH2));
+    }
+
+    /**
+     * Follows a shared file from the first attachment to store it, through a second identical
+     * attachment, to its deletion once neither refers to it.
+     */
+    public void testLifecycle() throws IOException {
+        final long message = insertMessage(mDb, ACCOUNT_ID, MAILBOX_ID);
+        final long a1 = insertAttachment(message, null);
+        final long a2 = insertAttachment(message, null);
+        final File blob = AttachmentBlobs.getFile(getContext(), HASH1);
+
+        final File file1 = createTempFile("content");
+        assertTrue(AttachmentBlobs.store(getContext(), mDb, a1, HASH1, file1));
+        assertTrue(blob.exists());
+        assertFalse(file1.exists());
+        assertEquals(1, getRefCount(HASH1));
+
+        // The second copy isn't moved into place; the caller deletes it
+        final File file2 = createTempFile("content");
+        assertTrue(AttachmentBlobs.store(getContext(), mDb, a2, HASH1, file2));
+        assertTrue(file2.exists());
+        assertEquals(2, getRefCount(HASH1));
+        file2.delete();
+
+        deleteAttachment(a1);
+        assertEquals(0, AttachmentBlobs.deleteUnreferenced(getContext(), mDb));
+        assertTrue(blob.exists());
+
+        deleteAttachment(a2);
+        assertEquals(0, getRefCount(HASH1));
+        assertEquals(1, AttachmentBlobs.deleteUnreferenced(getContext(), mDb));
+        assertFalse(blob.exists());
+        assertEquals(-1, getRefCount(HASH1));
+    }
+
+    public void testStoreForDeletedAttachment() throws IOException {
+        final File file = createTempFile("content");
+        try {
+            assertTrue(AttachmentBlobs.store(getContext(), mDb, 12345, HASH1, file));
+            assertFalse(AttachmentBlobs.getFile(getContext(), HASH1).exists());
+            assertEquals(-1, getRefCount(HASH1));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testDeleteUnreferencedInTransaction() throws IOException {
+        final long a1 = insertAttachment(insertMessage(mDb, ACCOUNT_ID, MAILBOX_ID), null);
+        assertTrue(AttachmentBlobs.store(getContext(), mDb, a1, HASH1, createTempFile("c")));
+        deleteAttachment(a1);
+
+        // The deletion could still be rolled back, so the file is kept for now
+        mDb.beginTransaction();
+        try {
+            assertEquals(0, AttachmentBlobs.deleteUnreferenced(getContext(), mDb));
+        } finally {
+            mDb.endTransaction();
+        }
+        assertTrue(AttachmentBlobs.getFile(getContext(), HASH1).exists());
+        assertEquals(1, AttachmentBlobs.deleteUnreferenced(getContext(), mDb));
+    }
+
+    public void testDeleteUnreferencedKeepsReferenced() throws IOException {
+        final long message = insertMessage(mDb, ACCOUNT_ID, MAILBOX_ID);
+        final long a1 = insertAttachment(message, null);
+        final long a2 = insertAttachment(message, null);
+        assertTrue(AttachmentBlobs.store(getContext(), mDb, a1, HASH1, createTempFile("1")));
+        assertTrue(AttachmentBlobs.store(getContext(), mDb, a2, HASH2, createTempFile("2")));
+
+        // Rewriting an attachment's content releases the shared file
+        setHash(a1, null);
+        assertEquals(1, AttachmentBlobs.deleteUnreferenced(getContext(), mDb));
+        assertFalse(AttachmentBlobs.getFile(getContext(), HASH1).exists());
+        assertEquals(-1, getRefCount(HASH1));
+        assertTrue(AttachmentBlobs.getFile(getContext(), HASH2).exists());
+        assertEquals(1, getRefCount(HASH2));
+    }
+}
@@ -36,6 +36,7 @@ import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.EmailAsyncTask;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -580,6 +581,34 @@ public class AttachmentProviderTests extends ProviderTestCase2<AttachmentProvide
         assertEquals(0, attachmentsDir.listFiles().length);
     }
 
+    /**
+     * Test deleting a mailbox's attachments in the background, as done when a folder is removed.
+     */
+    public void testDeleteMailboxInBackground() throws Exception {
+        Account account1 = ProviderTestUtils.setupAccount("attach-mbox-bg", false, mMockContext);
+        account1.save(mMockContext);
+        long account1Id = account1.mId;
+        Mailbox mailbox1 = ProviderTestUtils.setupMailbox("mbox1", account1Id, true, mMockContext);
+        Mailbox mailbox2 = ProviderTestUtils.setupMailbox("mbox2", account1Id, true, mMockContext);
+        populateAccountMailbox(account1, mailbox1.mId, 3);
+        populateAccountMailbox(account1, mailbox2.mId, 2);
+        File attachmentsDir = AttachmentUtilities.getAttachmentDirectory(mMockContext,
+                account1.mId);
+        assertEquals(5, attachmentsDir.listFiles().length);
+
+        // The files are looked up right away, so deleting the records straight after is fine
+        EmailAsyncTask<Void, Void, Void> task =
+                AttachmentUtilities.deleteAllMailboxAttachmentFilesInBackground(mMockContext,
+                        account1Id, mailbox1.mId);
+        mMockContext.getContentResolver().delete(Attachment.CONTENT_URI, null, null);
+        task.get();
+        assertEquals(2, attachmentsDir.listFiles().length);
+
+        AttachmentUtilities.deleteAllAccountAttachmentFilesInBackground(mMockContext, account1Id)
+                .get();
+        assertEquals(0, attachmentsDir.listFiles().length);
+    }
+
     /**
      * Test the functionality of deleting an entire account's attachments.
      */
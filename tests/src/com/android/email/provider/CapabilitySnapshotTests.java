@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.email.R;
+import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.providers.UIProvider.AccountCapabilities;
+import com.android.mail.providers.UIProvider.FolderCapabilities;
+import com.android.mail.providers.UIProvider.FolderColumns;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Tests of the account and folder capabilities reported to the UI.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.CapabilitySnapshotTests email
+ */
+@SmallTest
+public class CapabilitySnapshotTests extends AndroidTestCase {
+    private static final String[] FOLDER_COLUMNS = new String[] { BaseColumns._ID,
+            FolderColumns.NAME, FolderColumns.TYPE, FolderColumns.CAPABILITIES,
+            FolderColumns.PERSISTENT_ID, FolderColumns.LOAD_MORE_URI, FolderColumns.UNREAD_COUNT,
+            FolderColumns.TOTAL_COUNT };
+    private static final int[] FOLDER_TYPES = new int[] { Mailbox.TYPE_INBOX, Mailbox.TYPE_MAIL,
+            Mailbox.TYPE_DRAFTS, Mailbox.TYPE_OUTBOX, Mailbox.TYPE_SENT, Mailbox.TYPE_TRASH,
+            Mailbox.TYPE_JUNK, Mailbox.TYPE_MAIL, Mailbox.TYPE_MAIL, Mailbox.TYPE_MAIL };
+
+    private static EmailServiceInfo createServiceInfo(boolean offerMoveTo,
+            boolean offerLookback) {
+        final EmailServiceInfo info = new EmailServiceInfo();
+        info.offerMoveTo = offerMoveTo;
+        info.offerLookback = offerLookback;
+        return info;
+    }
+
+    private int getAccountCapabilities(int protocol, String protocolVersion) {
+        return CapabilitySnapshot.computeAccountCapabilities(getContext(),
+                getContext().getString(protocol), protocolVersion);
+    }
+
+    private static boolean has(int capabilities, int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    public void testAccountCapabilities() {
+        final int imap = getAccountCapabilities(R.string.protocol_imap, null);
+        assertTrue(has(imap, AccountCapabilities.SERVER_SEARCH));
+        assertTrue(has(imap, AccountCapabilities.SYNCABLE_FOLDERS));
+        assertFalse(has(imap, AccountCapabilities.SMART_REPLY));
+        assertTrue(has(imap, AccountCapabilities.EMPTY_TRASH));
+        assertEquals(imap, getAccountCapabilities(R.string.protocol_legacy_imap, null));
+
+        final int pop = getAccountCapabilities(R.string.protocol_pop3, null);
+        assertFalse(has(pop, AccountCapabilities.SYNCABLE_FOLDERS));
+        assertTrue(has(pop, AccountCapabilities.UNDO));
+
+        // Search depends on the EAS version
+        final int eas = getAccountCapabilities(R.string.protocol_eas, "12.0");
+        assertTrue(has(eas, AccountCapabilities.SERVER_SEARCH));
+        assertTrue(has(eas, AccountCapabilities.SMART_REPLY));
+        assertEquals(eas, getAccountCapabilities(R.string.protocol_eas, "14.1"));
+        final int oldEas = getAccountCapabilities(R.string.protocol_eas, "2.5");
+        assertFalse(has(oldEas, AccountCapabilities.SERVER_SEARCH));
+        assertTrue(has(oldEas, AccountCapabilities.SMART_REPLY));
+        assertEquals(oldEas, getAccountCapabilities(R.string.protocol_eas, null));
+        assertEquals(oldEas, getAccountCapabilities(R.string.protocol_eas, "garbage"));
+
+        assertEquals(0, CapabilitySnapshot.computeAccountCapabilities(getContext(), "foo", null));
+        assertEquals(0, CapabilitySnapshot.computeAccountCapabilities(getContext(), null, null));
+    }
+
+    public void testFolderCapabilities() {
+        final EmailServiceInfo info = createServiceInfo(true, true);
+        final int inbox = CapabilitySnapshot.computeFolderCapabilities(info, Mailbox.TYPE_INBOX);
+        assertTrue(has(inbox, FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES));
+        assertTrue(has(inbox, FolderCapabilities.SUPPORTS_SETTINGS));
+        assertTrue(has(inbox, FolderCapabilities.DELETE));
+        assertFalse(has(inbox, FolderCapabilities.DELETE_ACTION_FINAL));
+
+        assertEquals(FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES
+                | FolderCapabilities.ALLOWS_REMOVE_CONVERSATION | FolderCapabilities.DELETE
+                | FolderCapabilities.DELETE_ACTION_FINAL,
+                CapabilitySnapshot.computeFolderCapabilities(info, Mailbox.TYPE_TRASH));
+        assertFalse(has(CapabilitySnapshot.computeFolderCapabilities(info, Mailbox.TYPE_DRAFTS),
+                FolderCapabilities.DELETE));
+        assertTrue(has(CapabilitySnapshot.computeFolderCapabilities(info, Mailbox.TYPE_SENT),
+                FolderCapabilities.SHOW_RECIPIENTS));
+        assertEquals(FolderCapabilities.DELETE,
+                CapabilitySnapshot.computeFolderCapabilities(info, Mailbox.TYPE_SEARCH));
+
+        // Without a known service, nothing can be moved
+        assertFalse(has(CapabilitySnapshot.computeFolderCapabilities(null, Mailbox.TYPE_INBOX),
+                FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES));
+        assertFalse(has(CapabilitySnapshot.computeFolderCapabilities(
+                createServiceInfo(false, false), Mailbox.TYPE_MAIL),
+                FolderCapabilities.CAN_ACCEPT_MOVED_MESSAGES));
+    }
+
+    public void testSnapshotMatchesComputation() {
+        final EmailServiceInfo[] infos = new EmailServiceInfo[] { null,
+                createServiceInfo(true, true), createServiceInfo(false, true),
+                createServiceInfo(true, false) };
+        for (final EmailServiceInfo info : infos) {
+            final CapabilitySnapshot snapshot = new CapabilitySnapshot(1, info);
+            assertSame(info, snapshot.getServiceInfo());
+            assertEquals(1, snapshot.getAccountCapabilities());
+            for (int type = Mailbox.TYPE_NONE; type <= Mailbox.TYPE_ATTACHMENT + 1; type++) {
+                assertEquals(CapabilitySnapshot.computeFolderCapabilities(info, type),
+                        snapshot.getFolderCapabilities(type));
+            }
+        }
+        assertEquals(0, CapabilitySnapshot.NONE.getAccountCapabilities());
+        assertNull(CapabilitySnapshot.NONE.getServiceInfo());
+        assertNull(CapabilitySnapshot.create(getContext(), null).getServiceInfo());
+    }
+
+    private static MatrixCursor createFolderList(int count) {
+        final MatrixCursor c = new MatrixCursor(FOLDER_COLUMNS, count);
+        for (int i = 0; i < count; i++) {
+            c.addRow(new Object[] { i, "folder" + i, FOLDER_TYPES[i % FOLDER_TYPES.length], 0,
+                    "persistent" + i, null, 0, 0 });
+        }
+        return c;
+    }
+
+    /**
+     * Compares the time taken to produce the capabilities for the rows of a large folder list,
+     * and for a list of accounts, the old way and from snapshots. Timings are logged rather than
+     * asserted, since they depend on the device.
+     */
+    @LargeTest
+    public void testFolderListSpeed() {
+        final int folderCount = 5000;
+        final int queryCount = 20;
+        final EmailServiceInfo info = createServiceInfo(true, true);
+        final MatrixCursor c = createFolderList(folderCount);
+        final int typeColumn = c.getColumnIndex(FolderColumns.TYPE);
+        final int capabilitiesColumn = c.getColumnIndex(FolderColumns.CAPABILITIES);
+
+        // The old way: the columns found for every row, and the capabilities for every folder
+        long sum = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < queryCount; n++) {
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                for (final String column : FOLDER_COLUMNS) {
+                    if (c.getColumnIndex(column) == capabilitiesColumn) {
+                        sum += CapabilitySnapshot.computeFolderCapabilities(info,
+                                c.getInt(typeColumn));
+                    }
+                }
+            }
+        }
+        final long oldMillis = (System.nanoTime() - start) / 1000000;
+
+        final long expected = sum;
+        sum = 0;
+        start = System.nanoTime();
+        for (int n = 0; n < queryCount; n++) {
+            final CapabilitySnapshot snapshot = new CapabilitySnapshot(0, info);
+            final int[] indices = new int[FOLDER_COLUMNS.length];
+            for (int i = 0; i < FOLDER_COLUMNS.length; i++) {
+                indices[i] = c.getColumnIndex(FOLDER_COLUMNS[i]);
+            }
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                for (final int index : indices) {
+                    if (index == capabilitiesColumn) {
+                        sum += snapshot.getFolderCapabilities(c.getInt(typeColumn));
+                    }
+                }
+            }
+        }
+        final long newMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(expected, sum);
+        c.close();
+
+        // Account capabilities, as computed for each row of each account list query
+        final int accountQueries = 1000;
+        final String protocol = getContext().getString(R.string.protocol_eas);
+        start = System.nanoTime();
+        for (int n = 0; n < accountQueries; n++) {
+            CapabilitySnapshot.computeAccountCapabilities(getContext(), protocol, "14.1");
+        }
+        final long accountMillis = (System.nanoTime() - start) / 1000000;
+
+        LogUtils.d(LogUtils.TAG, "%d queries of %d folders: %d ms before, %d ms with snapshots;"
+                + " %d account capability lookups: %d ms before, none with snapshots",
+                queryCount, folderCount, oldMillis, newMillis, accountQueries, accountMillis);
+    }
+}
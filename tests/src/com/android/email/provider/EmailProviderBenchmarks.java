@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.email.provider.EmailProvider.EmailAttachmentService;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Measurements of the Email provider's performance. The numbers are logged rather than asserted,
+ * since they depend on the device.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.EmailProviderBenchmarks email
+ */
+@LargeTest
+public class EmailProviderBenchmarks extends ProviderTestCase2<EmailProvider> {
+    private EmailProvider mProvider;
+    private Context mMockContext;
+
+    public EmailProviderBenchmarks() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    /**
+     * Private context wrapper used to add back getPackageName() for these tests.
+     */
+    private static class MockContext2 extends ContextWrapper {
+        private final Context mRealContext;
+
+        public MockContext2(Context mockContext, Context realContext) {
+            super(mockContext);
+            mRealContext = realContext;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public String getPackageName() {
+            return mRealContext.getPackageName();
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            return mRealContext.getSystemService(name);
+        }
+    }
+
+    private static final EmailAttachmentService MOCK_ATTACHMENT_SERVICE =
+            new EmailAttachmentService() {
+        @Override
+        public void attachmentChanged(Context context, long id, int flags) {
+            // Noop. Don't download attachments.
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = new MockContext2(getMockContext(), getContext());
+        mProvider = getProvider();
+        mProvider.injectAttachmentService(MOCK_ATTACHMENT_SERVICE);
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mProvider.injectAttachmentService(null);
+    }
+
+    /** Creates a new message. */
+    private static Message createMessage(
+            Context c, Mailbox b, boolean starred, boolean read, int flagLoaded) {
+        Message message = ProviderTestUtils.setupMessage("1",
+                b.mAccountKey,
+                b.mId,
+                true,
+                false,
+                c,
+                starred,
+                read);
+        message.mFlagLoaded = flagLoaded;
+        message.save(c);
+        return message;
+    }
+
+    /**
+     * Measures message list query latency while a simulated bulk sync holds long write
+     * transactions. The percentiles are logged rather than asserted, since they depend on the
+     * device.
+     */
+    public void testListQueryLatencyDuringBulkWrite() throws InterruptedException {
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        for (int i = 0; i < 500; i++) {
+            createMessage(mMockContext, box, false, false, Message.FLAG_LOADED_COMPLETE);
+        }
+
+        final SQLiteDatabase writer = getProvider().getDatabase(mMockContext);
+        final Thread sync = new Thread() {
+            @Override
+            public void run() {
+                final ContentValues cv = new ContentValues();
+                cv.put(MessageColumns.ACCOUNT_KEY, account.mId);
+                cv.put(MessageColumns.MAILBOX_KEY, box.mId);
+                cv.put(MessageColumns.SUBJECT, "bulk");
+                for (int batch = 0; batch < 20; batch++) {
+                    writer.beginTransaction();
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            cv.put(MessageColumns.TIMESTAMP, batch * 500 + i);
+                            writer.insert(Message.TABLE_NAME, null, cv);
+                        }
+                        writer.setTransactionSuccessful();
+                    } finally {
+                        writer.endTransaction();
+                    }
+                }
+            }
+        };
+
+        final Uri uri = Message.CONTENT_URI.buildUpon()
+                .appendQueryParameter(EmailContent.PARAMETER_LIMIT, "100").build();
+        final String[] selectionArgs = { Long.toString(box.mId) };
+        final ArrayList<Long> latencies = new ArrayList<Long>();
+        sync.start();
+        while (sync.isAlive()) {
+            final long start = System.nanoTime();
+            final Cursor c = mMockContext.getContentResolver().query(uri,
+                    Message.LIST_PROJECTION, MessageColumns.MAILBOX_KEY + "=?", selectionArgs,
+                    MessageColumns.TIMESTAMP + " desc");
+            try {
+                assertEquals(100, c.getCount());
+            } finally {
+                c.close();
+            }
+            latencies.add((System.nanoTime() - start) / 1000);
+        }
+        sync.join();
+
+        Collections.sort(latencies);
+        final int n = latencies.size();
+        LogUtils.d(LogUtils.TAG, "List query during bulk write: %d queries, p50 %d us, p99 %d us",
+                n, latencies.get(n / 2), latencies.get(Math.min(n - 1, n * 99 / 100)));
+    }
+
+    /**
+     * Measures the time from opening the database to the first message list cursor, with the
+     * startup maintenance passes run inline (as they used to be) and deferred. The numbers are
+     * logged rather than asserted, since they depend on the device.
+     */
+    public void testColdStartFirstListQuery() {
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.ACCOUNT_KEY, account.mId);
+        cv.put(MessageColumns.MAILBOX_KEY, box.mId);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < 5000; i++) {
+                cv.put(MessageColumns.TIMESTAMP, i);
+                db.insert(Message.TABLE_NAME, null, cv);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        final long inline = timeFirstListQuery(box.mId, true);
+        final long deferred = timeFirstListQuery(box.mId, false);
+        LogUtils.d(LogUtils.TAG, "First list query after open: %d ms inline, %d ms deferred",
+                inline, deferred);
+    }
+
+    private long timeFirstListQuery(final long mailboxId, final boolean inlineMaintenance) {
+        final EmailProvider ep = getProvider();
+        ep.shutdown();
+        final long start = SystemClock.elapsedRealtime();
+        final SQLiteDatabase db = ep.getDatabase(mMockContext);
+        if (inlineMaintenance) {
+            ep.getMaintenance().markNeeded(DatabaseMaintenance.ALL_PASSES);
+            ep.getMaintenance().runPasses(db);
+        }
+        final Cursor c = mMockContext.getContentResolver().query(Message.CONTENT_URI,
+                Message.LIST_PROJECTION, MessageColumns.MAILBOX_KEY + "=?",
+                new String[] { Long.toString(mailboxId) }, MessageColumns.TIMESTAMP + " desc");
+        try {
+            assertTrue(c.moveToFirst());
+        } finally {
+            c.close();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Measures the CPU time spent building the SQL for a message list and a folder list query,
+     * generating it every time (as we used to) and from the cache, and the CPU time of a whole
+     * message list query. The numbers are logged rather than asserted, since they depend on the
+     * device.
+     */
+    public void testGeneratedSqlCpu() {
+        final int iterations = 2000;
+        long start = Debug.threadCpuTimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            EmailProvider.generateSql(EmailProvider.UI_MESSAGES, EmailProvider.SQL_SHAPE_DEFAULT,
+                    UIProvider.CONVERSATION_PROJECTION.clone());
+            EmailProvider.generateSql(EmailProvider.UI_FOLDERS, EmailProvider.SQL_SHAPE_DEFAULT,
+                    UIProvider.FOLDERS_PROJECTION.clone());
+        }
+        final long generated = (Debug.threadCpuTimeNanos() - start) / iterations;
+
+        start = Debug.threadCpuTimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            // Projections come across binder, so the arrays are never the same ones
+            EmailProvider.getGeneratedSql(EmailProvider.UI_MESSAGES,
+                    EmailProvider.SQL_SHAPE_DEFAULT, UIProvider.CONVERSATION_PROJECTION.clone());
+            EmailProvider.getGeneratedSql(EmailProvider.UI_FOLDERS,
+                    EmailProvider.SQL_SHAPE_DEFAULT, UIProvider.FOLDERS_PROJECTION.clone());
+        }
+        final long cached = (Debug.threadCpuTimeNanos() - start) / iterations;
+
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        for (int i = 0; i < 20; i++) {
+            ProviderTestUtils.setupMessage("message" + i, account.mId, box.mId, false, true,
+                    mMockContext);
+        }
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        final Uri uri = EmailProvider.uiUri("uimessages", box.mId);
+        final int queries = 200;
+        start = Debug.threadCpuTimeNanos();
+        for (int i = 0; i < queries; i++) {
+            final Cursor c = resolver.query(uri, UIProvider.CONVERSATION_PROJECTION, null, null,
+                    null);
+            try {
+                assertEquals(20, c.getCount());
+            } finally {
+                c.close();
+            }
+        }
+        final long query = (Debug.threadCpuTimeNanos() - start) / queries;
+        LogUtils.d(LogUtils.TAG, "SQL for message and folder lists: %d ns generated, %d ns cached;"
+                + " message list query %d ns", generated, cached, query);
+    }
+
+    /**
+     * Not a test as such; logs how much the updated message table grows when the read flag of
+     * many synced messages is changed, compared with copying the messages' whole rows into it.
+     */
+    public void testUpdatedMessageJournalSize() {
+        final int count = 10000;
+        final Account account = ProviderTestUtils.setupAccount("journal", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        final long[] ids = new long[count];
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                final Message message = ProviderTestUtils.setupMessage("message" + i,
+                        account.mId, box.mId, false, false, mMockContext);
+                message.mServerId = Integer.toString(i);
+                ids[i] = db.insert(Message.TABLE_NAME, null, message.toContentValues());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        final ContentValues cv = new ContentValues();
+        // The messages start out read
+        cv.put(MessageColumns.FLAG_READ, false);
+        final long pagesBefore = DatabaseUtils.longForQuery(db, "pragma page_count", null);
+        final long start = SystemClock.elapsedRealtime();
+        for (final long id : ids) {
+            resolver.update(ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, id), cv,
+                    null, null);
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        final long journalPages =
+                DatabaseUtils.longForQuery(db, "pragma page_count", null) - pagesBefore;
+        assertEquals(count, EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI,
+                null, null));
+
+        // For comparison, the space that copies of the whole rows take
+        db.execSQL("create table FullRowCopies as select * from " + Message.TABLE_NAME
+                + " where 0");
+        final long copiesBefore = DatabaseUtils.longForQuery(db, "pragma page_count", null);
+        db.execSQL("insert into FullRowCopies select * from " + Message.TABLE_NAME);
+        final long fullRowPages =
+                DatabaseUtils.longForQuery(db, "pragma page_count", null) - copiesBefore;
+        db.execSQL("drop table FullRowCopies");
+
+        assertTrue(journalPages < fullRowPages);
+        LogUtils.d(LogUtils.TAG, "Updated message table for %d read flag changes: %d pages"
+                + " (whole rows would take %d pages); %d ms", count, journalPages, fullRowPages,
+                elapsed);
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.email.provider.EmailProvider.EmailAttachmentService;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.providers.UIProvider;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Tests of the Email provider that run with the rest of the suite, unlike {@link ProviderTests}
+ * which is suppressed as a whole.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.EmailProviderTests email
+ */
+@MediumTest
+public class EmailProviderTests extends ProviderTestCase2<EmailProvider> {
+    private EmailProvider mProvider;
+    private Context mMockContext;
+
+    public EmailProviderTests() {
+        super(EmailProvider.class, EmailContent.AUTHORITY);
+    }
+
+    /**
+     * Private context wrapper used to add back getPackageName() for these tests.
+     */
+    private static class MockContext2 extends ContextWrapper {
+        private final Context mRealContext;
+
+        public MockContext2(Context mockContext, Context realContext) {
+            super(mockContext);
+            mRealContext = realContext;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public String getPackageName() {
+            return mRealContext.getPackageName();
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            return mRealContext.getSystemService(name);
+        }
+    }
+
+    private static final EmailAttachmentService MOCK_ATTACHMENT_SERVICE =
+            new EmailAttachmentService() {
+        @Override
+        public void attachmentChanged(Context context, long id, int flags) {
+            // Noop. Don't download attachments.
+        }
+    };
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockContext = new MockContext2(getMockContext(), getContext());
+        mProvider = getProvider();
+        mProvider.injectAttachmentService(MOCK_ATTACHMENT_SERVICE);
+        // Invalidate all caches, since we reset the database for each test
+        ContentCache.invalidateAllCaches();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        mProvider.injectAttachmentService(null);
+    }
+
+    /**
+     * Queries made from inside a transaction on the writer must see that transaction's
+     * uncommitted changes; other queries are served by the reader connections.
+     */
+    public void testReaderDatabaseInTransaction() {
+        final EmailProvider ep = getProvider();
+        final SQLiteDatabase writer = ep.getDatabase(mMockContext);
+        writer.beginTransaction();
+        try {
+            assertSame(writer, ep.getReaderDatabase(mMockContext));
+        } finally {
+            writer.endTransaction();
+        }
+        if ("wal".equalsIgnoreCase(
+                DatabaseUtils.stringForQuery(writer, "PRAGMA journal_mode", null))) {
+            assertNotSame(writer, ep.getReaderDatabase(mMockContext));
+        }
+    }
+
+    /** Creates a new message. */
+    private static Message createMessage(
+            Context c, Mailbox b, boolean starred, boolean read, int flagLoaded) {
+        Message message = ProviderTestUtils.setupMessage("1",
+                b.mAccountKey,
+                b.mId,
+                true,
+                false,
+                c,
+                starred,
+                read);
+        message.mFlagLoaded = flagLoaded;
+        message.save(c);
+        return message;
+    }
+
+    /** Creates a mailbox of the given type, without the defaults setupMailbox fills in. */
+    private Mailbox createTypeMailbox(Context c, long accountId, int type) {
+        Mailbox box = new Mailbox();
+
+        box.mDisplayName = "foo";
+        box.mServerId = "1:1";
+        box.mParentKey = 0;
+        box.mAccountKey = accountId;
+        // Don't care about the fields below ... set them for giggles
+        box.mType = type;
+        box.save(c);
+        return box;
+    }
+
+    /**
+     * Test that the deferred maintenance passes clean up after account and mailbox deletion,
+     * and that they're only run when marked as needed.
+     */
+    public void testDatabaseMaintenance() {
+        final EmailProvider ep = getProvider();
+        final SQLiteDatabase db = ep.getDatabase(mMockContext);
+        final DatabaseMaintenance maintenance = ep.getMaintenance();
+        maintenance.runPasses(db);
+        assertFalse(maintenance.isNeeded(DatabaseMaintenance.ALL_PASSES));
+
+        // A mailbox and messages with no account, as an older version could leave behind
+        final Mailbox box = createTypeMailbox(mMockContext, -1, Mailbox.TYPE_MAIL);
+        final Message m1 = createMessage(mMockContext, box, true, false,
+                Message.FLAG_LOADED_COMPLETE);
+        final Message m2 = createMessage(mMockContext, box, true, false,
+                Message.FLAG_LOADED_COMPLETE);
+        assertTrue(maintenance.isNeeded(DatabaseMaintenance.PARENT_KEYS));
+        assertFalse(maintenance.isNeeded(DatabaseMaintenance.UNLINKED_ROWS));
+        ContentCache.invalidateAllCaches();
+
+        // Only the parent keys were marked, so the orphans are left alone
+        maintenance.runPasses(db);
+        assertFalse(maintenance.isNeeded(DatabaseMaintenance.ALL_PASSES));
+        assertNotNull(Mailbox.restoreMailboxWithId(mMockContext, box.mId));
+
+        maintenance.markNeeded(DatabaseMaintenance.UNLINKED_ROWS);
+        maintenance.runPasses(db);
+        assertFalse(maintenance.isNeeded(DatabaseMaintenance.ALL_PASSES));
+        assertNull(Mailbox.restoreMailboxWithId(mMockContext, box.mId));
+        assertNull(Message.restoreMessageWithId(mMockContext, m1.mId));
+        assertNull(Message.restoreMessageWithId(mMockContext, m2.mId));
+
+        // Deleting a mailbox through the provider marks the orphan passes
+        final Mailbox box2 = ProviderTestUtils.setupMailbox("box2", -1, true, mMockContext);
+        maintenance.runPasses(db);
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Mailbox.CONTENT_URI, box2.mId), null, null);
+        assertTrue(maintenance.isNeeded(DatabaseMaintenance.ORPHANED_MESSAGE_CHANGES));
+        assertTrue(maintenance.isNeeded(DatabaseMaintenance.UNLINKED_ROWS));
+    }
+
+    /**
+     * Test that the sanitized html is stored when a body is written, and recreated on demand if
+     * it's missing.
+     */
+    public void testSanitizedHtml() throws IOException {
+        final Context context = getProvider().getContext();
+        final long messageId = 1000;
+        ProviderTestUtils.setupBody(messageId, null,
+                "<p>hello</p><script>alert(1)</script>", true, mMockContext);
+
+        final File sanitizedFile = EmailProvider.getBodyFile(context, messageId,
+                "v" + EmailProvider.SANITIZED_HTML_VERSION + ".html");
+        assertTrue(sanitizedFile.exists());
+        final String sanitized = EmailProvider.readSanitizedHtml(context, messageId);
+        assertTrue(sanitized.contains("hello"));
+        assertFalse(sanitized.contains("script"));
+
+        // Bodies stored before sanitizing at ingest, or by an older sanitizer, are redone
+        assertTrue(sanitizedFile.delete());
+        assertEquals(sanitized, EmailProvider.readSanitizedHtml(context, messageId));
+        assertTrue(sanitizedFile.exists());
+
+        // Deleting the html deletes the sanitized copy too
+        final ContentValues cv = new ContentValues();
+        cv.putNull(BodyColumns.HTML_CONTENT);
+        mMockContext.getContentResolver().update(Body.CONTENT_URI, cv,
+                Body.SELECTION_BY_MESSAGE_KEY, new String[] { Long.toString(messageId) });
+        assertFalse(sanitizedFile.exists());
+        assertNull(EmailProvider.readSanitizedHtml(context, messageId));
+    }
+
+    /**
+     * Test that bodies written in a batch are sanitized too, and published without leaving
+     * temporary files behind.
+     */
+    public void testSanitizedHtmlInBatch() throws Exception {
+        final Context context = getProvider().getContext();
+        final long messageId = 1001;
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newInsert(Body.CONTENT_URI)
+                .withValue(BodyColumns.MESSAGE_KEY, messageId)
+                .withValue(BodyColumns.HTML_CONTENT, "<p>batch</p><script>alert(1)</script>")
+                .build());
+        mMockContext.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+
+        final File htmlFile = EmailProvider.getBodyFile(context, messageId, "html");
+        final File sanitizedFile = EmailProvider.getBodyFile(context, messageId,
+                "v" + EmailProvider.SANITIZED_HTML_VERSION + ".html");
+        assertTrue(htmlFile.exists());
+        assertTrue(sanitizedFile.exists());
+        assertFalse(new File(htmlFile.getPath() + ".tmp").exists());
+        assertFalse(new File(sanitizedFile.getPath() + ".tmp").exists());
+        final String sanitized = EmailProvider.readSanitizedHtml(context, messageId);
+        assertTrue(sanitized.contains("batch"));
+        assertFalse(sanitized.contains("script"));
+    }
+
+    /**
+     * A batch only looks for unused attachment files if it may have left some behind.
+     */
+    public void testBatchDeletesUnreferencedBlobs() throws Exception {
+        final Context context = getProvider().getContext();
+        final SQLiteDatabase db = mProvider.getDatabase(mMockContext);
+        final String hash = "0123456789abcdef";
+        final File blobFile = AttachmentBlobs.getFile(context, hash);
+        blobFile.getParentFile().mkdirs();
+        blobFile.createNewFile();
+        final ContentValues cv = new ContentValues();
+        cv.put(AttachmentBlobs.HASH, hash);
+        cv.put(AttachmentBlobs.REF_COUNT, 0);
+        db.insert(AttachmentBlobs.TABLE_NAME, null, cv);
+
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newInsert(Body.CONTENT_URI)
+                .withValue(BodyColumns.MESSAGE_KEY, 1002)
+                .withValue(BodyColumns.TEXT_CONTENT, "text")
+                .build());
+        mMockContext.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        assertTrue(blobFile.exists());
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, AttachmentBlobs.TABLE_NAME));
+
+        ops.clear();
+        ops.add(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(Attachment.CONTENT_URI, 1)).build());
+        mMockContext.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        assertFalse(blobFile.exists());
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, AttachmentBlobs.TABLE_NAME));
+    }
+
+    public void testGeneratedSqlCached() {
+        final String[] projection = UIProvider.CONVERSATION_PROJECTION.clone();
+        final String sql = EmailProvider.getGeneratedSql(EmailProvider.UI_MESSAGES,
+                EmailProvider.SQL_SHAPE_DEFAULT, projection);
+        assertEquals(EmailProvider.generateSql(EmailProvider.UI_MESSAGES,
+                EmailProvider.SQL_SHAPE_DEFAULT, projection), sql);
+        // An equal projection gets the very same string
+        assertSame(sql, EmailProvider.getGeneratedSql(EmailProvider.UI_MESSAGES,
+                EmailProvider.SQL_SHAPE_DEFAULT, UIProvider.CONVERSATION_PROJECTION.clone()));
+        // The selection shape is part of the key
+        final String unseenSql = EmailProvider.getGeneratedSql(EmailProvider.UI_MESSAGES,
+                EmailProvider.SQL_SHAPE_UNSEEN_ONLY, projection);
+        assertFalse(sql.equals(unseenSql));
+        // Changing the caller's array afterwards doesn't affect what was cached
+        projection[0] = UIProvider.ConversationColumns.URI;
+        assertSame(sql, EmailProvider.getGeneratedSql(EmailProvider.UI_MESSAGES,
+                EmailProvider.SQL_SHAPE_DEFAULT, UIProvider.CONVERSATION_PROJECTION.clone()));
+    }
+
+    private Integer getEmbedsExternalResources(final long messageId) {
+        final Cursor c = mMockContext.getContentResolver().query(Body.CONTENT_URI,
+                new String[] {BodyColumns.EMBEDS_EXTERNAL_RESOURCES},
+                Body.SELECTION_BY_MESSAGE_KEY, new String[] {Long.toString(messageId)}, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.isNull(0) ? null : c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Test that bodies are flagged as embedding images when they're written, and that the
+     * maintenance pass fills in the flag for bodies that don't have it.
+     */
+    public void testEmbedsExternalResources() {
+        final Account account = ProviderTestUtils.setupAccount("account", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message withImage = ProviderTestUtils.setupMessage("image", account.mId, box.mId,
+                true, false, mMockContext);
+        withImage.mHtml = "<p>Look</p><IMG  src=\"http://example.com/a.png\">";
+        withImage.save(mMockContext);
+        final Message plain = ProviderTestUtils.setupMessage("plain", account.mId, box.mId,
+                true, true, mMockContext);
+        assertEquals(Integer.valueOf(1), getEmbedsExternalResources(withImage.mId));
+        assertEquals(Integer.valueOf(0), getEmbedsExternalResources(plain.mId));
+
+        // Rewriting the html updates the flag
+        final ContentValues cv = new ContentValues();
+        cv.put(BodyColumns.HTML_CONTENT, "<img src=\"cid:1\">");
+        Body.updateBodyWithMessageId(mMockContext, plain.mId, cv);
+        assertEquals(Integer.valueOf(1), getEmbedsExternalResources(plain.mId));
+
+        // Bodies from before the column was added are flagged in the background
+        final EmailProvider ep = getProvider();
+        final SQLiteDatabase db = ep.getDatabase(mMockContext);
+        db.execSQL("update " + Body.TABLE_NAME + " set "
+                + BodyColumns.EMBEDS_EXTERNAL_RESOURCES + "=null");
+        assertNull(getEmbedsExternalResources(withImage.mId));
+        final DatabaseMaintenance maintenance = ep.getMaintenance();
+        maintenance.markNeeded(DatabaseMaintenance.EMBEDS_EXTERNAL_RESOURCES);
+        maintenance.runPasses(db);
+        assertFalse(maintenance.isNeeded(DatabaseMaintenance.ALL_PASSES));
+        assertEquals(Integer.valueOf(1), getEmbedsExternalResources(withImage.mId));
+        assertEquals(Integer.valueOf(1), getEmbedsExternalResources(plain.mId));
+    }
+
+    public void testUpdatedMessageJournal() {
+        final Account account = ProviderTestUtils.setupAccount("journal", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true, mMockContext);
+        final Message message = ProviderTestUtils.setupMessage("message", account.mId, box.mId,
+                false, true, mMockContext);
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        final Uri uri = ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, message.mId);
+
+        ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, !message.mFlagRead);
+        resolver.update(uri, cv, null, null);
+        // A second change to the same column doesn't overwrite the original value
+        resolver.update(uri, cv, null, null);
+        cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_FAVORITE, !message.mFlagFavorite);
+        resolver.update(uri, cv, null, null);
+
+        final Cursor c = resolver.query(Message.UPDATED_CONTENT_URI,
+                new String[] { MessageColumns._ID, MessageColumns.MAILBOX_KEY,
+                        MessageColumns.FLAG_READ, MessageColumns.FLAG_FAVORITE,
+                        MessageColumns.FROM_LIST, MessageColumns.SUBJECT },
+                null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals(message.mId, c.getLong(0));
+            assertEquals(box.mId, c.getLong(1));
+            assertEquals(message.mFlagRead, c.getInt(2) == 1);
+            assertEquals(message.mFlagFavorite, c.getInt(3) == 1);
+            // Columns that haven't changed aren't copied
+            assertTrue(c.isNull(4));
+            assertTrue(c.isNull(5));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static ArrayList<ContentProviderOperation> uiMessageUpdates(final long[] messageIds,
+            final ContentValues values, final int sequence) {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (final long messageId : messageIds) {
+            final Uri uri = EmailProvider.uiUri("uimessage", messageId).buildUpon()
+                    .appendQueryParameter(UIProvider.SEQUENCE_QUERY_PARAMETER,
+                            Integer.toString(sequence))
+                    .build();
+            ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+        }
+        return ops;
+    }
+
+    public void testUiUpdateMessagesInBulk() throws Exception {
+        final Account account = ProviderTestUtils.setupAccount("bulk", true, mMockContext);
+        final Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account.mId, true,
+                mMockContext);
+        final Mailbox box2 = ProviderTestUtils.setupMailbox("box2", account.mId, true,
+                mMockContext);
+        final long[] messageIds = new long[3];
+        for (int i = 0; i < messageIds.length; i++) {
+            messageIds[i] = ProviderTestUtils.setupMessage("message" + i, account.mId, box1.mId,
+                    false, true, mMockContext, false, false).mId;
+        }
+        // The second message starts out starred, so its undo differs from the others'
+        final ContentValues starred = new ContentValues();
+        starred.put(MessageColumns.FLAG_FAVORITE, true);
+        mMockContext.getContentResolver().update(
+                ContentUris.withAppendedId(Message.CONTENT_URI, messageIds[1]), starred,
+                null, null);
+
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(UIProvider.ConversationColumns.STARRED, true);
+        values.put(UIProvider.ConversationColumns.READ, true);
+        final ContentProviderResult[] results = resolver.applyBatch(EmailContent.AUTHORITY,
+                uiMessageUpdates(messageIds, values, 1));
+        assertEquals(messageIds.length, results.length);
+        for (int i = 0; i < messageIds.length; i++) {
+            assertEquals(1, results[i].count.intValue());
+            final Message message = Message.restoreMessageWithId(mMockContext, messageIds[i]);
+            assertTrue(message.mFlagRead);
+            assertTrue(message.mFlagFavorite);
+        }
+
+        // Undo puts each message back as it was
+        resolver.query(Uri.parse("content://" + EmailContent.AUTHORITY + "/uiundo"),
+                UIProvider.CONVERSATION_PROJECTION, null, null, null).close();
+        for (int i = 0; i < messageIds.length; i++) {
+            final Message message = Message.restoreMessageWithId(mMockContext, messageIds[i]);
+            assertFalse(message.mFlagRead);
+            assertEquals(i == 1, message.mFlagFavorite);
+        }
+
+        // Move them all, along with one that doesn't exist
+        values = new ContentValues();
+        values.put(MessageColumns.MAILBOX_KEY, box2.mId);
+        final long[] withMissing =
+                new long[] { messageIds[0], messageIds[1], messageIds[2], 999999 };
+        final ContentProviderResult[] moveResults = resolver.applyBatch(EmailContent.AUTHORITY,
+                uiMessageUpdates(withMissing, values, 2));
+        assertEquals(0, moveResults[3].count.intValue());
+        assertEquals(0, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                MessageColumns.MAILBOX_KEY + "=?", new String[] { Long.toString(box1.mId) }));
+        assertEquals(3, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                MessageColumns.MAILBOX_KEY + "=?", new String[] { Long.toString(box2.mId) }));
+    }
+
+    /**
+     * A message updated more than once in a bulk batch gets a result for each update and is
+     * undone to its original state; and, as with single updates, a message that isn't synced has
+     * its pending upsync dropped.
+     */
+    public void testUiUpdateMessagesInBulkDuplicates() throws Exception {
+        final Account account = ProviderTestUtils.setupAccount("dupes", true, mMockContext);
+        final Mailbox box = ProviderTestUtils.setupMailbox("box", account.mId, true,
+                mMockContext);
+        final long messageId1 = ProviderTestUtils.setupMessage("message1", account.mId, box.mId,
+                false, true, mMockContext, false, false).mId;
+        final long messageId2 = ProviderTestUtils.setupMessage("message2", account.mId, box.mId,
+                false, true, mMockContext, false, false).mId;
+        final ContentResolver resolver = mMockContext.getContentResolver();
+        // Leave a pending upsync for the first message
+        final ContentValues starred = new ContentValues();
+        starred.put(MessageColumns.FLAG_FAVORITE, true);
+        resolver.update(ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, messageId1),
+                starred, null, null);
+        assertEquals(1, EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI));
+
+        final ContentValues values = new ContentValues();
+        values.put(UIProvider.ConversationColumns.READ, true);
+        final ContentProviderResult[] results = resolver.applyBatch(EmailContent.AUTHORITY,
+                uiMessageUpdates(new long[] { messageId1, messageId2, messageId1 }, values, 3));
+        assertEquals(3, results.length);
+        for (final ContentProviderResult result : results) {
+            assertEquals(1, result.count.intValue());
+        }
+        assertEquals(0, EmailContent.count(mMockContext, Message.UPDATED_CONTENT_URI));
+
+        resolver.query(Uri.parse("content://" + EmailContent.AUTHORITY + "/uiundo"),
+                UIProvider.CONVERSATION_PROJECTION, null, null, null).close();
+        assertFalse(Message.restoreMessageWithId(mMockContext, messageId1).mFlagRead);
+        assertFalse(Message.restoreMessageWithId(mMockContext, messageId2).mFlagRead);
+    }
+
+    /**
+     * The mailboxes and messages of a deleted account stay in the database until they're purged
+     * in the background, but they mustn't be found meanwhile.
+     */
+    public void testDeletedAccountMailboxesHidden() {
+        final Account account1 = ProviderTestUtils.setupAccount("deleted", true, mMockContext);
+        final Account account2 = ProviderTestUtils.setupAccount("kept", true, mMockContext);
+        final Mailbox inbox1 = ProviderTestUtils.setupMailbox("inbox1", account1.mId, true,
+                mMockContext, Mailbox.TYPE_INBOX);
+        final Mailbox inbox2 = ProviderTestUtils.setupMailbox("inbox2", account2.mId, true,
+                mMockContext, Mailbox.TYPE_INBOX);
+        createMessage(mMockContext, inbox1, false, false, Message.FLAG_LOADED_COMPLETE);
+        createMessage(mMockContext, inbox2, false, false, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(2, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                Message.ALL_INBOX_SELECTION, null));
+
+        mMockContext.getContentResolver().delete(
+                ContentUris.withAppendedId(Account.CONTENT_URI, account1.mId), null, null);
+        assertNotNull(Mailbox.restoreMailboxWithId(mMockContext, inbox1.mId));
+        assertEquals(Mailbox.NO_MAILBOX,
+                Mailbox.findMailboxOfType(mMockContext, account1.mId, Mailbox.TYPE_INBOX));
+        assertEquals(inbox2.mId,
+                Mailbox.findMailboxOfType(mMockContext, account2.mId, Mailbox.TYPE_INBOX));
+        assertEquals(1, EmailContent.count(mMockContext, Message.CONTENT_URI,
+                Message.ALL_INBOX_SELECTION, null));
+    }
+}
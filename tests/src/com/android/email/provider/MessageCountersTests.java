@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import static com.android.email.provider.RawDatabaseTestUtils.insertAccount;
+import static com.android.email.provider.RawDatabaseTestUtils.insertMailbox;
+import static com.android.email.provider.RawDatabaseTestUtils.insertMessage;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests of the virtual folder counters. These run against a private in-memory database from
+ * {@link RawDatabaseTestUtils}, and compare the counters with the queries they replaced.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageCountersTests email
+ */
+@SmallTest
+public class MessageCountersTests extends AndroidTestCase {
+    private static final int[] MAILBOX_TYPES =
+            { Mailbox.TYPE_INBOX, Mailbox.TYPE_MAIL, Mailbox.TYPE_SENT, Mailbox.TYPE_TRASH };
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDb = RawDatabaseTestUtils.createDatabase(getContext());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private long insertFlaggedMessage(long accountId, long mailboxId, boolean read,
+            boolean starred) {
+        final ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.FLAG_READ, read ? 1 : 0);
+        cv.put(MessageColumns.FLAG_FAVORITE, starred ? 1 : 0);
+        return insertMessage(mDb, accountId, mailboxId, cv);
+    }
+
+    private void updateMessage(long messageId, String column, Object value) {
+        final ContentValues cv = new ContentValues();
+        if (value instanceof Boolean) {
+            cv.put(column, ((Boolean) value) ? 1 : 0);
+        } else {
+            cv.put(column, (Long) value);
+        }
+        mDb.update(Message.TABLE_NAME, cv, MessageColumns._ID + "=" + messageId, null);
+    }
+
+    private long count(String selection, long accountId) {
+        if (accountId != MessageCounters.ALL_ACCOUNTS) {
+            selection = MessageColumns.ACCOUNT_KEY + "=" + accountId + " AND " + selection;
+        } else {
+            // As in the combined views, which leave out deleted accounts still to be purged
+            selection = MessageColumns.ACCOUNT_KEY + " IN (SELECT " + AccountColumns._ID
+                    + " FROM " + Account.TABLE_NAME + ") AND " + selection;
+        }
+        return DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM " + Message.TABLE_NAME
+                + " WHERE " + selection, null);
+    }
+
+    /** Compares an account's counters (or the ones for all accounts) with the old queries. */
+    private void assertCounters(long accountId) {
+        if (accountId == MessageCounters.ALL_ACCOUNTS) {
+            assertEquals(count(MessageColumns.MAILBOX_KEY + " IN (SELECT " + MailboxColumns._ID
+                    + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE + "="
+                    + Mailbox.TYPE_INBOX + ") AND " + MessageColumns.FLAG_READ + "=0", accountId),
+                    MessageCounters.getCount(mDb, accountId, MessageCounters.INBOX_UNREAD));
+        }
+        assertEquals(count(MessageColumns.FLAG_READ + "=0 AND " + MessageColumns.MAILBOX_KEY
+                + " NOT IN (SELECT " + MailboxColumns._ID + " FROM " + Mailbox.TABLE_NAME
+                + " WHERE " + MailboxColumns.TYPE + "=" + Mailbox.TYPE_TRASH + ")", accountId),
+                MessageCounters.getCount(mDb, accountId, MessageCounters.UNREAD));
+        assertEquals(count(MessageColumns.FLAG_FAVORITE + "=1", accountId),
+                MessageCounters.getCount(mDb, accountId, MessageCounters.STARRED));
+    }
+
+    public void testCounters() {
+        final long account = insertAccount(mDb, "a");
+        final long inbox = insertMailbox(mDb, account, Mailbox.TYPE_INBOX);
+        final long trash = insertMailbox(mDb, account, Mailbox.TYPE_TRASH);
+        final long id = insertFlaggedMessage(account, inbox, false, false);
+        insertFlaggedMessage(account, inbox, true, true);
+
+        assertEquals(1, MessageCounters.getCount(mDb, account, MessageCounters.INBOX_UNREAD));
+        assertEquals(1, MessageCounters.getCount(mDb, account, MessageCounters.UNREAD));
+        assertEquals(1, MessageCounters.getCount(mDb, account, MessageCounters.STARRED));
+
+        // Unread mail in the trash doesn't count
+        updateMessage(id, MessageColumns.MAILBOX_KEY, trash);
+        assertEquals(0, MessageCounters.getCount(mDb, account, MessageCounters.UNREAD));
+        assertEquals(0, MessageCounters.getCount(mDb,
+                MessageCounters.ALL_ACCOUNTS, MessageCounters.INBOX_UNREAD));
+
+        // ...unless the trash stops being the trash
+        final ContentValues cv = new ContentValues();
+        cv.put(MailboxColumns.TYPE, Mailbox.TYPE_MAIL);
+        mDb.update(Mailbox.TABLE_NAME, cv, MailboxColumns._ID + "=" + trash, null);
+        assertEquals(1, MessageCounters.getCount(mDb, account, MessageCounters.UNREAD));
+
+        assertTrue(MessageCounters.check(mDb));
+    }
+
+    public void testAccountDeleted() {
+        final long account1 = insertAccount(mDb, "a");
+        final long account2 = insertAccount(mDb, "b");
+        final long inbox1 = insertMailbox(mDb, account1, Mailbox.TYPE_INBOX);
+        final long message1 = insertFlaggedMessage(account1, inbox1, false, true);
+        insertFlaggedMessage(account2, insertMailbox(mDb, account2, Mailbox.TYPE_INBOX), false,
+                true);
+        assertEquals(2, MessageCounters.getCount(mDb,
+                MessageCounters.ALL_ACCOUNTS, MessageCounters.STARRED));
+
+        // The account's messages are only purged later, but no longer count
+        mDb.delete(Account.TABLE_NAME, AccountColumns._ID + "=" + account1, null);
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM "
+                + MessageCounters.TABLE_NAME + " WHERE " + MessageCounters.ACCOUNT_KEY + "="
+                + account1, null));
+        assertEquals(1, MessageCounters.getCount(mDb,
+                MessageCounters.ALL_ACCOUNTS, MessageCounters.STARRED));
+        assertCounters(MessageCounters.ALL_ACCOUNTS);
+        assertCounters(account2);
+        assertTrue(MessageCounters.check(mDb));
+
+        // Nor do changes to them, or their purge
+        updateMessage(message1, MessageColumns.FLAG_READ, true);
+        insertFlaggedMessage(account1, inbox1, false, true);
+        assertCounters(MessageCounters.ALL_ACCOUNTS);
+        mDb.delete(Message.TABLE_NAME, MessageColumns.ACCOUNT_KEY + "=" + account1, null);
+        assertCounters(MessageCounters.ALL_ACCOUNTS);
+        assertTrue(MessageCounters.check(mDb));
+    }
+
+    public void testCheckAndRecalculate() {
+        final long account = insertAccount(mDb, "a");
+        final long inbox = insertMailbox(mDb, account, Mailbox.TYPE_INBOX);
+        insertFlaggedMessage(account, inbox, false, true);
+        assertTrue(MessageCounters.check(mDb));
+
+        mDb.execSQL("UPDATE " + MessageCounters.TABLE_NAME + " SET " + MessageCounters.STARRED
+                + "=5");
+        assertFalse(MessageCounters.check(mDb));
+        MessageCounters.recalculate(mDb);
+        assertTrue(MessageCounters.check(mDb));
+        assertCounters(account);
+        assertCounters(MessageCounters.ALL_ACCOUNTS);
+    }
+
+    /**
+     * Runs random inserts, deletes, moves, flag changes and mailbox changes, and checks the
+     * counters against the old queries as it goes.
+     */
+    @MediumTest
+    public void testFuzz() {
+        final Random random = new Random(0);
+        final long[] accounts = new long[3];
+        final long[][] mailboxes = new long[accounts.length][MAILBOX_TYPES.length];
+        for (int a = 0; a < accounts.length; a++) {
+            accounts[a] = insertAccount(mDb, "account" + a);
+            for (int m = 0; m < MAILBOX_TYPES.length; m++) {
+                mailboxes[a][m] = insertMailbox(mDb, accounts[a], MAILBOX_TYPES[m]);
+            }
+        }
+        final ArrayList<long[]> messages = new ArrayList<long[]>(); // { id, account index }
+
+        for (int n = 0; n < 3000; n++) {
+            final int op = random.nextInt(10);
+            if (op < 4 || messages.isEmpty()) {
+                final int a = random.nextInt(accounts.length);
+                final long id = insertFlaggedMessage(accounts[a],
+                        mailboxes[a][random.nextInt(MAILBOX_TYPES.length)],
+                        random.nextBoolean(), random.nextInt(4) == 0);
+                messages.add(new long[] { id, a });
+                continue;
+            }
+            final long[] message = messages.get(random.nextInt(messages.size()));
+            switch (op) {
+                case 4:
+                    mDb.delete(Message.TABLE_NAME, MessageColumns._ID + "=" + message[0], null);
+                    messages.remove(message);
+                    break;
+                case 5:
+                case 6:
+                    updateMessage(message[0], MessageColumns.MAILBOX_KEY,
+                            mailboxes[(int) message[1]][random.nextInt(MAILBOX_TYPES.length)]);
+                    break;
+                case 7:
+                    updateMessage(message[0], MessageColumns.FLAG_READ, random.nextBoolean());
+                    break;
+                case 8:
+                    updateMessage(message[0], MessageColumns.FLAG_FAVORITE, random.nextBoolean());
+                    break;
+                default:
+                    // Rarely, a mailbox changes type
+                    final ContentValues cv = new ContentValues();
+                    cv.put(MailboxColumns.TYPE,
+                            MAILBOX_TYPES[random.nextInt(MAILBOX_TYPES.length)]);
+                    mDb.update(Mailbox.TABLE_NAME, cv, MailboxColumns._ID + "="
+                            + mailboxes[random.nextInt(accounts.length)][
+                                    random.nextInt(MAILBOX_TYPES.length)], null);
+                    break;
+            }
+            if (n % 100 == 0) {
+                assertCounters(MessageCounters.ALL_ACCOUNTS);
+                for (final long account : accounts) {
+                    assertCounters(account);
+                }
+            }
+        }
+        assertTrue(MessageCounters.check(mDb));
+
+        // Deleting a mailbox deletes its messages
+        mDb.delete(Mailbox.TABLE_NAME, MailboxColumns._ID + "=" + mailboxes[0][0], null);
+        assertCounters(MessageCounters.ALL_ACCOUNTS);
+        assertCounters(accounts[0]);
+        assertTrue(MessageCounters.check(mDb));
+    }
+}
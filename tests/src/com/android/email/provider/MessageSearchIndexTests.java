@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import static com.android.email.provider.RawDatabaseTestUtils.insertMailbox;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.utils.LogUtils;
+
+import java.util.Arrays;
+
+/**
+ * Tests of the local search index. These run against a private in-memory database from
+ * {@link RawDatabaseTestUtils}.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.MessageSearchIndexTests email
+ */
+@SmallTest
+public class MessageSearchIndexTests extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 1;
+
+    private SQLiteDatabase mDb;
+    private long mInboxId;
+    private long mSearchMailboxId;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mDb = RawDatabaseTestUtils.createDatabase(getContext());
+        mInboxId = insertMailbox(mDb, ACCOUNT_ID, Mailbox.TYPE_INBOX);
+        mSearchMailboxId = insertMailbox(mDb, ACCOUNT_ID, Mailbox.TYPE_SEARCH);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    private long insertMessage(long mailboxId, String subject, String from, long timestamp) {
+        final ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, subject);
+        cv.put(MessageColumns.FROM_LIST, from);
+        cv.put(MessageColumns.TIMESTAMP, timestamp);
+        cv.put(MessageColumns.FLAG_READ, 1);
+        return RawDatabaseTestUtils.insertMessage(mDb, ACCOUNT_ID, mailboxId, cv);
+    }
+
+    private long[] search(String filter) {
+        return MessageSearchIndex.search(mDb, ACCOUNT_ID, filter, 100);
+    }
+
+    public void testToMatchExpression() {
+        assertNull(MessageSearchIndex.toMatchExpression(null));
+        assertNull(MessageSearchIndex.toMatchExpression("  \"*- "));
+        assertEquals("\"foo\"*", MessageSearchIndex.toMatchExpression("foo"));
+        assertEquals("\"foo\"* \"bar\"*", MessageSearchIndex.toMatchExpression(" foo  \"bar\" "));
+        assertEquals("\"a\"* \"b\"*", MessageSearchIndex.toMatchExpression("a -b"));
+    }
+
+    public void testGetIndexableText() {
+        assertNull(MessageSearchIndex.getIndexableText(null, null));
+        assertEquals("plain", MessageSearchIndex.getIndexableText("plain", "<b>html</b>"));
+        assertEquals(" html ", MessageSearchIndex.getIndexableText(null, "<b>html</b>"));
+    }
+
+    public void testIndexFollowsMessageTable() {
+        final long id1 = insertMessage(mInboxId, "Quarterly report", "alice@example.com", 1);
+        final long id2 = insertMessage(mInboxId, "Lunch", "bob@example.com", 2);
+
+        assertTrue(Arrays.equals(new long[] { id1 }, search("quarter")));
+        assertTrue(Arrays.equals(new long[] { id2 }, search("bob")));
+
+        // Subject change is picked up by the update trigger
+        final ContentValues cv = new ContentValues();
+        cv.put(MessageColumns.SUBJECT, "Quarterly lunch");
+        mDb.update(Message.TABLE_NAME, cv, MessageColumns._ID + "=" + id2, null);
+        assertTrue(Arrays.equals(new long[] { id2, id1 }, search("quarterly")));
+        assertTrue(Arrays.equals(new long[] { id2 }, search("quarterly lunch")));
+
+        // Deletion removes the message from the index
+        mDb.delete(Message.TABLE_NAME, MessageColumns._ID + "=" + id1, null);
+        assertTrue(Arrays.equals(new long[] { id2 }, search("quarterly")));
+    }
+
+    public void testBodyIsIndexed() {
+        final long id = insertMessage(mInboxId, "Hello", "alice@example.com", 1);
+        assertEquals(0, search("zeppelin").length);
+
+        final ContentValues body = new ContentValues();
+        body.put(BodyColumns.HTML_CONTENT, "<p>The <i>zeppelin</i> has landed</p>");
+        MessageSearchIndex.updateBody(mDb, id, body);
+        assertTrue(Arrays.equals(new long[] { id }, search("zeppelin")));
+        // Markup is not indexed
+        assertEquals(0, search("p").length);
+    }
+
+    public void testSearchSkipsSearchMailbox() {
+        final long id = insertMessage(mInboxId, "Receipt", "shop@example.com", 1);
+        insertMessage(mSearchMailboxId, "Receipt", "shop@example.com", 1);
+        assertTrue(Arrays.equals(new long[] { id }, search("receipt")));
+    }
+
+    public void testPopulate() {
+        final long id = insertMessage(mInboxId, "Existing message", "alice@example.com", 1);
+        mDb.execSQL("delete from " + MessageSearchIndex.TABLE_NAME);
+        assertEquals(0, search("existing").length);
+        MessageSearchIndex.populate(mDb);
+        assertTrue(Arrays.equals(new long[] { id }, search("existing")));
+    }
+
+    /**
+     * Measures query latency over a 100k message corpus. The numbers are logged rather than
+     * asserted, since they depend on the device.
+     */
+    @LargeTest
+    public void testQueryLatency() {
+        final int messageCount = 100000;
+        final String[] words = { "budget", "meeting", "invoice", "travel", "lunch", "report",
+                "review", "release", "schedule", "update" };
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < messageCount; i++) {
+                insertMessage(mInboxId, words[i % words.length] + " " + words[(i / 10) % 10]
+                        + " " + i, "sender" + (i % 500) + "@example.com", i);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        final String[] queries = { "budget", "meeting review", "sender42", "inv", "99999" };
+        for (final String query : queries) {
+            final long start = SystemClock.elapsedRealtime();
+            final long[] ids = search(query);
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            assertTrue(ids.length > 0);
+            LogUtils.d(LogUtils.TAG, "search(%s) over %d messages: %d results in %d ms",
+                    query, messageCount, ids.length, elapsed);
+        }
+    }
+}
@@ -1325,9 +1325,16 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         Uri uri = ContentUris.withAppendedId(Account.CONTENT_URI, account1Id);
         mMockContext.getContentResolver().delete(uri, null, null);
 
-        // make sure there are no accounts, mailboxes, or messages
+        // the account goes at once, and its mailboxes and messages are left to be purged
         numAccounts = EmailContent.count(mMockContext, Account.CONTENT_URI, null, null);
         assertEquals(0, numAccounts);
+        final EmailProvider ep = getProvider();
+        final DatabaseMaintenance maintenance = ep.getMaintenance();
+        assertTrue(maintenance.isNeeded(DatabaseMaintenance.DELETED_ACCOUNTS));
+        maintenance.runPasses(ep.getDatabase(mMockContext));
+        ContentCache.invalidateAllCaches();
+
+        // make sure there are no mailboxes or messages
         numBoxes = EmailContent.count(mMockContext, Mailbox.CONTENT_URI, null, null);
         assertEquals(0, numBoxes);
         numMessages = EmailContent.count(mMockContext, Message.CONTENT_URI, null, null);
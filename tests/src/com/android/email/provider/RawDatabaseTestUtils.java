@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.Mailbox;
+
+/**
+ * Utilities for tests of the provider's tables and triggers that run against a private in-memory
+ * database, rather than through the provider. Rows are inserted directly, with just the columns
+ * the tests need.
+ */
+public class RawDatabaseTestUtils {
+    private RawDatabaseTestUtils() {}
+
+    /**
+     * @return a new in-memory database with the tables of accounts, mailboxes, messages and
+     *     their attachments and bodies, and the tables their triggers maintain
+     */
+    public static SQLiteDatabase createDatabase(final Context context) {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        DBHelper.createMessageTable(context, db);
+        DBHelper.createAttachmentTable(db);
+        DBHelper.createMailboxTable(db);
+        DBHelper.createHostAuthTable(db);
+        DBHelper.createAccountTable(db);
+        DBHelper.createPolicyTable(db);
+        DBHelper.createBodyTable(db);
+        MessageCounters.createTable(db);
+        AttachmentBlobs.createTable(db);
+        MessageSearchIndex.createTable(db);
+        return db;
+    }
+
+    /** Inserts an account with the given id. */
+    public static long insertAccount(final SQLiteDatabase db, final long accountId) {
+        final ContentValues cv = new ContentValues();
+        cv.put(AccountColumns._ID, accountId);
+        cv.put(AccountColumns.DISPLAY_NAME, "account" + accountId);
+        return db.insert(Account.TABLE_NAME, null, cv);
+    }
+
+    /** Inserts an account, which is given the next free id. */
+    public static long insertAccount(final SQLiteDatabase db, final String displayName) {
+        final ContentValues cv = new ContentValues();
+        cv.put(AccountColumns.DISPLAY_NAME, displayName);
+        return db.insert(Account.TABLE_NAME, null, cv);
+    }
+
+    public static long insertMailbox(final SQLiteDatabase db, final long accountId,
+            final int type) {
+        final ContentValues cv = new ContentValues();
+        cv.put(MailboxColumns.ACCOUNT_KEY, accountId);
+        cv.put(MailboxColumns.TYPE, type);
+        return db.insert(Mailbox.TABLE_NAME, null, cv);
+    }
+
+    public static long insertMessage(final SQLiteDatabase db, final long accountId,
+            final long mailboxId) {
+        return insertMessage(db, accountId, mailboxId, new ContentValues());
+    }
+
+    /**
+     * @param values any other columns of the message
+     */
+    public static long insertMessage(final SQLiteDatabase db, final long accountId,
+            final long mailboxId, final ContentValues values) {
+        final ContentValues cv = new ContentValues(values);
+        cv.put(MessageColumns.ACCOUNT_KEY, accountId);
+        cv.put(MessageColumns.MAILBOX_KEY, mailboxId);
+        return db.insert(Message.TABLE_NAME, null, cv);
+    }
+
+    /**
+     * @return the number of rows of the table that match the selection (all of them, if it's
+     *     null)
+     */
+    public static long count(final SQLiteDatabase db, final String table,
+            final String selection) {
+        return DatabaseUtils.longForQuery(db, "select count(*) from " + table
+                + (selection == null ? "" : " where " + selection), null);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.email.mail.Store;
+import com.android.emailcommon.mail.Folder;
+import com.android.emailcommon.mail.MockFolder;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Mailbox;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the locking that lets ImapService sync several mailboxes at once. The syncs run
+ * against a {@link SyncTrackingStore}, which stops each one as soon as it opens the remote folder.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.ImapServiceTests email
+ */
+@MediumTest
+public class ImapServiceTests extends AndroidTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+    /** How long each sync waits, once it's opened its folder, for the other to open its own. */
+    private static final long OVERLAP_WAIT_MILLIS = 200;
+
+    /** Thrown by the remote folder to stop a sync once it has been counted. */
+    private static class StopSyncException extends RuntimeException {
+    }
+
+    /**
+     * A store whose folders count how many syncs have them open at once. Each sync waits a
+     * little while with its folder open for the other sync to open one too, which the other can
+     * only do if the two overlap.
+     */
+    private static class SyncTrackingStore extends Store {
+        final AtomicInteger mOpened = new AtomicInteger();
+        final AtomicInteger mActive = new AtomicInteger();
+        final AtomicInteger mMaxActive = new AtomicInteger();
+        final CountDownLatch mBothOpened = new CountDownLatch(2);
+
+        @Override
+        public Folder getFolder(final String name) {
+            return new MockFolder() {
+                @Override
+                public void open(final OpenMode mode) {
+                    mOpened.incrementAndGet();
+                    final int active = mActive.incrementAndGet();
+                    synchronized (mMaxActive) {
+                        mMaxActive.set(Math.max(mMaxActive.get(), active));
+                    }
+                    mBothOpened.countDown();
+                    try {
+                        mBothOpened.await(OVERLAP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (final InterruptedException e) {
+                        // Stop waiting
+                    } finally {
+                        mActive.decrementAndGet();
+                    }
+                    throw new StopSyncException();
+                }
+            };
+        }
+
+        @Override
+        public Bundle checkSettings() {
+            return null;
+        }
+    }
+
+    private static Account setupAccount() {
+        final Account account = new Account();
+        account.mId = 1;
+        return account;
+    }
+
+    private static Mailbox setupMailbox(final long id) {
+        final Mailbox mailbox = new Mailbox();
+        mailbox.mId = id;
+        mailbox.mAccountKey = 1;
+        mailbox.mType = Mailbox.TYPE_MAIL;
+        mailbox.mServerId = "box" + id;
+        // A quick sync, which doesn't look at the local messages before opening the folder
+        mailbox.mLastFullSyncTime = SystemClock.elapsedRealtime();
+        return mailbox;
+    }
+
+    private Thread startSync(final Store store, final Mailbox mailbox) {
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ImapService.synchronizeMailboxWithStore(getContext(), setupAccount(), store,
+                            mailbox, false, false);
+                } catch (final StopSyncException e) {
+                    // Expected
+                } catch (final Exception e) {
+                    // Leaves the folder unopened, which fails the test
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    /** Syncs of two different mailboxes run at the same time. */
+    public void testDifferentMailboxesOverlap() throws InterruptedException {
+        final SyncTrackingStore store = new SyncTrackingStore();
+        final Thread first = startSync(store, setupMailbox(101));
+        final Thread second = startSync(store, setupMailbox(102));
+        first.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        second.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertEquals(2, store.mOpened.get());
+        assertEquals(2, store.mMaxActive.get());
+    }
+
+    /** Syncs of the same mailbox run one after the other. */
+    public void testSameMailboxDoesNotOverlap() throws InterruptedException {
+        final SyncTrackingStore store = new SyncTrackingStore();
+        final Thread first = startSync(store, setupMailbox(103));
+        final Thread second = startSync(store, setupMailbox(103));
+        first.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        second.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertEquals(2, store.mOpened.get());
+        assertEquals(1, store.mMaxActive.get());
+    }
+
+    /** Deleting a mailbox drops its lock. */
+    public void testRemoveMailboxLock() {
+        final Object lock = ImapService.getMailboxLock(104);
+        assertSame(lock, ImapService.getMailboxLock(104));
+        ImapService.removeMailboxLock(104);
+        assertNotSame(lock, ImapService.getMailboxLock(104));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import com.android.email.service.MailboxSyncScheduler.Candidate;
+import com.android.emailcommon.provider.Mailbox;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests of the MailboxSyncScheduler
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.MailboxSyncSchedulerTests email
+ */
+@SmallTest
+public class MailboxSyncSchedulerTests extends TestCase {
+    private static final long NOW = 1400000000000L;
+    private static final int INTERVAL_MINUTES = 60;
+    private static final long INTERVAL = INTERVAL_MINUTES * DateUtils.MINUTE_IN_MILLIS;
+    /** Long enough ago not to count as recently touched. */
+    private static final long LONG_AGO = NOW - 10 * DateUtils.DAY_IN_MILLIS;
+
+    private static Candidate mailbox(long id, int type, long syncTime, long lastTouchedTime,
+            int unreadCount) {
+        return new Candidate(id, type, syncTime, lastTouchedTime, unreadCount);
+    }
+
+    private static Candidate folder(long id, long syncTime) {
+        return mailbox(id, Mailbox.TYPE_MAIL, syncTime, LONG_AGO, 0);
+    }
+
+    private static long[] getDue(List<Candidate> candidates, int intervalMinutes) {
+        return MailboxSyncScheduler.getDueMailboxes(candidates, NOW, intervalMinutes);
+    }
+
+    public void testInboxAlwaysFirst() {
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(folder(2, NOW - 2 * INTERVAL));
+        // The inbox was just synced, but is synced anyway
+        candidates.add(mailbox(1, Mailbox.TYPE_INBOX, NOW, LONG_AGO, 0));
+        assertTrue(Arrays.equals(new long[] { 1, 2 }, getDue(candidates, INTERVAL_MINUTES)));
+    }
+
+    public void testDueAfterInterval() {
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(folder(2, NOW - INTERVAL + 1));
+        assertEquals(0, getDue(candidates, INTERVAL_MINUTES).length);
+
+        candidates.clear();
+        candidates.add(folder(2, NOW - INTERVAL));
+        assertTrue(Arrays.equals(new long[] { 2 }, getDue(candidates, INTERVAL_MINUTES)));
+    }
+
+    public void testNeverSyncedIsDue() {
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(folder(2, NOW - 5 * INTERVAL));
+        candidates.add(folder(3, 0));
+        // The never synced mailbox goes ahead of the merely overdue one
+        assertTrue(Arrays.equals(new long[] { 3, 2 }, getDue(candidates, INTERVAL_MINUTES)));
+    }
+
+    public void testRecentlyTouchedDueSooner() {
+        final long syncTime = NOW - INTERVAL / 2;
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(folder(2, syncTime));
+        candidates.add(mailbox(3, Mailbox.TYPE_MAIL, syncTime,
+                NOW - MailboxSyncScheduler.RECENTLY_TOUCHED_MILLIS / 2, 0));
+        assertTrue(Arrays.equals(new long[] { 3 }, getDue(candidates, INTERVAL_MINUTES)));
+    }
+
+    public void testUnreadDueSooner() {
+        final long syncTime = NOW - INTERVAL * 4 / 5;
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(folder(2, syncTime));
+        candidates.add(mailbox(3, Mailbox.TYPE_MAIL, syncTime, LONG_AGO, 5));
+        assertTrue(Arrays.equals(new long[] { 3 }, getDue(candidates, INTERVAL_MINUTES)));
+
+        // Both due; the one with unread mail is more urgent
+        candidates.clear();
+        candidates.add(folder(2, NOW - 2 * INTERVAL));
+        candidates.add(mailbox(3, Mailbox.TYPE_MAIL, NOW - 2 * INTERVAL, LONG_AGO, 5));
+        assertTrue(Arrays.equals(new long[] { 3, 2 }, getDue(candidates, INTERVAL_MINUTES)));
+    }
+
+    public void testCappedPerCycle() {
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(mailbox(1, Mailbox.TYPE_INBOX, NOW, LONG_AGO, 0));
+        final int count = MailboxSyncScheduler.MAX_MAILBOXES_PER_CYCLE * 2;
+        for (int i = 0; i < count; i++) {
+            // Mailboxes with higher ids are more overdue
+            candidates.add(folder(100 + i, NOW - (i + 1) * INTERVAL));
+        }
+        final long[] due = getDue(candidates, INTERVAL_MINUTES);
+        assertEquals(MailboxSyncScheduler.MAX_MAILBOXES_PER_CYCLE, due.length);
+        assertEquals(1, due[0]);
+        for (int i = 1; i < due.length; i++) {
+            assertEquals(100 + count - i, due[i]);
+        }
+    }
+
+    public void testDefaultInterval() {
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        candidates.add(folder(2, NOW - MailboxSyncScheduler.DEFAULT_INTERVAL_MILLIS + 1));
+        candidates.add(folder(3, NOW - MailboxSyncScheduler.DEFAULT_INTERVAL_MILLIS));
+        assertTrue(Arrays.equals(new long[] { 3 }, getDue(candidates, 0)));
+        assertTrue(Arrays.equals(new long[] { 3 }, getDue(candidates, -2)));
+    }
+}
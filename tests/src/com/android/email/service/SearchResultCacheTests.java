@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.email.MockClock;
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.emailcommon.mail.Message;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests of the SearchResultCache
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.SearchResultCacheTests email
+ */
+@SmallTest
+public class SearchResultCacheTests extends TestCase {
+    private MockClock mClock;
+    private SearchResultCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock = new MockClock();
+        mCache = new SearchResultCache(mClock);
+    }
+
+    private static Message[] messagesWithUids(String... uids) {
+        final Message[] messages = new Message[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            final MimeMessage message = new MimeMessage();
+            message.setUid(uids[i]);
+            messages[i] = message;
+        }
+        return messages;
+    }
+
+    public void testToSortedUids() {
+        final long[] uids = SearchResultCache.toSortedUids(
+                messagesWithUids("5", "100", "bogus", "7", "20"));
+        assertTrue(Arrays.equals(new long[] { 100, 20, 7, 5 }, uids));
+        assertEquals(0, SearchResultCache.toSortedUids(new Message[0]).length);
+    }
+
+    public void testGetPage() {
+        final long[] uids = new long[] { 9, 8, 7, 6, 5 };
+        assertTrue(Arrays.equals(new String[] { "9", "8" }, SearchResultCache.getPage(uids, 0, 2)));
+        assertTrue(Arrays.equals(new String[] { "6", "5" }, SearchResultCache.getPage(uids, 3, 10)));
+        assertEquals(0, SearchResultCache.getPage(uids, 5, 10).length);
+        assertEquals(0, SearchResultCache.getPage(uids, 8, 10).length);
+    }
+
+    public void testKeyedByAccountMailboxAndQuery() {
+        final long[] uids = new long[] { 3, 2, 1 };
+        mCache.put(1, 10, "foo", uids);
+        assertSame(uids, mCache.get(1, 10, "foo"));
+        assertNull(mCache.get(2, 10, "foo"));
+        assertNull(mCache.get(1, 11, "foo"));
+        assertNull(mCache.get(1, 10, "bar"));
+    }
+
+    public void testExpiry() {
+        mCache.put(1, 10, "foo", new long[] { 1 });
+        mClock.advance(SearchResultCache.TTL_MILLIS);
+        assertNotNull(mCache.get(1, 10, "foo"));
+        mClock.advance();
+        assertNull(mCache.get(1, 10, "foo"));
+    }
+
+    public void testInvalidate() {
+        mCache.put(1, 10, "foo", new long[] { 1 });
+        mCache.put(1, 10, "bar", new long[] { 2 });
+        mCache.put(1, 11, "foo", new long[] { 3 });
+        mCache.invalidate(1, 10);
+        assertNull(mCache.get(1, 10, "foo"));
+        assertNull(mCache.get(1, 10, "bar"));
+        assertNotNull(mCache.get(1, 11, "foo"));
+    }
+
+    public void testLruEvictionByCount() {
+        for (int i = 0; i < SearchResultCache.MAX_ENTRIES; i++) {
+            mCache.put(1, 10, "q" + i, new long[] { i });
+        }
+        // Touch the oldest, so that the second oldest is the one evicted
+        assertNotNull(mCache.get(1, 10, "q0"));
+        mCache.put(1, 10, "new", new long[] { 100 });
+        assertNotNull(mCache.get(1, 10, "q0"));
+        assertNull(mCache.get(1, 10, "q1"));
+        assertNotNull(mCache.get(1, 10, "new"));
+    }
+
+    public void testEvictionByTotalSize() {
+        final int half = SearchResultCache.MAX_TOTAL_UIDS / 2;
+        mCache.put(1, 10, "a", new long[half]);
+        mCache.put(1, 10, "b", new long[half]);
+        assertNotNull(mCache.get(1, 10, "a"));
+        mCache.put(1, 10, "c", new long[1]);
+        // "b" was least recently used
+        assertNull(mCache.get(1, 10, "b"));
+        assertNotNull(mCache.get(1, 10, "a"));
+        assertNotNull(mCache.get(1, 10, "c"));
+
+        // A result that could never fit isn't cached, and doesn't displace anything
+        mCache.put(1, 10, "huge", new long[SearchResultCache.MAX_TOTAL_UIDS + 1]);
+        assertNull(mCache.get(1, 10, "huge"));
+        assertNotNull(mCache.get(1, 10, "a"));
+    }
+}
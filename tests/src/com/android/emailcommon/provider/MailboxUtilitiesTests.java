@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.provider;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.EmailContent.MailboxColumns;
+import com.android.emailcommon.provider.MailboxUtilities.Hierarchy;
+import com.android.emailcommon.provider.MailboxUtilities.HierarchyEntry;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the in-memory fixup of mailbox parent keys, flags and hierarchical names.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.provider.MailboxUtilitiesTests email
+ */
+@SmallTest
+public class MailboxUtilitiesTests extends TestCase {
+    private static final String[] COLUMNS = new String[] {
+        MailboxColumns._ID, MailboxColumns.ACCOUNT_KEY, MailboxColumns.SERVER_ID,
+        MailboxColumns.PARENT_SERVER_ID, MailboxColumns.PARENT_KEY, MailboxColumns.TYPE,
+        MailboxColumns.FLAGS, MailboxColumns.DISPLAY_NAME, MailboxColumns.HIERARCHICAL_NAME
+    };
+    private static final long ACCOUNT = 1;
+    private static final int MAIL_FLAGS = Mailbox.FLAG_HOLDS_MAIL
+            | Mailbox.FLAG_SUPPORTS_SETTINGS | Mailbox.FLAG_ACCEPTS_MOVED_MAIL;
+    private static final int PARENT_FLAGS =
+            MAIL_FLAGS | Mailbox.FLAG_HAS_CHILDREN | Mailbox.FLAG_CHILDREN_VISIBLE;
+
+    private final MatrixCursor mCursor = new MatrixCursor(COLUMNS);
+
+    private void addMailbox(long id, long accountKey, String serverId, String parentServerId,
+            Long parentKey, int type, String displayName, String hierarchicalName) {
+        mCursor.addRow(new Object[] { id, accountKey, serverId, parentServerId, parentKey, type,
+                0, displayName, hierarchicalName });
+    }
+
+    private void addMailbox(long id, String serverId, String parentServerId, Long parentKey) {
+        addMailbox(id, ACCOUNT, serverId, parentServerId, parentKey, Mailbox.TYPE_MAIL, serverId,
+                null);
+    }
+
+    private static void assertEntry(Hierarchy hierarchy, long id, long parentKey, int flags) {
+        final HierarchyEntry entry = hierarchy.getEntry(id);
+        assertEquals(parentKey, entry.mParentKey);
+        assertEquals(flags, entry.mFlags);
+    }
+
+    public void testFixupUninitializedParentKeys() {
+        addMailbox(1, "a", null, null);
+        addMailbox(2, "b", "a", 0L);
+        addMailbox(3, "c", "b", 0L);
+        addMailbox(4, "d", "missing", 0L);
+        // Already initialized, so left alone
+        addMailbox(5, "e", "a", 4L);
+        addMailbox(6, ACCOUNT, null, null, 0L, Mailbox.TYPE_OUTBOX, "Outbox", null);
+        // A mailbox of another account with the same server id isn't a parent
+        addMailbox(7, 2, "c", "a", 0L, Mailbox.TYPE_MAIL, "c", null);
+        final Hierarchy hierarchy = new Hierarchy(mCursor);
+        hierarchy.fixupUninitializedParentKeys();
+
+        assertEntry(hierarchy, 1, Mailbox.NO_MAILBOX, PARENT_FLAGS);
+        assertEntry(hierarchy, 2, 1, PARENT_FLAGS);
+        assertEntry(hierarchy, 3, 2, MAIL_FLAGS);
+        assertEntry(hierarchy, 4, Mailbox.NO_MAILBOX, MAIL_FLAGS);
+        // Its parent was fixed up, which sets the parent keys of all its children
+        assertEntry(hierarchy, 5, 1, 0);
+        assertEntry(hierarchy, 6, Mailbox.NO_MAILBOX,
+                Mailbox.FLAG_HOLDS_MAIL | Mailbox.FLAG_SUPPORTS_SETTINGS);
+        assertEntry(hierarchy, 7, Mailbox.NO_MAILBOX, MAIL_FLAGS);
+    }
+
+    public void testResetParentKeys() {
+        addMailbox(1, "a", null, -1L);
+        addMailbox(2, "b", "a", -1L);
+        final Hierarchy hierarchy = new Hierarchy(mCursor);
+        hierarchy.fixupUninitializedParentKeys();
+        assertTrue(hierarchy.getUpdates().isEmpty());
+
+        hierarchy.resetParentKeys();
+        hierarchy.fixupUninitializedParentKeys();
+        assertEntry(hierarchy, 1, Mailbox.NO_MAILBOX, PARENT_FLAGS);
+        assertEntry(hierarchy, 2, 1, MAIL_FLAGS);
+        assertEquals(2, hierarchy.getUpdates().size());
+    }
+
+    public void testHierarchicalNames() {
+        addMailbox(1, ACCOUNT, "a", null, Mailbox.NO_MAILBOX, Mailbox.TYPE_MAIL, "A", null);
+        addMailbox(2, ACCOUNT, "b", "a", 1L, Mailbox.TYPE_MAIL, "B", "A/B");
+        addMailbox(3, ACCOUNT, "c", "b", 2L, Mailbox.TYPE_MAIL, "C", "Old/C");
+        addMailbox(4, ACCOUNT, "d", null, 99L, Mailbox.TYPE_MAIL, "D", null);
+        // Parent keys that loop back on themselves
+        addMailbox(5, ACCOUNT, "e", "f", 6L, Mailbox.TYPE_MAIL, "E", null);
+        addMailbox(6, ACCOUNT, "f", "e", 5L, Mailbox.TYPE_MAIL, "F", null);
+        final Hierarchy hierarchy = new Hierarchy(mCursor);
+        hierarchy.setHierarchicalNames();
+
+        assertEquals("A", hierarchy.getEntry(1).mHierarchicalName);
+        assertEquals("A/B", hierarchy.getEntry(2).mHierarchicalName);
+        assertEquals("A/B/C", hierarchy.getEntry(3).mHierarchicalName);
+        assertEquals("D/??", hierarchy.getEntry(4).mHierarchicalName);
+        assertEquals("F/??/E", hierarchy.getEntry(5).mHierarchicalName);
+        assertEquals("F/??", hierarchy.getEntry(6).mHierarchicalName);
+
+        // Unchanged names, and top-level ones that were never set, aren't written
+        assertNull(hierarchy.getEntry(1).getChanges());
+        assertNull(hierarchy.getEntry(2).getChanges());
+        assertEquals("A/B/C", hierarchy.getEntry(3).getChanges()
+                .getAsString(MailboxColumns.HIERARCHICAL_NAME));
+        assertEquals(4, hierarchy.getUpdates().size());
+    }
+
+    /**
+     * Builds a deep and wide tree with no parent keys, and checks that a single pass gets every
+     * key and name right.
+     */
+    public void testLargeTree() {
+        final int count = 2000;
+        for (int i = 1; i <= count; i++) {
+            // Mailbox i is the child of mailbox i / 2
+            addMailbox(i, ACCOUNT, "s" + i, i == 1 ? null : "s" + (i / 2), 0L, Mailbox.TYPE_MAIL,
+                    "n" + i, null);
+        }
+        final Hierarchy hierarchy = new Hierarchy(mCursor);
+        hierarchy.fixupUninitializedParentKeys();
+        hierarchy.setHierarchicalNames();
+        for (int i = 1; i <= count; i++) {
+            final HierarchyEntry entry = hierarchy.getEntry(i);
+            assertEquals(i == 1 ? Mailbox.NO_MAILBOX : i / 2, entry.mParentKey);
+            assertEquals(i * 2 <= count ? PARENT_FLAGS : MAIL_FLAGS, entry.mFlags);
+            String expected = "n" + i;
+            for (int j = i / 2; j > 0; j /= 2) {
+                expected = "n" + j + "/" + expected;
+            }
+            assertEquals(expected, entry.mHierarchicalName);
+        }
+        assertEquals(count, hierarchy.getUpdates().size());
+    }
+}
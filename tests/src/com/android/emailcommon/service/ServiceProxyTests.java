@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.service;
+
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.email.service.ImapService;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * Tests of the connections shared by {@link ServiceProxy}s. ImapService runs in our own process,
+ * so it stands in for the remote services here.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.emailcommon.service.ServiceProxyTests email
+ */
+public class ServiceProxyTests extends AndroidTestCase {
+    private static final int CALLS = 200;
+
+    private int getApiVersion() {
+        return new EmailServiceProxy(getContext(), ImapService.class).getApiVersion();
+    }
+
+    @MediumTest
+    public void testConnectionShared() {
+        final int version = getApiVersion();
+        assertTrue(version > 0);
+        assertTrue(ServiceProxy.isConnected(new Intent(getContext(), ImapService.class)));
+        // Later proxies use the same connection, and get the same answer
+        assertEquals(version, getApiVersion());
+        assertTrue(ServiceProxy.isConnected(new Intent(getContext(), ImapService.class)));
+    }
+
+    @MediumTest
+    public void testTestConnection() {
+        assertTrue(new EmailServiceProxy(getContext(), ImapService.class).test());
+    }
+
+    /**
+     * Measures the latency of a call once the connection is open. Timings are logged rather than
+     * asserted, since they depend on the device.
+     */
+    @LargeTest
+    public void testCallLatency() {
+        long start = System.nanoTime();
+        getApiVersion();
+        final long firstMicros = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            getApiVersion();
+        }
+        final long averageMicros = (System.nanoTime() - start) / 1000 / CALLS;
+        LogUtils.d(LogUtils.TAG, "ServiceProxy call latency: first %dus, then %dus on average",
+                firstMicros, averageMicros);
+    }
+}
@@ -20,9 +20,13 @@ import com.android.emailcommon.provider.EmailContent;
 
 import android.net.Uri;
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 @SmallTest
 public class AttachmentUtilitiesTests extends AndroidTestCase {
@@ -123,4 +127,33 @@ public class AttachmentUtilitiesTests extends AndroidTestCase {
         AttachmentUtilities.getFilenameExtension("filename.");
         AttachmentUtilities.getFilenameExtension(".extension");
     }
+
+    /**
+     * Deletes tens of thousands of files in one background batch, as when a large mailbox or
+     * account is removed, including some that are already gone.
+     */
+    @LargeTest
+    public void testDeleteFilesInBackground() throws Exception {
+        final File directory = new File(getContext().getCacheDir(), "delete-files-test");
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+        final int count = 20000;
+        final List<File> files = new ArrayList<File>(count + 100);
+        for (int i = 0; i < count; i++) {
+            final File file = new File(directory, Integer.toString(i));
+            if (!file.createNewFile() && !file.exists()) {
+                throw new IOException("Unable to create " + file);
+            }
+            files.add(file);
+        }
+        for (int i = 0; i < 100; i++) {
+            files.add(new File(directory, "missing" + i));
+        }
+        assertEquals(count, directory.listFiles().length);
+
+        AttachmentUtilities.deleteFilesInBackground(files).get();
+        assertEquals(0, directory.listFiles().length);
+        // Nothing is left to delete a second time
+        assertEquals(0, AttachmentUtilities.deleteFiles(files));
+        assertTrue(directory.delete());
+    }
 }